@@ -98,6 +98,14 @@ RemoteUploader::RemoteUploader() {
   currentEEPROMAddress = EEPROM_OFFSET_ADDRESS;
   maxEEPROMAddress = currentEEPROMAddress;
   baudRate = OPTIBOOT_BAUD_RATE;
+  tagCleared = false;
+  memset(imageTag, 0, IMAGE_TAG_SIZE);
+  memset(writtenPages, 0, sizeof(writtenPages));
+  memset(pagesTag, 0, IMAGE_TAG_SIZE);
+  pagesBytesPerPacket = 0;
+  trackPages = false;
+  deltaUpload = false;
+  replyDataLength = 0;
 }
 
 bool RemoteUploader::inProgrammingMode() {
@@ -462,6 +470,96 @@ void RemoteUploader::reset() {
   currentEEPROMAddress = EEPROM_OFFSET_ADDRESS;
   maxEEPROMAddress = currentEEPROMAddress;
   flashed = false;
+  tagCleared = false;
+  memset(imageTag, 0, IMAGE_TAG_SIZE);
+  // writtenPages is kept for resume
+  trackPages = false;
+  deltaUpload = false;
+}
+
+bool RemoteUploader::isBlankTag(uint8_t tag[]) {
+  for (int i = 0; i < IMAGE_TAG_SIZE; i++) {
+    if (tag[i] != 0) {
+      return false;
+    }
+  }
+  
+  return true;
+}
+
+// true if every page of the program was written since the start packet
+bool RemoteUploader::allPagesWritten() {
+  int pages = (programSize + bytesPerPacket - 1) / bytesPerPacket;
+  
+  for (int i = 0; i < pages; i++) {
+    if ((writtenPages[i / 8] & (1 << (i % 8))) == 0) {
+      return false;
+    }
+  }
+  
+  return true;
+}
+
+// decodes a page compressed by the host (PageCompressor) into readBuffer, which isn't used until we flash.
+// matches that reach back before the page are read from eeprom. returns the decoded length or -1 if the page is corrupt
+int RemoteUploader::decompressPage(uint8_t packet[], int eepromAddress) {
+  uint8_t* in = packet + PROG_COMPRESSED_DATA_HEADER_SIZE;
+  int inLen = packet[3] - PROG_COMPRESSED_DATA_HEADER_SIZE;
+  int outLen = packet[6];
+  int inPos = 0;
+  int pos = 0;
+  uint8_t flags = 0;
+  uint8_t item = 8;
+  
+  if (inLen < 0 || outLen > PROG_PAGE_SIZE) {
+    return -1;
+  }
+  
+  while (pos < outLen) {
+    if (item == 8) {
+      // flags for the next 8 literals/matches
+      if (inPos >= inLen) {
+        return -1;
+      }
+      
+      flags = in[inPos++];
+      item = 0;
+    }
+    
+    if (flags & (1 << item++)) {
+      // match: 12 bits distance - 1, 4 bits length - 3
+      if (inPos + 2 > inLen) {
+        return -1;
+      }
+      
+      int distance = ((in[inPos] << 4) | (in[inPos + 1] >> 4)) + 1;
+      int matchLen = (in[inPos + 1] & 0xf) + COMPRESSION_MIN_MATCH;
+      inPos+= 2;
+      
+      if (distance > eepromAddress - EEPROM_OFFSET_ADDRESS + pos || pos + matchLen > outLen) {
+        return -1;
+      }
+      
+      for (int i = 0; i < matchLen; i++, pos++) {
+        if (distance > pos) {
+          // before this page
+          if (eeprom->read(eepromAddress + pos - distance, readBuffer + pos, 1) != 0) {
+            return -1;
+          }
+        } else {
+          readBuffer[pos] = readBuffer[pos - distance];
+        }
+      }
+    } else {
+      if (inPos >= inLen) {
+        return -1;
+      }
+      
+      readBuffer[pos++] = in[inPos++];
+    }
+  }
+  
+  return inPos == inLen ? pos : -1;
 }
 
 void RemoteUploader::bounce() {    
@@ -578,13 +676,26 @@ int RemoteUploader::flash(int startAddress, int size) {
 }
  
 bool RemoteUploader::isProgrammingPacket(uint8_t packet[], uint8_t packetLength) {
-  if (packetLength >= 4 && packet[0] == MAGIC_BYTE1 && packet[1] == MAGIC_BYTE2) {          
+  // a packet longer than what was received was cut short by the radio or our buffer
+  if (packetLength >= 4 && packet[0] == MAGIC_BYTE1 && packet[1] == MAGIC_BYTE2 && packet[3] <= packetLength) {          
     return true;
   }
   
   return false;
 }
 
+bool RemoteUploader::isBroadcastPacket(uint8_t packet[]) {
+  return packet[2] == CONTROL_PROG_DATA_BROADCAST;
+}
+
+uint8_t* RemoteUploader::getReplyData() {
+  return readBuffer;
+}
+
+uint8_t RemoteUploader::getReplyDataLength() {
+  return replyDataLength;
+}
+
 bool RemoteUploader::isFlashPacket(uint8_t packet[]) {
   if (packet[2] == CONTROL_FLASH_START) {
     return true;
@@ -638,7 +749,9 @@ int RemoteUploader::process(uint8_t packet[]) {
           }
         #endif
       
-        if (packet[2] == CONTROL_PROG_REQUEST) {
+        replyDataLength = 0;
+      
+        if (packet[2] == CONTROL_PROG_REQUEST || packet[2] == CONTROL_PROG_DELTA_REQUEST || packet[2] == CONTROL_PROG_WINDOW_REQUEST || packet[2] == CONTROL_PROG_RESUME_REQUEST || packet[2] == CONTROL_PROG_BROADCAST_REQUEST) {
          // start
           #if (DEBUG) 
             getDebugSerial()->println("Received start packet");
@@ -675,7 +788,81 @@ int RemoteUploader::process(uint8_t packet[]) {
           numPackets = packet[6] << 8 + packet[7];   
           bytesPerPacket = packet[8];
           programmingTimeout = 1000 * ((long) packet[9]);
-        } else if (packet[2] == CONTROL_PROG_DATA && inProgramming) {
+          
+          // older hosts don't send a tag
+          if (packet[3] >= PROG_START_TAG_OFFSET + IMAGE_TAG_SIZE) {
+            memcpy(imageTag, packet + PROG_START_TAG_OFFSET, IMAGE_TAG_SIZE);
+          }
+          
+          if (packet[2] != CONTROL_PROG_RESUME_REQUEST) {
+            // a new image. its pages are tracked until the next upload starts, in case this one has to be resumed
+            memset(writtenPages, 0, sizeof(writtenPages));
+            memcpy(pagesTag, imageTag, IMAGE_TAG_SIZE);
+            pagesBytesPerPacket = bytesPerPacket;
+          }
+          
+          if (packet[2] == CONTROL_PROG_DELTA_REQUEST) {
+            // only changed pages will be sent so eeprom must hold the image the host thinks it does
+            uint8_t baseTag[IMAGE_TAG_SIZE];
+            
+            if (packet[3] < PROG_DELTA_BASE_TAG_OFFSET + IMAGE_TAG_SIZE || eeprom->read(IMAGE_TAG_ADDRESS, baseTag, IMAGE_TAG_SIZE) != 0 
+                || isBlankTag(baseTag) || memcmp(baseTag, packet + PROG_DELTA_BASE_TAG_OFFSET, IMAGE_TAG_SIZE) != 0) {
+              #if (DEBUG) 
+                getDebugSerial()->println("Delta refused");
+              #endif
+              
+              reset();
+              // host will send the full image
+              return START_OVER;
+            }
+            
+            if (bytesPerPacket == 0 || (programSize + bytesPerPacket - 1) / bytesPerPacket > BROADCAST_MAX_PAGES) {
+              #if (DEBUG) 
+                getDebugSerial()->println("Too many pages to track");
+              #endif
+              
+              reset();
+              return START_OVER;
+            }
+            
+            // pages skip around. the host says which we already have with CONTROL_PAGE_BITMAP, and we flash once we have them all
+            trackPages = true;
+            deltaUpload = true;
+          } else if (packet[2] == CONTROL_PROG_WINDOW_REQUEST || packet[2] == CONTROL_PROG_BROADCAST_REQUEST) {
+            // pages after a lost page arrive before its retry, so account for each page instead
+            if (bytesPerPacket == 0 || (programSize + bytesPerPacket - 1) / bytesPerPacket > BROADCAST_MAX_PAGES) {
+              #if (DEBUG) 
+                getDebugSerial()->println("Too many pages to track");
+              #endif
+              
+              reset();
+              // host will send one page at a time
+              return START_OVER;
+            }
+            
+            trackPages = true;
+          } else if (packet[2] == CONTROL_PROG_RESUME_REQUEST) {
+            // eeprom must hold the partial upload of this image, and we must know which of its pages it has. that's lost if we were reset
+            uint8_t pendingTag[IMAGE_TAG_SIZE];
+            
+            if (isBlankTag(imageTag) || eeprom->read(PENDING_TAG_ADDRESS, pendingTag, IMAGE_TAG_SIZE) != 0 || memcmp(pendingTag, imageTag, IMAGE_TAG_SIZE) != 0
+                || memcmp(pagesTag, imageTag, IMAGE_TAG_SIZE) != 0 || pagesBytesPerPacket != bytesPerPacket
+                || bytesPerPacket == 0 || (programSize + bytesPerPacket - 1) / bytesPerPacket > BROADCAST_MAX_PAGES) {
+              #if (DEBUG) 
+                getDebugSerial()->println("Resume refused");
+              #endif
+              
+              reset();
+              // host will send the full image
+              return START_OVER;
+            }
+            
+            // only the missing pages will be sent, in any order. we flash once writtenPages has them all
+            trackPages = true;
+            // image tag was cleared by the upload being resumed
+            tagCleared = true;
+          }
+        } else if ((packet[2] == CONTROL_PROG_DATA || packet[2] == CONTROL_PROG_DATA_COMPRESSED || packet[2] == CONTROL_PROG_DATA_BROADCAST) && inProgramming) {
 
           if (isTimeout()) {
             reset();
@@ -706,7 +893,16 @@ int RemoteUploader::process(uint8_t packet[]) {
             // #endif
 
           // check if the address of this packet aligns with the last write to eeprom
-          if ((address + EEPROM_OFFSET_ADDRESS) < maxEEPROMAddress) {
+          if (trackPages) {
+            // any page of the program, in any order
+            if (address >= programSize || address % bytesPerPacket != 0) {
+              #if (DEBUG)
+                getDebugSerial()->print("ERROR: address "); getDebugSerial()->print(address, DEC); getDebugSerial()->println(" is not a page of the program");
+              #endif
+              
+              return ADDRESS_SKIP_ERROR;
+            }
+          } else if ((address + EEPROM_OFFSET_ADDRESS) < maxEEPROMAddress) {
             // ok, looks like a retry for a packet that got processed but the ack failed
             #if (DEBUG)
               getDebugSerial()->print("WARN: expected address "); getDebugSerial()->print(maxEEPROMAddress, DEC); getDebugSerial()->print(" but got "); getDebugSerial()->println(address + EEPROM_OFFSET_ADDRESS, DEC);
@@ -734,9 +930,41 @@ int RemoteUploader::process(uint8_t packet[]) {
 
           //dumpBuffer(packet + 5, "packet", packetLength - 5);
             
+          uint8_t* data = packet + PROG_DATA_HEADER_SIZE;
           uint8_t dataLen = packetLen - PROG_DATA_HEADER_SIZE;
+          
+          if (packet[2] == CONTROL_PROG_DATA_COMPRESSED) {
+            int decodedLen = decompressPage(packet, currentEEPROMAddress);
             
-          if (eeprom->write(currentEEPROMAddress, packet + PROG_DATA_HEADER_SIZE, dataLen) != 0) {
+            if (decodedLen < 0) {
+              #if (DEBUG) 
+                getDebugSerial()->println("Decompress failure");
+              #endif
+              
+              return DECOMPRESS_ERROR;
+            }
+            
+            data = readBuffer;
+            dataLen = decodedLen;
+          }
+          
+          if (trackPages && address + dataLen > programSize) {
+            return ADDRESS_SKIP_ERROR;
+          }
+          
+          if (!tagCleared) {
+            // eeprom will no longer hold a complete image until we flash
+            uint8_t blankTag[IMAGE_TAG_SIZE] = { 0 };
+            
+            // and remember what it will hold, for resume
+            if (eeprom->write(IMAGE_TAG_ADDRESS, blankTag, IMAGE_TAG_SIZE) != 0 || eeprom->write(PENDING_TAG_ADDRESS, imageTag, IMAGE_TAG_SIZE) != 0) {
+              return EEPROM_WRITE_ERROR;
+            }
+            
+            tagCleared = true;
+          }
+            
+          if (eeprom->write(currentEEPROMAddress, data, dataLen) != 0) {
             #if (DEBUG) 
               getDebugSerial()->println("EEPROM write failure");
             #endif  
@@ -744,6 +972,12 @@ int RemoteUploader::process(uint8_t packet[]) {
             return EEPROM_WRITE_ERROR;
           }
           
+          int page = (currentEEPROMAddress - EEPROM_OFFSET_ADDRESS) / bytesPerPacket;
+          
+          if (page < BROADCAST_MAX_PAGES) {
+            writtenPages[page / 8] |= 1 << (page % 8);
+          }
+          
           currentEEPROMAddress+= dataLen;
 
           if (currentEEPROMAddress > maxEEPROMAddress) {
@@ -792,7 +1026,13 @@ int RemoteUploader::process(uint8_t packet[]) {
           // NOTE redundant we have programSize
           int psize = (packet[4] << 8) + packet[5];
                     
-          if (psize != maxEEPROMAddress - EEPROM_OFFSET_ADDRESS) {
+          if (trackPages && !allPagesWritten()) {
+            #if (DEBUG) 
+              getDebugSerial()->println("Pages missing");
+            #endif              
+            
+            return START_OVER;
+          } else if (!trackPages && psize != maxEEPROMAddress - EEPROM_OFFSET_ADDRESS) {
             #if (DEBUG) 
               getDebugSerial()->print("psize "); getDebugSerial()->print(psize, HEX); getDebugSerial()->print(",cur addr "); getDebugSerial()->println(currentEEPROMAddress - EEPROM_OFFSET_ADDRESS, HEX);
             #endif              
@@ -821,6 +1061,69 @@ int RemoteUploader::process(uint8_t packet[]) {
           // NOTE don't reset. in the event the host doesn't get our reply, we want to be able to handle their retry
           // keep state that we've flashed
           flashed = true;
+          
+          // eeprom holds this image so the next upload can be a delta
+          if (!isBlankTag(imageTag) && eeprom->write(IMAGE_TAG_ADDRESS, imageTag, IMAGE_TAG_SIZE) != 0) {
+            #if (DEBUG)
+              getDebugSerial()->println("Tag write failure");
+            #endif
+          }
+        } else if (packet[2] == CONTROL_MISSING_PAGES && inProgramming) {
+          int pages = (programSize + bytesPerPacket - 1) / bytesPerPacket;
+          
+          if (pages > BROADCAST_MAX_PAGES) {
+            return START_OVER;
+          }
+          
+          // readBuffer isn't used until we flash. bit set for each page we don't have, least significant first
+          replyDataLength = (pages + 7) / 8;
+          
+          for (int i = 0; i < replyDataLength; i++) {
+            readBuffer[i] = ~writtenPages[i];
+          }
+          
+          if (pages % 8 != 0) {
+            // pages past the end
+            readBuffer[replyDataLength - 1] &= (1 << (pages % 8)) - 1;
+          }
+          
+          lastUpdateAtMillis = millis();
+          return OK;
+        } else if (packet[2] == CONTROL_PAGE_BITMAP && inProgramming && deltaUpload) {
+          if (isTimeout()) {
+            reset();
+            return TIMEOUT;
+          }
+          
+          // pages of the image the delta is based on that didn't change
+          int offset = packet[5];
+          int len = packet[3] - PROG_DATA_HEADER_SIZE;
+          
+          if (len < 0 || offset + len > sizeof(writtenPages)) {
+            return START_OVER;
+          }
+          
+          for (int i = 0; i < len; i++) {
+            writtenPages[offset + i] |= packet[PROG_DATA_HEADER_SIZE + i];
+          }
+        } else if (packet[2] == CONTROL_PROBE) {
+          // doesn't affect programming, so no timeout update
+          int probeLen = packet[3] - PROG_DATA_HEADER_SIZE;
+          uint16_t id = getPacketId(packet);
+          
+          if (probeLen > PROG_PAGE_SIZE) {
+            // we couldn't write a page this large
+            return PROBE_ERROR;
+          }
+          
+          // pattern starts at the id so an earlier probe left in the buffer doesn't pass
+          for (int i = 0; i < probeLen; i++) {
+            if (packet[PROG_DATA_HEADER_SIZE + i] != ((id + i) & 0xff)) {
+              return PROBE_ERROR;
+            }
+          }
+          
+          return OK;
         } else {
           // sync error, not expecting prog data   
           // TODO send error. client needs to start over
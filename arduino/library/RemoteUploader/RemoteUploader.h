@@ -64,6 +64,13 @@
 #define PROG_PAGE_RETRIES 2
 // the address to start writing the hex to the eeprom
 #define EEPROM_OFFSET_ADDRESS 16
+// tag of the image in eeprom, set by the host. kept below EEPROM_OFFSET_ADDRESS. all zeros means eeprom does not hold a complete image
+#define IMAGE_TAG_ADDRESS 0
+#define IMAGE_TAG_SIZE 4
+// tag of the image being written to eeprom, so an upload that fails part way can be resumed
+#define PENDING_TAG_ADDRESS 4
+// most pages tracked, a bit each, for uploads where pages arrive out of order. 32K eeprom of 64 byte xbee pages
+#define BROADCAST_MAX_PAGES 512
 
 // ==================================================================END CONFIG ==================================================================
 
@@ -79,11 +86,35 @@
 #define STOP_PROGRAMMING 0xa2
 
 #define CONTROL_PROG_REQUEST 0x10
+// host sends only the pages that changed since the image in eeprom
+#define CONTROL_PROG_DELTA_REQUEST 0x11
+// host sends several pages before waiting for acks, so a lost page may be resent after later pages
+#define CONTROL_PROG_WINDOW_REQUEST 0x12
+// host continues an upload that failed, sending only the pages it has no ack for
+#define CONTROL_PROG_RESUME_REQUEST 0x13
+// start broadcast to many arduinos. pages arrive in any order and the host asks which we missed
+#define CONTROL_PROG_BROADCAST_REQUEST 0x14
 #define CONTROL_PROG_DATA 0x20
+// page data compressed by the host, see decompressPage
+#define CONTROL_PROG_DATA_COMPRESSED 0x21
+// page data broadcast to many arduinos. not acked
+#define CONTROL_PROG_DATA_BROADCAST 0x22
 #define CONTROL_FLASH_START 0x40
+// host is finding the largest page the link delivers. data is a test pattern, nothing is written
+#define CONTROL_PROBE 0x30
+// host asks which pages we don't have. reply data is a bitmap of the missing pages
+#define CONTROL_MISSING_PAGES 0x50
+// follows a delta start: bitmap of the pages eeprom already holds, from the byte of writtenPages in the low byte of the id
+#define CONTROL_PAGE_BITMAP 0x51
 
 #define PROG_START_HEADER_SIZE 9
+// optional tags follow the version byte: the new image tag, and for delta the tag of the image it is based on
+#define PROG_START_TAG_OFFSET 11
+#define PROG_DELTA_BASE_TAG_OFFSET 15
 #define PROG_DATA_HEADER_SIZE 6
+// data header plus the decompressed length
+#define PROG_COMPRESSED_DATA_HEADER_SIZE 7
+#define COMPRESSION_MIN_MATCH 3
 #define FLASH_START_HEADER_SIZE 6
 
 #define VERSION = 1;
@@ -104,6 +135,9 @@
 #define VERIFY_PAGE_ERROR 9
 #define ADDRESS_SKIP_ERROR 0xa
 #define WRONG_VERSION_ERROR 0xb
+#define DECOMPRESS_ERROR 0xc
+// probe arrived damaged or is larger than a page
+#define PROBE_ERROR 0xd
 
 // STK CONSTANTS
 #define STK_OK              0x10
@@ -129,6 +163,11 @@ public:
 	void reset();
 	bool isProgrammingPacket(uint8_t packet[], uint8_t packet_length);
 	bool isFlashPacket(uint8_t packet[]);
+	// broadcast packets must not be replied to
+	bool isBroadcastPacket(uint8_t packet[]);
+	// data to send after the reply code and id, for the last packet processed
+	uint8_t* getReplyData();
+	uint8_t getReplyDataLength();
 	HardwareSerial* getProgrammerSerial();	
 	uint16_t getPacketId(uint8_t packet[]);
 	// optiboot typically runs at 115.2 but can run lower so only needs to be set if not 115.2K
@@ -146,6 +185,9 @@ private:
 	int sendPageToOptiboot(uint8_t *addr, uint8_t *buf, uint8_t data_len);
 	void bounce();
 	int flash(int start_address, int size);
+	bool isBlankTag(uint8_t tag[]);
+	bool allPagesWritten();
+	int decompressPage(uint8_t packet[], int eepromAddress);
 	extEEPROM* eeprom;
 	// ** IMPORTANT! **
 	// For Leonardo use Serial1 (UART) or it will try to program through usb-serial
@@ -170,6 +212,19 @@ private:
 	uint8_t bytesPerPacket;
 	long programmingTimeout;
 	bool flashed;
+	// tag of the image being uploaded
+	uint8_t imageTag[IMAGE_TAG_SIZE];
+	// true once the tag in eeprom is cleared for this upload
+	bool tagCleared;
+	// pages written to eeprom of the image in pagesTag. kept by reset so a resume, even after a timeout, knows what eeprom holds
+	uint8_t writtenPages[BROADCAST_MAX_PAGES / 8];
+	uint8_t pagesTag[IMAGE_TAG_SIZE];
+	uint8_t pagesBytesPerPacket;
+	// pages may arrive in any order, so we flash only once writtenPages has every page. otherwise they arrive in order up to maxEEPROMAddress
+	bool trackPages;
+	// only the changed pages are sent. the rest are set in writtenPages by CONTROL_PAGE_BITMAP
+	bool deltaUpload;
+	uint8_t replyDataLength;
 	long baudRate;
 };
 
@@ -30,7 +30,14 @@
 #define ESP_RX 8
 #define ESP_TX 7
 
+// the host probes for the largest packet that gets through (--probe-page-size), up to this.
+// 32 is what has been run on hardware. define ESP_LARGE_PACKETS to allow 64: that is softserial's
+// whole rx buffer and has not been verified on a board, so check probe results before relying on it
+#ifdef ESP_LARGE_PACKETS
+#define ESP_PACKET_SIZE 64
+#else
 #define ESP_PACKET_SIZE 32
+#endif
 
 #define REPLY_SIZE 5
 #define RESET_PIN 9
@@ -187,7 +194,7 @@ void loop() {
   if (esp8266.readSerial()) { 
     if (esp8266.isData()) {
       // got data
-      if (esp8266.getDataLength() > 4 && remoteUploader.isProgrammingPacket(packet, esp8266.getDataLength())) {
+      if (esp8266.getDataLength() > 4 && remoteUploader.isProgrammingPacket(packet, min(esp8266.getDataLength(), ESP_PACKET_SIZE))) {
         handleProgramming();
       } else {
         // TODO not programming, forward
@@ -42,6 +42,19 @@
 #define ACK_TIMEOUT 3000
 #define SERIAL_TIMEOUT 5000
 
+// Optional hardware flow control for the uploader's --rts-cts: wire this pin to CTS of the usb-serial adapter.
+// It's held high (stop) while a packet goes out over the radio, so packets written ahead of the ack can't overflow the 64 byte serial buffer
+//#define CTS_PIN 4
+
+// Binary replies for the uploader's --binary-replies: COBS encoded frames, each ending with a zero byte, of a type byte then
+// the 16-bit id for replies or the text for debug. Debug text can't be mistaken for a reply and acks need no parsing
+//#define BINARY_REPLIES
+
+#define FRAME_OK 1
+#define FRAME_RETRY 2
+#define FRAME_ERROR 3
+#define FRAME_DEBUG 4
+
 RF24 radio(NORDIC_CE, NORDIC_CS);
 
 // Radio pipe addresses for the 2 nodes to communicate.
@@ -73,6 +86,77 @@ void dump_buffer(uint8_t arr[], uint8_t len, char context[]) {
     Serial.flush();
 }
 
+#ifdef BINARY_REPLIES
+// type and the longest debug text
+uint8_t frame[64];
+uint8_t encoded[66];
+
+// frames are under 254 bytes, so no block needs the 0xff code
+void send_frame(uint8_t len) {
+  uint8_t code_pos = 0;
+  uint8_t pos = 1;
+  uint8_t code = 1;
+  
+  for (uint8_t i = 0; i < len; i++) {
+    if (frame[i] == 0) {
+      encoded[code_pos] = code;
+      code_pos = pos++;
+      code = 1;
+    } else {
+      encoded[pos++] = frame[i];
+      code++;
+    }
+  }
+  
+  encoded[code_pos] = code;
+  encoded[pos++] = 0;
+  Serial.write(encoded, pos);
+}
+#endif
+
+void reply(uint8_t type, uint16_t id) {
+#ifdef BINARY_REPLIES
+  frame[0] = type;
+  frame[1] = id >> 8;
+  frame[2] = id & 0xff;
+  send_frame(3);
+#else
+  if (type == FRAME_OK) {
+    Serial.print("OK,");
+    Serial.print(id, DEC);
+    Serial.println("");
+  } else if (type == FRAME_RETRY) {
+    Serial.println("RETRY");
+  }
+#endif
+}
+
+void debug(const char* text) {
+#ifdef BINARY_REPLIES
+  uint8_t len = 1;
+  frame[0] = FRAME_DEBUG;
+  
+  while (*text && len < sizeof(frame)) {
+    frame[len++] = *text++;
+  }
+  
+  send_frame(len);
+#else
+  Serial.println(text);
+#endif
+}
+
+// ERROR replies carry their reason as text
+void error(const char* text) {
+#ifdef BINARY_REPLIES
+  debug(text);
+  reply(FRAME_ERROR, 0);
+#else
+  Serial.print("ERROR: ");
+  Serial.println(text);
+#endif
+}
+
 void setup(void) {
   radio.begin();
 
@@ -91,6 +175,11 @@ void setup(void) {
   radio.openReadingPipe(1,pipes[1]);      
   radio.startListening();
   
+#ifdef CTS_PIN
+  pinMode(CTS_PIN, OUTPUT);
+  digitalWrite(CTS_PIN, LOW);
+#endif
+
   while (!Serial);
   Serial.begin(19200);  
 }
@@ -103,6 +192,10 @@ bool parsing = false;
 int send_packet() {
   int success = SUCCESS;
   
+#ifdef CTS_PIN
+  digitalWrite(CTS_PIN, HIGH);
+#endif
+
   radio.stopListening();
 
   //dump_buffer(data, 32, "Sending packet to nordic");        
@@ -138,7 +231,9 @@ int send_packet() {
     } else if (ack[2] == 3) {     
       success = TIMEOUT;
     } else {
-      Serial.print("Unexpected reply code: "); Serial.println(ack[2], HEX);
+      char text[32];
+      sprintf(text, "Unexpected reply code: %x", ack[2]);
+      debug(text);
       success = START_OVER;
     }
         
@@ -200,37 +295,41 @@ void loop() {
         
         int response = send_packet();
 
+#ifdef CTS_PIN
+        digitalWrite(CTS_PIN, LOW);
+#endif
+
         if (response == SUCCESS) {
           sent = true;
         } else if (response == TX_FAILURE || response == ACK_FAILURE) {
           if (response == TX_FAILURE) {
-            Serial.println("TX failure");
+            debug("TX failure");
           } else {
-            Serial.println("No ack failure");
+            debug("No ack failure");
           }
           
           retry = true;    
         } else if (response == START_OVER) {
-          Serial.println("Start over");
+          debug("Start over");
           break;
         } else if (response == TIMEOUT) {
-          Serial.println("Timeout");
+          debug("Timeout");
           break;
         } else {
-          Serial.print("Unexpected response: "); Serial.println(response, DEC);
+          char text[32];
+          sprintf(text, "Unexpected response: %d", response);
+          debug(text);
           break; 
         }
 
         if (sent) {
           // send ok with id
-          Serial.print("OK,");
-          Serial.print((ack[3] << 8) + ack[4], DEC);
-          Serial.println("");
+          reply(FRAME_OK, (ack[3] << 8) + ack[4]);
         } else if (retry) {
-          Serial.println("RETRY");
+          reply(FRAME_RETRY, 0);
         } else {
           // failed with retries
-          Serial.println("ERROR: start over");        
+          error("start over");
         }
         
         reset();
@@ -242,7 +341,7 @@ void loop() {
 
   // TODO get timeout from packet
   if (parsing && millis() - last_packet > SERIAL_TIMEOUT) {
-    Serial.println("ERROR: Timeout");
+    error("Timeout");
     reset();
   }  
 }
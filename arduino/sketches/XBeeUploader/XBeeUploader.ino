@@ -54,17 +54,21 @@ Rx64Response rx1 = Rx64Response();
 // series 2
 ZBRxResponse rx2 = ZBRxResponse();
 
-// format magic bytes, status, id1, id2
-uint8_t xbeeTxPayload[] = { MAGIC_BYTE1, MAGIC_BYTE2, 0, 0, 0 };
+#define REPLY_SIZE 5
+// reply data is at most the missing pages bitmap
+#define MAX_REPLY_DATA_SIZE BROADCAST_MAX_PAGES / 8
+
+// format magic bytes, status, id1, id2, then any reply data
+uint8_t xbeeTxPayload[REPLY_SIZE + MAX_REPLY_DATA_SIZE] = { MAGIC_BYTE1, MAGIC_BYTE2, 0, 0, 0 };
 
 // TODO use ifdef to either include series 1 or 2 but not both
 
 // Coordinator Gateway
 XBeeAddress64 addr64 = XBeeAddress64(COORD_MSB_ADDRESS, COORD_LSB_ADDRESS);
 // series 1
-Tx64Request tx1 = Tx64Request(addr64, xbeeTxPayload, sizeof(xbeeTxPayload));
+Tx64Request tx1 = Tx64Request(addr64, xbeeTxPayload, REPLY_SIZE);
 // series 2
-ZBTxRequest tx2 = ZBTxRequest(addr64, xbeeTxPayload, sizeof(xbeeTxPayload));
+ZBTxRequest tx2 = ZBTxRequest(addr64, xbeeTxPayload, REPLY_SIZE);
 
 // status response
 // series 1
@@ -134,6 +138,11 @@ int sendReply(uint8_t status, uint16_t id) {
   xbeeTxPayload[3] = (id >> 8) & 0xff;
   xbeeTxPayload[4] = id & 0xff;
   
+  uint8_t dataLength = remoteUploader.getReplyDataLength();
+  memcpy(xbeeTxPayload + REPLY_SIZE, remoteUploader.getReplyData(), dataLength);
+  tx1.setPayloadLength(REPLY_SIZE + dataLength);
+  tx2.setPayloadLength(REPLY_SIZE + dataLength);
+  
   // TODO send with magic packet host can differentiate between relayed packets and programming ACKS
   if (series == SERIES1) {
     xbee.send(tx1);        
@@ -262,12 +271,16 @@ void loop() {
           // send the packet array, length to be processed
           int response = remoteUploader.process(packet);
               
-          // do reset in library
-          if (response != OK) {
-            remoteUploader.reset();
-          }
+          if (remoteUploader.isBroadcastPacket(packet)) {
+            // every arduino would reply at once. the host asks for the pages we missed after
+          } else {
+            // do reset in library
+            if (response != OK) {
+              remoteUploader.reset();
+            }
 
-          sendReply(response, remoteUploader.getPacketId(packet));          
+            sendReply(response, remoteUploader.getPacketId(packet));          
+          }
           
           if (remoteUploader.isFlashPacket(packet)) {
             if (PROXY_SERIAL) {
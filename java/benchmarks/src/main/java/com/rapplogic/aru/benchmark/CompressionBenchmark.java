@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.PageCompressor;
+import com.rapplogic.aru.core.Sketch;
+import com.rapplogic.aru.core.SketchCore;
+
+/**
+ * Measures page compression on hex files: bytes over the air with and without compression, for the page sizes of each
+ * transport, sending pages in order so each page can refer to the pages before it. Every page is decoded with the
+ * reference decoder and compared.
+ *
+ * Also estimates how many packets it would take if pages were grown until they no longer compress into a packet, up to
+ * the arduino's page buffer
+ *
+ * ex. java -cp java/benchmarks/target/benchmarks.jar com.rapplogic.aru.benchmark.CompressionBenchmark [file.hex ...]. Defaults to resources/*.hex
+ *
+ * @author andrew
+ *
+ */
+public class CompressionBenchmark {
+
+	// data bytes per packet: wifi and nordic (32 byte packets less the 6 byte header), xbee
+	private final int[] PAGE_SIZES = new int[] { 26, 64 };
+	// raw and compressed page headers
+	private final int HEADER_SIZE = 6;
+	private final int COMPRESSED_HEADER_SIZE = 7;
+	// PROG_PAGE_SIZE in the arduino library
+	private final int MAX_DECODED_PAGE = 128;
+
+	private final SketchCore sketchCore = new SketchCore();
+
+	public void run(String file) throws IOException {
+		byte[] bytes = sketchCore.parseIntelHex(file);
+		ByteBuffer program = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		PageCompressor compressor = new PageCompressor(program);
+		byte[] compressed = new byte[MAX_DECODED_PAGE];
+		byte[] decoded = new byte[MAX_DECODED_PAGE];
+
+		for (int pageSize : PAGE_SIZES) {
+			Sketch sketch = sketchCore.createSketch(program, pageSize);
+			long rawBytes = 0;
+			long compressedBytes = 0;
+			int compressedPages = 0;
+
+			for (Page page : sketch.getPages()) {
+				int offset = page.getOrdinal() * pageSize;
+				int length = compressor.compress(offset, page.getLength(), offset, compressed);
+
+				rawBytes+= HEADER_SIZE + page.getLength();
+
+				if (length < 0) {
+					compressedBytes+= HEADER_SIZE + page.getLength();
+					continue;
+				}
+
+				PageCompressor.decompress(compressed, length, program, offset, decoded, page.getLength());
+
+				for (int i = 0; i < page.getLength(); i++) {
+					if (decoded[i] != bytes[offset + i]) {
+						throw new RuntimeException("Page " + page.getOrdinal() + " of " + file + " does not decode");
+					}
+				}
+
+				compressedBytes+= COMPRESSED_HEADER_SIZE + length;
+				compressedPages++;
+			}
+
+			System.out.println(String.format("%s, %d byte pages: %d of %d pages compressed, %d bytes over the air, %d compressed (%.1f%%), %d packets if pages grow to fill a packet",
+					new File(file).getName(), pageSize, compressedPages, sketch.getPages().size(), rawBytes, compressedBytes, 100.0 * compressedBytes / rawBytes, countGrownPackets(bytes, compressor, pageSize, compressed)));
+		}
+	}
+
+	/**
+	 * Packets needed if each page is as long as still compresses into a packet of pageSize data bytes
+	 */
+	private int countGrownPackets(byte[] program, PageCompressor compressor, int pageSize, byte[] compressed) {
+		int packets = 0;
+		int offset = 0;
+
+		while (offset < program.length) {
+			int length = Math.min(pageSize, program.length - offset);
+
+			while (length < MAX_DECODED_PAGE && offset + length < program.length) {
+				int compressedLength = compressor.compress(offset, length + 1, offset, compressed);
+
+				if (compressedLength < 0 || COMPRESSED_HEADER_SIZE + compressedLength > HEADER_SIZE + pageSize) {
+					break;
+				}
+
+				length++;
+			}
+
+			offset+= length;
+			packets++;
+		}
+
+		return packets;
+	}
+
+	public static void main(String[] args) throws IOException {
+		CompressionBenchmark benchmark = new CompressionBenchmark();
+		String[] files = args;
+
+		if (files.length == 0) {
+			File[] hex = new File("resources").listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".hex");
+				}
+			});
+
+			if (hex == null) {
+				System.out.println("No hex files given and no resources directory");
+				return;
+			}
+
+			Arrays.sort(hex);
+			files = new String[hex.length];
+
+			for (int i = 0; i < hex.length; i++) {
+				files[i] = hex[i].getPath();
+			}
+		}
+
+		for (String file : files) {
+			benchmark.run(file);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.rapplogic.aru.core.SketchCore;
+import com.rapplogic.aru.uploader.simulator.LinkConditions;
+import com.rapplogic.aru.uploader.simulator.SimulatedConfig;
+import com.rapplogic.aru.uploader.simulator.SimulatedDevice;
+import com.rapplogic.aru.uploader.simulator.SimulatedTransport;
+import com.rapplogic.aru.uploader.transport.TransportSketchUploader;
+import com.rapplogic.aru.uploader.transport.loopback.VirtualArduino;
+
+/**
+ * Runs whole uploads over a simulated link of the bandwidth and latency of a real one, with loss and burst loss, for each
+ * combination of window size, ack timeout and retry delay. Reports the time, goodput (program bytes per second), pages per
+ * second and retries of each, to choose settings by. Upload n of every combination sees a link seeded with n, so runs can be
+ * repeated and compared.
+ *
+ * link is xbee, nordic or esp8266, or bandwidth bps,latency ms,page size,max packet size
+ *
+ * ex. java -cp java/benchmarks/target/benchmarks.jar com.rapplogic.aru.benchmark.LinkUploadBenchmark [file.hex [link [loss % [burst % [burst length [uploads]]]]]]
+ *
+ * @author andrew
+ *
+ */
+public class LinkUploadBenchmark {
+
+	// 24LC256 worst case
+	private static final int EEPROM_WRITE_MICROS = 5000;
+	private static final int ARDUINO_TIMEOUT_SECS = 60;
+	private static final int RETRIES_PER_PACKET = 10;
+
+	private static final int[] WINDOW_SIZES = { 1, 4, 8 };
+	private static final int[] RETRY_DELAYS_MILLIS = { 0, 250 };
+	private static final int ACK_TIMEOUT_MILLIS = 2000;
+
+	static class Link {
+		final String name;
+		final int bandwidthBps;
+		final int latencyMillis;
+		final int pageSize;
+		final int maxPacketSize;
+		// the link reports lost packets
+		final boolean linkAcks;
+
+		Link(String name, int bandwidthBps, int latencyMillis, int pageSize, int maxPacketSize, boolean linkAcks) {
+			this.name = name;
+			this.bandwidthBps = bandwidthBps;
+			this.latencyMillis = latencyMillis;
+			this.pageSize = pageSize;
+			this.maxPacketSize = maxPacketSize;
+			this.linkAcks = linkAcks;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + bandwidthBps + " bps, " + latencyMillis + "ms latency, " + pageSize + " byte pages" + (linkAcks ? ", lost packets reported" : "") + ")";
+		}
+	}
+
+	// raw rate of the radio. tx status reports lost packets
+	static final Link XBEE = new Link("xbee", 250000, 10, 64, 84, true);
+	// the radio does 250kbps but NordicSerial2SPI is behind 19200 baud serial. RETRY reports lost packets
+	static final Link NORDIC = new Link("nordic", 19200 * 8 / 10, 5, 26, 32, true);
+	// tcp is fast, the 9600 baud serial between the esp8266 and arduino isn't
+	static final Link ESP8266 = new Link("esp8266", 9600 * 8 / 10, 20, 26, 32, false);
+
+	private final String file;
+	private final byte[] program;
+	private final Link link;
+	private final double lossPercent;
+	private final double burstPercent;
+	private final int burstLength;
+
+	public LinkUploadBenchmark(String file, Link link, double lossPercent, double burstPercent, int burstLength) throws Exception {
+		this.file = file;
+		this.program = new SketchCore().parseIntelHex(file);
+		this.link = link;
+		this.lossPercent = lossPercent;
+		this.burstPercent = burstPercent;
+		this.burstLength = burstLength;
+	}
+
+	static Link parseLink(String link) {
+		if (link.equals(XBEE.name)) {
+			return XBEE;
+		} else if (link.equals(NORDIC.name)) {
+			return NORDIC;
+		} else if (link.equals(ESP8266.name)) {
+			return ESP8266;
+		}
+
+		List<String> values = Lists.newArrayList(Splitter.on(',').trimResults().split(link));
+
+		if (values.size() != 4) {
+			throw new IllegalArgumentException("Link must be xbee, nordic, esp8266 or bps,latency ms,page size,max packet size but was " + link);
+		}
+
+		return new Link("custom", Integer.parseInt(values.get(0)), Integer.parseInt(values.get(1)), Integer.parseInt(values.get(2)), Integer.parseInt(values.get(3)), false);
+	}
+
+	/**
+	 * Uploads the sketch the given number of times with these settings
+	 */
+	public void run(int uploads, int windowSize, boolean adaptiveAckTimeout, int retryDelayMillis, PrintStream out) throws Exception {
+		long totalNanos = 0;
+		int retries = 0;
+		int failed = 0;
+
+		for (int i = 0; i < uploads; i++) {
+			LinkConditions conditions = new LinkConditions(i);
+			conditions.setBandwidthBps(link.bandwidthBps);
+			conditions.setLatencyMillis(link.latencyMillis);
+			conditions.setLossPercent(lossPercent);
+			conditions.setBurstPercent(burstPercent);
+			conditions.setBurstLength(burstLength);
+
+			VirtualArduino arduino = new VirtualArduino();
+			arduino.setEepromWriteMicros(EEPROM_WRITE_MICROS);
+			SimulatedDevice device = new SimulatedDevice(link.name, arduino, conditions);
+
+			SimulatedConfig config = new SimulatedConfig(link.pageSize, link.maxPacketSize, device);
+			config.setLinkAcks(link.linkAcks);
+
+			TransportSketchUploader uploader = new TransportSketchUploader(new SimulatedTransport(config));
+			// console output would be timed too
+			uploader.setUploadListener(null);
+			uploader.setWindowSize(windowSize);
+			uploader.setAdaptiveAckTimeout(adaptiveAckTimeout);
+
+			long start = System.nanoTime();
+
+			try {
+				if (!uploader.flash(file, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SECS, RETRIES_PER_PACKET, retryDelayMillis) || !Arrays.equals(program, arduino.getProgram())) {
+					failed++;
+				}
+			} finally {
+				device.close();
+			}
+
+			totalNanos += System.nanoTime() - start;
+			retries += uploader.getRetries();
+		}
+
+		double seconds = totalNanos / 1e9 / uploads;
+		int pages = (program.length + link.pageSize - 1) / link.pageSize;
+
+		out.println(String.format("%6d  %-14s  %11d  %9.0f  %11.0f  %7.1f  %7.1f  %6d",
+				windowSize, (adaptiveAckTimeout ? "adaptive " : "fixed ") + ACK_TIMEOUT_MILLIS, retryDelayMillis, seconds * 1000, program.length / seconds, pages / seconds, (double) retries / uploads, failed));
+	}
+
+	public static void main(String[] args) throws Exception {
+		String file = args.length > 0 ? args[0] : "resources/BlinkSlow-atmega-328-16Mhz.cpp.hex";
+		Link link = parseLink(args.length > 1 ? args[1] : "xbee");
+		double lossPercent = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+		double burstPercent = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+		int burstLength = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+		int uploads = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+
+		LinkUploadBenchmark benchmark = new LinkUploadBenchmark(file, link, lossPercent, burstPercent, burstLength);
+
+		PrintStream out = System.out;
+
+		out.println(file + " (" + benchmark.program.length + " bytes) over " + link + ", " + lossPercent + "% loss, " + burstPercent + "% bursts of " + burstLength + ", mean of " + uploads + " uploads");
+		out.println("window  ack timeout ms  retry delay    time ms  goodput B/s  pages/s  retries  failed");
+
+		for (int windowSize : WINDOW_SIZES) {
+			for (boolean adaptive : new boolean[] { true, false }) {
+				for (int retryDelayMillis : RETRY_DELAYS_MILLIS) {
+					benchmark.run(uploads, windowSize, adaptive, retryDelayMillis, out);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import com.rapplogic.aru.core.SketchCore;
+import com.rapplogic.aru.uploader.transport.TransportSketchUploader;
+import com.rapplogic.aru.uploader.transport.loopback.LoopbackConfig;
+import com.rapplogic.aru.uploader.transport.loopback.LoopbackTransport;
+
+/**
+ * Runs the upload engine over loopback transports, so nothing but the engine and an in memory arduino is measured. Uploads run
+ * at once on separate uploaders, each to its own arduino, and every flashed program is compared with the sketch
+ *
+ * ex. java -cp java/benchmarks/target/benchmarks.jar com.rapplogic.aru.benchmark.LoopbackUploadBenchmark [file.hex [uploads [concurrency [page size]]]]
+ *
+ * @author andrew
+ *
+ */
+public class LoopbackUploadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		String file = args.length > 0 ? args[0] : "resources/BlinkSlow-atmega-328-16Mhz.cpp.hex";
+		int uploads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		final int pageSize = args.length > 3 ? Integer.parseInt(args[3]) : 26;
+		final String sketch = file;
+		final byte[] program = new SketchCore().parseIntelHex(file);
+
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		List<Future<Long>> results = Lists.newArrayList();
+		long start = System.nanoTime();
+
+		try {
+			for (int i = 0; i < uploads; i++) {
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						LoopbackConfig config = new LoopbackConfig(pageSize);
+						TransportSketchUploader uploader = new TransportSketchUploader(new LoopbackTransport(config));
+						// console output would be timed too
+						uploader.setUploadListener(null);
+						long started = System.nanoTime();
+
+						if (!uploader.flash(sketch, false, 1000, 60, 3, 0)) {
+							throw new RuntimeException("Upload failed");
+						}
+
+						if (!Arrays.equals(program, config.getArduino().getProgram())) {
+							throw new RuntimeException("Flashed program does not match the sketch");
+						}
+
+						return System.nanoTime() - started;
+					}
+				}));
+			}
+
+			long total = 0;
+
+			for (Future<Long> result : results) {
+				total+= result.get();
+			}
+
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("%d uploads of %s (%d bytes, %d byte pages), %d at once: %.1f uploads/s, %.2fms per upload",
+					uploads, file, program.length, pageSize, concurrency, uploads * 1e9 / elapsed, total / 1e6 / uploads));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
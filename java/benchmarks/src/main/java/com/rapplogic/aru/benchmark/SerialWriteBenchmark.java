@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.rapplogic.aru.uploader.nordic.NordicConfig;
+import com.rapplogic.aru.uploader.nordic.NordicTransport;
+import com.rapplogic.aru.uploader.serial.PacketWriter;
+import com.rapplogic.aru.uploader.transport.Transport;
+
+/**
+ * Measures the time to write a 32 byte nordic packet to the serial port a byte at a time (the original write path), in
+ * chunks, and a packet at a time.
+ *
+ * With a serial port and baud rate it writes to the port, so the Arduino should not be running the NordicSerial2SPI sketch
+ * or it will try to send the packets. Without, it writes to an emulated usb-serial adapter where each flush waits for the
+ * bytes to go out at the baud rate plus the latency of a usb transfer.
+ *
+ * ex. java -cp java/benchmarks/target/benchmarks.jar com.rapplogic.aru.benchmark.SerialWriteBenchmark [serial-port baud-rate [packets]]
+ *
+ * @author andrew
+ *
+ */
+public class SerialWriteBenchmark {
+
+	private final int PACKET_SIZE = 32;
+	// usb full speed frame
+	private final static int USB_LATENCY_MICROS = 1000;
+
+	// chunk size, delay between chunks
+	private final int[][] WRITERS = new int[][] { { 1, 0 }, { 8, 0 }, { 8, 500 }, { 0, 0 } };
+
+	public void run(OutputStream out, int packets) throws IOException, InterruptedException {
+		Random random = new Random(1);
+		int[] packet = new int[PACKET_SIZE];
+
+		for (int i = 0; i < packet.length; i++) {
+			packet[i] = random.nextInt(256);
+		}
+
+		for (int[] config : WRITERS) {
+			PacketWriter writer = new PacketWriter(config[0], config[1]);
+			long[] micros = new long[packets];
+
+			// warm up
+			for (int i = 0; i < 10; i++) {
+				writer.write(out, packet);
+			}
+
+			for (int i = 0; i < packets; i++) {
+				long start = System.nanoTime();
+				writer.write(out, packet);
+				micros[i] = (System.nanoTime() - start) / 1000;
+			}
+
+			Arrays.sort(micros);
+			long total = 0;
+
+			for (long m : micros) {
+				total+= m;
+			}
+
+			System.out.println(String.format("%-32s mean %6dus, p50 %6dus, p99 %6dus, max %6dus per %d byte packet",
+					config[0] == 0 ? "packet at a time" : config[0] == 1 ? "byte at a time" : config[0] + " byte chunks" + (config[1] > 0 ? ", " + config[1] + "us apart" : ""),
+					total / packets, micros[packets / 2], micros[packets * 99 / 100], micros[packets - 1], PACKET_SIZE));
+		}
+	}
+
+	/**
+	 * Stands in for a usb-serial adapter: flush returns when the bytes written since the last flush would be on the wire
+	 */
+	static class EmulatedSerialOutputStream extends OutputStream {
+
+		private final long nanosPerByte;
+		private int pending;
+
+		EmulatedSerialOutputStream(int baudRate) {
+			// start, 8 data and stop bit
+			nanosPerByte = 10 * 1000000000L / baudRate;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			pending++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			pending+= len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long until = System.nanoTime() + USB_LATENCY_MICROS * 1000L + pending * nanosPerByte;
+			pending = 0;
+
+			// sleep is too coarse for a byte at 115200
+			while (System.nanoTime() < until) {
+				Thread.yield();
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		SerialWriteBenchmark benchmark = new SerialWriteBenchmark();
+
+		if (args.length >= 2) {
+			int packets = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+			NordicTransport transport = new NordicTransport(new NordicConfig(args[0], Integer.parseInt(args[1])));
+			// replies are read but not waited for
+			transport.open(new Transport.ReplyHandler() {
+				@Override
+				public void handleReply(int code, int id, int[] reply) {
+				}
+
+				@Override
+				public void handleDisconnect() {
+				}
+
+				@Override
+				public void handleDeliveryFailed(int id) {
+				}
+			});
+
+			try {
+				System.out.println("Writing " + packets + " packets to " + args[0] + " at " + args[1] + " baud");
+				benchmark.run(transport.getSerialPort().getOutputStream(), packets);
+			} finally {
+				transport.close();
+			}
+		} else {
+			for (int baudRate : new int[] { 19200, 115200 }) {
+				System.out.println("Emulated usb-serial adapter at " + baudRate + " baud, " + USB_LATENCY_MICROS + "us per usb transfer");
+				benchmark.run(new EmulatedSerialOutputStream(baudRate), 200);
+			}
+		}
+	}
+}
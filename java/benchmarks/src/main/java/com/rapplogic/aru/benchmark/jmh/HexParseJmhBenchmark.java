@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of parsing a hex file into the program, SketchCore.parseIntelHex
+ *
+ * ex. java -jar target/benchmarks.jar HexParseJmhBenchmark
+ *
+ * @author andrew
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexParseJmhBenchmark {
+
+	@Param({ "BlinkSlow-atmega-328-16Mhz.cpp.hex", "BlinkFast-atmega-328-16Mhz.cpp.hex", "32k", "128k", "256k" })
+	public String image;
+
+	private String file;
+	private boolean large;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Images.get(image).getAbsolutePath();
+		large = Images.isLarge(file);
+	}
+
+	@Benchmark
+	public byte[] parseIntelHex() throws IOException {
+		return Images.parse(file, large);
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import com.rapplogic.aru.core.IntelHexParser;
+import com.rapplogic.aru.core.SketchCore;
+
+/**
+ * The hex files the benchmarks run on: the sketches of resources/, which are on the classpath, and generated images of
+ * random data named by their size, e.g. 32k
+ *
+ * @author andrew
+ *
+ */
+class Images {
+
+	// SketchCore stops at 128KB, an atmega1280. 256KB is an atmega2560
+	static final int LARGE_PROGRAM_SIZE = 0x40000;
+
+	private static final SketchCore sketchCore = new SketchCore();
+
+	static File get(String image) throws IOException {
+		if (image.endsWith("k")) {
+			int size = Integer.parseInt(image.substring(0, image.length() - 1)) * 1024;
+			return generateHexFile(size, size);
+		}
+
+		File file = File.createTempFile("aru-", ".hex");
+		file.deleteOnExit();
+		Files.write(Resources.toByteArray(Resources.getResource(image)), file);
+		return file;
+	}
+
+	/**
+	 * Writes a hex file of random data with 16 byte records, as avr-objcopy does
+	 */
+	static File generateHexFile(int size, long seed) throws IOException {
+		Random random = new Random(seed);
+		StringBuilder hex = new StringBuilder(size * 3);
+
+		for (int position = 0; position < size; position+= 16) {
+			if (position > 0 && (position & 0xffff) == 0) {
+				appendRecord(hex, 4, 0, new int[] { (position >> 24) & 0xff, (position >> 16) & 0xff });
+			}
+
+			int[] data = new int[Math.min(16, size - position)];
+
+			for (int i = 0; i < data.length; i++) {
+				data[i] = random.nextInt(256);
+			}
+
+			appendRecord(hex, 0, position & 0xffff, data);
+		}
+
+		appendRecord(hex, 1, 0, new int[0]);
+
+		File file = File.createTempFile("aru-" + size + "-", ".hex");
+		file.deleteOnExit();
+		Files.write(hex, file, Charset.forName("UTF-8"));
+		return file;
+	}
+
+	private static void appendRecord(StringBuilder hex, int type, int address, int[] data) {
+		int checksum = data.length + (address >> 8) + (address & 0xff) + type;
+
+		hex.append(':');
+		appendByte(hex, data.length);
+		appendByte(hex, address >> 8);
+		appendByte(hex, address & 0xff);
+		appendByte(hex, type);
+
+		for (int b : data) {
+			appendByte(hex, b);
+			checksum+= b;
+		}
+
+		appendByte(hex, (0x100 - (checksum & 0xff)) & 0xff);
+		hex.append("\r\n");
+	}
+
+	private static void appendByte(StringBuilder hex, int b) {
+		hex.append(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf, 16)));
+		hex.append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+	}
+
+	/**
+	 * Parses as SketchCore does, with a parser big enough for images over its max
+	 */
+	static byte[] parse(String file, boolean large) throws IOException {
+		return large ? new IntelHexParser(LARGE_PROGRAM_SIZE).parse(new File(file)) : sketchCore.parseIntelHex(file);
+	}
+
+	static boolean isLarge(String file) throws IOException {
+		return parse(file, true).length > sketchCore.MAX_PROGRAM_SIZE;
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.benchmark.jmh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.Lists;
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+import com.rapplogic.aru.uploader.SketchUploader;
+
+/**
+ * Cost of preparing the packets of a sketch, at the page size of each transport: paging the program, framing pages with
+ * their header, the hex of verbose output, and converting packets to bytes for the socket
+ *
+ * ex. java -jar target/benchmarks.jar PacketJmhBenchmark -p pageSize=26
+ *
+ * @author andrew
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketJmhBenchmark {
+
+	@Param({ "BlinkSlow-atmega-328-16Mhz.cpp.hex", "BlinkFast-atmega-328-16Mhz.cpp.hex", "32k", "128k", "256k" })
+	public String image;
+
+	// wifi and nordic, xbee, and the most the arduino takes
+	@Param({ "26", "64", "128" })
+	public int pageSize;
+
+	private final FramingUploader uploader = new FramingUploader();
+	private String file;
+	private boolean large;
+	private ByteBuffer program;
+	private Sketch sketch;
+	private List<int[]> packets;
+	private byte[] sendBuffer;
+
+	@Setup
+	public void setup() throws IOException {
+		file = Images.get(image).getAbsolutePath();
+		large = Images.isLarge(file);
+		program = ByteBuffer.wrap(Images.parse(file, large)).asReadOnlyBuffer();
+		sketch = uploader.createSketch(program, pageSize);
+		packets = Lists.newArrayList();
+
+		for (Page page : sketch.getPages()) {
+			packets.add(uploader.frame(page));
+		}
+
+		sendBuffer = new byte[pageSize + 16];
+	}
+
+	/**
+	 * Parse and page, as an upload starts
+	 */
+	@Benchmark
+	public Sketch parseSketchFromIntelHex() throws IOException {
+		if (large) {
+			return uploader.createSketch(ByteBuffer.wrap(Images.parse(file, true)).asReadOnlyBuffer(), pageSize);
+		}
+
+		return uploader.parseSketchFromIntelHex(file, pageSize);
+	}
+
+	/**
+	 * Paging alone, with the crc of each page
+	 */
+	@Benchmark
+	public Sketch createSketch() {
+		return uploader.createSketch(program, pageSize);
+	}
+
+	/**
+	 * Page objects alone, without the crcs
+	 */
+	@Benchmark
+	public void newPages(Blackhole blackhole) {
+		int size = program.remaining();
+
+		for (int position = 0, ordinal = 0; position < size; position += pageSize, ordinal++) {
+			blackhole.consume(new Page(program, position, Math.min(pageSize, size - position), ordinal, 0));
+		}
+	}
+
+	/**
+	 * SketchUploader.combine of getProgramPageHeader and each page
+	 */
+	@Benchmark
+	public void frame(Blackhole blackhole) {
+		for (Page page : sketch.getPages()) {
+			blackhole.consume(uploader.frame(page));
+		}
+	}
+
+	/**
+	 * Hex of each packet, as printed when verbose
+	 */
+	@Benchmark
+	public void toHex(Blackhole blackhole) {
+		for (int[] packet : packets) {
+			blackhole.consume(uploader.toHex(packet));
+		}
+	}
+
+	/**
+	 * As WifiSketchUploader writes a packet: a new byte[] per packet, with CR/LF
+	 */
+	@Benchmark
+	public void toBytes(Blackhole blackhole) {
+		for (int[] data : packets) {
+			byte[] b = new byte[data.length + 2];
+
+			for (int i = 0; i < data.length; i++) {
+				b[i] = (byte) (data[i] & 0xff);
+			}
+
+			b[data.length] = (byte) 13;
+			b[data.length + 1] = (byte) 10;
+
+			blackhole.consume(b);
+		}
+	}
+
+	/**
+	 * As TransportSketchUploader writes a packet: into a reused buffer
+	 */
+	@Benchmark
+	public void toBytesReused(Blackhole blackhole) {
+		for (int[] data : packets) {
+			for (int i = 0; i < data.length; i++) {
+				sendBuffer[i] = (byte) data[i];
+			}
+
+			blackhole.consume(sendBuffer);
+		}
+	}
+
+	/**
+	 * Exposes the framing of the upload engine. Never connects
+	 */
+	static class FramingUploader extends SketchUploader {
+
+		int[] frame(Page page) {
+			return combine(getProgramPageHeader(page.getRealAddress16(), page.getLength()), page);
+		}
+
+		@Override
+		protected void open(Map<String, Object> context) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void writeData(int[] data, Map<String, Object> context) throws Exception {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		protected void close() throws Exception {
+		}
+
+		@Override
+		protected String getName() {
+			return "benchmark";
+		}
+	}
+}
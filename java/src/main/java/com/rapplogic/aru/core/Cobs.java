@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+/**
+ * Consistent Overhead Byte Stuffing. A frame is encoded without zero bytes and ends with a zero, so a reader can always find
+ * the next frame after noise or a lost byte. Each block starts with a code byte: the distance to the next zero in the frame,
+ * or 0xff for 254 bytes without a zero
+ *
+ * @author andrew
+ *
+ */
+public class Cobs {
+
+	public static final int DELIMITER = 0;
+
+	/**
+	 * Most bytes encoding a frame of length bytes takes, with the delimiter
+	 */
+	public static int maxEncodedLength(int length) {
+		return length + length / 254 + 2;
+	}
+
+	/**
+	 * Encodes the frame into out, followed by the delimiter
+	 *
+	 * @return bytes written to out
+	 */
+	public static int encode(byte[] frame, int offset, int length, byte[] out, int outOffset) {
+		int codePosition = outOffset;
+		int position = outOffset + 1;
+		int code = 1;
+
+		for (int i = offset; i < offset + length; i++) {
+			if (frame[i] == 0) {
+				out[codePosition] = (byte) code;
+				codePosition = position++;
+				code = 1;
+			} else {
+				out[position++] = frame[i];
+				code++;
+
+				if (code == 0xff) {
+					out[codePosition] = (byte) code;
+					codePosition = position++;
+					code = 1;
+				}
+			}
+		}
+
+		out[codePosition] = (byte) code;
+		out[position++] = DELIMITER;
+		return position - outOffset;
+	}
+
+	/**
+	 * Decodes a stream of frames a byte at a time into a reused buffer. Frames longer than the buffer or cut short are
+	 * dropped.
+	 *
+	 * Not thread safe
+	 */
+	public static class Decoder {
+
+		private final byte[] frame;
+		private int length;
+		// a code byte was read since the last delimiter
+		private boolean inFrame;
+		// code of the current block and its bytes still to come
+		private int code;
+		private int remaining;
+		private boolean overflow;
+		// the last byte completed a frame, which is cleared by the next byte
+		private boolean complete;
+		private int dropped;
+
+		public Decoder(int maxFrameLength) {
+			frame = new byte[maxFrameLength];
+		}
+
+		/**
+		 * @return true if b completed a frame, which is in getFrame() until the next call
+		 */
+		public boolean update(int b) {
+			b&= 0xff;
+
+			if (complete) {
+				length = 0;
+				complete = false;
+			}
+
+			if (b == DELIMITER) {
+				boolean valid = inFrame && remaining == 0 && !overflow;
+
+				if (inFrame && !valid) {
+					dropped++;
+				}
+
+				inFrame = false;
+				remaining = 0;
+				overflow = false;
+
+				if (valid) {
+					complete = true;
+				} else {
+					length = 0;
+				}
+
+				return valid;
+			}
+
+			if (!inFrame) {
+				inFrame = true;
+				code = b;
+				remaining = b - 1;
+			} else if (remaining == 0) {
+				// a block shorter than 254 bytes is followed by a zero
+				if (code != 0xff) {
+					append(0);
+				}
+
+				code = b;
+				remaining = b - 1;
+			} else {
+				append(b);
+				remaining--;
+			}
+
+			return false;
+		}
+
+		private void append(int b) {
+			if (length == frame.length) {
+				overflow = true;
+			} else {
+				frame[length++] = (byte) b;
+			}
+		}
+
+		public byte[] getFrame() {
+			return frame;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Frames dropped as corrupt or too long
+		 */
+		public int getDropped() {
+			return dropped;
+		}
+	}
+}
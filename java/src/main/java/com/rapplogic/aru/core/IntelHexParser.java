@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Single pass Intel HEX decoder. Reads the input in blocks and decodes hex digits with a lookup table,
+ * writing data records straight into the program buffer. Every record checksum is verified.
+ *
+ * Not thread safe. Create one per parse, they are cheap
+ *
+ * @author andrew
+ *
+ */
+public class IntelHexParser {
+
+	public static final int DATA_RECORD = 0;
+	public static final int EOF_RECORD = 1;
+	public static final int EXTENDED_SEGMENT_ADDRESS_RECORD = 2;
+	public static final int EXTENDED_LINEAR_ADDRESS_RECORD = 4;
+
+	// hex digit value for each ascii char, -1 if not a hex digit
+	private static final int[] HEX_VALUES = new int[256];
+
+	static {
+		Arrays.fill(HEX_VALUES, -1);
+
+		for (int i = 0; i < 10; i++) {
+			HEX_VALUES['0' + i] = i;
+		}
+
+		for (int i = 0; i < 6; i++) {
+			HEX_VALUES['a' + i] = 10 + i;
+			HEX_VALUES['A' + i] = 10 + i;
+		}
+	}
+
+	private final int maxProgramSize;
+	private final byte[] readBuffer = new byte[8192];
+
+	private InputStream in;
+	private int readPosition;
+	private int readLimit;
+	private int line;
+
+	public IntelHexParser(int maxProgramSize) {
+		this.maxProgramSize = maxProgramSize;
+	}
+
+	public byte[] parse(File file) throws IOException {
+		// every data byte is two hex chars so half the file length is an upper bound on the program size
+		int capacity = (int) Math.min(maxProgramSize, file.length() / 2);
+
+		InputStream in = new FileInputStream(file);
+
+		try {
+			return parse(in, capacity);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parse intel hex records from the stream into an array of bytes, sized to the program
+	 *
+	 * @param in
+	 * @param capacity initial size of the program buffer. grows if exceeded, up to the max program size
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] parse(InputStream in, int capacity) throws IOException {
+		this.in = in;
+		this.readPosition = 0;
+		this.readLimit = 0;
+		this.line = 1;
+
+		byte[] program = new byte[Math.max(0, Math.min(capacity, maxProgramSize))];
+		int position = 0;
+		int baseAddress = 0;
+
+		// example:
+		// length = 0x10
+		// addr = 0000
+		// type = 00
+		//:100000000C94C7010C94EF010C94EF010C94EF01D8
+		//:061860000994F894FFCF8B
+		//:00000001FF
+
+		int ch;
+
+		while ((ch = nextRecord()) != -1) {
+			if (ch != ':') {
+				throw new RuntimeException("Expected start of record at line " + line + " but found " + (char) ch);
+			}
+
+			int length = readByte();
+			int addressHigh = readByte();
+			int addressLow = readByte();
+			int type = readByte();
+
+			int checksum = length + addressHigh + addressLow + type;
+			int address = baseAddress + ((addressHigh << 8) | addressLow);
+
+			if (type == DATA_RECORD) {
+				// verify the addr matches our current array position
+				if (position > 0 && position != address) {
+					throw new RuntimeException("Expected address of " + position + " but was " + address);
+				}
+
+				position = address;
+
+				if (position + length > program.length) {
+					if (position + length > maxProgramSize) {
+						throw new RuntimeException("Program is too large for Arduino. Max size is " + maxProgramSize);
+					}
+
+					program = Arrays.copyOf(program, Math.min(maxProgramSize, Math.max(program.length * 2, position + length)));
+				}
+
+				for (int i = 0; i < length; i++) {
+					int b = readByte();
+					checksum+= b;
+					program[position++] = (byte) b;
+				}
+			} else if (type == EXTENDED_SEGMENT_ADDRESS_RECORD || type == EXTENDED_LINEAR_ADDRESS_RECORD) {
+				if (length != 2) {
+					throw new RuntimeException("Expected length 2 for address record at line " + line + " but was " + length);
+				}
+
+				int high = readByte();
+				int low = readByte();
+				checksum+= high + low;
+
+				baseAddress = type == EXTENDED_SEGMENT_ADDRESS_RECORD ? ((high << 8) | low) << 4 : ((high << 8) | low) << 16;
+			} else {
+				// start address and eof records carry nothing we need, but still count towards the checksum
+				for (int i = 0; i < length; i++) {
+					checksum+= readByte();
+				}
+			}
+
+			int expectedChecksum = readByte();
+
+			// two's complement: all bytes of the record including the checksum sum to zero
+			if (((checksum + expectedChecksum) & 0xff) != 0) {
+				throw new RuntimeException("Checksum mismatch at line " + line + ", expected " + Integer.toHexString(expectedChecksum) + " but was " + Integer.toHexString((0x100 - (checksum & 0xff)) & 0xff));
+			}
+
+			ch = peek();
+
+			if (ch != -1 && ch != '\r' && ch != '\n') {
+				throw new RuntimeException("Line " + line + " does not match expected length " + length);
+			}
+
+			if (type == EOF_RECORD) {
+				break;
+			}
+		}
+
+		this.in = null;
+
+		return position == program.length ? program : Arrays.copyOf(program, position);
+	}
+
+	/**
+	 * Skips line endings and returns the first char of the next record, or -1 at end of stream
+	 */
+	private int nextRecord() throws IOException {
+		while (true) {
+			if (readPosition == readLimit && !fill()) {
+				return -1;
+			}
+
+			int ch = readBuffer[readPosition++] & 0xff;
+
+			if (ch == '\n') {
+				line++;
+			} else if (ch != '\r' && ch != ' ' && ch != '\t') {
+				return ch;
+			}
+		}
+	}
+
+	private int peek() throws IOException {
+		if (readPosition == readLimit && !fill()) {
+			return -1;
+		}
+
+		return readBuffer[readPosition] & 0xff;
+	}
+
+	private int readByte() throws IOException {
+		if (readLimit - readPosition < 2) {
+			return readByteSlow();
+		}
+
+		int high = HEX_VALUES[readBuffer[readPosition] & 0xff];
+		int low = HEX_VALUES[readBuffer[readPosition + 1] & 0xff];
+
+		if ((high | low) < 0) {
+			throw new RuntimeException("Invalid hex digit at line " + line);
+		}
+
+		readPosition+= 2;
+
+		return (high << 4) | low;
+	}
+
+	// byte straddles the read buffer
+	private int readByteSlow() throws IOException {
+		int high = HEX_VALUES[readChar()];
+		int low = HEX_VALUES[readChar()];
+
+		if ((high | low) < 0) {
+			throw new RuntimeException("Invalid hex digit at line " + line);
+		}
+
+		return (high << 4) | low;
+	}
+
+	private int readChar() throws IOException {
+		if (readPosition == readLimit && !fill()) {
+			throw new RuntimeException("Unexpected end of file at line " + line);
+		}
+
+		return readBuffer[readPosition++] & 0xff;
+	}
+
+	private boolean fill() throws IOException {
+		int read = in.read(readBuffer, 0, readBuffer.length);
+
+		if (read <= 0) {
+			readPosition = readLimit = 0;
+			return false;
+		}
+
+		readPosition = 0;
+		readLimit = read;
+		return true;
+	}
+}
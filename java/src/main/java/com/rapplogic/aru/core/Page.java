@@ -1,29 +1,31 @@
 package com.rapplogic.aru.core;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A page of the program. Does not copy the data, it's a window on the sketch's program buffer
+ * 
+ * @author andrew
+ *
+ */
 public class Page {
-	private int address;
-	private int[] data;
-	// includes address
-	private int[] page;
-	private int ordinal;
+	private final int address;
+	// read-only program shared by all pages of the sketch
+	private final ByteBuffer program;
+	private final int offset;
+	private final int length;
+	private final int ordinal;
+	// crc32 of the page data
+	private final long crc;
 	
-	public Page(int[] program, int offset, int dataLength, int ordinal) {
+	public Page(ByteBuffer program, int offset, int dataLength, int ordinal, long crc) {
 		super();
 		this.address = offset / 2;
-		
-		int[] data = new int[dataLength];
-		System.arraycopy(program, offset, data, 0, dataLength);
-		this.data = data;			
-		this.page = new int[dataLength + 2];
-
-		// little endian according to avrdude
-		page[0] = this.address & 0xff;
-		// msb
-		page[1] = (this.address >> 8) & 0xff;
-
-		System.arraycopy(data, 0, page, 2, data.length);
-		
+		this.program = program;
+		this.offset = offset;
+		this.length = dataLength;
 		this.ordinal = ordinal;
+		this.crc = crc;
 	}
 	
 	// bootloader address is real / 2
@@ -35,16 +37,42 @@ public class Page {
 		return address * 2;
 	}
 	
-	public int[] getData() {
-		return data;
+	/**
+	 * Returns a read-only view of the page data. Position is zero and limit is the page length
+	 */
+	public ByteBuffer getData() {
+		ByteBuffer data = program.duplicate();
+		data.position(offset);
+		data.limit(offset + length);
+		return data.slice();
+	}
+
+	/**
+	 * Returns the unsigned byte at index of the page data
+	 */
+	public int get(int index) {
+		return program.get(offset + index) & 0xff;
 	}
 
-	// includes address low/high + data
-	public int[] getPage() {
-		return page;
+	public int getLength() {
+		return length;
 	}
 
 	public int getOrdinal() {
 		return ordinal;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Returns the crc32 of the page data, computed when the sketch was created
+	 */
+	public long getCrc() {
+		return crc;
+	}
+
+	/**
+	 * Returns true if the other page is at the same address and has the same content, by crc
+	 */
+	public boolean isSameAs(Page other) {
+		return other != null && address == other.address && length == other.length && crc == other.crc;
+	}
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * LZSS page compressor, in the style of heatshrink, sized so the arduino can decode a page with a few bytes of state.
+ * A page is too small to compress well on its own, so matches may also refer to program bytes before the page that the
+ * arduino has already written to eeprom.
+ *
+ * Format: a flag byte precedes each group of 8 items, least significant bit first. A clear bit is a literal byte.
+ * A set bit is a two byte match: 12 bits of distance - 1, then 4 bits of length - 3. Distance is counted back from the
+ * byte being decoded, in program addresses
+ *
+ * Not thread safe. Create one per sketch
+ *
+ * @author andrew
+ *
+ */
+public class PageCompressor {
+
+	public static final int MAX_DISTANCE = 4096;
+	public static final int MIN_MATCH = 3;
+	public static final int MAX_MATCH = 18;
+
+	private static final int HASH_SIZE = 4096;
+	// bound the search, long chains are runs of 0xff
+	private static final int MAX_CHAIN = 64;
+
+	private final ByteBuffer program;
+	private final int size;
+
+	// most recent position of each hash, and the one before each position with the same hash
+	private final int[] head = new int[HASH_SIZE];
+	private final int[] previous;
+
+	public PageCompressor(ByteBuffer program) {
+		this.program = program.duplicate();
+		this.size = program.remaining();
+		this.previous = new int[size];
+
+		Arrays.fill(head, -1);
+
+		for (int i = 0; i + MIN_MATCH <= size; i++) {
+			int hash = hash(i);
+			previous[i] = head[hash];
+			head[hash] = i;
+		}
+	}
+
+	private int get(int position) {
+		return program.get(program.position() + position) & 0xff;
+	}
+
+	private int hash(int position) {
+		return ((get(position) << 8) ^ (get(position + 1) << 4) ^ get(position + 2)) & (HASH_SIZE - 1);
+	}
+
+	/**
+	 * Compresses the page
+	 *
+	 * @param offset of the page in the program
+	 * @param length of the page
+	 * @param dictionaryEnd the program up to here is in eeprom and may be referred to. at most offset
+	 * @param out
+	 * @return compressed length, or -1 if it would not be smaller than the page
+	 */
+	public int compress(int offset, int length, int dictionaryEnd, byte[] out) {
+		int end = offset + length;
+		int position = offset;
+		int outPosition = 0;
+		int flagPosition = -1;
+		int item = 8;
+
+		while (position < end) {
+			if (item == 8) {
+				if (outPosition >= length - 1) {
+					return -1;
+				}
+
+				flagPosition = outPosition++;
+				out[flagPosition] = 0;
+				item = 0;
+			}
+
+			int bestLength = 0;
+			int bestDistance = 0;
+
+			if (position + MIN_MATCH <= end) {
+				int maxLength = Math.min(MAX_MATCH, end - position);
+				int candidate = previous[position];
+
+				for (int chain = 0; candidate >= 0 && position - candidate <= MAX_DISTANCE && chain < MAX_CHAIN; chain++, candidate = previous[candidate]) {
+					int limit = maxLength;
+
+					if (candidate < offset && dictionaryEnd < offset) {
+						// part of the program between the dictionary and the page is not in eeprom
+						if (candidate >= dictionaryEnd) {
+							continue;
+						}
+
+						limit = Math.min(limit, dictionaryEnd - candidate);
+					}
+
+					int matched = 0;
+
+					while (matched < limit && get(candidate + matched) == get(position + matched)) {
+						matched++;
+					}
+
+					if (matched > bestLength) {
+						bestLength = matched;
+						bestDistance = position - candidate;
+
+						if (matched == maxLength) {
+							break;
+						}
+					}
+				}
+			}
+
+			if (bestLength >= MIN_MATCH) {
+				if (outPosition + 2 > length - 1) {
+					return -1;
+				}
+
+				out[flagPosition] |= 1 << item;
+				out[outPosition++] = (byte) ((bestDistance - 1) >> 4);
+				out[outPosition++] = (byte) (((bestDistance - 1) << 4) | (bestLength - MIN_MATCH));
+				position+= bestLength;
+			} else {
+				if (outPosition + 1 > length - 1) {
+					return -1;
+				}
+
+				out[outPosition++] = (byte) get(position++);
+			}
+
+			item++;
+		}
+
+		return outPosition;
+	}
+
+	/**
+	 * Reference decoder, does what the arduino does. Matches that reach before the page are read from eeprom
+	 *
+	 * @param in compressed page
+	 * @param inLength
+	 * @param eeprom program as written so far
+	 * @param offset of the page in the program
+	 * @param out decoded page
+	 * @param length of the decoded page
+	 */
+	public static void decompress(byte[] in, int inLength, ByteBuffer eeprom, int offset, byte[] out, int length) {
+		int inPosition = 0;
+		int position = 0;
+		int flags = 0;
+		int item = 8;
+
+		while (position < length) {
+			if (item == 8) {
+				if (inPosition >= inLength) {
+					throw new RuntimeException("Compressed page is truncated");
+				}
+
+				flags = in[inPosition++] & 0xff;
+				item = 0;
+			}
+
+			if ((flags & (1 << item++)) != 0) {
+				if (inPosition + 2 > inLength) {
+					throw new RuntimeException("Compressed page is truncated");
+				}
+
+				int distance = ((in[inPosition] & 0xff) << 4 | (in[inPosition + 1] & 0xff) >> 4) + 1;
+				int matchLength = (in[inPosition + 1] & 0xf) + MIN_MATCH;
+				inPosition+= 2;
+
+				if (distance > offset + position || position + matchLength > length) {
+					throw new RuntimeException("Invalid match at " + (offset + position));
+				}
+
+				for (int i = 0; i < matchLength; i++, position++) {
+					out[position] = distance > position ? eeprom.get(eeprom.position() + offset + position - distance) : out[position - distance];
+				}
+			} else {
+				if (inPosition >= inLength) {
+					throw new RuntimeException("Compressed page is truncated");
+				}
+
+				out[position++] = in[inPosition++];
+			}
+		}
+
+		if (inPosition != inLength) {
+			throw new RuntimeException("Compressed page has " + (inLength - inPosition) + " bytes left over");
+		}
+	}
+}
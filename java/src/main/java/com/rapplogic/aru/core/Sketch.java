@@ -1,18 +1,22 @@
 package com.rapplogic.aru.core;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class Sketch {
 	private List<Page> pages;
 	private int size;
 	private int bytesPerPage;
-	private int[] program;
+	// read-only, backs all pages
+	private ByteBuffer program;
+	private String md5;
 	
-	public Sketch(int size, List<Page> pages, int bytesPerPage, int[] program) {
+	public Sketch(int size, List<Page> pages, int bytesPerPage, ByteBuffer program, String md5) {
 		this.size = size;
 		this.pages = pages;
 		this.bytesPerPage = bytesPerPage;
 		this.program = program;
+		this.md5 = md5;
 	}
 
 	public List<Page> getPages() {
@@ -28,11 +32,21 @@ public class Sketch {
 		return bytesPerPage;
 	}
 
-	public int[] getProgram() {
-		return program;
+	/**
+	 * Returns a read-only view of the program
+	 */
+	public ByteBuffer getProgram() {
+		return program.duplicate();
+	}
+
+	/**
+	 * Returns the md5 of the program, in hex
+	 */
+	public String getMd5() {
+		return md5;
 	}
 
 	public Page getLastPage() {
 		return this.getPages().get(this.getPages().size() - 1);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Disk cache of parsed sketches. Entries are keyed by the sha1 of the hex file and the page size, and hold the page table
+ * so the same hex can be flashed over and over without parsing it again. Entries are memory mapped on read, and the program is
+ * checked against the md5 and page crcs of the entry, which is deleted and parsed again if they don't match.
+ *
+ * When the cache grows over the max size, least recently used entries are deleted. Safe to share a directory between
+ * processes: entries are written to a temp file and renamed into place
+ *
+ * Entry format (big endian): magic, format version, program size, page size, page count, md5 of the program, crc32 of
+ * each page, program bytes
+ *
+ * @author andrew
+ *
+ */
+public class SketchCache {
+
+	final Logger log = Logger.getLogger(SketchCache.class);
+
+	private static final int MAGIC = 0x41525543;
+	private static final int FORMAT_VERSION = 2;
+	// up to the page crcs
+	private static final int HEADER_SIZE = 36;
+	private static final int MD5_SIZE = 16;
+	private static final String SUFFIX = ".sketch";
+
+	private final File directory;
+	private final long maxSizeBytes;
+	private final SketchCore sketchCore;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public SketchCache(File directory, long maxSizeBytes) {
+		this(directory, maxSizeBytes, new SketchCore());
+	}
+
+	public SketchCache(File directory, long maxSizeBytes, SketchCore sketchCore) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create cache directory " + directory);
+		}
+
+		this.directory = directory;
+		this.maxSizeBytes = maxSizeBytes;
+		this.sketchCore = sketchCore;
+	}
+
+	/**
+	 * Returns the sketch from the cache, or parses the hex file and adds it
+	 *
+	 * @param file intel hex file
+	 * @param pageSize
+	 * @return
+	 * @throws IOException
+	 */
+	public Sketch get(String file, int pageSize) throws IOException {
+		File entry = getEntry(new File(file), pageSize);
+
+		if (entry.isFile()) {
+			Sketch sketch = read(entry, pageSize);
+
+			if (sketch != null) {
+				hits.incrementAndGet();
+				// lru
+				entry.setLastModified(System.currentTimeMillis());
+				return sketch;
+			}
+		}
+
+		misses.incrementAndGet();
+
+		Sketch sketch = sketchCore.parseSketchFromIntelHex(file, pageSize);
+		write(entry, sketch);
+		evict();
+
+		return sketch;
+	}
+
+	private File getEntry(File hexFile, int pageSize) throws IOException {
+		String hash = Files.hash(hexFile, Hashing.sha1()).toString();
+		return new File(directory, hash + "-" + pageSize + SUFFIX);
+	}
+
+	/**
+	 * Maps the entry and rebuilds the sketch on a read-only view of the program, or returns null if the entry is not valid
+	 */
+	private Sketch read(File entry, int pageSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(entry, "r");
+
+		try {
+			FileChannel channel = raf.getChannel();
+
+			if (channel.size() < HEADER_SIZE) {
+				return invalid(entry);
+			}
+
+			// mapping remains valid after the channel is closed
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION) {
+				return invalid(entry);
+			}
+
+			int size = mapped.getInt();
+			int entryPageSize = mapped.getInt();
+			int pageCount = mapped.getInt();
+
+			if (entryPageSize != pageSize || size < 0 || pageCount != (size + pageSize - 1) / pageSize || (long) pageCount * 4 + size != mapped.remaining() - MD5_SIZE) {
+				return invalid(entry);
+			}
+
+			byte[] md5 = new byte[MD5_SIZE];
+			mapped.get(md5);
+			String md5Hex = new String(Hex.encodeHex(md5));
+
+			int crcPosition = mapped.position();
+			mapped.position(crcPosition + pageCount * 4);
+			ByteBuffer program = mapped.slice().asReadOnlyBuffer();
+
+			// a corrupted entry would be flashed under the image tag of the md5, so check the program against it
+			if (!md5Hex.equals(sketchCore.getMd5(program))) {
+				return invalid(entry);
+			}
+
+			byte[] bytes = new byte[size];
+			program.duplicate().get(bytes);
+			CRC32 crc32 = new CRC32();
+			List<Page> pages = Lists.newArrayListWithCapacity(pageCount);
+
+			for (int i = 0; i < pageCount; i++) {
+				int offset = i * pageSize;
+				int length = Math.min(pageSize, size - offset);
+				long crc = mapped.getInt(crcPosition + i * 4) & 0xffffffffL;
+
+				crc32.reset();
+				crc32.update(bytes, offset, length);
+
+				if (crc32.getValue() != crc) {
+					return invalid(entry);
+				}
+
+				pages.add(new Page(program, offset, length, i, crc));
+			}
+
+			return new Sketch(size, pages, pageSize, program, md5Hex);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private Sketch invalid(File entry) {
+		log.warn("Deleting invalid cache entry " + entry);
+		entry.delete();
+		return null;
+	}
+
+	private void write(File entry, Sketch sketch) throws IOException {
+		byte[] md5;
+
+		try {
+			md5 = Hex.decodeHex(sketch.getMd5().toCharArray());
+		} catch (DecoderException e) {
+			throw new RuntimeException("Invalid md5 " + sketch.getMd5(), e);
+		}
+
+		ByteBuffer program = sketch.getProgram();
+		byte[] bytes = new byte[program.remaining()];
+		program.get(bytes);
+
+		File tmp = File.createTempFile("sketch", ".tmp", directory);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(sketch.getSize());
+			out.writeInt(sketch.getBytesPerPage());
+			out.writeInt(sketch.getPages().size());
+			out.write(md5);
+
+			for (Page page : sketch.getPages()) {
+				out.writeInt((int) page.getCrc());
+			}
+
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(entry)) {
+			// another process got there first, or the platform won't replace
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Deletes least recently used entries until the cache is under the max size
+	 */
+	void evict() {
+		File[] entries = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+
+		if (entries == null) {
+			return;
+		}
+
+		long total = 0;
+
+		for (File entry : entries) {
+			total+= entry.length();
+		}
+
+		if (total <= maxSizeBytes) {
+			return;
+		}
+
+		Arrays.sort(entries, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < entries.length && total > maxSizeBytes; i++) {
+			long length = entries[i].length();
+
+			if (entries[i].delete()) {
+				total-= length;
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public long getMaxSizeBytes() {
+		return maxSizeBytes;
+	}
+}
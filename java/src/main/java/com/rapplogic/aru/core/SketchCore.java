@@ -21,10 +21,11 @@ package com.rapplogic.aru.core;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.log4j.ConsoleAppender;
@@ -33,7 +34,6 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import com.google.common.collect.Lists;
-import com.google.common.io.Files;
 
 /**
  * Parses a intel hex AVR/Arduino Program into an object representation with a user defined page-size
@@ -50,7 +50,7 @@ public class SketchCore {
 
 	}
 	
-	public String getMd5(int[] program) {
+	public String getMd5(ByteBuffer program) {
 		MessageDigest messageDigest;
 		
 		try {
@@ -60,9 +60,8 @@ public class SketchCore {
 			throw new RuntimeException("", e);
 		}
 		
-		for (int i = 0; i < program.length; i++) {
-			messageDigest.update((byte)i);	
-		}
+		// digest a duplicate so the caller's position is untouched
+		messageDigest.update(program.duplicate());
 		
 		return new String(Hex.encodeHex(messageDigest.digest()));
 	}
@@ -75,101 +74,8 @@ public class SketchCore {
 	 * @return
 	 * @throws IOException
 	 */
-	public int[] parseIntelHex(String file) throws IOException {
-		File hexFile = new File(file);
-				
-		int[] program = new int[MAX_PROGRAM_SIZE];
-				
-    	// example:
-		// length = 0x10
-		// addr = 0000
-		// type = 00
-		//:100000000C94C7010C94EF010C94EF010C94EF01D8
-		//:061860000994F894FFCF8B
-		//:00000001FF
-		
-    	List<String> hex = Files.readLines(hexFile, Charset.forName("UTF-8"));
-    	
-		int lineCount = 0;
-		int position = 0;
-
-    	for (String line : hex) {
-
-    		String dataLine = line.split(":")[1];
-    		
-    		//System.out.println("line: " + ++lineCount + ": " + line);
-
-    		int checksum = 0;
-    		
-    		if (line.length() > 10) {
-	    		int length = Integer.decode("0x" + dataLine.substring(0, 2));
-	    		int address = Integer.decode("0x" + dataLine.substring(2, 6));
-	    		int type = Integer.decode("0x" + dataLine.substring(6, 8));	    			
-    		
-	    		checksum += length + address + type;
-
-	    		//System.out.println("Length is " + length + ", address is " + Integer.toHexString(address) + ", type is " + Integer.toHexString(type));
-	    		
-                // Ignore all record types except 00, which is a data record. 
-                // Look out for 02 records which set the high order byte of the address space
-                if (type == 0) {
-                    // Normal data record
-                } else if (type == 4 && length == 2 && address == 0 && line.length() > 12) {
-                	// Address > 16bit not supported by Arduino so not important
-                	throw new RuntimeException("Record type 4 is not implemented");
-                } else {
-                	//System.out.println("Skipped: " + line);
-                    continue;
-                }
-                
-                // verify the addr matches our current array position
-                if (position > 0 && position != address) {
-                	throw new RuntimeException("Expected address of " + position + " but was " + address);
-                }
-                
-                // address will always be last position or we'd have gaps in the array
-                position = address;
-                
-                {
-                	int i = 8;
-	                // data starts at 8 (4th byte) to end minus checksum
-	                for (;i < 8 + (length*2); i+=2) {
-	                    int b = Integer.decode("0x" + dataLine.substring(i, i+2));	
-	                    checksum+= b;
-	                    // what we're doing here is simply parsing the data portion of each line and adding to the array
-	                    
-	                    if (position >= MAX_PROGRAM_SIZE) {
-	                    	throw new RuntimeException("Program is too large for Arduino. Max size is " + MAX_PROGRAM_SIZE);
-	                    }
-	                    
-	                    program[position] = b;
-	                    position++;
-	                }	     
-	                
-	                //System.out.println("Program data: " + toHex(program, position - length, length));
-	                
-	                // we should be at the checksum position
-	                if (i != dataLine.length() - 2) {
-	                	throw new RuntimeException("Line length does not match expected length " + length);
-	                }
-	                
-	                // checksum
-	                int expectedChecksum = Integer.decode("0x" + line.substring(line.length() - 2, line.length()));
-	                //System.out.println("Expected checksum is " + line.substring(line.length() - 2, line.length()));
-	                
-	                //checksum+= expectedChecksum;
-	                // TODO somethings not right
-	                checksum = 0xff - checksum & 0xff;
-	                
-	                //System.out.println("Checksum is " + Integer.toHexString(checksum & 0xff));
-                }  
-    		}
-    	}
-    	
-    	int[] resize = new int[position];
-    	System.arraycopy(program, 0, resize, 0, position);
-    	
-    	return resize;
+	public byte[] parseIntelHex(String file) throws IOException {
+		return new IntelHexParser(MAX_PROGRAM_SIZE).parse(new File(file));
 	}
     
     public String toHex(int[] data, int offset, int length) {
@@ -198,6 +104,19 @@ public class SketchCore {
     	return dec.toString();    	
     }    
     
+    public String toHex(ByteBuffer data) {
+    	StringBuilder hex = new StringBuilder();
+    	
+    	for (int i = data.position(); i < data.limit(); i++) {
+    		hex.append(Integer.toHexString(data.get(i) & 0xff));
+    		if (i != data.limit() - 1) {
+    			hex.append(",");
+    		}
+    	}
+    	
+    	return hex.toString();
+    }
+    
     public String toHex(int[] data) {
     	return toHex(data, 0, data.length);
     }
@@ -208,36 +127,57 @@ public class SketchCore {
 
 	public Sketch parseSketchFromIntelHex(String fileName, int pageSize) throws IOException {	
 		
-		int[] program = parseIntelHex(fileName);
+		byte[] program = parseIntelHex(fileName);
+		return createSketch(ByteBuffer.wrap(program).asReadOnlyBuffer(), pageSize);
+	}
+	
+	/**
+	 * Splits the program into pages. Pages are views on the program, nothing is copied
+	 * 
+	 * @param program read-only program, position must be zero
+	 * @param pageSize
+	 * @return
+	 */
+	public Sketch createSketch(ByteBuffer program, int pageSize) {
+		int size = program.remaining();
+		
+		List<Page> pages = Lists.newArrayListWithCapacity((size + pageSize - 1) / pageSize);
+		//System.out.println("Program length is " + size + " bytes, page size is " + pageSize + " bytes");
 		
-		List<Page> pages = Lists.newArrayList();		
-		//System.out.println("Program length is " + program.length + " bytes, page size is " + pageSize + " bytes");
+		// crc each page once here so pages can be compared without touching the data again
+		ByteBuffer reader = program.duplicate();
+		byte[] scratch = new byte[pageSize];
+		CRC32 crc32 = new CRC32();
 		
 		int position = 0;
 		int count = 0;
 		// write the program to the arduino in chunks of ARDUINO_BLOB_SIZE
-		while (position < program.length) {
+		while (position < size) {
 			
 			int length = 0;
 			
-			if (position + pageSize < program.length) {
+			if (position + pageSize < size) {
 				length = pageSize;
 			} else {
-				length = program.length - position;
+				length = size - position;
 			}
 
 //			System.out.println("Creating page for " + toHex(program, position, length));
-			pages.add(new Page(program, position, length, count));
+			reader.get(scratch, 0, length);
+			crc32.reset();
+			crc32.update(scratch, 0, length);
+			
+			pages.add(new Page(program, position, length, count, crc32.getValue()));
 			
 			// index to next position
 			position+=length;
 			count++;
 		}
 		
-		return new Sketch(program.length, pages, pageSize, program);
+		return new Sketch(size, pages, pageSize, program, getMd5(program));
 	}
 	
-	protected static void initLog4j() {
+	public static void initLog4j() {
 		  ConsoleAppender console = new ConsoleAppender();
 		  String PATTERN = "%d [%p|%c|%C{1}] %m%n";
 		  console.setLayout(new PatternLayout(PATTERN)); 
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Routes acks from the transport's receive thread to the packet waiting for it. Packet ids are 16 bits (page address or
+ * sketch size) so pending acks are kept in a slot per id, and the receive thread completes or drops an ack with one atomic
+ * swap and no allocation.
+ *
+ * Error replies don't reliably carry the id of the packet they are for, so they are held until the sender takes them. A transport
+ * that knows which packet it failed to deliver reports its id as well, so that packet is the one resent.
+ *
+ * One sending thread per router: it must register an id before sending the packet, then wait on the router
+ *
+ * @author andrew
+ *
+ */
+public class AckRouter {
+
+	private final AtomicReferenceArray<PendingAck> pending = new AtomicReferenceArray<PendingAck>(0x10000);
+	// first unrecoverable error code, otherwise the last retry code. zero if none
+	private final AtomicInteger error = new AtomicInteger();
+	private final AtomicLong droppedAcks = new AtomicLong();
+	// packets the transport failed to deliver, not yet taken by the sender
+	private final Queue<Integer> failed = new ConcurrentLinkedQueue<Integer>();
+
+	private final int retryCode;
+
+	private volatile Thread waiter;
+
+	/**
+	 * @param retryCode the one error code the sender can recover from, by resending
+	 */
+	public AckRouter(int retryCode) {
+		this.retryCode = retryCode;
+	}
+
+	/**
+	 * Call before sending the packet, so its ack can't arrive first. If the id is still pending from an earlier send
+	 * of the same packet, that is returned instead, since an ack for either send will do
+	 */
+	public PendingAck register(int id) {
+		waiter = Thread.currentThread();
+
+		PendingAck ack = new PendingAck(id);
+
+		while (!pending.compareAndSet(id & 0xffff, null, ack)) {
+			PendingAck existing = pending.get(id & 0xffff);
+
+			if (existing != null) {
+				return existing;
+			}
+		}
+
+		return ack;
+	}
+
+	/**
+	 * Called by the receive thread with an OK ack. Returns false if no packet was waiting for it, e.g. a late ack for a
+	 * packet that was resent and already acked
+	 */
+	public boolean ack(int id) {
+		PendingAck ack = pending.getAndSet(id & 0xffff, null);
+
+		if (ack == null) {
+			droppedAcks.incrementAndGet();
+			return false;
+		}
+
+		ack.done = true;
+		LockSupport.unpark(waiter);
+		return true;
+	}
+
+	/**
+	 * Called by the receive thread with any reply other than OK
+	 */
+	public void error(int code) {
+		int current;
+
+		do {
+			current = error.get();
+
+			if (current != 0 && current != retryCode) {
+				// don't let a retry hide a start over
+				break;
+			}
+		} while (!error.compareAndSet(current, code));
+
+		LockSupport.unpark(waiter);
+	}
+
+	/**
+	 * Called when the transport knows it failed to deliver the packet, e.g. from a failed radio tx status. Ignored, returning
+	 * false, if the packet is no longer awaiting ack: the status came late or was for a resend
+	 */
+	public boolean failed(int id) {
+		if (pending.get(id & 0xffff) == null) {
+			return false;
+		}
+
+		failed.add(id & 0xffff);
+		error(retryCode);
+		return true;
+	}
+
+	/**
+	 * Returns the id of a packet the transport failed to deliver and forgets it, or null if none
+	 */
+	public Integer takeFailed() {
+		return failed.poll();
+	}
+
+	/**
+	 * Forgets the packets the transport failed to deliver. For a sender with one packet in flight, where the error alone says
+	 * which packet to resend
+	 */
+	public void clearFailed() {
+		failed.clear();
+	}
+
+	/**
+	 * Returns the error code and clears it, or zero if there was no error
+	 */
+	public int takeError() {
+		return error.getAndSet(0);
+	}
+
+	/**
+	 * Waits until an ack or error arrives for this router, or the timeout. May return early so callers must check what they
+	 * are waiting for
+	 */
+	public void await(long timeoutMillis) throws InterruptedException {
+		LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Forgets pending acks and errors. Call when an upload is over, or late acks will complete the next upload's packets
+	 */
+	public void clear() {
+		for (int i = 0; i < pending.length(); i++) {
+			pending.set(i, null);
+		}
+
+		error.set(0);
+		failed.clear();
+	}
+
+	public long getDroppedAcks() {
+		return droppedAcks.get();
+	}
+
+	public static class PendingAck {
+		private final int id;
+		private volatile boolean done;
+
+		PendingAck(int id) {
+			this.id = id;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		public int getId() {
+			return id;
+		}
+	}
+}
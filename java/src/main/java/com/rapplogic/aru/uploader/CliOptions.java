@@ -19,6 +19,7 @@
 
 package com.rapplogic.aru.uploader;
 
+import java.io.File;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +34,7 @@ import org.apache.commons.cli.PosixParser;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.rapplogic.aru.core.SketchCache;
 
 public class CliOptions {
 
@@ -43,6 +45,17 @@ public class CliOptions {
 	public final static String arduinoTimeoutArg = "arduino-timeout-s";
 	public final static String retriesPerPacketArg = "retries";
 	public final static String delayBetweenRetriesMillisArg = "retry-delay-ms";
+	public final static String sketchCacheDirArg = "sketch-cache-dir";
+	public final static String sketchCacheMaxMbArg = "sketch-cache-max-mb";
+	public final static String deltaArg = "delta";
+	public final static String stateDirArg = "state-dir";
+	public final static String windowSizeArg = "window-size";
+	public final static String fixedAckTimeoutArg = "fixed-ack-timeout";
+	public final static String resumeArg = "resume";
+	public final static String compressArg = "compress";
+	public final static String probePageSizeArg = "probe-page-size";
+	public final static String metricsJsonArg = "metrics-json";
+	public final static String metricsPrometheusArg = "metrics-prom";
 	// TODO total timeout
 	
 	final private Options options = new Options();
@@ -52,6 +65,8 @@ public class CliOptions {
 	
 	private Map<String, String> defaults = Maps.newHashMap();
 	
+	private boolean sketchRequired = true;
+	
 	public CliOptions() {
 		//options.addOption("h", "help", false, "Show help");
 	}
@@ -60,8 +75,8 @@ public class CliOptions {
 		optionList.add(OptionBuilder
 				.withLongOpt(sketch)
 				.hasArg()
-				.isRequired(true)
-				.withDescription("Path to compiled sketch (compiled by Arduino IDE). Required")
+				.isRequired(sketchRequired)
+				.withDescription("Path to compiled sketch (compiled by Arduino IDE)" + (sketchRequired ? ". Required" : ""))
 				.create("s"));
 		
 		// following are optional
@@ -74,7 +89,7 @@ public class CliOptions {
 				.hasArg()
 				.withType(Number.class)
 				.isRequired(false)
-				.withDescription("How long to wait for ACK from Arduino before retrying (in milliseconds). Default is " + defaults.get(ackTimeoutMillisArg))
+				.withDescription("Longest to wait for ACK from Arduino before retrying (in milliseconds). Page acks are waited for less once the round trip time is known, unless --" + fixedAckTimeoutArg + " is specified. Default is " + defaults.get(ackTimeoutMillisArg))
 				.create("c"));
 
 		defaults.put(arduinoTimeoutArg, "60");
@@ -110,6 +125,97 @@ public class CliOptions {
 				.withDescription("Delay before retrying to send a packet (in milliseconds). Default is " + defaults.get(delayBetweenRetriesMillisArg))
 				.create("d"));
 		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(sketchCacheDirArg)
+				.hasArg()
+				.isRequired(false)
+				.withDescription("Directory to cache parsed sketches in, so repeat uploads of the same sketch skip parsing. Disabled if not specified")
+				.create());
+		
+		defaults.put(sketchCacheMaxMbArg, "64");
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(sketchCacheMaxMbArg)
+				.hasArg()
+				.withType(Number.class)
+				.isRequired(false)
+				.withDescription("Max size of the sketch cache (in megabytes). Least recently used sketches are removed when exceeded. Default is " + defaults.get(sketchCacheMaxMbArg))
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(deltaArg)
+				.isRequired(false)
+				.withDescription("Only send pages that changed since the last successful flash to this device. Falls back to sending all pages if the Arduino no longer has that sketch")
+				.create());
+		
+		defaults.put(stateDirArg, System.getProperty("user.home") + File.separator + ".arduino-remote-uploader");
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(stateDirArg)
+				.hasArg()
+				.isRequired(false)
+				.withDescription("Directory where what was flashed to each device, and the journal of uploads in progress, is kept. Default is " + defaults.get(stateDirArg))
+				.create());
+		
+		defaults.put(windowSizeArg, "1");
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(windowSizeArg)
+				.hasArg()
+				.withType(Number.class)
+				.isRequired(false)
+				.withDescription("Number of packets sent before waiting for an ack. Values over 1 need an Arduino library that supports windowed uploads, otherwise falls back to 1. Default is " + defaults.get(windowSizeArg))
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(fixedAckTimeoutArg)
+				.isRequired(false)
+				.withDescription("Always wait the full ack timeout for a page ack instead of adapting it to the measured round trip time")
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(resumeArg)
+				.isRequired(false)
+				.withDescription("Journal acked pages so a failed upload continues with the pages the Arduino is missing, in this run or the next, instead of starting over")
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(compressArg)
+				.isRequired(false)
+				.withDescription("Compress pages when that makes them smaller. Needs an Arduino library that supports compressed pages")
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(probePageSizeArg)
+				.isRequired(false)
+				.withDescription("Before uploading, find the largest page the link delivers reliably, up to what the Arduino accepts. Needs an Arduino library that supports probe packets")
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(metricsJsonArg)
+				.hasArg()
+				.isRequired(false)
+				.withDescription("Append the metrics of each upload to this file as a line of JSON: time in each phase, packet round trip and ack wait histograms, bytes sent and retries of each page")
+				.create());
+		
+		optionList.add(
+				OptionBuilder
+				.withLongOpt(metricsPrometheusArg)
+				.hasArg()
+				.isRequired(false)
+				.withDescription("Write the metrics of the last upload to each device to this file in Prometheus text format, e.g. for the node exporter textfile collector. Replaced after each upload")
+				.create());
+		
 		optionList.add(
 				OptionBuilder
 				.withLongOpt(verboseArg)
@@ -125,6 +231,13 @@ public class CliOptions {
 				.create("h"));		
 	}
 	
+	/**
+	 * For tools that are given sketches some other way, e.g. the upload daemon. Call before build
+	 */
+	public void setSketchRequired(boolean sketchRequired) {
+		this.sketchRequired = sketchRequired;
+	}
+	
 	public Map<String, String> getDefaults() {
 		return defaults;
 	}
@@ -157,6 +270,73 @@ public class CliOptions {
 		}
 	}
 	
+	/**
+	 * Returns the sketch cache if a cache dir was specified, otherwise null
+	 */
+	public SketchCache getSketchCache() throws ParseException {
+		if (commandLine.getOptionValue(sketchCacheDirArg) == null) {
+			return null;
+		}
+		
+		return new SketchCache(new File(commandLine.getOptionValue(sketchCacheDirArg)), getIntegerOption(sketchCacheMaxMbArg) * 1024L * 1024L);
+	}
+	
+	/**
+	 * Returns the flash history if delta uploads are enabled, otherwise null
+	 */
+	public FlashHistory getFlashHistory() {
+		if (!commandLine.hasOption(deltaArg)) {
+			return null;
+		}
+		
+		return new FlashHistory(new File(getStateDir(), "devices"));
+	}
+	
+	/**
+	 * Returns the upload journal if resume is enabled, otherwise null
+	 */
+	public UploadJournal getUploadJournal() {
+		if (!commandLine.hasOption(resumeArg)) {
+			return null;
+		}
+		
+		return new UploadJournal(new File(getStateDir(), "journal"));
+	}
+	
+	/**
+	 * Returns the metrics exporter if a metrics file was specified, otherwise null
+	 */
+	public MetricsExporter getMetricsExporter() {
+		String json = commandLine.getOptionValue(metricsJsonArg);
+		String prometheus = commandLine.getOptionValue(metricsPrometheusArg);
+		
+		if (json == null && prometheus == null) {
+			return null;
+		}
+		
+		return new MetricsExporter(json != null ? new File(json) : null, prometheus != null ? new File(prometheus) : null);
+	}
+	
+	private File getStateDir() {
+		return new File(commandLine.getOptionValue(stateDirArg, defaults.get(stateDirArg)));
+	}
+	
+	public boolean isAdaptiveAckTimeout() {
+		return !commandLine.hasOption(fixedAckTimeoutArg);
+	}
+	
+	public boolean isCompress() {
+		return commandLine.hasOption(compressArg);
+	}
+	
+	public boolean isVerbose() {
+		return commandLine.hasOption(verboseArg);
+	}
+	
+	public boolean isProbePageSize() {
+		return commandLine.hasOption(probePageSizeArg);
+	}
+	
 	public CommandLine parse(String[] args) {
 		CommandLineParser parser = new PosixParser();
 		
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.io.PrintStream;
+
+import com.rapplogic.aru.core.Page;
+
+/**
+ * The command line output of an upload: a dot per page sent, or the packet when verbose, retries, messages and the result.
+ * This is the listener an uploader starts with. Prints to stdout and stderr unless given other streams, e.g. a job's output
+ *
+ * @author andrew
+ *
+ */
+public class ConsoleUploadListener implements UploadListener {
+
+	private final SketchUploader uploader;
+	// null for whatever System.out and System.err are at the time
+	private final PrintStream out;
+	private final PrintStream err;
+	// a line of dots was started
+	private boolean midLine;
+
+	public ConsoleUploadListener(SketchUploader uploader) {
+		this(uploader, null, null);
+	}
+
+	public ConsoleUploadListener(SketchUploader uploader, PrintStream out, PrintStream err) {
+		this.uploader = uploader;
+		this.out = out;
+		this.err = err;
+	}
+
+	@Override
+	public void phaseChanged(PhaseEvent event) {
+		if (event.getPhase() == UploadMetrics.Phase.FLASH_START) {
+			endLine();
+		}
+	}
+
+	@Override
+	public void pageSent(PageEvent event) {
+		Page page = event.getPage();
+
+		if (uploader.isVerbose()) {
+			out().println("Sending page " + (page.getOrdinal() + 1) + " of " + event.getSketch().getPages().size() + ", with address " + page.getRealAddress16() + ", length " + event.getPacket().length + ", packet " + uploader.toHex(event.getPacket()));
+		} else {
+			out().print(".");
+			midLine = true;
+
+			if (page.getOrdinal() > 0 && page.getOrdinal() % 80 == 0) {
+				endLine();
+			}
+		}
+	}
+
+	@Override
+	public void pageAcked(PageEvent event) {
+
+	}
+
+	@Override
+	public void retry(RetryEvent event) {
+		String packet = event.getPage() != null ? "page " + (event.getPage().getOrdinal() + 1) + " of " + event.getSketch().getPages().size() : event.getPacket();
+		endLine();
+		out().println("Failed to deliver packet [" + packet + "] on attempt " + event.getAttempt() + ", reason " + event.getReason() + ".. retrying");
+	}
+
+	@Override
+	public void message(MessageEvent event) {
+		endLine();
+
+		if (event.getLevel() == MessageEvent.Level.ERROR) {
+			err().println(event.getMessage());
+
+			if (event.getCause() != null) {
+				event.getCause().printStackTrace(err());
+			}
+		} else {
+			out().println(event.getMessage());
+		}
+	}
+
+	@Override
+	public void finished(UploadMetrics metrics) {
+		if (!metrics.isSuccess()) {
+			// failures are reported as they happen
+			return;
+		}
+
+		// from when the transport was open, not counting parsing
+		long uploadNanos = metrics.getPhaseNanos(UploadMetrics.Phase.HANDSHAKE) + metrics.getPhaseNanos(UploadMetrics.Phase.TRANSFER) + metrics.getPhaseNanos(UploadMetrics.Phase.FLASH_START);
+		out().println("Successfully flashed remote Arduino in " + String.format("%.3f", uploadNanos / 1000000000.0) + "s, with " + metrics.getRetries() + " retries" + (metrics.getReconnects() > 0 ? ", reconnected " + metrics.getReconnects() + " times in " + toMillis(metrics.getReconnectTime().getSumNanos()) + "ms" : ""));
+
+		if (uploader.isVerbose()) {
+			out().println("Parse " + toMillis(metrics.getPhaseNanos(UploadMetrics.Phase.PARSE)) + "ms, open " + toMillis(metrics.getPhaseNanos(UploadMetrics.Phase.OPEN)) + "ms, handshake " + toMillis(metrics.getPhaseNanos(UploadMetrics.Phase.HANDSHAKE)) + "ms, transfer " + toMillis(metrics.getPhaseNanos(UploadMetrics.Phase.TRANSFER)) + "ms, flash start " + toMillis(metrics.getPhaseNanos(UploadMetrics.Phase.FLASH_START)) + "ms, " + metrics.getBytesSent() + " bytes in " + metrics.getPacketsSent() + " packets");
+		}
+	}
+
+	private PrintStream out() {
+		return out != null ? out : System.out;
+	}
+
+	private PrintStream err() {
+		return err != null ? err : System.err;
+	}
+
+	private void endLine() {
+		if (midLine) {
+			out().println("");
+			midLine = false;
+		}
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1000000;
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.Lists;
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+
+/**
+ * Remembers the last sketch successfully flashed to each device, as page crcs, so the next upload can send only the
+ * pages that changed. Devices are identified by xbee address, host:port or serial device
+ *
+ * @author andrew
+ *
+ */
+public class FlashHistory {
+
+	final Logger log = Logger.getLogger(FlashHistory.class);
+
+	private static final int MAGIC = 0x41525548;
+	private static final int FORMAT_VERSION = 1;
+
+	private final File directory;
+
+	public FlashHistory(File directory) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create directory " + directory);
+		}
+
+		this.directory = directory;
+	}
+
+	private File getFile(String deviceId) {
+		// device ids contain colons, slashes etc.
+		return new File(directory, deviceId.replaceAll("[^A-Za-z0-9._-]", "_") + ".last");
+	}
+
+	/**
+	 * Returns the last sketch flashed to the device or null if we have no record of it
+	 */
+	public FlashRecord get(String deviceId) throws IOException {
+		File file = getFile(deviceId);
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				log.warn("Ignoring invalid flash record " + file);
+				return null;
+			}
+
+			String md5 = in.readUTF();
+			int size = in.readInt();
+			int pageSize = in.readInt();
+			long[] crcs = new long[in.readInt()];
+
+			for (int i = 0; i < crcs.length; i++) {
+				crcs[i] = in.readInt() & 0xffffffffL;
+			}
+
+			return new FlashRecord(md5, size, pageSize, crcs);
+		} catch (IOException e) {
+			log.warn("Ignoring unreadable flash record " + file, e);
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Records that the sketch was successfully flashed to the device
+	 */
+	public void put(String deviceId, Sketch sketch) throws IOException {
+		File file = getFile(deviceId);
+		File tmp = new File(directory, file.getName() + ".tmp");
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(sketch.getMd5());
+			out.writeInt(sketch.getSize());
+			out.writeInt(sketch.getBytesPerPage());
+			out.writeInt(sketch.getPages().size());
+
+			for (Page page : sketch.getPages()) {
+				out.writeInt((int) page.getCrc());
+			}
+		} finally {
+			out.close();
+		}
+
+		// rename won't replace on windows
+		file.delete();
+
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Unable to write flash record " + file);
+		}
+	}
+
+	public void remove(String deviceId) {
+		getFile(deviceId).delete();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public static class FlashRecord {
+		private final String md5;
+		private final int size;
+		private final int pageSize;
+		private final long[] crcs;
+
+		public FlashRecord(String md5, int size, int pageSize, long[] crcs) {
+			this.md5 = md5;
+			this.size = size;
+			this.pageSize = pageSize;
+			this.crcs = crcs;
+		}
+
+		/**
+		 * Returns the pages of the sketch that differ from the flashed sketch, in address order, or null if the
+		 * sketches were paged with different page sizes and can't be compared
+		 */
+		public List<Page> getChangedPages(Sketch sketch) {
+			if (sketch.getBytesPerPage() != pageSize) {
+				return null;
+			}
+
+			List<Page> changed = Lists.newArrayList();
+
+			for (Page page : sketch.getPages()) {
+				int ordinal = page.getOrdinal();
+				// last page of the flashed sketch may be short
+				int flashedLength = Math.min(pageSize, size - ordinal * pageSize);
+
+				if (ordinal >= crcs.length || flashedLength != page.getLength() || crcs[ordinal] != page.getCrc()) {
+					changed.add(page);
+				}
+			}
+
+			return changed;
+		}
+
+		public String getMd5() {
+			return md5;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getPageSize() {
+			return pageSize;
+		}
+	}
+}
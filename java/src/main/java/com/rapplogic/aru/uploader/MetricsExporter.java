@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes the metrics of each upload as a line of JSON appended to a file, and/or a Prometheus text file with the last
+ * upload to each device, e.g. for the node exporter's textfile collector. Uploads running at once may share an exporter
+ *
+ * @author andrew
+ *
+ */
+public class MetricsExporter {
+
+	private final File jsonFile;
+	private final File prometheusFile;
+	// last upload by transport and device, so the text file has every device uploaded to by this process
+	private final Map<String, UploadMetrics> lastUploads = Maps.newLinkedHashMap();
+
+	/**
+	 * @param jsonFile appended to, or null
+	 * @param prometheusFile replaced after each upload, or null
+	 */
+	public MetricsExporter(File jsonFile, File prometheusFile) {
+		this.jsonFile = jsonFile;
+		this.prometheusFile = prometheusFile;
+	}
+
+	public synchronized void export(UploadMetrics metrics) throws IOException {
+		if (jsonFile != null) {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(jsonFile, true), Charsets.UTF_8);
+
+			try {
+				writer.write(metrics.toJson());
+				writer.write("\n");
+			} finally {
+				writer.close();
+			}
+		}
+
+		if (prometheusFile != null) {
+			lastUploads.put(metrics.getTransport() + " " + metrics.getDeviceId(), metrics);
+
+			// scrapers must never see a partly written file
+			File temp = new File(prometheusFile.getPath() + ".tmp");
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temp), Charsets.UTF_8);
+
+			try {
+				writer.write(UploadMetrics.toPrometheus(lastUploads.values()));
+			} finally {
+				writer.close();
+			}
+
+			if (!temp.renameTo(prometheusFile)) {
+				// windows won't rename over an existing file
+				if (!prometheusFile.delete() || !temp.renameTo(prometheusFile)) {
+					throw new IOException("Unable to replace " + prometheusFile);
+				}
+			}
+		}
+	}
+
+	public File getJsonFile() {
+		return jsonFile;
+	}
+
+	public File getPrometheusFile() {
+		return prometheusFile;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+/**
+ * Computes the ack timeout from the measured round trip times, as TCP does (RFC 6298): a smoothed rtt plus four times
+ * the rtt variance. Each timeout doubles it until the next sample. Until the first sample the timeout is the max
+ *
+ * Only sample packets that were acked on the first attempt, since the ack of a retried packet could be for either send
+ *
+ * @author andrew
+ *
+ */
+public class RttEstimator {
+
+	private final int minTimeoutMillis;
+	private final int maxTimeoutMillis;
+
+	private double srtt = -1;
+	private double rttvar;
+	private int samples;
+	private int backoff;
+
+	/**
+	 * @param minTimeoutMillis floor so a few fast acks don't make the timeout so tight that ordinary jitter causes retries
+	 * @param maxTimeoutMillis never wait longer than this for an ack
+	 */
+	public RttEstimator(int minTimeoutMillis, int maxTimeoutMillis) {
+		if (minTimeoutMillis > maxTimeoutMillis) {
+			throw new IllegalArgumentException("Min timeout " + minTimeoutMillis + " is greater than max timeout " + maxTimeoutMillis);
+		}
+
+		this.minTimeoutMillis = minTimeoutMillis;
+		this.maxTimeoutMillis = maxTimeoutMillis;
+	}
+
+	public synchronized void addSample(long rttMillis) {
+		if (srtt < 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2.0;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+			srtt = 0.875 * srtt + 0.125 * rttMillis;
+		}
+
+		samples++;
+		backoff = 0;
+	}
+
+	/**
+	 * Call when an ack times out. Doubles the timeout until the next sample
+	 */
+	public synchronized void backoff() {
+		// no point going past the max
+		if (backoff < 16) {
+			backoff++;
+		}
+	}
+
+	public synchronized int getTimeoutMillis() {
+		if (srtt < 0) {
+			return maxTimeoutMillis;
+		}
+
+		long timeout = Math.max(minTimeoutMillis, Math.round(srtt + 4 * rttvar)) << backoff;
+
+		return (int) Math.min(maxTimeoutMillis, timeout);
+	}
+
+	public synchronized int getSrttMillis() {
+		return (int) Math.round(srtt);
+	}
+
+	public synchronized int getRttvarMillis() {
+		return (int) Math.round(rttvar);
+	}
+
+	public synchronized int getSamples() {
+		return samples;
+	}
+}
@@ -21,15 +21,24 @@ package com.rapplogic.aru.uploader;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Random;
 
+import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 
+import com.google.common.collect.Lists;
 import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.PageCompressor;
 import com.rapplogic.aru.core.Sketch;
+import com.rapplogic.aru.core.SketchCache;
+import com.rapplogic.aru.uploader.AckRouter.PendingAck;
+import com.rapplogic.aru.uploader.FlashHistory.FlashRecord;
+import com.rapplogic.aru.uploader.UploadListener.MessageEvent;
 import com.rapplogic.aru.core.SketchCore;
 
 /**
@@ -46,9 +55,27 @@ public abstract class SketchUploader extends SketchCore {
 	public final int MAGIC_BYTE2 = 0xac; // 172
 	// make enum
 	public final int CONTROL_PROG_REQUEST = 0x10;
+	// only the pages that changed since the last flash follow
+	public final int CONTROL_PROG_DELTA_REQUEST = 0x11;
+	// pages may arrive out of order, sent with more than one page awaiting ack
+	public final int CONTROL_PROG_WINDOW_REQUEST = 0x12;
+	// continue an upload that failed, sending only the pages not yet acked
+	public final int CONTROL_PROG_RESUME_REQUEST = 0x13;
+	// start broadcast to many arduinos. pages may arrive in any order and each arduino is asked which it missed
+	public final int CONTROL_PROG_BROADCAST_REQUEST = 0x14;
 	public final int CONTROL_WRITE_EEPROM = 0x20;
+	// page data compressed with PageCompressor
+	public final int CONTROL_WRITE_EEPROM_COMPRESSED = 0x21;
+	// page broadcast to many arduinos. not acked
+	public final int CONTROL_WRITE_EEPROM_BROADCAST = 0x22;
 	// somewhat redundant
 	public final int CONTROL_START_FLASH = 0x40;
+	// test pattern to find the largest page the link delivers. not written to eeprom
+	public final int CONTROL_PROBE = 0x30;
+	// which pages is the arduino missing. the reply has a bitmap of them
+	public final int CONTROL_MISSING_PAGES = 0x50;
+	// after a delta start, a chunk of the bitmap of pages the arduino already has. the id is the byte offset into the bitmap
+	public final int CONTROL_PAGE_BITMAP = 0x51;
 	// tell what version of uploader is running
 	public final int CONTROL_VERSION_QUERY = 0x80;
 
@@ -68,15 +95,70 @@ public abstract class SketchUploader extends SketchCore {
 	public final int NOBOOTLOADER_ERROR = 8;
 	public final int VERIFY_PAGE_ERROR = 9;
 	public final int ADDRESS_SKIP_ERROR = 0xa;
+	public final int DECOMPRESS_ERROR = 0xc;
+	public final int PROBE_ERROR = 0xd;
+	
+	// adaptive page ack timeout never goes below this
+	public final int MIN_ACK_TIMEOUT_MILLIS = 100;
+	// times a failed upload is resumed before giving up, when journaled
+	public final int MAX_RESUMES = 3;
+	// PROG_PAGE_SIZE in the arduino library, the most it writes to eeprom at once
+	public final int MAX_PAGE_SIZE = 128;
+	// probed page sizes are this far apart, so the result doesn't change between runs by a byte or two. a different page size means no delta upload
+	public final int PROBE_STEP = 8;
+	// a page size is reliable if all but one of these probes are acked
+	public final int PROBES_PER_SIZE = 4;
+	// above any page address or sketch size (eeprom is 32K) so a late probe ack can't be taken for a page's
+	private final int PROBE_ID_BASE = 0x8000;
+	private final int MISSING_PAGES_ID = 0x7fff;
+	// plus the offset into the bitmap, up to MAX_BROADCAST_PAGES / 8
+	private final int PAGE_BITMAP_ID_BASE = 0x7e00;
+	// BROADCAST_MAX_PAGES in the arduino library, the most pages it can keep track of
+	public final int MAX_BROADCAST_PAGES = 512;
+	// magic bytes, code and id. any reply data follows
+	public final int REPLY_HEADER_SIZE = 5;
 	
 	private boolean verbose;
 	//private boolean programInterrupt;
 	
-	private BlockingQueue<int[]> ackQueue = new LinkedBlockingQueue<int[]>();
+	private final AckRouter ackRouter = new AckRouter(RETRY);
+	// for retry delays
+	private static final Random retryRandom = new Random();
+	// caps the retry delay at 32 times the configured delay
+	private static final int MAX_BACKOFF_SHIFT = 5;
 //	private final Thread main = Thread.currentThread();
 
 	private CliOptions cliOptions = new CliOptions();
 	
+	private SketchCache sketchCache;
+	private FlashHistory flashHistory;
+	private int windowSize = 1;
+	private boolean adaptiveAckTimeout = true;
+	private UploadJournal uploadJournal;
+	private boolean compress;
+	private boolean probePageSize;
+	// transport is left open after an upload for the next one, e.g. by the upload daemon
+	private boolean keepOpen;
+	private boolean opened;
+	private int probes;
+	// the start packet and pages were broadcast, and whether the arduino acked the start
+	private boolean broadcast;
+	private boolean broadcastStartAcked;
+	// of the last reply that had data after the id
+	private volatile int[] replyData;
+	// of the upload in progress
+	private int retries;
+	// never null. replaced at the start of each upload
+	private UploadMetrics metrics = new UploadMetrics(null, null);
+	private MetricsExporter metricsExporter;
+	private Sketch uploading;
+	private UploadListener listener = new ConsoleUploadListener(this);
+	// reused for each event so the send loop doesn't allocate
+	private final UploadListener.PhaseEvent phaseEvent = new UploadListener.PhaseEvent();
+	private final UploadListener.PageEvent pageEvent = new UploadListener.PageEvent();
+	private final UploadListener.RetryEvent retryEvent = new UploadListener.RetryEvent();
+	private final UploadListener.MessageEvent messageEvent = new UploadListener.MessageEvent();
+	
 	public SketchUploader() {
 
 	}
@@ -86,98 +168,114 @@ public abstract class SketchUploader extends SketchCore {
 //	}
 	
 	/**
-	 * Add a reply to the queue
+	 * Hands a reply from the arduino to the packet waiting for it. Called from the transport's receive thread
+	 * 
+	 * @param code reply code, e.g. OK
+	 * @param id id of the packet being acked
+	 */
+	protected void addReply(int code, int id) {
+		if (code == OK) {
+			// if the transport is configured for retries we can get multiple acks, or a late ack for the previous page.
+			// ignored, and counted for the summary of a verbose upload
+			ackRouter.ack(id);
+		} else {
+			ackRouter.error(code);
+		}
+	}
+	
+	/**
+	 * Reply that may have data after the id, e.g. the pages the arduino is missing
+	 * 
+	 * @param reply the whole reply
+	 */
+	protected void addReply(int code, int id, int[] reply) {
+		if (reply.length > REPLY_HEADER_SIZE) {
+			replyData = Arrays.copyOfRange(reply, REPLY_HEADER_SIZE, reply.length);
+		}
+		
+		addReply(code, id);
+	}
+	
+	/**
+	 * Called by a transport that knows it failed to deliver the packet with this id, e.g. from the radio's tx status. The packet
+	 * is resent without waiting out its ack timeout, if it is still awaiting ack
+	 */
+	protected void deliveryFailed(int id) {
+		ackRouter.failed(id);
+	}
+	
+	/**
+	 * For packets this uploader didn't send, e.g. a broadcast. The returned ack is done once the arduino acks
 	 */
-	protected void addReply(int[] reply) {
-		ackQueue.add(reply);
+	protected PendingAck registerAck(int id) {
+		return ackRouter.register(id);
 	}
 	
 	/**
-	 * Waits up to timeoutMillis for reply. if id does not match it will wait some more up to the timeout
+	 * Waits up to timeoutMillis for the packet to be acked
 	 * 
 	 * @param ackTimeoutMillis
-	 * @param id
+	 * @param ack registered before the packet was sent
 	 * @throws NoAckException 
 	 * @throws InterruptedException 
 	 * @throws StartOverException 
 	 */
-	protected void waitForAck(final int ackTimeoutMillis, int id) throws NoAckException, InterruptedException, StartOverException {
+	protected void waitForAck(final int ackTimeoutMillis, PendingAck ack) throws NoAckException, InterruptedException, StartOverException {
 		long start = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
 		long timeLeftMillis = ackTimeoutMillis;
 		
-		while (timeLeftMillis > 0) {
-			
-			boolean interrupted = false;
-			
-			if (Thread.currentThread().interrupted()) {
-				interrupted = true;
-			}
-			
-			int[] reply = null;
-			
-			try {		
-				reply = ackQueue.poll(timeLeftMillis, TimeUnit.MILLISECONDS);			
+		try {
+			while (!ack.isDone()) {
+				int error = ackRouter.takeError();
+				
+				if (error != 0) {
+					// only one packet is in flight so the ids of failed deliveries aren't needed, and would pile up
+					ackRouter.clearFailed();
+					checkReply(error);
+				}
+				
+				if (timeLeftMillis <= 0) {
+					throw new NoAckException("No ACK from transport device after " + ackTimeoutMillis + "ms");
+				}
+				
+				ackRouter.await(timeLeftMillis);
 				// calc how much more time to wait
 				timeLeftMillis = ackTimeoutMillis - (System.currentTimeMillis() - start);
-			} catch (InterruptedException e) {
-				interrupted = true;
-			}
-			
-			if (interrupted) {
-//				if (programInterrupt) {
-//					programInterrupt = false;
-//					// reset
-//					throw new NoAckException("Interrupted while waiting for ACK after " + (System.currentTimeMillis() - start) + "ms");					
-//				}
-				
-				throw new InterruptedException();
 			}
-			
-			if (reply == null) {
-				//System.out.println("Timeout waiting for reply. timeleft is now " + timeLeftMillis);
-			} else {
-
-				switch (reply[2]) {
-				case OK:
-					int packetId = getPacketId(reply);
-					
-					if (packetId != id) {
-						// ack id does not match tx id
-						// if the transport is configured for retries we can get multiple acks. in this case we got a late ack for the previous page or it sent multiple acks
-						// if it's negative that's just fine
-						if (verbose) {
-							System.out.println("Received ack for id " + packetId + " but expected id " + id + ".. ignoring and waiting for " + timeLeftMillis + "ms");							
-						}
-						
-						// wait some more
-						continue;
-					}
-					
-					// match
-					return;
-				case START_OVER:
-					throw new StartOverException("Upload failed: arduino said to start over");
-				case TIMEOUT:
-					throw new StartOverException("Upload failed: arduino sent a timeout reply.. start over");
-				case RETRY:
-					// fictitious reply. does not come from arduino
-					throw new NoAckException("Received RETRY ack");
-				case FLASH_ERROR:
-				case EEPROM_ERROR:
-				case EEPROM_WRITE_ERROR:
-				case EEPROM_READ_ERROR:
-				case NOBOOTLOADER_ERROR:
-				case VERIFY_PAGE_ERROR:
-				case ADDRESS_SKIP_ERROR:					
-					// TODO handle specific errors
-					throw new StartOverException("Upload failed: error code " + reply[2]);
-				default:
-					throw new StartOverException("Unexpected response code from arduino: " + reply);						
-				}				
-			}			
-		}
-		
-		throw new NoAckException("No ACK from transport device after " + ackTimeoutMillis + "ms");		
+		} finally {
+			metrics.getAckWait().observe(System.nanoTime() - startNanos);
+		}
+	}
+	
+	/**
+	 * Throws the exception for the error code
+	 */
+	private void checkReply(int code) throws NoAckException, StartOverException {
+		switch (code) {
+		case START_OVER:
+			throw new StartOverException("Upload failed: arduino said to start over");
+		case PROBE_ERROR:
+			// only sent in reply to a probe
+			throw new NoAckException("Probe arrived damaged or too large");
+		case TIMEOUT:
+			throw new StartOverException("Upload failed: arduino sent a timeout reply.. start over");
+		case RETRY:
+			// fictitious reply. does not come from arduino
+			throw new NoAckException("Received RETRY ack");
+		case FLASH_ERROR:
+		case EEPROM_ERROR:
+		case EEPROM_WRITE_ERROR:
+		case EEPROM_READ_ERROR:
+		case NOBOOTLOADER_ERROR:
+		case VERIFY_PAGE_ERROR:
+		case ADDRESS_SKIP_ERROR:					
+		case DECOMPRESS_ERROR:
+			// TODO handle specific errors
+			throw new StartOverException("Upload failed: error code " + code);
+		default:
+			throw new StartOverException("Unexpected response code from arduino: " + code);						
+		}
 	}
 	
 	public int[] getStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version) {
@@ -200,6 +298,73 @@ public abstract class SketchUploader extends SketchCore {
 		return header;
 	}
 	
+	/**
+	 * Start header with the tag of the image. The arduino keeps the tag once flashed so it can accept a delta upload next time
+	 */
+	public int[] getStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version, int imageTag) {
+		return appendTags(getStartHeader(sizeInBytes, numPages, bytesPerPage, timeout, version), imageTag);
+	}
+	
+	/**
+	 * Start header for an upload of only the pages that changed. The arduino replies START_OVER unless the image in its eeprom has the base tag
+	 */
+	public int[] getDeltaStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version, int imageTag, int baseImageTag) {
+		int[] header = appendTags(getStartHeader(sizeInBytes, numPages, bytesPerPage, timeout, version), imageTag, baseImageTag);
+		header[2] = CONTROL_PROG_DELTA_REQUEST;
+		return header;
+	}
+	
+	/**
+	 * Start header for an upload with more than one page awaiting ack. If a page is lost the pages after it arrive before its retry,
+	 * which the arduino only accepts with this header
+	 */
+	public int[] getWindowStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version, int imageTag) {
+		int[] header = getStartHeader(sizeInBytes, numPages, bytesPerPage, timeout, version, imageTag);
+		header[2] = CONTROL_PROG_WINDOW_REQUEST;
+		return header;
+	}
+	
+	/**
+	 * Start header to continue an upload of the image. The arduino replies START_OVER unless its eeprom holds a partial upload of that image
+	 */
+	public int[] getResumeStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version, int imageTag) {
+		int[] header = getStartHeader(sizeInBytes, numPages, bytesPerPage, timeout, version, imageTag);
+		header[2] = CONTROL_PROG_RESUME_REQUEST;
+		return header;
+	}
+	
+	/**
+	 * Start header broadcast to many arduinos. Each is then asked which pages it missed and sent those
+	 */
+	public int[] getBroadcastStartHeader(int sizeInBytes, int numPages, int bytesPerPage, int timeout, int version, int imageTag) {
+		int[] header = getStartHeader(sizeInBytes, numPages, bytesPerPage, timeout, version, imageTag);
+		header[2] = CONTROL_PROG_BROADCAST_REQUEST;
+		return header;
+	}
+	
+	private int[] appendTags(int[] header, int... tags) {
+		int[] result = Arrays.copyOf(header, header.length + tags.length * 4);
+		
+		for (int i = 0; i < tags.length; i++) {
+			result[header.length + i * 4] = (tags[i] >> 24) & 0xff;
+			result[header.length + i * 4 + 1] = (tags[i] >> 16) & 0xff;
+			result[header.length + i * 4 + 2] = (tags[i] >> 8) & 0xff;
+			result[header.length + i * 4 + 3] = tags[i] & 0xff;
+		}
+		
+		result[3] = result.length;
+		
+		return result;
+	}
+	
+	/**
+	 * First four bytes of the md5. zero is reserved to mean no image
+	 */
+	protected int getImageTag(String md5) {
+		int tag = (int) Long.parseLong(md5.substring(0, 8), 16);
+		return tag == 0 ? 1 : tag;
+	}
+	
 	// TODO consider adding retry bit to header
 	// TODO consider sending force reset bit to header
 	
@@ -228,6 +393,54 @@ public abstract class SketchUploader extends SketchCore {
 		return getHeader(CONTROL_WRITE_EEPROM, address16, dataLength);
 	}
 	
+	/**
+	 * Header of a page broadcast to many arduinos. Same as a page header but the arduino doesn't reply
+	 */
+	public int[] getBroadcastPageHeader(int address16, int dataLength) {
+		int[] header = getProgramPageHeader(address16, dataLength);
+		header[2] = CONTROL_WRITE_EEPROM_BROADCAST;
+		return header;
+	}
+	
+	public int[] getMissingPagesHeader() {
+		return getHeader(CONTROL_MISSING_PAGES, MISSING_PAGES_ID, 0);
+	}
+	
+	/**
+	 * Header of a compressed page. Has the length of the page after decompression, which the arduino can't know otherwise
+	 */
+	public int[] getCompressedPageHeader(int address16, int dataLength, int compressedLength) {
+		int[] header = Arrays.copyOf(getHeader(CONTROL_WRITE_EEPROM_COMPRESSED, address16, compressedLength), 7);
+		header[3] = compressedLength + header.length;
+		header[6] = dataLength;
+		return header;
+	}
+	
+	/**
+	 * Probe with length bytes of test pattern. The pattern starts at the id so the arduino can tell a probe that was cut short
+	 * from one that arrived whole, even with an earlier probe in its buffer
+	 */
+	public int[] getProbePacket(int id, int length) {
+		int[] header = getHeader(CONTROL_PROBE, id, length);
+		int[] packet = Arrays.copyOf(header, header.length + length);
+		
+		for (int i = 0; i < length; i++) {
+			packet[header.length + i] = (id + i) & 0xff;
+		}
+		
+		return packet;
+	}
+	
+	/**
+	 * length bytes of the page bitmap, from offset. The arduino ORs them into the pages it has
+	 */
+	public int[] getPageBitmapPacket(int[] bitmap, int offset, int length) {
+		int[] header = getHeader(CONTROL_PAGE_BITMAP, PAGE_BITMAP_ID_BASE + offset, length);
+		int[] packet = Arrays.copyOf(header, header.length + length);
+		System.arraycopy(bitmap, offset, packet, header.length, length);
+		return packet;
+	}
+	
 	public int[] getFlashStartHeader(int progSize) {
 		return getHeader(CONTROL_START_FLASH, progSize, 0);
 	}	
@@ -238,6 +451,16 @@ public abstract class SketchUploader extends SketchCore {
 		return result;
 	}
 
+	protected int[] combine(int[] header, Page page) {
+		int[] result = Arrays.copyOf(header, header.length + page.getLength());
+		
+		for (int i = 0; i < page.getLength(); i++) {
+			result[header.length + i] = page.get(i);
+		}
+		
+		return result;
+	}
+
 	protected abstract void open(Map<String,Object> context) throws Exception;
 	protected abstract void writeData(int[] data, Map<String,Object> context) throws Exception;
 	/**
@@ -249,178 +472,962 @@ public abstract class SketchUploader extends SketchCore {
 	 */
 //	protected abstract void waitForAck(int timeout, int id) throws NoAckException, Exception;
 	protected abstract void close() throws Exception;
+	
+	/**
+	 * Whether a transport that was opened is still usable. When kept open between uploads it is opened again if not
+	 */
+	protected boolean isConnected() {
+		return true;
+	}
+	
 	protected abstract String getName();
 	
 	/**
-	 * 
-	 * @param file
-	 * @param pageSize
-	 * @param ackTimeoutMillis how long we wait for an ack before retrying
-	 * @param arduinoTimeoutSec how long before arduino resets after no activity. value of zero will indicates no timeout
-	 * @param retriesPerPacket how many times to retry sending a page before giving up
-	 * @param verbose
-	 * @param context
-	 * @throws IOException
-	 * @throws StartOverException 
+	 * Identifies the remote device, e.g. xbee address, for remembering what was flashed to it. Return null if not known
 	 */
-	public void process(String file, int pageSize, final int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis, final boolean verbose, final Map<String,Object> context) throws IOException {
-		// page size is max packet size for the radio
-		final Sketch sketch = parseSketchFromIntelHex(file, pageSize);
-			
-		// was trying to keep in state-less but this is needed for the rxtx async input
-		this.verbose = verbose;
-		
-		context.put("verbose", verbose);
-		
-		int retries = 0;
-		
-		try {
-			open(context);
-			
-			long start = System.currentTimeMillis();
-			final int[] startHeader = getStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION);
+	protected String getDeviceId(Map<String,Object> context) {
+		return null;
+	}
+	
+	/**
+	 * Largest packet, header included, the transport can carry. Pages are probed up to this. Return 0 if the transport can only carry
+	 * pages of the size passed to process
+	 */
+	protected int getMaxPacketSize(Map<String,Object> context) {
+		return 0;
+	}
+	
+	private int sendWithRetries(final int[] packet, final int ackId, String description, final int ackTimeoutMillis, int retriesPerPacket, int delayBetweenRetriesMillis, final Map<String,Object> context) throws StartOverException, InterruptedException {
+		Retryer retryer = new Retryer(retriesPerPacket, delayBetweenRetriesMillis, description, null) {
+			@Override
+			public void send() throws Exception {			
+				PendingAck ack = ackRouter.register(ackId);
+				long sentAt = System.nanoTime();
+				sendPacket(packet, context);
+				waitForAck(ackTimeoutMillis, ack);
 				
-			System.out.println("Sending sketch to " + getName() + " radio, size " + sketch.getSize() + " bytes, md5 " + getMd5(sketch.getProgram()) + ", number of packets " + sketch.getPages().size() + ", and " + sketch.getBytesPerPage() + " bytes per packet, header " + toHex(startHeader));
-			
-			Retryer first = new Retryer(retriesPerPacket, delayBetweenRetriesMillis, "start packet") {
-				@Override
-				public void send() throws Exception {			
-					writeData(startHeader, context);
-					waitForAck(ackTimeoutMillis, sketch.getSize());					
+				if (getAttempt() == 0) {
+					metrics.getPacketRtt().observe(System.nanoTime() - sentAt);
 				}
-			};
-			
-			retries+= first.sendWithRetries();
+			}
+		};
+		
+		return retryer.sendWithRetries();
+	}
+	
+	/**
+	 * Writes the packet to the transport, counting it in the metrics of the upload
+	 */
+	private void sendPacket(int[] packet, Map<String,Object> context) throws Exception {
+		writeData(packet, context);
+		metrics.packetSent(packet.length);
+	}
+	
+	/**
+	 * Page packet, compressed if that makes it smaller. A compressed page may refer back to the program up to the first page not in eeprom
+	 */
+	private int[] getPagePacket(Page page, EepromPages eeprom, PageCompressor compressor) {
+		if (compressor != null) {
+			int offset = page.getRealAddress16();
+			byte[] compressed = new byte[page.getLength()];
+			int length = compressor.compress(offset, page.getLength(), Math.min(offset, eeprom.getContiguousBytes()), compressed);
 			
-			for (final Page page : sketch.getPages()) {				
-				// make sure we do a timely exit on a kill signal
-				if (Thread.currentThread().isInterrupted()) {
-//					if (programInterrupt) {
-//						programInterrupt = false;
-//						Thread.currentThread().interrupted();
-//					} else {
-						throw new InterruptedException();						
-//					}
+			if (length > 0) {
+				int[] header = getCompressedPageHeader(offset, page.getLength(), length);
+				int[] packet = Arrays.copyOf(header, header.length + length);
+				
+				for (int i = 0; i < length; i++) {
+					packet[header.length + i] = compressed[i] & 0xff;
 				}
-								
-				Retryer retry = new Retryer(retriesPerPacket,  delayBetweenRetriesMillis, "page " + (page.getOrdinal() + 1) + " of " + sketch.getPages().size()) {
-					@Override
-					public void send() throws NoAckException, InterruptedException, StartOverException {		
-						try {
-							final int[] data = combine(getProgramPageHeader(page.getRealAddress16(), page.getData().length), page.getData());
-
-							if (verbose) {
-								System.out.println("Sending page " + (page.getOrdinal() + 1) + " of " + sketch.getPages().size() + ", with address " + page.getRealAddress16() + ", length " + data.length + ", packet " + toHex(data));
-//								System.out.println("Data " + toHex(page.getData()));
-							} else {
-								System.out.print(".");
-								
-								if (page.getOrdinal() > 0 && page.getOrdinal() % 80 == 0) {
-									System.out.println("");
-								}
-							}
-							
-							writeData(data, context);					
-						} catch (Exception e) {
-							throw new RuntimeException("Unexpected error at page " + (page.getOrdinal() + 1) + " of " + sketch.getPages().size(), e);
-						}
-						
-						// don't send next page until this one is processed or we will overflow the buffer
-						waitForAck(ackTimeoutMillis, page.getRealAddress16());				
-					}
-				};
 				
-				retries+= retry.sendWithRetries();
+				return packet;
 			}
-
-			if (!verbose) {
-				System.out.println("");
-			}
-
-			final int[] flash = getFlashStartHeader(sketch.getSize());
+		}
+		
+		return combine(getProgramPageHeader(page.getRealAddress16(), page.getLength()), page);
+	}
+	
+	private void sendPage(Page page, Sketch sketch, int attempt, EepromPages eeprom, PageCompressor compressor, Map<String,Object> context) {
+		try {
+			final int[] data = getPagePacket(page, eeprom, compressor);
+			sendPacket(data, context);
 			
-			if (verbose) {
-				System.out.println("Sending flash packet " + toHex(flash));				
+			if (listener != null) {
+				pageEvent.set(sketch, page, data, attempt, 0);
+				listener.pageSent(pageEvent);
 			}
-			
-			Retryer last = new Retryer(retriesPerPacket, delayBetweenRetriesMillis, "flash start") {
-				@Override
-				public void send() throws Exception {			
-					writeData(flash, context);
-					waitForAck(ackTimeoutMillis, sketch.getSize());						
-				}
-			};
-			
-			retries+= last.sendWithRetries();
-
-			System.out.println("Successfully flashed remote Arduino in " + (System.currentTimeMillis() - start) / 1000 + "s, with " + retries + " retries");
-		} catch (InterruptedException e) {
-			// kill signal
-			System.out.println("Interrupted during programming.. exiting");
-		} catch (StartOverException e) {
-			System.err.println("Flash failed " + e.toString());
-			log.warn("Start over " + e.getMessage());
 		} catch (Exception e) {
-			log.error("Unexpected error", e);
-			System.err.println("Unexpected error " + e.toString());
-			e.printStackTrace();
-		} finally {
-			try {
-				close();
-			} catch (Exception e) {}
+			throw new RuntimeException("Unexpected error at page " + (page.getOrdinal() + 1) + " of " + sketch.getPages().size(), e);
 		}
 	}
 	
-	public static class NoAckException extends Exception {
-		public NoAckException(String arg0) {
-			super(arg0);
+	private void firePageAcked(Sketch sketch, Page page, int attempt, long rttNanos) {
+		if (listener != null) {
+			pageEvent.set(sketch, page, null, attempt, rttNanos);
+			listener.pageAcked(pageEvent);
 		}
 	}
 	
-	public static class StartOverException extends Exception {
-		public StartOverException(String arg0) {
-			super(arg0);
+	/**
+	 * @param page the page being resent, or null
+	 * @param packet what is being resent if not a page
+	 */
+	private void fireRetry(Page page, String packet, int attempt, String reason) {
+		if (listener != null) {
+			retryEvent.set(uploading, page, packet, attempt, reason);
+			listener.retry(retryEvent);
 		}
-	}	
+	}
 	
-	static abstract class Retryer {
-		private int retries;
-		private int delayBetweenRetriesMillis;
-		private String context;
-		
-
-		public Retryer(int retries, int delayBetweenRetriesMillis, String context) {
-			if (retries <= 0) {
-				throw new IllegalArgumentException("Retries must be >= 1");
+	/**
+	 * Tells the listener, e.g. prints it on the command line. Only send DEBUG messages when verbose
+	 */
+	protected void fireMessage(MessageEvent.Level level, String message) {
+		fireMessage(level, message, null);
+	}
+	
+	/**
+	 * @param cause the unexpected exception that failed the upload
+	 */
+	protected void fireMessage(MessageEvent.Level level, String message, Throwable cause) {
+		if (listener != null) {
+			// a transport may report from its own thread, e.g. a failed xbee tx status
+			synchronized (messageEvent) {
+				messageEvent.set(level, message, cause);
+				listener.message(messageEvent);
 			}
-			
-			this.retries = retries;
-			this.delayBetweenRetriesMillis = delayBetweenRetriesMillis;
-			this.context = context;
 		}
+	}
 	
-		public int sendWithRetries() throws StartOverException, InterruptedException {
-			for (int i = 0 ;i < retries; i++) {
-				try {
-					// reset
-					send();
-					return i;
-				} catch (NoAckException e) {
-					System.out.println("\nFailed to deliver packet [" + context + "] on attempt " + (i + 1) + ", reason " + e.getMessage() + ".. retrying");
+	/**
+	 * Delay before resending. Doubles with each attempt, randomized between half and all of that so retries don't fall in step
+	 * with whatever caused the loss
+	 * 
+	 * @param attempt zero after the first send
+	 */
+	private long getRetryDelayMillis(int delayBetweenRetriesMillis, int attempt) {
+		long delay = (long) delayBetweenRetriesMillis << Math.min(attempt, MAX_BACKOFF_SHIFT);
+		return delay / 2 + (long) (retryRandom.nextDouble() * (delay - delay / 2));
+	}
+	
+	/**
+	 * Ends the phase in progress and times this one
+	 */
+	private void startPhase(UploadMetrics.Phase phase) {
+		metrics.startPhase(phase);
+		
+		if (listener != null) {
+			phaseEvent.set(phase, metrics);
+			listener.phaseChanged(phaseEvent);
+		}
+	}
+	
+	/**
+	 * Sends pages without waiting for each ack, keeping up to windowSize pages awaiting ack. Acks are matched to pages by address.
+	 * The oldest page is resent if not acked within the timeout, or when the transport replies RETRY. As when sending one at a
+	 * time, a resend waits out the retry delay, with backoff, but acks of the other pages are still taken meanwhile
+	 * 
+	 * @return number of retries
+	 */
+	private int sendPagesWindowed(List<Page> pages, Sketch sketch, int windowSize, RttEstimator rtt, int retriesPerPacket, int delayBetweenRetriesMillis, EepromPages eeprom, PageCompressor compressor, Map<String,Object> context) throws IOException, StartOverException, InterruptedException {
+		// awaiting ack by address, in the order sent
+		LinkedHashMap<Integer, InFlight> inFlight = new LinkedHashMap<Integer, InFlight>();
+		int next = 0;
+		int retries = 0;
+		
+		while (next < pages.size() || !inFlight.isEmpty()) {
+			// make sure we do a timely exit on a kill signal
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException();
+			}
+			
+			while (inFlight.size() < windowSize && next < pages.size()) {
+				Page page = pages.get(next++);
+				PendingAck ack = ackRouter.register(page.getRealAddress16());
+				sendPage(page, sketch, 0, eeprom, compressor, context);
+				inFlight.put(page.getRealAddress16(), new InFlight(page, ack, System.currentTimeMillis(), System.nanoTime()));
+			}
+			
+			boolean acked = false;
+			
+			for (Iterator<InFlight> it = inFlight.values().iterator(); it.hasNext();) {
+				InFlight sent = it.next();
+				
+				if (sent.ack.isDone()) {
+					it.remove();
+					acked = true;
 					
-					if (i + 1 == retries) {
-						throw new RuntimeException("Failed to send after " + (i + 1) + " attempts");
-					}
+					long rttNanos = System.nanoTime() - sent.sentNanos;
 					
-					Thread.sleep(delayBetweenRetriesMillis);
+					if (sent.attempts == 0) {
+						rtt.addSample(System.currentTimeMillis() - sent.sentAt);
+						metrics.getPacketRtt().observe(rttNanos);
+					}
 					
-					continue;
-				} catch (StartOverException e) {
-					throw e;
-				} catch (InterruptedException e) {
-					throw e;
-				} catch (Exception e) {
-					throw new RuntimeException("Unable to retry due to unexpected exception", e);
+					eeprom.acked(sent.page);
+					firePageAcked(sketch, sent.page, sent.attempts, rttNanos);
+				}
+			}
+			
+			if (acked) {
+				// room in the window
+				continue;
+			}
+			
+			long now = System.currentTimeMillis();
+			// oldest page on the air. pages waiting out their retry delay don't time out
+			InFlight oldest = null;
+			long nextResendAt = Long.MAX_VALUE;
+			List<InFlight> due = Lists.newArrayList();
+			
+			for (InFlight sent : inFlight.values()) {
+				if (sent.resendAt == 0) {
+					if (oldest == null) {
+						oldest = sent;
+					}
+				} else if (sent.resendAt <= now) {
+					due.add(sent);
+				} else {
+					nextResendAt = Math.min(nextResendAt, sent.resendAt);
+				}
+			}
+			
+			if (!due.isEmpty()) {
+				for (InFlight sent : due) {
+					resendPage(sent, inFlight, sketch, eeprom, compressor, context);
+				}
+				
+				continue;
+			}
+			
+			int error = ackRouter.takeError();
+			String reason = null;
+			List<InFlight> resend = Lists.newArrayList();
+			
+			if (error != 0) {
+				try {
+					checkReply(error);
+				} catch (NoAckException e) {
+					reason = e.getMessage();
+				}
+				
+				Integer failed;
+				
+				// pages the transport says it failed to deliver
+				while ((failed = ackRouter.takeFailed()) != null) {
+					InFlight sent = inFlight.get(failed);
+					
+					if (sent != null && sent.resendAt == 0 && !resend.contains(sent)) {
+						resend.add(sent);
+					}
+				}
+			} else {
+				int ackTimeoutMillis = rtt.getTimeoutMillis();
+				long timeLeftMillis = oldest != null ? oldest.sentAt + ackTimeoutMillis - now : Long.MAX_VALUE;
+				
+				if (timeLeftMillis > 0) {
+					long waitStart = System.nanoTime();
+					ackRouter.await(Math.min(timeLeftMillis, nextResendAt - now));
+					metrics.getAckWait().observe(System.nanoTime() - waitStart);
+					continue;
+				}
+				
+				reason = "No ACK from transport device after " + ackTimeoutMillis + "ms";
+				rtt.backoff();
+			}
+			
+			if (resend.isEmpty() && oldest != null) {
+				// transport doesn't say which packet it failed to deliver. the oldest is the most likely
+				resend.add(oldest);
+			}
+			
+			for (InFlight sent : resend) {
+				sent.attempts++;
+				
+				fireRetry(sent.page, null, sent.attempts, reason);
+				
+				if (sent.attempts == retriesPerPacket) {
+					throw new RetriesExhaustedException("Failed to send after " + sent.attempts + " attempts");
+				}
+				
+				retries++;
+				metrics.pageRetried(sent.page.getOrdinal(), 1);
+				
+				long delayMillis = getRetryDelayMillis(delayBetweenRetriesMillis, sent.attempts - 1);
+				
+				if (delayMillis > 0) {
+					// still registered, so an ack that turns up meanwhile cancels the resend
+					sent.resendAt = now + delayMillis;
+				} else {
+					resendPage(sent, inFlight, sketch, eeprom, compressor, context);
+				}
+			}
+		}
+		
+		return retries;
+	}
+	
+	/**
+	 * Sends the page again and moves it to the back of the line. It is still registered from the first send
+	 */
+	private void resendPage(InFlight sent, LinkedHashMap<Integer, InFlight> inFlight, Sketch sketch, EepromPages eeprom, PageCompressor compressor, Map<String,Object> context) throws IOException {
+		inFlight.remove(sent.page.getRealAddress16());
+		sendPage(sent.page, sketch, sent.attempts, eeprom, compressor, context);
+		sent.sentAt = System.currentTimeMillis();
+		sent.sentNanos = System.nanoTime();
+		sent.resendAt = 0;
+		inFlight.put(sent.page.getRealAddress16(), sent);
+	}
+	
+	/**
+	 * Pages of the upload in progress that the arduino has in eeprom, journaled if resume is enabled
+	 */
+	private static class EepromPages {
+		private final BitSet pages = new BitSet();
+		private final int bytesPerPage;
+		private UploadJournal.Writer journal;
+		
+		EepromPages(int bytesPerPage) {
+			this.bytesPerPage = bytesPerPage;
+		}
+		
+		void setJournal(UploadJournal.Writer journal) {
+			this.journal = journal;
+		}
+		
+		void addAll(BitSet journaled) {
+			pages.or(journaled);
+		}
+		
+		void acked(Page page) throws IOException {
+			pages.set(page.getOrdinal());
+			
+			if (journal != null) {
+				journal.acked(page);
+			}
+		}
+		
+		/**
+		 * Length of the program from the start that is in eeprom
+		 */
+		int getContiguousBytes() {
+			return pages.nextClearBit(0) * bytesPerPage;
+		}
+		
+		/**
+		 * Returns true if there was a journal
+		 */
+		boolean closeJournal() throws IOException {
+			if (journal == null) {
+				return false;
+			}
+			
+			journal.close();
+			journal = null;
+			return true;
+		}
+	}
+	
+	private static class InFlight {
+		private final Page page;
+		private final PendingAck ack;
+		private long sentAt;
+		// for the packet rtt metric
+		private long sentNanos;
+		private int attempts;
+		// when to resend after a retry delay, or 0 if sent
+		private long resendAt;
+		
+		InFlight(Page page, PendingAck ack, long sentAt, long sentNanos) {
+			this.page = page;
+			this.ack = ack;
+			this.sentAt = sentAt;
+			this.sentNanos = sentNanos;
+		}
+	}
+	
+	/**
+	 * Asks the arduino which pages it hasn't written since the start packet
+	 */
+	private BitSet getMissingPages(Sketch sketch, int ackTimeoutMillis, int retriesPerPacket, int delayBetweenRetriesMillis, Map<String,Object> context) throws StartOverException, InterruptedException {
+		replyData = null;
+		retries+= sendWithRetries(getMissingPagesHeader(), MISSING_PAGES_ID, "missing pages query", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+		
+		int[] bitmap = replyData;
+		
+		if (bitmap == null || bitmap.length * 8 < sketch.getPages().size()) {
+			throw new StartOverException("Arduino did not say which pages it is missing");
+		}
+		
+		BitSet missing = new BitSet(sketch.getPages().size());
+		
+		for (int i = 0; i < sketch.getPages().size(); i++) {
+			if ((bitmap[i / 8] & (1 << (i % 8))) != 0) {
+				missing.set(i);
+			}
+		}
+		
+		return missing;
+	}
+	
+	/**
+	 * Tells the arduino which pages of a delta upload it already has, those that didn't change, so it can check it has every
+	 * page before flashing. A page's worth of bitmap per packet
+	 */
+	private void sendUnchangedPages(Sketch sketch, List<Page> changedPages, int ackTimeoutMillis, int retriesPerPacket, int delayBetweenRetriesMillis, Map<String,Object> context) throws StartOverException, InterruptedException {
+		BitSet changed = new BitSet();
+		
+		for (Page page : changedPages) {
+			changed.set(page.getOrdinal());
+		}
+		
+		int[] bitmap = new int[(sketch.getPages().size() + 7) / 8];
+		
+		for (int i = 0; i < sketch.getPages().size(); i++) {
+			if (!changed.get(i)) {
+				bitmap[i / 8] |= 1 << (i % 8);
+			}
+		}
+		
+		for (int offset = 0; offset < bitmap.length; offset+= sketch.getBytesPerPage()) {
+			int length = Math.min(sketch.getBytesPerPage(), bitmap.length - offset);
+			retries+= sendWithRetries(getPageBitmapPacket(bitmap, offset, length), PAGE_BITMAP_ID_BASE + offset, "page bitmap", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+		}
+	}
+	
+	/**
+	 * Sends the start packet, the pages the arduino doesn't have and the flash packet. If the journal has an unfinished upload
+	 * of this sketch, only the pages that weren't acked are sent
+	 */
+	private void upload(final Sketch sketch, String deviceId, final int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis, final RttEstimator rtt, final boolean verbose, final Map<String,Object> context) throws IOException, StartOverException, InterruptedException {
+		// pages the arduino has from the last attempt at uploading this sketch. a broadcast start cleared those
+		BitSet journaled = !broadcast && uploadJournal != null && deviceId != null ? uploadJournal.getAckedPages(deviceId, sketch) : null;
+		uploading = sketch;
+		startPhase(UploadMetrics.Phase.HANDSHAKE);
+		
+		final EepromPages eeprom = new EepromPages(sketch.getBytesPerPage());
+		final PageCompressor compressor = compress ? new PageCompressor(sketch.getProgram()) : null;
+		boolean resumed = false;
+		boolean broadcastStarted = false;
+		List<Page> pages = sketch.getPages();
+		
+		if (journaled != null && !journaled.isEmpty()) {
+			List<Page> remaining = Lists.newArrayList();
+			
+			for (Page page : sketch.getPages()) {
+				if (!journaled.get(page.getOrdinal())) {
+					remaining.add(page);
+				}
+			}
+			
+			int[] resumeHeader = getResumeStartHeader(sketch.getSize(), remaining.size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()));
+			
+			fireMessage(MessageEvent.Level.INFO, "Resuming upload of sketch to " + getName() + " radio, size " + sketch.getSize() + " bytes, md5 " + sketch.getMd5() + ", " + remaining.size() + " of " + sketch.getPages().size() + " packets remaining, header " + toHex(resumeHeader));
+			
+			try {
+				retries+= sendWithRetries(resumeHeader, sketch.getSize(), "resume start packet", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+				pages = remaining;
+				resumed = true;
+				eeprom.setJournal(uploadJournal.append(deviceId));
+				eeprom.addAll(journaled);
+			} catch (StartOverException e) {
+				// eeprom was written by something else since, or the arduino doesn't support resume
+				fireMessage(MessageEvent.Level.INFO, "Arduino refused resume (" + e.getMessage() + "), starting over");
+			}
+		}
+		
+		if (broadcast) {
+			try {
+				if (!broadcastStartAcked) {
+					// didn't get the broadcast start so ignored the pages too
+					int[] broadcastHeader = getBroadcastStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()));
+					retries+= sendWithRetries(broadcastHeader, sketch.getSize(), "broadcast start packet", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+				}
+				
+				BitSet missing = getMissingPages(sketch, ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+				List<Page> remaining = Lists.newArrayList();
+				
+				for (Page page : sketch.getPages()) {
+					if (missing.get(page.getOrdinal())) {
+						remaining.add(page);
+					}
+				}
+				
+				fireMessage(MessageEvent.Level.INFO, "Arduino is missing " + remaining.size() + " of " + sketch.getPages().size() + " broadcast pages");
+				
+				pages = remaining;
+				broadcastStarted = true;
+			} catch (StartOverException e) {
+				// timed out since the broadcast, or the arduino doesn't support broadcast
+				fireMessage(MessageEvent.Level.INFO, "Arduino refused broadcast upload (" + e.getMessage() + "), sending all pages");
+			}
+		}
+		
+		boolean started = resumed || broadcastStarted;
+		
+		try {
+			FlashRecord lastFlash = !started && flashHistory != null && deviceId != null ? flashHistory.get(deviceId) : null;
+			// null unless we know what's on the device and it was paged the same
+			List<Page> changedPages = lastFlash != null ? lastFlash.getChangedPages(sketch) : null;
+			
+			if (changedPages != null && sketch.getPages().size() > MAX_BROADCAST_PAGES) {
+				// more pages than the arduino can keep track of
+				changedPages = null;
+			}
+			
+			if (changedPages != null) {
+				int[] deltaHeader = getDeltaStartHeader(sketch.getSize(), changedPages.size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()), getImageTag(lastFlash.getMd5()));
+				
+				fireMessage(MessageEvent.Level.INFO, "Sending " + changedPages.size() + " changed pages of sketch to " + getName() + " radio, size " + sketch.getSize() + " bytes, md5 " + sketch.getMd5() + ", previous md5 " + lastFlash.getMd5() + ", and " + sketch.getBytesPerPage() + " bytes per packet, header " + toHex(deltaHeader));
+				
+				try {
+					retries+= sendWithRetries(deltaHeader, sketch.getSize(), "delta start packet", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+					sendUnchangedPages(sketch, changedPages, ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+					pages = changedPages;
+				} catch (StartOverException e) {
+					// eeprom no longer has the image we last flashed, or the arduino doesn't support delta
+					fireMessage(MessageEvent.Level.INFO, "Arduino refused delta upload (" + e.getMessage() + "), sending all pages");
+					changedPages = null;
+				}
+			}
+			
+			// the delta and resume starts also let pages arrive out of order, so any can be sent with a window
+			int windowSize = this.windowSize;
+			boolean windowStarted = false;
+			
+			if (!started && changedPages == null && windowSize > 1) {
+				int[] windowHeader = getWindowStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()));
+				
+				fireMessage(MessageEvent.Level.INFO, "Sending sketch to " + getName() + " radio, size " + sketch.getSize() + " bytes, md5 " + sketch.getMd5() + ", number of packets " + sketch.getPages().size() + ", " + sketch.getBytesPerPage() + " bytes per packet, and window of " + windowSize + " packets, header " + toHex(windowHeader));
+				
+				try {
+					retries+= sendWithRetries(windowHeader, sketch.getSize(), "window start packet", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+					windowStarted = true;
+				} catch (StartOverException e) {
+					// arduino library predates windowed uploads
+					fireMessage(MessageEvent.Level.INFO, "Arduino refused windowed upload (" + e.getMessage() + "), sending one page at a time");
+					windowSize = 1;
+				}
+			}
+			
+			if (!started && changedPages == null && !windowStarted) {
+				int[] startHeader = getStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()));
+				
+				fireMessage(MessageEvent.Level.INFO, "Sending sketch to " + getName() + " radio, size " + sketch.getSize() + " bytes, md5 " + sketch.getMd5() + ", number of packets " + sketch.getPages().size() + ", and " + sketch.getBytesPerPage() + " bytes per packet, header " + toHex(startHeader));
+				
+				retries+= sendWithRetries(startHeader, sketch.getSize(), "start packet", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+			}
+			
+			if (!resumed && uploadJournal != null && deviceId != null) {
+				eeprom.setJournal(uploadJournal.begin(deviceId, sketch));
+			}
+			
+			if (changedPages != null || broadcastStarted) {
+				// a delta leaves the unchanged pages in eeprom, a broadcast the pages that got through
+				for (Page page : sketch.getPages()) {
+					if (!pages.contains(page)) {
+						eeprom.acked(page);
+					}
+				}
+			}
+			
+			startPhase(UploadMetrics.Phase.TRANSFER);
+			metrics.setWindowSize(windowSize);
+			
+			if (windowSize > 1) {
+				retries+= sendPagesWindowed(pages, sketch, windowSize, rtt, retriesPerPacket, delayBetweenRetriesMillis, eeprom, compressor, context);
+			} else {
+				for (final Page page : pages) {
+					// make sure we do a timely exit on a kill signal
+					if (Thread.currentThread().isInterrupted()) {
+//					if (programInterrupt) {
+//						programInterrupt = false;
+//						Thread.currentThread().interrupted();
+//					} else {
+							throw new InterruptedException();						
+//					}
+					}
+									
+					Retryer retry = new Retryer(retriesPerPacket,  delayBetweenRetriesMillis, null, page) {
+						@Override
+						public void send() throws NoAckException, InterruptedException, StartOverException {		
+							PendingAck ack = ackRouter.register(page.getRealAddress16());
+							sendPage(page, sketch, getAttempt(), eeprom, compressor, context);
+							
+							long sentAt = System.currentTimeMillis();
+							long sentNanos = System.nanoTime();
+							
+							try {
+								// don't send next page until this one is processed or we will overflow the buffer
+								waitForAck(rtt.getTimeoutMillis(), ack);
+							} catch (NoAckException e) {
+								rtt.backoff();
+								throw e;
+							}
+							
+							// can't tell which send a retried page's ack is for
+							long rttNanos = System.nanoTime() - sentNanos;
+							
+							if (getAttempt() == 0) {
+								rtt.addSample(System.currentTimeMillis() - sentAt);
+								metrics.getPacketRtt().observe(rttNanos);
+							}
+							
+							firePageAcked(sketch, page, getAttempt(), rttNanos);
+						}
+					};
+					
+					int pageRetries = retry.sendWithRetries();
+					
+					if (pageRetries > 0) {
+						retries+= pageRetries;
+						metrics.pageRetried(page.getOrdinal(), pageRetries);
+					}
+					
+					eeprom.acked(page);
+				}
+			}
+
+			startPhase(UploadMetrics.Phase.FLASH_START);
+			
+			final int[] flash = getFlashStartHeader(sketch.getSize());
+			
+			if (verbose) {
+				fireMessage(MessageEvent.Level.DEBUG, "Sending flash packet " + toHex(flash));				
+			}
+			
+			retries+= sendWithRetries(flash, sketch.getSize(), "flash start", ackTimeoutMillis, retriesPerPacket, delayBetweenRetriesMillis, context);
+			
+			if (eeprom.closeJournal()) {
+				uploadJournal.remove(deviceId);
+			}
+
+			if (flashHistory != null && deviceId != null) {
+				flashHistory.put(deviceId, sketch);
+			}
+		} finally {
+			eeprom.closeJournal();
+		}
+	}
+		
+	/**
+	 * Finds the largest page, from pageSize up to what the transport and the arduino accept, that the link delivers reliably.
+	 * Sizes are binary searched, assuming that if a page gets through so do smaller ones. Returns pageSize if the arduino doesn't
+	 * support probes
+	 */
+	private int probePageSize(int pageSize, int maxPacketSize, int ackTimeoutMillis, boolean verbose, Map<String,Object> context) throws InterruptedException {
+		int maxPageSize = Math.min(maxPacketSize - getProgramPageHeader(0, 0).length, MAX_PAGE_SIZE);
+		List<Integer> sizes = Lists.newArrayList();
+		
+		// down from the largest, so that's always a candidate
+		for (int size = maxPageSize; size > pageSize; size-= PROBE_STEP) {
+			sizes.add(0, size);
+		}
+		
+		if (sizes.isEmpty()) {
+			return pageSize;
+		}
+		
+		fireMessage(MessageEvent.Level.INFO, "Probing " + getName() + " link for the largest page it delivers, " + pageSize + " to " + maxPageSize + " bytes");
+		
+		// own estimator since probe round trips vary with size
+		RttEstimator rtt = new RttEstimator(Math.min(MIN_ACK_TIMEOUT_MILLIS, ackTimeoutMillis), ackTimeoutMillis);
+		
+		try {
+			// the page size we were given should get through, and measures the round trip to base probe timeouts on
+			if (!probe(pageSize, pageSize, rtt, ackTimeoutMillis, verbose, context)) {
+				fireMessage(MessageEvent.Level.INFO, "Link is losing " + pageSize + " byte probes, not trying larger pages");
+				return pageSize;
+			}
+			
+			int good = -1;
+			int bad = sizes.size();
+			
+			while (bad - good > 1) {
+				int mid = (good + bad) / 2;
+				
+				if (probe(sizes.get(mid), pageSize, rtt, ackTimeoutMillis, verbose, context)) {
+					good = mid;
+				} else {
+					bad = mid;
+				}
+			}
+			
+			int probed = good >= 0 ? sizes.get(good) : pageSize;
+			fireMessage(MessageEvent.Level.INFO, "Using " + probed + " byte pages");
+			return probed;
+		} catch (StartOverException e) {
+			fireMessage(MessageEvent.Level.INFO, "Arduino does not support probes (" + e.getMessage() + "), using " + pageSize + " byte pages");
+			return pageSize;
+		} finally {
+			// lost probes are still registered
+			ackRouter.clear();
+		}
+	}
+	
+	/**
+	 * Sends probes of this size until all but one of PROBES_PER_SIZE are acked, or two are lost. The timeout grows with the size,
+	 * since on a slow link most of the round trip is sending the bytes
+	 */
+	private boolean probe(int size, int baseSize, RttEstimator rtt, int ackTimeoutMillis, boolean verbose, Map<String,Object> context) throws StartOverException, InterruptedException {
+		int headerLength = getProgramPageHeader(0, 0).length;
+		int acked = 0;
+		int lost = 0;
+		
+		while (acked < PROBES_PER_SIZE - 1 && lost < 2) {
+			int id = PROBE_ID_BASE + (probes++ & 0x7fff);
+			int[] packet = getProbePacket(id, size);
+			int timeoutMillis = (int) Math.min(ackTimeoutMillis, (long) rtt.getTimeoutMillis() * (size + headerLength) / (baseSize + headerLength));
+			
+			PendingAck ack = ackRouter.register(id);
+			long sentAt = System.currentTimeMillis();
+			
+			try {
+				sendPacket(packet, context);
+			} catch (Exception e) {
+				throw new RuntimeException("Unable to send probe", e);
+			}
+			
+			try {
+				waitForAck(timeoutMillis, ack);
+				
+				if (size == baseSize) {
+					rtt.addSample(System.currentTimeMillis() - sentAt);
+				}
+				
+				acked++;
+			} catch (NoAckException e) {
+				lost++;
+				
+				if (verbose) {
+					fireMessage(MessageEvent.Level.DEBUG, "Lost " + size + " byte probe: " + e.getMessage());
+				}
+			}
+		}
+		
+		if (verbose) {
+			fireMessage(MessageEvent.Level.DEBUG, size + " byte pages " + (acked == PROBES_PER_SIZE - 1 ? "get through" : "are unreliable") + ", " + acked + " of " + (acked + lost) + " probes acked");
+		}
+		
+		return acked == PROBES_PER_SIZE - 1;
+	}
+	
+	/**
+	 * 
+	 * @param file
+	 * @param pageSize
+	 * @param ackTimeoutMillis how long we wait for an ack before retrying
+	 * @param arduinoTimeoutSec how long before arduino resets after no activity. value of zero will indicates no timeout
+	 * @param retriesPerPacket how many times to retry sending a page before giving up
+	 * @param verbose
+	 * @param context
+	 * @return true if the sketch was flashed
+	 * @throws IOException
+	 * @throws StartOverException 
+	 */
+	public boolean process(String file, int pageSize, final int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis, final boolean verbose, final Map<String,Object> context) throws IOException {
+		metrics = new UploadMetrics(getName(), file);
+		startPhase(UploadMetrics.Phase.PARSE);
+		
+		// page size is max packet size for the radio
+		Sketch sketch = sketchCache != null ? sketchCache.get(file, pageSize) : parseSketchFromIntelHex(file, pageSize);
+		
+		if (verbose && sketchCache != null) {
+			fireMessage(MessageEvent.Level.DEBUG, "Sketch cache hits " + sketchCache.getHits() + ", misses " + sketchCache.getMisses());
+		}
+			
+		// was trying to keep in state-less but this is needed for the rxtx async input
+		this.verbose = verbose;
+		
+		context.put("verbose", verbose);
+		
+		retries = 0;
+		// start and flash take longer to ack than pages so they always get the full timeout
+		final RttEstimator rtt = new RttEstimator(adaptiveAckTimeout ? Math.min(MIN_ACK_TIMEOUT_MILLIS, ackTimeoutMillis) : ackTimeoutMillis, ackTimeoutMillis);
+		
+		// forget acks and errors from the last upload
+		ackRouter.clear();
+		long droppedAcks = ackRouter.getDroppedAcks();
+		
+		boolean flashed = false;
+		// close a transport that is kept open if it may be the problem
+		boolean transportError = false;
+		
+		try {
+			if (opened && !isConnected()) {
+				closeTransport();
+			}
+			
+			if (!opened) {
+				startPhase(UploadMetrics.Phase.OPEN);
+				open(context);
+				opened = true;
+			}
+			
+			if (probePageSize && getMaxPacketSize(context) > 0) {
+				startPhase(UploadMetrics.Phase.HANDSHAKE);
+				int probed = probePageSize(pageSize, getMaxPacketSize(context), ackTimeoutMillis, verbose, context);
+				
+				if (probed != pageSize) {
+					startPhase(UploadMetrics.Phase.PARSE);
+					sketch = sketchCache != null ? sketchCache.get(file, probed) : parseSketchFromIntelHex(file, probed);
+				}
+			}
+			
+			String deviceId = getDeviceId(context);
+			metrics.setDeviceId(deviceId);
+			metrics.setSketch(sketch.getMd5(), sketch.getSize(), sketch.getBytesPerPage(), sketch.getPages().size());
+			// uploads are journaled so they can be resumed
+			int maxResumes = uploadJournal != null && deviceId != null ? MAX_RESUMES : 0;
+			
+			for (int resumes = 0;; resumes++) {
+				try {
+					upload(sketch, deviceId, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis, rtt, verbose, context);
+					break;
+				} catch (StartOverException e) {
+					if (resumes == maxResumes) {
+						throw e;
+					}
+					
+					fireMessage(MessageEvent.Level.INFO, "Upload failed (" + e.getMessage() + "), resuming");
+				} catch (RetriesExhaustedException e) {
+					if (resumes == maxResumes) {
+						throw e;
+					}
+					
+					fireMessage(MessageEvent.Level.INFO, "Upload failed (" + e.getMessage() + "), resuming");
+					Thread.sleep(delayBetweenRetriesMillis);
+				}
+			}
+			
+			metrics.endPhase();
+			flashed = true;
+			
+			if (verbose && rtt.getSamples() > 0) {
+				fireMessage(MessageEvent.Level.DEBUG, "Page round trip time " + rtt.getSrttMillis() + "ms, variance " + rtt.getRttvarMillis() + "ms, ack timeout " + rtt.getTimeoutMillis() + "ms, " + (ackRouter.getDroppedAcks() - droppedAcks) + " late or duplicate acks ignored");
+			}
+		} catch (InterruptedException e) {
+			// kill signal
+			fireMessage(MessageEvent.Level.INFO, "Interrupted during programming.. exiting");
+		} catch (StartOverException e) {
+			fireMessage(MessageEvent.Level.ERROR, "Flash failed " + e.toString());
+			log.warn("Start over " + e.getMessage());
+		} catch (Exception e) {
+			log.error("Unexpected error", e);
+			fireMessage(MessageEvent.Level.ERROR, "Unexpected error " + e.toString(), e);
+			transportError = true;
+		} finally {
+			if (!keepOpen || transportError) {
+				closeTransport();
+			}
+		}
+		
+		metrics.finish(flashed, retries);
+		
+		if (listener != null) {
+			listener.finished(metrics);
+		}
+		
+		if (metricsExporter != null) {
+			try {
+				metricsExporter.export(metrics);
+			} catch (IOException e) {
+				// not worth failing an upload that flashed
+				log.warn("Unable to export upload metrics", e);
+			}
+		}
+		
+		return flashed;
+	}
+	
+	/**
+	 * Closes the transport if open. Only needed when it is kept open between uploads
+	 */
+	public void closeTransport() {
+		if (!opened) {
+			return;
+		}
+		
+		opened = false;
+		
+		try {
+			close();
+		} catch (Exception e) {
+			log.warn("Error closing " + getName() + " transport", e);
+		}
+	}
+	
+	public static class NoAckException extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		public NoAckException(String arg0) {
+			super(arg0);
+		}
+	}
+	
+	public static class StartOverException extends Exception {
+		private static final long serialVersionUID = 1L;
+		
+		public StartOverException(String arg0) {
+			super(arg0);
+		}
+	}	
+	
+	public static class RetriesExhaustedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		
+		public RetriesExhaustedException(String arg0) {
+			super(arg0);
+		}
+	}
+	
+	abstract class Retryer {
+		private int retries;
+		private int delayBetweenRetriesMillis;
+		private String packet;
+		private Page page;
+		private int attempt;
+		
+
+		/**
+		 * @param packet what is sent, for retry events, e.g. start packet. Null if a page
+		 * @param page the page sent or null
+		 */
+		public Retryer(int retries, int delayBetweenRetriesMillis, String packet, Page page) {
+			if (retries <= 0) {
+				throw new IllegalArgumentException("Retries must be >= 1");
+			}
+			
+			this.retries = retries;
+			this.delayBetweenRetriesMillis = delayBetweenRetriesMillis;
+			this.packet = packet;
+			this.page = page;
+		}
+	
+		public int sendWithRetries() throws StartOverException, InterruptedException {
+			for (int i = 0 ;i < retries; i++) {
+				attempt = i;
+				
+				try {
+					// reset
+					send();
+					return i;
+				} catch (NoAckException e) {
+					fireRetry(page, packet, i + 1, e.getMessage());
+					
+					if (i + 1 == retries) {
+						throw new RetriesExhaustedException("Failed to send after " + (i + 1) + " attempts");
+					}
+					
+					Thread.sleep(getRetryDelayMillis(delayBetweenRetriesMillis, i));
+					
+					continue;
+				} catch (StartOverException e) {
+					throw e;
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException("Unable to retry due to unexpected exception", e);
 				}
 			}
 			
@@ -428,6 +1435,14 @@ public abstract class SketchUploader extends SketchCore {
 			throw new RuntimeException();
 		}
 		
+		
+		/**
+		 * Zero on the first send
+		 */
+		protected int getAttempt() {
+			return attempt;
+		}
+		
 		public abstract void send() throws NoAckException, InterruptedException, Exception;
 	}
 
@@ -439,6 +1454,182 @@ public abstract class SketchUploader extends SketchCore {
 		return cliOptions;
 	}
 
+	public SketchCache getSketchCache() {
+		return sketchCache;
+	}
+
+	/**
+	 * Parsed sketches are read from and added to this cache. Set to null to always parse
+	 */
+	public void setSketchCache(SketchCache sketchCache) {
+		this.sketchCache = sketchCache;
+	}
+
+	public FlashHistory getFlashHistory() {
+		return flashHistory;
+	}
+
+	/**
+	 * When set, only pages that changed since the last successful flash to the device are sent. Set to null to always send all pages
+	 */
+	public void setFlashHistory(FlashHistory flashHistory) {
+		this.flashHistory = flashHistory;
+	}
+
+	/**
+	 * Packets resent during the last upload
+	 */
+	public int getRetries() {
+		return retries;
+	}
+	
+	/**
+	 * Of the last upload, or the one in progress. Empty before the first
+	 */
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+	
+	public UploadListener getUploadListener() {
+		return listener;
+	}
+
+	/**
+	 * Receives the progress of each upload. Starts as a ConsoleUploadListener. Set to null for no progress output, e.g. when
+	 * embedded or benchmarking
+	 */
+	public void setUploadListener(UploadListener listener) {
+		this.listener = listener;
+	}
+	
+	public MetricsExporter getMetricsExporter() {
+		return metricsExporter;
+	}
+
+	/**
+	 * When set, the metrics of each upload are written to it. Set to null to not export metrics
+	 */
+	public void setMetricsExporter(MetricsExporter metricsExporter) {
+		this.metricsExporter = metricsExporter;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Number of pages sent before waiting for an ack. 1 waits for the ack of each page before sending the next
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("Window size must be >= 1");
+		}
+		
+		this.windowSize = windowSize;
+	}
+	
+	public boolean isAdaptiveAckTimeout() {
+		return adaptiveAckTimeout;
+	}
+
+	/**
+	 * When true, the page ack timeout follows the measured round trip time, up to the ack timeout passed to process. Otherwise it is always that
+	 */
+	public void setAdaptiveAckTimeout(boolean adaptiveAckTimeout) {
+		this.adaptiveAckTimeout = adaptiveAckTimeout;
+	}
+	
+	public UploadJournal getUploadJournal() {
+		return uploadJournal;
+	}
+
+	/**
+	 * When set, acked pages are journaled and a failed upload continues with the pages the arduino doesn't have, in this process or the next. Set to null to always start over
+	 */
+	public void setUploadJournal(UploadJournal uploadJournal) {
+		this.uploadJournal = uploadJournal;
+	}
+	
+	public boolean isCompress() {
+		return compress;
+	}
+
+	/**
+	 * When true, pages are sent compressed if that makes them smaller. Needs an arduino library that supports compressed pages
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+	
+	public boolean isProbePageSize() {
+		return probePageSize;
+	}
+
+	/**
+	 * When true, the page size passed to process is only a starting point: before uploading, probe packets find the largest page
+	 * the link delivers reliably, up to the transport's max packet size and the arduino's page buffer. Needs an arduino library that
+	 * supports probes
+	 */
+	public void setProbePageSize(boolean probePageSize) {
+		this.probePageSize = probePageSize;
+	}
+	
+	public boolean isKeepOpen() {
+		return keepOpen;
+	}
+
+	/**
+	 * When true, the transport opened by the first upload is used by the ones after, as long as they are to the same port or host,
+	 * until closeTransport. Saves opening the serial port or socket for each upload
+	 */
+	public void setKeepOpen(boolean keepOpen) {
+		this.keepOpen = keepOpen;
+	}
+	
+	/**
+	 * Call before process when the start packet and pages of the sketch were broadcast to this and other arduinos, e.g. an xbee fleet.
+	 * The upload then asks the arduino which pages it missed and sends only those
+	 * 
+	 * @param startAcked whether the arduino acked the broadcast start. if not it is sent again
+	 */
+	protected void setBroadcastStarted(boolean startAcked) {
+		this.broadcast = true;
+		this.broadcastStartAcked = startAcked;
+	}
+	
+	/**
+	 * Gives the uploader the same settings as this one, e.g. for uploads that run alongside this one
+	 */
+	protected void copySettings(SketchUploader uploader) {
+		uploader.setSketchCache(sketchCache);
+		uploader.setFlashHistory(flashHistory);
+		uploader.setWindowSize(windowSize);
+		uploader.setAdaptiveAckTimeout(adaptiveAckTimeout);
+		uploader.setUploadJournal(uploadJournal);
+		uploader.setCompress(compress);
+		uploader.setProbePageSize(probePageSize);
+		uploader.setMetricsExporter(metricsExporter);
+		
+		// the console listener prints for the uploader it was made for
+		if (!(listener instanceof ConsoleUploadListener)) {
+			uploader.setUploadListener(listener);
+		}
+	}
+	
+	/**
+	 * Applies the options shared by all uploaders that are not process parameters
+	 */
+	public void configure(CliOptions cliOptions) throws ParseException {
+		setSketchCache(cliOptions.getSketchCache());
+		setFlashHistory(cliOptions.getFlashHistory());
+		setWindowSize(cliOptions.getIntegerOption(CliOptions.windowSizeArg));
+		setAdaptiveAckTimeout(cliOptions.isAdaptiveAckTimeout());
+		setUploadJournal(cliOptions.getUploadJournal());
+		setCompress(cliOptions.isCompress());
+		setProbePageSize(cliOptions.isProbePageSize());
+		setMetricsExporter(cliOptions.getMetricsExporter());
+	}
+
 	public void interrupt() {
 //		if (Thread.currentThread() != getMainThread()) {
 //			programInterrupt = true;
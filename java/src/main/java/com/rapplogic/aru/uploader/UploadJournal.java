@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.apache.log4j.Logger;
+
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+
+/**
+ * Journal of the pages the arduino has acked during an upload that hasn't been flashed yet, one per device, so a failed
+ * upload can continue from the pages it is missing instead of starting over. Removed once the sketch is flashed.
+ *
+ * Format (big endian): magic, format version, md5 of the sketch, page size, number of pages, then the ordinal of
+ * each acked page as a short, appended as acks arrive. A short write at the end from a crash is ignored
+ *
+ * @author andrew
+ *
+ */
+public class UploadJournal {
+
+	final Logger log = Logger.getLogger(UploadJournal.class);
+
+	private static final int MAGIC = 0x4152554a;
+	private static final int FORMAT_VERSION = 1;
+
+	private final File directory;
+
+	public UploadJournal(File directory) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Unable to create directory " + directory);
+		}
+
+		this.directory = directory;
+	}
+
+	private File getFile(String deviceId) {
+		// device ids contain colons, slashes etc.
+		return new File(directory, deviceId.replaceAll("[^A-Za-z0-9._-]", "_") + ".journal");
+	}
+
+	/**
+	 * Returns the ordinals of the pages acked by the device while uploading this sketch, or null if the journal is for a
+	 * different sketch or there is none
+	 */
+	public BitSet getAckedPages(String deviceId, Sketch sketch) throws IOException {
+		File file = getFile(deviceId);
+
+		if (!file.isFile()) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				log.warn("Ignoring invalid upload journal " + file);
+				return null;
+			}
+
+			if (!in.readUTF().equals(sketch.getMd5()) || in.readInt() != sketch.getBytesPerPage() || in.readInt() != sketch.getPages().size()) {
+				return null;
+			}
+
+			BitSet acked = new BitSet(sketch.getPages().size());
+
+			try {
+				while (true) {
+					int ordinal = in.readUnsignedShort();
+
+					if (ordinal < sketch.getPages().size()) {
+						acked.set(ordinal);
+					}
+				}
+			} catch (EOFException e) {
+				// end of journal
+			}
+
+			return acked;
+		} catch (IOException e) {
+			log.warn("Ignoring unreadable upload journal " + file, e);
+			return null;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Starts a new journal for the sketch, replacing any existing journal for the device
+	 */
+	public Writer begin(String deviceId, Sketch sketch) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(getFile(deviceId)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(sketch.getMd5());
+			out.writeInt(sketch.getBytesPerPage());
+			out.writeInt(sketch.getPages().size());
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+
+		return new Writer(out);
+	}
+
+	/**
+	 * Appends to the existing journal for the device
+	 */
+	public Writer append(String deviceId) throws IOException {
+		return new Writer(new DataOutputStream(new FileOutputStream(getFile(deviceId), true)));
+	}
+
+	public void remove(String deviceId) {
+		getFile(deviceId).delete();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public static class Writer {
+		private final DataOutputStream out;
+
+		private Writer(DataOutputStream out) {
+			this.out = out;
+		}
+
+		/**
+		 * Records that the device has the page. Not buffered, so the journal survives the process being killed
+		 */
+		public void acked(Page page) throws IOException {
+			out.writeShort(page.getOrdinal());
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+
+/**
+ * Progress of an upload, e.g. for a progress bar or log when the uploader is embedded. ConsoleUploadListener is the
+ * command line output: the uploader doesn't print anything itself, so another listener replaces it entirely.
+ *
+ * Called on the upload thread, between sending packets, so keep it quick. Events are reused by the uploader for the next
+ * call, so copy what you need instead of keeping them
+ *
+ * @author andrew
+ *
+ */
+public interface UploadListener {
+
+	/**
+	 * The upload moved on to a new phase, e.g. from the start packet to sending pages
+	 */
+	void phaseChanged(PhaseEvent event);
+
+	/**
+	 * A page was written to the transport, the first time or resent
+	 */
+	void pageSent(PageEvent event);
+
+	/**
+	 * The arduino acked a page
+	 */
+	void pageAcked(PageEvent event);
+
+	/**
+	 * A packet wasn't acked and will be resent
+	 */
+	void retry(RetryEvent event);
+
+	/**
+	 * Anything else to tell the user, e.g. the kind of upload being sent, probe results, a resume or why the upload failed.
+	 * Debug messages are only sent when the upload is verbose. Unlike the other events, may be called on a thread of the transport,
+	 * one message at a time
+	 */
+	void message(MessageEvent event);
+
+	/**
+	 * The upload flashed the arduino or failed. Called after the transport is closed, if it is not kept open
+	 */
+	void finished(UploadMetrics metrics);
+
+	public static class PhaseEvent {
+
+		private UploadMetrics.Phase phase;
+		private UploadMetrics metrics;
+
+		void set(UploadMetrics.Phase phase, UploadMetrics metrics) {
+			this.phase = phase;
+			this.metrics = metrics;
+		}
+
+		public UploadMetrics.Phase getPhase() {
+			return phase;
+		}
+
+		/**
+		 * Of the upload so far
+		 */
+		public UploadMetrics getMetrics() {
+			return metrics;
+		}
+	}
+
+	public static class MessageEvent {
+
+		public enum Level {
+			DEBUG, INFO, ERROR
+		}
+
+		private Level level;
+		private String message;
+		private Throwable cause;
+
+		void set(Level level, String message, Throwable cause) {
+			this.level = level;
+			this.message = message;
+			this.cause = cause;
+		}
+
+		public Level getLevel() {
+			return level;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * The unexpected exception that failed the upload, otherwise null
+		 */
+		public Throwable getCause() {
+			return cause;
+		}
+	}
+
+	public static class PageEvent {
+
+		private Sketch sketch;
+		private Page page;
+		private int[] packet;
+		private int attempt;
+		private long rttNanos;
+
+		void set(Sketch sketch, Page page, int[] packet, int attempt, long rttNanos) {
+			this.sketch = sketch;
+			this.page = page;
+			this.packet = packet;
+			this.attempt = attempt;
+			this.rttNanos = rttNanos;
+		}
+
+		public Sketch getSketch() {
+			return sketch;
+		}
+
+		public Page getPage() {
+			return page;
+		}
+
+		/**
+		 * The packet sent, header included. Null for acks
+		 */
+		public int[] getPacket() {
+			return packet;
+		}
+
+		/**
+		 * Zero on the first send
+		 */
+		public int getAttempt() {
+			return attempt;
+		}
+
+		/**
+		 * Last send of the page to its ack. Zero for sends
+		 */
+		public long getRttNanos() {
+			return rttNanos;
+		}
+	}
+
+	public static class RetryEvent {
+
+		private Sketch sketch;
+		private Page page;
+		private String packet;
+		private int attempt;
+		private String reason;
+
+		void set(Sketch sketch, Page page, String packet, int attempt, String reason) {
+			this.sketch = sketch;
+			this.page = page;
+			this.packet = packet;
+			this.attempt = attempt;
+			this.reason = reason;
+		}
+
+		public Sketch getSketch() {
+			return sketch;
+		}
+
+		/**
+		 * The page being resent, or null if not a page
+		 */
+		public Page getPage() {
+			return page;
+		}
+
+		/**
+		 * What is being resent when not a page, e.g. start packet
+		 */
+		public String getPacket() {
+			return packet;
+		}
+
+		/**
+		 * The attempt that failed, from 1
+		 */
+		public int getAttempt() {
+			return attempt;
+		}
+
+		/**
+		 * Why it failed, e.g. no ack within the timeout
+		 */
+		public String getReason() {
+			return reason;
+		}
+	}
+}
@@ -0,0 +1,471 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What one upload spent its time on: time in each phase, packet round trip and ack wait histograms, bytes and packets
+ * sent, the retries of each page (only as a histogram in Prometheus) and reconnects of a lost connection. Written as a JSON line or Prometheus text by MetricsExporter, so slow links and
+ * settings can be compared over many uploads.
+ *
+ * Updated by the upload thread only. Bytes are of the packets the uploader sends, not counting the transport's framing
+ *
+ * @author andrew
+ *
+ */
+public class UploadMetrics {
+
+	public enum Phase {
+		PARSE, OPEN, HANDSHAKE, TRANSFER, FLASH_START;
+
+		String getLabel() {
+			return name().toLowerCase();
+		}
+	}
+
+	private final String transport;
+	private final String file;
+	private final long startedAt = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+
+	// upper bounds of the retries per page histogram
+	private static final int[] PAGE_RETRY_BOUNDS = { 0, 1, 2, 3, 5, 10 };
+
+	private final long[] phaseNanos = new long[Phase.values().length];
+	// first attempt send to ack, as sampled for the adaptive ack timeout
+	private final Histogram packetRtt = new Histogram();
+	// time blocked waiting for acks. per packet when sending one at a time, per wait with a window
+	private final Histogram ackWait = new Histogram();
+	// time to reopen a connection lost mid upload, e.g. wifi, backoff included
+	private final Histogram reconnectTime = new Histogram();
+	// by page ordinal. pages not retried are left out
+	private final Map<Integer, Integer> pageRetries = new TreeMap<Integer, Integer>();
+
+	private Phase phase;
+	private long phaseStartNanos;
+	private String deviceId;
+	private String md5;
+	private int size;
+	private int pageSize;
+	private int pages;
+	private int windowSize;
+	private long bytesSent;
+	private long packetsSent;
+	private int retries;
+	private boolean success;
+	private long durationNanos = -1;
+
+	public UploadMetrics(String transport, String file) {
+		this.transport = transport;
+		this.file = file;
+	}
+
+	/**
+	 * Ends the phase in progress, if any, and times this one. A phase may be entered more than once, e.g. when an upload is resumed
+	 */
+	public void startPhase(Phase phase) {
+		endPhase();
+		this.phase = phase;
+		this.phaseStartNanos = System.nanoTime();
+	}
+
+	public void endPhase() {
+		if (phase != null) {
+			phaseNanos[phase.ordinal()]+= System.nanoTime() - phaseStartNanos;
+			phase = null;
+		}
+	}
+
+	public long getPhaseNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()];
+	}
+
+	public void packetSent(int length) {
+		packetsSent++;
+		bytesSent+= length;
+	}
+
+	public void pageRetried(int ordinal, int retries) {
+		Integer count = pageRetries.get(ordinal);
+		pageRetries.put(ordinal, (count != null ? count : 0) + retries);
+	}
+
+	public void reconnected(long nanos) {
+		reconnectTime.observe(nanos);
+	}
+
+	/**
+	 * Called once the upload succeeds or fails
+	 */
+	public void finish(boolean success, int retries) {
+		endPhase();
+		this.success = success;
+		this.retries = retries;
+		this.durationNanos = System.nanoTime() - startNanos;
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public String getFile() {
+		return file;
+	}
+
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(String deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public void setSketch(String md5, int size, int pageSize, int pages) {
+		this.md5 = md5;
+		this.size = size;
+		this.pageSize = pageSize;
+		this.pages = pages;
+	}
+
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	public Histogram getPacketRtt() {
+		return packetRtt;
+	}
+
+	public Histogram getAckWait() {
+		return ackWait;
+	}
+
+	public Histogram getReconnectTime() {
+		return reconnectTime;
+	}
+
+	public long getReconnects() {
+		return reconnectTime.getCount();
+	}
+
+	public Map<Integer, Integer> getPageRetries() {
+		return pageRetries;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public int getRetries() {
+		return retries;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * From the start of parsing to finish, or so far if not finished
+	 */
+	public long getDurationNanos() {
+		return durationNanos >= 0 ? durationNanos : System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * One line of JSON. Histogram buckets are cumulative, as in Prometheus, by upper bound in milliseconds
+	 */
+	public String toJson() {
+		StringBuilder json = new StringBuilder();
+
+		json.append("{\"time\":").append(startedAt);
+		json.append(",\"transport\":").append(quote(transport));
+		json.append(",\"device\":").append(quote(deviceId));
+		json.append(",\"file\":").append(quote(file));
+		json.append(",\"md5\":").append(quote(md5));
+		json.append(",\"size\":").append(size);
+		json.append(",\"pageSize\":").append(pageSize);
+		json.append(",\"pages\":").append(pages);
+		json.append(",\"windowSize\":").append(windowSize);
+		json.append(",\"success\":").append(success);
+		json.append(",\"durationMs\":").append(toMillis(getDurationNanos()));
+		json.append(",\"phasesMs\":{");
+
+		for (Phase phase : Phase.values()) {
+			if (phase.ordinal() > 0) {
+				json.append(",");
+			}
+
+			json.append(quote(phase.getLabel())).append(":").append(toMillis(getPhaseNanos(phase)));
+		}
+
+		json.append("},\"bytesSent\":").append(bytesSent);
+		json.append(",\"packetsSent\":").append(packetsSent);
+		json.append(",\"retries\":").append(retries);
+		json.append(",\"pageRetries\":{");
+
+		boolean first = true;
+
+		for (Map.Entry<Integer, Integer> entry : pageRetries.entrySet()) {
+			if (!first) {
+				json.append(",");
+			}
+
+			// pages are numbered from 1 in the console output
+			json.append(quote(String.valueOf(entry.getKey() + 1))).append(":").append(entry.getValue());
+			first = false;
+		}
+
+		json.append("},\"packetRtt\":");
+		packetRtt.appendJson(json);
+		json.append(",\"ackWait\":");
+		ackWait.appendJson(json);
+		json.append(",\"reconnectTime\":");
+		reconnectTime.appendJson(json);
+		json.append("}");
+
+		return json.toString();
+	}
+
+	/**
+	 * Prometheus text exposition of this upload, labelled by transport and device
+	 */
+	public String toPrometheus() {
+		return toPrometheus(Collections.singletonList(this));
+	}
+
+	/**
+	 * Prometheus text exposition of uploads to different devices. Samples are grouped by metric, as the format requires
+	 */
+	public static String toPrometheus(Collection<UploadMetrics> uploads) {
+		Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+
+		for (UploadMetrics upload : uploads) {
+			upload.addSamples(families);
+		}
+
+		StringBuilder text = new StringBuilder();
+
+		for (StringBuilder family : families.values()) {
+			text.append(family);
+		}
+
+		return text.toString();
+	}
+
+	private void addSamples(Map<String, StringBuilder> families) {
+		String labels = "transport=\"" + escapeLabel(transport != null ? transport : "") + "\",device=\"" + escapeLabel(deviceId != null ? deviceId : "") + "\"";
+
+		addSample(families, "aru_upload_success", "gauge", "1 if the last upload was flashed", labels, success ? "1" : "0");
+		addSample(families, "aru_upload_timestamp_seconds", "gauge", "When the last upload started", labels, toSeconds(startedAt * 1000000L));
+		addSample(families, "aru_upload_duration_seconds", "gauge", "Duration of the last upload", labels, toSeconds(getDurationNanos()));
+
+		for (Phase phase : Phase.values()) {
+			addSample(families, "aru_upload_phase_seconds", "gauge", "Time the last upload spent in each phase", labels + ",phase=\"" + phase.getLabel() + "\"", toSeconds(getPhaseNanos(phase)));
+		}
+
+		addSample(families, "aru_upload_bytes_sent", "gauge", "Bytes of packets sent by the last upload, not counting transport framing", labels, String.valueOf(bytesSent));
+		addSample(families, "aru_upload_packets_sent", "gauge", "Packets sent by the last upload, retries included", labels, String.valueOf(packetsSent));
+		addSample(families, "aru_upload_retries", "gauge", "Packets resent by the last upload", labels, String.valueOf(retries));
+
+		// a series per page would be one per page of every sketch. which pages were resent is in the json
+		appendPageRetries(getFamily(families, "aru_upload_page_retries", "histogram", "Pages of the last upload by times resent"), "aru_upload_page_retries", labels);
+
+		packetRtt.appendPrometheus(getFamily(families, "aru_upload_packet_rtt_seconds", "histogram", "Send to ack of packets acked on the first attempt, in the last upload"), "aru_upload_packet_rtt_seconds", labels);
+		ackWait.appendPrometheus(getFamily(families, "aru_upload_ack_wait_seconds", "histogram", "Time the last upload was blocked waiting for acks"), "aru_upload_ack_wait_seconds", labels);
+		reconnectTime.appendPrometheus(getFamily(families, "aru_upload_reconnect_seconds", "histogram", "Time the last upload took to reopen a lost connection, by reconnect"), "aru_upload_reconnect_seconds", labels);
+	}
+
+	private void appendPageRetries(StringBuilder text, String name, String labels) {
+		long[] counts = new long[PAGE_RETRY_BOUNDS.length];
+		long sum = 0;
+
+		for (int retried : pageRetries.values()) {
+			for (int i = 0; i < PAGE_RETRY_BOUNDS.length; i++) {
+				if (retried <= PAGE_RETRY_BOUNDS[i]) {
+					counts[i]++;
+				}
+			}
+
+			sum+= retried;
+		}
+
+		// pages not resent aren't in the map
+		int notRetried = Math.max(0, pages - pageRetries.size());
+		int count = notRetried + pageRetries.size();
+
+		for (int i = 0; i < PAGE_RETRY_BOUNDS.length; i++) {
+			text.append(name).append("_bucket{").append(labels).append(",le=\"").append(PAGE_RETRY_BOUNDS[i]).append("\"} ").append(counts[i] + notRetried).append("\n");
+		}
+
+		text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append("\n");
+		text.append(name).append("_sum{").append(labels).append("} ").append(sum).append("\n");
+		text.append(name).append("_count{").append(labels).append("} ").append(count).append("\n");
+	}
+
+	private static StringBuilder getFamily(Map<String, StringBuilder> families, String name, String type, String help) {
+		StringBuilder family = families.get(name);
+
+		if (family == null) {
+			family = new StringBuilder();
+			family.append("# HELP ").append(name).append(" ").append(help).append("\n");
+			family.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+			families.put(name, family);
+		}
+
+		return family;
+	}
+
+	private static void addSample(Map<String, StringBuilder> families, String name, String type, String help, String labels, String value) {
+		getFamily(families, name, type, help).append(name).append("{").append(labels).append("} ").append(value).append("\n");
+	}
+
+	private static String toMillis(long nanos) {
+		return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+	}
+
+	private static String toSeconds(long nanos) {
+		return String.format(Locale.US, "%.6f", nanos / 1000000000.0);
+	}
+
+	private static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+
+		StringBuilder quoted = new StringBuilder("\"");
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format("\\u%04x", (int) c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+
+		return quoted.append("\"").toString();
+	}
+
+	/**
+	 * Counts of observations by upper bound, from a millisecond to five seconds, which covers a page round trip on every
+	 * link we support up to the default ack timeout
+	 */
+	public static class Histogram {
+
+		private static final long[] BOUNDS_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+		// the last is everything over the largest bound
+		private final long[] counts = new long[BOUNDS_MILLIS.length + 1];
+		private long sumNanos;
+		private long count;
+
+		public void observe(long nanos) {
+			int bucket = 0;
+
+			while (bucket < BOUNDS_MILLIS.length && nanos > BOUNDS_MILLIS[bucket] * 1000000L) {
+				bucket++;
+			}
+
+			counts[bucket]++;
+			sumNanos+= nanos;
+			count++;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getSumNanos() {
+			return sumNanos;
+		}
+
+		/**
+		 * Mean in milliseconds, or 0 if nothing was observed
+		 */
+		public double getMeanMillis() {
+			return count > 0 ? sumNanos / 1000000.0 / count : 0;
+		}
+
+		void appendJson(StringBuilder json) {
+			json.append("{\"count\":").append(count);
+			json.append(",\"sumMs\":").append(toMillis(sumNanos));
+			json.append(",\"buckets\":{");
+
+			long cumulative = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				cumulative+= counts[i];
+
+				if (i > 0) {
+					json.append(",");
+				}
+
+				json.append(quote(i < BOUNDS_MILLIS.length ? String.valueOf(BOUNDS_MILLIS[i]) : "+Inf")).append(":").append(cumulative);
+			}
+
+			json.append("}}");
+		}
+
+		void appendPrometheus(StringBuilder text, String name, String labels) {
+			long cumulative = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				cumulative+= counts[i];
+				String le = i < BOUNDS_MILLIS.length ? String.valueOf(BOUNDS_MILLIS[i] / 1000.0) : "+Inf";
+				text.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append("\n");
+			}
+
+			text.append(name).append("_sum{").append(labels).append("} ").append(toSeconds(sumNanos)).append("\n");
+			text.append(name).append("_count{").append(labels).append("} ").append(count).append("\n");
+		}
+	}
+}
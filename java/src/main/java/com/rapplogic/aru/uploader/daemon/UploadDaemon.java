@@ -0,0 +1,615 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.rapplogic.aru.uploader.CliOptions;
+import com.rapplogic.aru.uploader.ConsoleUploadListener;
+import com.rapplogic.aru.uploader.SketchUploader;
+import com.rapplogic.aru.uploader.nordic.NordicSketchUploader;
+import com.rapplogic.aru.uploader.wifi.WifiSketchUploader;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader.LocalConnection;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader.SerialServerConnection;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader.XBeeConnectionType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long running uploader that keeps the xbee, nordic serial and wifi transports open between uploads, so an upload doesn't pay
+ * for jvm startup, loading rxtx and opening the serial port. Uploads are submitted as jobs over http and queued per transport: jobs
+ * to the same serial port or wifi host run one at a time, jobs to different ones run at once.
+ *
+ * Jobs take the options of the command line uploaders, as query or form parameters, plus transport=xbee|nordic|wifi. The sketch is
+ * a path on this machine, or the hex file as the request body. The options that are not process parameters (delta, resume, window
+ * size etc.) are given to the daemon and apply to every job
+ *
+ * POST /jobs submits a job and replies with its status. Add stream=true to get the upload output as it runs instead
+ * GET /jobs lists recent jobs
+ * GET /jobs/{id} is the status and output of a job
+ * GET /jobs/{id}/progress streams the output of a job until it is done
+ *
+ * ex
+ * ./upload-daemon.sh --http-port 8123 --resume &
+ * curl -d transport=xbee -d serial-port=/dev/tty.usbserial-A6005uRz -d baud-rate=9600 -d radio-type=series2 -d remote-xbee-address=0013A200408B98FF -d sketch=/path/to/Blink.cpp.hex -d stream=true http://localhost:8123/jobs
+ *
+ * @author andrew
+ *
+ */
+public class UploadDaemon {
+
+	final Logger log = Logger.getLogger(UploadDaemon.class);
+
+	public final static String httpPort = "http-port";
+	public final static String bindAddress = "bind-address";
+	public final static String transport = "transport";
+	public final static String stream = "stream";
+
+	// finished jobs are forgotten after this many newer ones
+	private final int MAX_JOBS = 100;
+
+	private final CliOptions cliOptions;
+	private final Map<String, Transport> transports = Maps.newHashMap();
+	private final Map<Integer, UploadJob> jobs = new LinkedHashMap<Integer, UploadJob>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, UploadJob> eldest) {
+			return size() > MAX_JOBS && eldest.getValue().isDone();
+		}
+	};
+
+	// hex files sent as the request body, deleted once their job is done
+	private final Set<String> uploadedSketches = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+	private int nextJobId = 1;
+	private HttpServer server;
+
+	/**
+	 * An open transport: its uploader, and the thread that runs its jobs in order
+	 */
+	private static class Transport {
+		private final String name;
+		// what the link was opened with, e.g. the baud rate. jobs must match
+		private final String settings;
+		private final SketchUploader uploader;
+		private final ExecutorService executor = Executors.newSingleThreadExecutor();
+		private final AtomicInteger pending = new AtomicInteger();
+
+		Transport(String name, String settings, SketchUploader uploader) {
+			this.name = name;
+			this.settings = settings;
+			this.uploader = uploader;
+		}
+	}
+
+	/**
+	 * @param cliOptions built and parsed. the options shared by all uploaders are applied to each transport, and are the defaults of the jobs
+	 */
+	public UploadDaemon(CliOptions cliOptions) {
+		this.cliOptions = cliOptions;
+	}
+
+	public void start(String bindAddress, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.createContext("/jobs", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					handleJobs(exchange);
+				} catch (IllegalArgumentException e) {
+					respond(exchange, 400, e.getMessage() + "\n");
+				} catch (Exception e) {
+					log.error("Error handling " + exchange.getRequestURI(), e);
+					respond(exchange, 500, e.toString() + "\n");
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+
+		// progress streams stay open for the whole upload
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+
+		log.info("Upload daemon listening on " + bindAddress + ":" + port);
+	}
+
+	/**
+	 * Stops accepting jobs, waits for the running ones and closes the transports
+	 */
+	public void stop() throws InterruptedException {
+		server.stop(0);
+
+		List<Transport> open;
+
+		synchronized (this) {
+			open = Lists.newArrayList(transports.values());
+			transports.clear();
+		}
+
+		for (Transport transport : open) {
+			transport.executor.shutdown();
+		}
+
+		for (Transport transport : open) {
+			transport.executor.awaitTermination(1, TimeUnit.MINUTES);
+			transport.uploader.closeTransport();
+		}
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException, InterruptedException {
+		List<String> path = Lists.newArrayList(Splitter.on('/').omitEmptyStrings().split(exchange.getRequestURI().getPath()));
+		String method = exchange.getRequestMethod();
+
+		if (path.size() == 1 && method.equals("POST")) {
+			Map<String, String> params = getParams(exchange);
+			UploadJob job = null;
+
+			try {
+				job = submit(params);
+			} finally {
+				// a rejected job leaves nothing to delete the uploaded hex
+				if (job == null) {
+					deleteUploadedSketch(params.get(CliOptions.sketch));
+				}
+			}
+
+			exchange.getResponseHeaders().set("Location", "/jobs/" + job.getId());
+
+			if ("true".equals(params.get(stream))) {
+				streamOutput(exchange, job, 201);
+			} else {
+				respond(exchange, 201, job + "\n");
+			}
+		} else if (path.size() == 1 && method.equals("GET")) {
+			StringBuilder list = new StringBuilder();
+
+			synchronized (this) {
+				for (UploadJob job : jobs.values()) {
+					list.append(job).append("\n");
+				}
+			}
+
+			respond(exchange, 200, list.toString());
+		} else if (path.size() == 2 && method.equals("GET")) {
+			UploadJob job = getJob(path.get(1));
+			respond(exchange, 200, job + "\n" + new String(job.getOutput(), Charsets.UTF_8));
+		} else if (path.size() == 3 && path.get(2).equals("progress") && method.equals("GET")) {
+			streamOutput(exchange, getJob(path.get(1)), 200);
+		} else {
+			respond(exchange, 404, "Not found\n");
+		}
+	}
+
+	private synchronized UploadJob getJob(String id) {
+		UploadJob job = null;
+
+		try {
+			job = jobs.get(Integer.parseInt(id));
+		} catch (NumberFormatException e) {
+			// not found
+		}
+
+		if (job == null) {
+			throw new IllegalArgumentException("No job " + id);
+		}
+
+		return job;
+	}
+
+	/**
+	 * Writes the output of the job as the uploader prints it, then its final status
+	 */
+	private void streamOutput(HttpExchange exchange, UploadJob job, int code) throws IOException, InterruptedException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		// chunked
+		exchange.sendResponseHeaders(code, 0);
+
+		OutputStream out = exchange.getResponseBody();
+		int offset = 0;
+
+		while (true) {
+			byte[] output = job.awaitOutput(offset);
+
+			if (output.length == 0) {
+				break;
+			}
+
+			out.write(output);
+			out.flush();
+			offset+= output.length;
+		}
+
+		out.write(("\n" + job + "\n").getBytes(Charsets.UTF_8));
+		out.close();
+	}
+
+	private void respond(HttpExchange exchange, int code, String text) throws IOException {
+		byte[] body = text.getBytes(Charsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	/**
+	 * Query and form parameters. Any other request body is the hex file, saved to a temp file that is the sketch
+	 */
+	private Map<String, String> getParams(HttpExchange exchange) throws IOException {
+		Map<String, String> params = Maps.newHashMap();
+		addParams(params, exchange.getRequestURI().getRawQuery());
+
+		byte[] body = readFully(exchange.getRequestBody());
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+
+		if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+			addParams(params, new String(body, Charsets.UTF_8));
+		} else if (body.length > 0) {
+			File hex = File.createTempFile("sketch", ".hex");
+			uploadedSketches.add(hex.getPath());
+			boolean written = false;
+
+			try {
+				FileOutputStream out = new FileOutputStream(hex);
+
+				try {
+					out.write(body);
+					written = true;
+				} finally {
+					out.close();
+				}
+			} finally {
+				if (!written) {
+					deleteUploadedSketch(hex.getPath());
+				}
+			}
+
+			params.put(CliOptions.sketch, hex.getPath());
+		}
+
+		return params;
+	}
+
+	private void addParams(Map<String, String> params, String encoded) throws IOException {
+		if (encoded == null) {
+			return;
+		}
+
+		for (String param : Splitter.on('&').omitEmptyStrings().split(encoded)) {
+			int equals = param.indexOf('=');
+			String name = URLDecoder.decode(equals == -1 ? param : param.substring(0, equals), "UTF-8");
+			// flags like verbose have no value
+			String value = equals == -1 ? "true" : URLDecoder.decode(param.substring(equals + 1), "UTF-8");
+			params.put(name, value);
+		}
+	}
+
+	private byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Queues the upload on its transport, opening the transport if this is the first job for it
+	 */
+	public synchronized UploadJob submit(Map<String, String> params) {
+		String type = getRequired(params, transport);
+		final String sketch = getRequired(params, CliOptions.sketch);
+		final boolean verbose = "true".equals(params.get(CliOptions.verboseArg)) || cliOptions.isVerbose();
+		final int ackTimeoutMillis = getInt(params, CliOptions.ackTimeoutMillisArg);
+		final int arduinoTimeoutSec = getInt(params, CliOptions.arduinoTimeoutArg);
+		final int retriesPerPacket = getInt(params, CliOptions.retriesPerPacketArg);
+		final int delayBetweenRetriesMillis = getInt(params, CliOptions.delayBetweenRetriesMillisArg);
+
+		if (!new File(sketch).isFile()) {
+			throw new IllegalArgumentException("No sketch " + sketch);
+		}
+
+		final Transport transport;
+		Callable<Boolean> flash;
+
+		if (type.equals("xbee")) {
+			final String radioType = getRequired(params, XBeeSketchUploader.radioType);
+			final XBeeConnectionType connectionType;
+			String name;
+			String settings;
+
+			if (params.containsKey(XBeeSketchUploader.serialPort)) {
+				int baudRate = getInt(params, XBeeSketchUploader.baudRate);
+				connectionType = new LocalConnection(params.get(XBeeSketchUploader.serialPort), baudRate);
+				name = "xbee " + params.get(XBeeSketchUploader.serialPort);
+				settings = "radio type " + radioType + ", " + baudRate + " baud";
+			} else {
+				connectionType = new SerialServerConnection(getRequired(params, XBeeSketchUploader.serialServerHost), getInt(params, XBeeSketchUploader.serialServerPort));
+				name = "xbee " + params.get(XBeeSketchUploader.serialServerHost) + ":" + params.get(XBeeSketchUploader.serialServerPort);
+				settings = "radio type " + radioType;
+			}
+
+			transport = getTransport(type, name, settings);
+			final XBeeSketchUploader uploader = (XBeeSketchUploader) transport.uploader;
+			final String address = getRequired(params, uploader.xbeeAddress);
+
+			flash = new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return uploader.flash(sketch, radioType, connectionType, address, verbose, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis);
+				}
+			};
+		} else if (type.equals("nordic")) {
+			final String device = getRequired(params, NordicSketchUploader.serialPort);
+			final int speed = getInt(params, NordicSketchUploader.baudRate);
+			transport = getTransport(type, "nordic " + device, speed + " baud");
+			final NordicSketchUploader uploader = (NordicSketchUploader) transport.uploader;
+			final boolean binaryReplies = "true".equals(params.get(NordicSketchUploader.binaryRepliesArg));
+
+			flash = new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					uploader.setBinaryReplies(binaryReplies);
+					return uploader.flash(sketch, device, speed, verbose, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis);
+				}
+			};
+		} else if (type.equals("wifi")) {
+			final String host = getRequired(params, WifiSketchUploader.host);
+			final int port = getInt(params, WifiSketchUploader.port);
+			// same defaults as the wifi uploader
+			final int connectionTimeoutSecs = params.containsKey(WifiSketchUploader.connectionTimeoutSecs) ? getInt(params, WifiSketchUploader.connectionTimeoutSecs) : 10;
+			final int readTimeoutSecs = params.containsKey(WifiSketchUploader.readTimeoutSecs) ? getInt(params, WifiSketchUploader.readTimeoutSecs) : 10;
+			transport = getTransport(type, "wifi " + host + ":" + port, "");
+			final WifiSketchUploader uploader = (WifiSketchUploader) transport.uploader;
+
+			flash = new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return uploader.flash(sketch, host, port, connectionTimeoutSecs, readTimeoutSecs, verbose, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis);
+				}
+			};
+		} else {
+			throw new IllegalArgumentException(UploadDaemon.transport + " must be xbee, nordic or wifi");
+		}
+
+		final UploadJob job = new UploadJob(nextJobId++, transport.name, sketch);
+		jobs.put(job.getId(), job);
+
+		final Callable<Boolean> upload = flash;
+		log.info("Queued job " + job.getId() + " on " + transport.name + ", " + transport.pending.getAndIncrement() + " jobs ahead");
+
+		transport.executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// the uploader's output goes to the job, on top of the console. jobs on a transport run one at a time
+				PrintStream out = new PrintStream(new JobOutputStream(job, System.out), true);
+				PrintStream err = new PrintStream(new JobOutputStream(job, System.err), true);
+				transport.uploader.setUploadListener(new ConsoleUploadListener(transport.uploader, out, err));
+
+				job.started();
+				boolean flashed = false;
+
+				try {
+					flashed = upload.call();
+				} catch (Exception e) {
+					log.error("Job " + job.getId() + " failed", e);
+					err.println("Upload failed " + e.toString());
+				} finally {
+					transport.pending.decrementAndGet();
+
+					deleteUploadedSketch(sketch);
+
+					job.finished(flashed);
+				}
+			}
+		});
+
+		return job;
+	}
+
+	/**
+	 * Deletes the sketch if it is a hex file uploaded with the job
+	 */
+	private void deleteUploadedSketch(String sketch) {
+		if (sketch != null && uploadedSketches.remove(sketch)) {
+			new File(sketch).delete();
+		}
+	}
+
+	/**
+	 * The open transport of this name, or a new one. A job for a transport that is open with other settings is rejected, as the
+	 * link is kept open and would not be reopened with them
+	 */
+	private Transport getTransport(String type, String name, String settings) {
+		Transport transport = transports.get(name);
+
+		if (transport != null && !transport.settings.equals(settings)) {
+			throw new IllegalArgumentException(name + " is open with " + transport.settings + ", not " + settings);
+		}
+
+		if (transport == null) {
+			SketchUploader uploader;
+
+			if (type.equals("xbee")) {
+				uploader = new XBeeSketchUploader();
+			} else if (type.equals("nordic")) {
+				uploader = new NordicSketchUploader();
+			} else {
+				uploader = new WifiSketchUploader();
+			}
+
+			try {
+				uploader.configure(cliOptions);
+			} catch (ParseException e) {
+				throw new IllegalArgumentException(e.getMessage());
+			}
+
+			uploader.setKeepOpen(true);
+			transport = new Transport(name, settings, uploader);
+			transports.put(name, transport);
+		}
+
+		return transport;
+	}
+
+	private String getRequired(Map<String, String> params, String name) {
+		String value = params.get(name);
+
+		if (value == null) {
+			throw new IllegalArgumentException(name + " is required");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Job parameter, or the daemon's option if not given
+	 */
+	private int getInt(Map<String, String> params, String name) {
+		try {
+			if (params.containsKey(name)) {
+				return Integer.parseInt(params.get(name));
+			}
+
+			return cliOptions.getIntegerOption(name);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for " + name);
+		} catch (ParseException e) {
+			// no daemon option or default
+			throw new IllegalArgumentException(name + " is required");
+		}
+	}
+
+	/**
+	 * Output of a job, also written to the console
+	 */
+	private static class JobOutputStream extends OutputStream {
+		private final UploadJob job;
+		private final PrintStream console;
+
+		JobOutputStream(UploadJob job, PrintStream console) {
+			this.job = job;
+			this.console = console;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			job.append(b, off, len);
+			console.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			console.flush();
+		}
+	}
+
+	private void runFromCmdLine(String[] args) throws IOException {
+		cliOptions.setSketchRequired(false);
+		cliOptions.getDefaults().put(httpPort, "8123");
+
+		cliOptions.addOption(
+				OptionBuilder
+						.withLongOpt(httpPort)
+						.hasArg()
+						.isRequired(false)
+						.withType(Number.class)
+						.withDescription("Port to accept upload jobs on. Default is " + cliOptions.getDefaults().get(httpPort))
+						.create());
+
+		cliOptions.getDefaults().put(bindAddress, "127.0.0.1");
+
+		cliOptions.addOption(
+				OptionBuilder
+						.withLongOpt(bindAddress)
+						.hasArg()
+						.isRequired(false)
+						.withDescription("Address to accept upload jobs on. Anyone who can reach it can flash the radios. Default is " + cliOptions.getDefaults().get(bindAddress))
+						.create());
+
+		cliOptions.build();
+
+		CommandLine commandLine = cliOptions.parse(args);
+
+		if (commandLine != null) {
+			try {
+				start(commandLine.getOptionValue(bindAddress, cliOptions.getDefaults().get(bindAddress)), cliOptions.getIntegerOption(httpPort));
+			} catch (ParseException e) {
+				System.err.println(e.getMessage());
+				return;
+			}
+
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						UploadDaemon.this.stop();
+					} catch (InterruptedException e) {
+						// exiting
+					}
+				}
+			}));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		SketchUploader.initLog4j();
+		// the package logs warnings only. the daemon says where it listens and what it queued
+		Logger.getLogger(UploadDaemon.class).setLevel(Level.INFO);
+		new UploadDaemon(new CliOptions()).runFromCmdLine(args);
+	}
+}
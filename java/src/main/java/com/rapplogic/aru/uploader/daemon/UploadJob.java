@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.daemon;
+
+import java.util.Arrays;
+
+/**
+ * An upload queued on a transport of the daemon, and the output of the uploader while running it
+ *
+ * @author andrew
+ *
+ */
+public class UploadJob {
+
+	public enum State { QUEUED, RUNNING, FLASHED, FAILED };
+
+	private final int id;
+	private final String transport;
+	private final String sketch;
+
+	private State state = State.QUEUED;
+	private long queuedAt = System.currentTimeMillis();
+	private long startedAt;
+	private long finishedAt;
+
+	private byte[] output = new byte[1024];
+	private int outputLength;
+
+	public UploadJob(int id, String transport, String sketch) {
+		this.id = id;
+		this.transport = transport;
+		this.sketch = sketch;
+	}
+
+	synchronized void append(byte[] b, int off, int len) {
+		if (outputLength + len > output.length) {
+			output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + len));
+		}
+
+		System.arraycopy(b, off, output, outputLength, len);
+		outputLength+= len;
+		notifyAll();
+	}
+
+	synchronized void started() {
+		state = State.RUNNING;
+		startedAt = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	synchronized void finished(boolean flashed) {
+		state = flashed ? State.FLASHED : State.FAILED;
+		finishedAt = System.currentTimeMillis();
+		notifyAll();
+	}
+
+	public synchronized boolean isDone() {
+		return state == State.FLASHED || state == State.FAILED;
+	}
+
+	/**
+	 * Waits until there is output past offset or the job is done
+	 *
+	 * @return the output past offset, empty if the job is done and there is no more
+	 */
+	public synchronized byte[] awaitOutput(int offset) throws InterruptedException {
+		while (outputLength <= offset && !isDone()) {
+			wait();
+		}
+
+		return Arrays.copyOfRange(output, Math.min(offset, outputLength), outputLength);
+	}
+
+	public synchronized byte[] getOutput() {
+		return Arrays.copyOf(output, outputLength);
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public String getSketch() {
+		return sketch;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder status = new StringBuilder("job " + id + " " + state);
+
+		if (state == State.QUEUED) {
+			status.append(" for " + (System.currentTimeMillis() - queuedAt) + "ms");
+		} else if (state == State.RUNNING) {
+			status.append(" for " + (System.currentTimeMillis() - startedAt) + "ms");
+		} else {
+			status.append(" in " + (finishedAt - startedAt) + "ms, after " + (startedAt - queuedAt) + "ms queued");
+		}
+
+		return status.append(", ").append(transport).append(", sketch ").append(sketch).toString();
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.nordic;
+
+import com.rapplogic.aru.uploader.serial.PacketWriter;
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * Settings of a NordicTransport: the serial port of the Arduino running NordicSerial2SPI and how to write to it
+ *
+ * @author andrew
+ *
+ */
+public class NordicConfig extends TransportConfig {
+
+	// nRF24L01 payload
+	public static final int NORDIC_PACKET_SIZE = 32;
+	// header of a page packet
+	private static final int PROG_DATA_HEADER_SIZE = 6;
+
+	private String device;
+	private int speed;
+	// one flush per packet unless set
+	private PacketWriter packetWriter = new PacketWriter(0, 0);
+	private boolean rtsCts;
+	private boolean binaryReplies;
+
+	public NordicConfig(String device, int speed) {
+		super(NORDIC_PACKET_SIZE - PROG_DATA_HEADER_SIZE);
+		setDevice(device);
+		this.speed = speed;
+	}
+
+	public NordicConfig() {
+		this(null, 0);
+	}
+
+	/**
+	 * Serial port, e.g. /dev/tty.usbmodemfa131
+	 */
+	public String getDevice() {
+		return device;
+	}
+
+	// TODO include the nordic address once we send it
+	public void setDevice(String device) {
+		this.device = device;
+		setDeviceId(device != null ? "nordic-" + device : null);
+	}
+
+	public int getSpeed() {
+		return speed;
+	}
+
+	public void setSpeed(int speed) {
+		this.speed = speed;
+	}
+
+	public PacketWriter getPacketWriter() {
+		return packetWriter;
+	}
+
+	public void setPacketWriter(PacketWriter packetWriter) {
+		this.packetWriter = packetWriter;
+	}
+
+	/**
+	 * Use RTS/CTS hardware flow control. Takes effect when the port is opened
+	 */
+	public boolean isRtsCts() {
+		return rtsCts;
+	}
+
+	public void setRtsCts(boolean rtsCts) {
+		this.rtsCts = rtsCts;
+	}
+
+	/**
+	 * Read binary framed replies. The NordicSerial2SPI sketch must be built with BINARY_REPLIES
+	 */
+	public boolean isBinaryReplies() {
+		return binaryReplies;
+	}
+
+	public void setBinaryReplies(boolean binaryReplies) {
+		this.binaryReplies = binaryReplies;
+	}
+}
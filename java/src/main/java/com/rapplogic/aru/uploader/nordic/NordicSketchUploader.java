@@ -19,145 +19,84 @@
 
 package com.rapplogic.aru.uploader.nordic;
 
-import gnu.io.PortInUseException;
-import gnu.io.SerialPortEvent;
-import gnu.io.UnsupportedCommOperationException;
-
 import java.io.IOException;
 import java.text.ParseException;
-import java.util.Map;
-import java.util.TooManyListenersException;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionBuilder;
-import org.apache.log4j.Logger;
 
-import com.google.common.collect.Maps;
 import com.rapplogic.aru.uploader.CliOptions;
-import com.rapplogic.aru.uploader.serial.SerialSketchUploader;
+import com.rapplogic.aru.uploader.serial.PacketWriter;
+import com.rapplogic.aru.uploader.transport.TransportSketchUploader;
 
 /**
- * Uploads sketch to Nordic via the NordicSerialToSPI Sketch
+ * Uploads sketch to Nordic via the NordicSerialToSPI Sketch. The serial link is a NordicTransport
  * 
  * @author andrew
  *
  */
-public class NordicSketchUploader extends SerialSketchUploader {
-	
-	final Logger log = Logger.getLogger(NordicSketchUploader.class);
+public class NordicSketchUploader extends TransportSketchUploader {
 	
-	private StringBuilder stringBuilder = new StringBuilder();
+	private final NordicConfig config;
 	
-	private final int NORDIC_PACKET_SIZE = 32;
+	public NordicSketchUploader(NordicConfig config) {
+		super(new NordicTransport(config));
+		this.config = config;
+	}
 	
 	public NordicSketchUploader() {
-		super();
+		this(new NordicConfig());
 	}
-
-	protected void handleSerial(SerialPortEvent event) {
-       switch (event.getEventType()) {
-           case SerialPortEvent.DATA_AVAILABLE:
-               byte[] readBuffer = new byte[32];
-               
-               try {
-            	   int numBytes = getInputStream().read(readBuffer);
-            	   
-            	   for (int i = 0; i < numBytes; i++) {
-            		   //System.out.println("read " + (char) readBuffer[i]);
- 
-            		   // don't add lf/cr chars
-            		   if ((readBuffer[i] != 10 && readBuffer[i] != 13)) {
-            			   stringBuilder.append((char) readBuffer[i]);                            
-            		   }
-
-            		   // got a new line
-            		   if ((int)readBuffer[i] == 10) {    
-            			   handleSerialReply(stringBuilder.toString());
-            			   stringBuilder = new StringBuilder();
-            		   }
-            	   }
-               } catch (Exception e) {
-            	   log.error("Serial error", e);
-               }
-
-               break;
-           }
+	
+	public void setBinaryReplies(boolean binaryReplies) {
+		config.setBinaryReplies(binaryReplies);
 	}
 	
-	protected void handleSerialReply(String reply) throws InterruptedException {
-		// convert back to byte array for framework
-		int[] replyArray = new int[] { MAGIC_BYTE1, MAGIC_BYTE2, 0, 0, 0};
-
-		if (isVerbose()) {
-			System.out.println("<-" + reply);				
-		}
-		
-		// because we only have one serial port I've adopted a simple convention to use the serial
-		// port for both debugging and control. Here's the convention:
-		// starts with OK continue with net
-		// starts with RETRY tx err/no ack, try again
-		// starts with ERROR unrecoverable, fail
-		// anything else is just debug
-		
-		if (reply.startsWith("OK")) {
-			// parse id
-			int replyId = Integer.parseInt(reply.split(",")[1].trim());
-			
-			replyArray[2] = OK;
-			replyArray[3] = (replyId >> 8) & 0xff;
-			replyArray[4] = replyId & 0xff;
-		} else if (reply.startsWith("RETRY")) {
-			// hacky
-			replyArray[2] =	RETRY;
-		} else if (reply.startsWith("ERROR")) {
-			replyArray[2] = START_OVER;
-		}
-		
-		// if not debug message, add reply to queue
-		if (replyArray[2] != 0) {
-			addReply(replyArray);
-		}
+	public boolean isBinaryReplies() {
+		return config.isBinaryReplies();
 	}
 	
-	@Override
-	public void open(Map<String,Object> context) throws Exception {
-		this.openSerial((String) context.get("device"), (Integer) context.get("speed"));
+	public void setPacketWriter(PacketWriter packetWriter) {
+		config.setPacketWriter(packetWriter);
 	}
-
-	@Override
-	public void close() throws Exception {
-		getSerialPort().close();
+	
+	/**
+	 * Use RTS/CTS hardware flow control. Takes effect when the port is opened
+	 */
+	public void setRtsCts(boolean rtsCts) {
+		config.setRtsCts(rtsCts);
+	}
+	
+	public NordicConfig getConfig() {
+		return config;
 	}
 	
 	// TODO send nordic address
 	
-	public void flash(String file, String device, int speed, boolean verbose, int ackTimeout, int arduinoTimeout, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException, PortInUseException, UnsupportedCommOperationException, TooManyListenersException, StartOverException {
-		Map<String,Object> context = Maps.newHashMap();
-		context.put("device", device);
-		context.put("speed", speed);
-		
-		// determine max data we can send with each programming packet
-		int pageSize = NORDIC_PACKET_SIZE - getProgramPageHeader(0, 0).length;
-		super.process(file, pageSize, ackTimeout, arduinoTimeout, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
-	}
-
-	@Override
-	protected void writeData(int[] data, Map<String, Object> context) throws Exception {
-		//System.out.println("Writing packet " + toHex(data));
-		for (int i = 0; i < data.length; i++) {
-			write(data[i]);
+	/**
+	 * Flashes the sketch to the arduino the nordic radio is connected to
+	 * 
+	 * @return true if the sketch was flashed
+	 */
+	public boolean flash(String file, String device, int speed, boolean verbose, int ackTimeout, int arduinoTimeout, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
+		if (!device.equals(config.getDevice()) || speed != config.getSpeed()) {
+			// a port kept open is reopened with the new settings
+			getTransport().close();
+			config.setDevice(device);
+			config.setSpeed(speed);
 		}
-	}
-
-	@Override
-	protected String getName() {
-		return "nRF24L01";
+		
+		return flash(file, verbose, ackTimeout, arduinoTimeout, retriesPerPacket, delayBetweenRetriesMillis);
 	}
 
 	public final static String serialPort = "serial-port";
 	public final static String baudRate = "baud-rate";
+	public final static String writeChunkSize = "write-chunk-size";
+	public final static String chunkDelayMicros = "chunk-delay-us";
+	public final static String rtsCts = "rts-cts";
+	public final static String binaryRepliesArg = "binary-replies";
 	
-	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException, PortInUseException, UnsupportedCommOperationException, TooManyListenersException, StartOverException {
+	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException {
 		CliOptions cliOptions = getCliOptions();
 		
 		cliOptions.addOption(
@@ -177,12 +116,53 @@ public class NordicSketchUploader extends SerialSketchUploader {
 				.withDescription("Baud rate of Arduino. Required")
 				.create("b"));
 		
+		cliOptions.getDefaults().put(writeChunkSize, "0");
+		
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(writeChunkSize)
+				.hasArg()
+				.isRequired(false)
+				.withType(Number.class)
+				.withDescription("Bytes written to the serial port at once. 0 writes each packet at once, 1 writes a byte at a time. Default is " + cliOptions.getDefaults().get(writeChunkSize))
+				.create());
+
+		cliOptions.getDefaults().put(chunkDelayMicros, "0");
+		
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(chunkDelayMicros)
+				.hasArg()
+				.isRequired(false)
+				.withType(Number.class)
+				.withDescription("Microseconds to pause between the chunks of a packet, for usb-serial adapters that drop bytes. Default is " + cliOptions.getDefaults().get(chunkDelayMicros))
+				.create());
+
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(rtsCts)
+				.isRequired(false)
+				.withDescription("Use RTS/CTS flow control. The CTS_PIN of the NordicSerial2SPI sketch must be wired to CTS of the usb-serial adapter, or writes block")
+				.create());
+		
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(binaryRepliesArg)
+				.isRequired(false)
+				.withDescription("Read binary framed replies. The NordicSerial2SPI sketch must be built with BINARY_REPLIES")
+				.create());
+		
 		cliOptions.build();
 		
 		CommandLine commandLine = cliOptions.parse(args);
 
 		if (commandLine != null) {
-			new NordicSketchUploader().flash(
+			NordicSketchUploader nordicSketchUploader = new NordicSketchUploader();
+			nordicSketchUploader.configure(cliOptions);
+			nordicSketchUploader.setPacketWriter(new PacketWriter(cliOptions.getIntegerOption(writeChunkSize), cliOptions.getIntegerOption(chunkDelayMicros)));
+			nordicSketchUploader.setRtsCts(commandLine.hasOption(rtsCts));
+			nordicSketchUploader.setBinaryReplies(commandLine.hasOption(binaryRepliesArg));
+			nordicSketchUploader.flash(
 					commandLine.getOptionValue(CliOptions.sketch), 
 					commandLine.getOptionValue(serialPort), 
 					cliOptions.getIntegerOption(baudRate), 
@@ -210,12 +190,8 @@ Successfully flashed remote Arduino in 3s, with 0 retries
 	 * @throws IOException
 	 * @throws ParseException
 	 * @throws org.apache.commons.cli.ParseException
-	 * @throws PortInUseException
-	 * @throws UnsupportedCommOperationException
-	 * @throws TooManyListenersException
-	 * @throws StartOverException
 	 */
-	public static void main(String[] args) throws NumberFormatException, IOException, ParseException, org.apache.commons.cli.ParseException, PortInUseException, UnsupportedCommOperationException, TooManyListenersException, StartOverException {		
+	public static void main(String[] args) throws NumberFormatException, IOException, ParseException, org.apache.commons.cli.ParseException {		
 		initLog4j();
 		new NordicSketchUploader().runFromCmdLine(args);
 //		new NordicSketchUploader().processNordic("/Users/andrew/Documents/dev/arduino-remote-uploader/resources/RAU-328-13k.hex", "/dev/tty.usbmodemfa131", Integer.parseInt("19200"), false, 5, 0, 50, 250);
@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.nordic;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.TooManyListenersException;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.rapplogic.aru.core.Cobs;
+import com.rapplogic.aru.uploader.transport.Transport;
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * Serial link to an Arduino running the NordicSerial2SPI sketch, which relays each packet to the remote Arduino over its nRF24L01
+ * radio and waits for the reply before taking the next. Replies are text lines or, with binary replies, COBS frames
+ *
+ * @author andrew
+ *
+ */
+public class NordicTransport implements Transport, SerialPortEventListener {
+
+	final Logger log = Logger.getLogger(NordicTransport.class);
+
+	// RemoteUploader.h
+	private static final int MAGIC_BYTE1 = 0xef;
+	private static final int MAGIC_BYTE2 = 0xac;
+	private static final int OK = 1;
+	private static final int START_OVER = 2;
+	// SketchUploader.RETRY. the sketch doesn't say which packet it failed to deliver, so the packet awaiting ack is resent
+	private static final int RETRY = 0xff;
+
+	// binary replies: COBS frames of a type byte then, for replies, a 16-bit id. see the NordicSerial2SPI sketch
+	public static final int FRAME_OK = 1;
+	public static final int FRAME_RETRY = 2;
+	public static final int FRAME_ERROR = 3;
+	public static final int FRAME_DEBUG = 4;
+	// type and id
+	private static final int REPLY_FRAME_SIZE = 3;
+
+	private final NordicConfig config;
+	private volatile SerialPort serialPort;
+	private ReplyHandler replyHandler;
+
+	// only the serial event thread reads
+	private final byte[] readBuffer = new byte[64];
+	private final StringBuilder stringBuilder = new StringBuilder();
+	private final Cobs.Decoder frameDecoder = new Cobs.Decoder(256);
+	// handed to the handler, which copies what it keeps
+	private final int[] reply = new int[] { MAGIC_BYTE1, MAGIC_BYTE2, 0, 0, 0 };
+
+	public NordicTransport(NordicConfig config) {
+		this.config = config;
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				SerialPort serialPort = NordicTransport.this.serialPort;
+
+				if (serialPort != null) {
+					serialPort.close();
+				}
+			}}));
+	}
+
+	@Override
+	public void open(ReplyHandler replyHandler) throws IOException {
+		if (config.getDevice() == null) {
+			throw new IOException("Serial port is required");
+		}
+
+		this.replyHandler = replyHandler;
+		stringBuilder.setLength(0);
+
+		try {
+			openSerial(config.getDevice(), config.getSpeed());
+		} catch (PortInUseException e) {
+			throw new IOException("Serial port " + config.getDevice() + " is in use", e);
+		} catch (UnsupportedCommOperationException e) {
+			throw new IOException("Unable to configure serial port " + config.getDevice(), e);
+		} catch (TooManyListenersException e) {
+			throw new IOException("Unable to listen to serial port " + config.getDevice(), e);
+		}
+	}
+
+	private void openSerial(String serialPortName, int speed) throws PortInUseException, IOException, UnsupportedCommOperationException, TooManyListenersException {
+		SerialPort serialPort = (SerialPort) findPort(serialPortName).open("Arduino", 2000);
+
+		try {
+			serialPort.addEventListener(this);
+			// activate the DATA_AVAILABLE notifier
+			serialPort.notifyOnDataAvailable(true);
+			serialPort.setSerialPortParams(speed, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+
+			if (config.isRtsCts()) {
+				// the os holds writes while the sketch deasserts cts
+				serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_RTSCTS_OUT);
+
+				if (!serialPort.isCTS()) {
+					log.warn("CTS is not asserted on " + serialPortName + ", writes will block until it is. Is the flow control pin of the sketch wired to CTS?");
+				}
+			} else {
+				serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+			}
+		} catch (UnsupportedCommOperationException e) {
+			serialPort.close();
+			throw e;
+		} catch (TooManyListenersException e) {
+			serialPort.close();
+			throw e;
+		}
+
+		this.serialPort = serialPort;
+	}
+
+	private CommPortIdentifier findPort(String port) throws IOException {
+		Enumeration portList = CommPortIdentifier.getPortIdentifiers();
+
+		while (portList.hasMoreElements()) {
+			CommPortIdentifier portId = (CommPortIdentifier) portList.nextElement();
+
+			if (portId.getPortType() == CommPortIdentifier.PORT_SERIAL && portId.getName().equals(port)) {
+				return portId;
+			}
+		}
+
+		throw new IOException("Port not found " + port);
+	}
+
+	@Override
+	public void serialEvent(SerialPortEvent event) {
+		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) {
+			return;
+		}
+
+		SerialPort serialPort = this.serialPort;
+
+		if (serialPort == null) {
+			return;
+		}
+
+		try {
+			int numBytes = serialPort.getInputStream().read(readBuffer);
+
+			if (numBytes > 0) {
+				receive(readBuffer, numBytes);
+			}
+		} catch (Exception e) {
+			log.error("Serial error", e);
+		}
+	}
+
+	/**
+	 * Bytes from the sketch
+	 */
+	void receive(byte[] data, int length) {
+		if (config.isBinaryReplies()) {
+			for (int i = 0; i < length; i++) {
+				if (frameDecoder.update(data[i])) {
+					handleFrame(frameDecoder.getFrame(), frameDecoder.getLength());
+				}
+			}
+
+			return;
+		}
+
+		for (int i = 0; i < length; i++) {
+			// don't add lf/cr chars
+			if (data[i] != 10 && data[i] != 13) {
+				stringBuilder.append((char) data[i]);
+			}
+
+			// got a new line
+			if (data[i] == 10) {
+				handleLine(stringBuilder.toString());
+				stringBuilder.setLength(0);
+			}
+		}
+	}
+
+	private void handleLine(String line) {
+		if (log.isDebugEnabled()) {
+			log.debug("<-" + line);
+		}
+
+		// because we only have one serial port I've adopted a simple convention to use the serial
+		// port for both debugging and control. Here's the convention:
+		// starts with OK continue with net
+		// starts with RETRY tx err/no ack, try again
+		// starts with ERROR unrecoverable, fail
+		// anything else is just debug
+
+		if (line.startsWith("OK")) {
+			reply(OK, Integer.parseInt(line.split(",")[1].trim()));
+		} else if (line.startsWith("RETRY")) {
+			reply(RETRY, 0);
+		} else if (line.startsWith("ERROR")) {
+			reply(START_OVER, 0);
+		}
+	}
+
+	/**
+	 * Handles a binary reply. Only debug frames allocate, and only when debug logging
+	 */
+	private void handleFrame(byte[] frame, int length) {
+		if (length == 0) {
+			return;
+		}
+
+		int type = frame[0] & 0xff;
+
+		if (type == FRAME_DEBUG) {
+			if (log.isDebugEnabled()) {
+				log.debug("<-" + new String(frame, 1, length - 1, Charsets.US_ASCII));
+			}
+
+			return;
+		}
+
+		if (length < REPLY_FRAME_SIZE) {
+			log.warn("Short reply frame, type " + type + ", length " + length);
+			return;
+		}
+
+		int replyId = (frame[1] & 0xff) << 8 | (frame[2] & 0xff);
+
+		if (type == FRAME_OK) {
+			reply(OK, replyId);
+		} else if (type == FRAME_RETRY) {
+			reply(RETRY, 0);
+		} else if (type == FRAME_ERROR) {
+			reply(START_OVER, 0);
+		} else {
+			log.warn("Unknown reply frame type " + type);
+		}
+	}
+
+	private void reply(int code, int id) {
+		reply[2] = code;
+		reply[3] = (id >> 8) & 0xff;
+		reply[4] = id & 0xff;
+		replyHandler.handleReply(code, id, reply);
+	}
+
+	@Override
+	public void send(byte[] packet, int offset, int length) throws IOException {
+		SerialPort serialPort = this.serialPort;
+
+		if (serialPort == null) {
+			throw new IOException("Serial port is closed");
+		}
+
+		try {
+			config.getPacketWriter().write(serialPort.getOutputStream(), packet, offset, length);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted writing to " + config.getDevice());
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return serialPort != null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		SerialPort serialPort = this.serialPort;
+		this.serialPort = null;
+
+		if (serialPort != null) {
+			serialPort.close();
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "nRF24L01";
+	}
+
+	@Override
+	public TransportConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * The open port, e.g. to write to it directly. null when closed
+	 */
+	public SerialPort getSerialPort() {
+		return serialPort;
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.serial;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a packet to a serial port in chunks, with one write and flush per chunk instead of per byte, and an optional
+ * pause between chunks for adapters or sketches that can't keep up.
+ *
+ * A chunk size of 1 is the original byte at a time write
+ *
+ * @author andrew
+ *
+ */
+public class PacketWriter {
+
+	private final int chunkSize;
+	private final int chunkDelayMicros;
+	private byte[] buffer;
+
+	/**
+	 * @param chunkSize most bytes written at once, 0 to write the whole packet at once
+	 * @param chunkDelayMicros pause between chunks of a packet
+	 */
+	public PacketWriter(int chunkSize, int chunkDelayMicros) {
+		if (chunkSize < 0 || chunkDelayMicros < 0) {
+			throw new IllegalArgumentException("Chunk size and delay can't be negative");
+		}
+
+		this.chunkSize = chunkSize;
+		this.chunkDelayMicros = chunkDelayMicros;
+		this.buffer = new byte[chunkSize > 0 ? chunkSize : 32];
+	}
+
+	public void write(OutputStream out, int[] data) throws IOException, InterruptedException {
+		int size = chunkSize > 0 ? chunkSize : data.length;
+
+		if (buffer.length < size) {
+			buffer = new byte[size];
+		}
+
+		for (int offset = 0; offset < data.length; offset+= size) {
+			if (offset > 0 && chunkDelayMicros > 0) {
+				Thread.sleep(chunkDelayMicros / 1000, (chunkDelayMicros % 1000) * 1000);
+			}
+
+			int length = Math.min(size, data.length - offset);
+
+			for (int i = 0; i < length; i++) {
+				buffer[i] = (byte) (data[offset + i] & 0xff);
+			}
+
+			out.write(buffer, 0, length);
+			// rxtx flush waits for the bytes to go out (tcdrain), so a chunk is on the wire before the next one is written
+			out.flush();
+		}
+	}
+
+	public void write(OutputStream out, byte[] data, int offset, int length) throws IOException, InterruptedException {
+		int size = chunkSize > 0 ? chunkSize : length;
+
+		for (int written = 0; written < length; written+= size) {
+			if (written > 0 && chunkDelayMicros > 0) {
+				Thread.sleep(chunkDelayMicros / 1000, (chunkDelayMicros % 1000) * 1000);
+			}
+
+			out.write(data, offset + written, Math.min(size, length - written));
+			out.flush();
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getChunkDelayMicros() {
+		return chunkDelayMicros;
+	}
+}
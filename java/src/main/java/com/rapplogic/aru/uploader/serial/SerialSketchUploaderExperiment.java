@@ -36,7 +36,7 @@ public abstract class SerialSketchUploaderExperiment extends SerialSketchUploade
 	
 	public void process(String device, String hex) throws Exception {
 
-		int[] program = parseIntelHex(hex);
+		byte[] program = parseIntelHex(hex);
 		Sketch sketch = parseSketchFromIntelHex(hex, ARDUINO_PAGE_SIZE);	
 		
 		//System.out.println("Sending sketch to Arduino via serial. Program length is " + program.length + ", there are " + sketch.getPages().size() + " pages");
@@ -46,7 +46,7 @@ public abstract class SerialSketchUploaderExperiment extends SerialSketchUploade
 		for (int i = 0; i < sketch.getPages().size(); i++) {
 			Page page = sketch.getPages().get(i);
 			
-			System.out.println("Sending page " + (i + 1) + " of " + sketch.getPages().size() + ", length is " + page.getData().length + ", address is " + Integer.toHexString(page.getBootloaderAddress16()) + ", page is " + toHex(page.getPage()));
+			System.out.println("Sending page " + (i + 1) + " of " + sketch.getPages().size() + ", length is " + page.getLength() + ", address is " + Integer.toHexString(page.getBootloaderAddress16()) + ", page is " + toHex(page.getData()));
 
 			if (i == 0) {
 				write(FIRST_PAGE);
@@ -57,10 +57,14 @@ public abstract class SerialSketchUploaderExperiment extends SerialSketchUploade
 			}
 		
 //			// only data length, does not include ctrl, len, or addr bytes
-			write(page.getData().length);
+			write(page.getLength());
 			
-			for (int k = 0; k < page.getPage().length; k++) {
-				write(page.getPage()[k] & 0xff);
+			// little endian according to avrdude
+			write(page.getBootloaderAddress16() & 0xff);
+			write((page.getBootloaderAddress16() >> 8) & 0xff);
+			
+			for (int k = 0; k < page.getLength(); k++) {
+				write(page.get(k));
 			}
 			
 			serialPort.getOutputStream().flush();
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Accepts the host side of a link on a socket and serves one connection at a time, as a device has one serial port or radio
+ *
+ * @author andrew
+ *
+ */
+public abstract class DeviceServer {
+
+	private final int port;
+	private volatile ServerSocket serverSocket;
+	private volatile Socket client;
+
+	/**
+	 * @param port 0 for any free port
+	 */
+	public DeviceServer(int port) {
+		this.port = port;
+	}
+
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port);
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, getName() + "-server");
+
+		thread.setDaemon(true);
+		thread.start();
+
+		System.out.println(getName() + " listening on port " + getPort());
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				client = serverSocket.accept();
+			} catch (IOException e) {
+				// closed
+				return;
+			}
+
+			System.out.println(getName() + " connection from " + client.getRemoteSocketAddress());
+
+			try {
+				serve(client);
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					System.out.println(getName() + " connection error: " + e.getMessage());
+				}
+			} finally {
+				try {
+					client.close();
+				} catch (IOException e) {
+					// already gone
+				}
+			}
+
+			System.out.println(getName() + " connection closed");
+		}
+	}
+
+	/**
+	 * Reads packets from the host until it disconnects
+	 */
+	protected abstract void serve(Socket socket) throws IOException;
+
+	/**
+	 * For messages and thread names
+	 */
+	protected abstract String getName();
+
+	public int getPort() {
+		return serverSocket != null ? serverSocket.getLocalPort() : port;
+	}
+
+	public void close() throws IOException {
+		if (serverSocket != null) {
+			serverSocket.close();
+		}
+
+		Socket client = this.client;
+
+		if (client != null) {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import com.google.common.collect.Lists;
+import com.rapplogic.aru.uploader.transport.loopback.VirtualArduino;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader.Series;
+
+/**
+ * Runs simulated arduinos behind the wifi, serial (nordic) and xbee paths, so the uploaders can be run end to end, e.g. to
+ * tune throughput, on a machine with no radios. Point the uploaders at localhost:
+ *
+ * java com.rapplogic.aru.uploader.simulator.DeviceSimulator --wifi-port 1111 --xbee-port 2222 --loss-percent 2 --latency-ms 20
+ * ./wifi-uploader.sh --host localhost --port 1111 -s BlinkSlow.cpp.hex
+ * ./xbee-uploader.sh --serial-server-host localhost --serial-server-port 2222 --radio-type SERIES2 --remote-xbee-address 0013A200408B98FF -s BlinkSlow.cpp.hex
+ *
+ * See SerialBridgeServer for running the nordic uploader through a virtual serial port
+ *
+ * @author andrew
+ *
+ */
+public class DeviceSimulator {
+
+	public final static String wifiPort = "wifi-port";
+	public final static String wifiDevices = "wifi-devices";
+	public final static String serialBridgePort = "serial-bridge-port";
+	public final static String binaryReplies = "binary-replies";
+	public final static String xbeePort = "xbee-port";
+	public final static String radioType = "radio-type";
+	public final static String latencyMs = "latency-ms";
+	public final static String jitterMs = "jitter-ms";
+	public final static String lossPercent = "loss-percent";
+	public final static String duplicatePercent = "duplicate-percent";
+	public final static String reorderPercent = "reorder-percent";
+	public final static String eepromWriteUs = "eeprom-write-us";
+	public final static String seed = "seed";
+	public final static String statsIntervalSecs = "stats-interval-s";
+
+	private final List<DeviceServer> servers = Lists.newArrayList();
+	private final List<SimulatedDevice> devices = Lists.newArrayList();
+	private XBeeDeviceServer xbeeServer;
+
+	private static Options getOptions() {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withLongOpt(wifiPort).hasArg().withType(Number.class)
+				.withDescription("Port of the first simulated ESP8266. Not started if not specified").create());
+		options.addOption(OptionBuilder.withLongOpt(wifiDevices).hasArg().withType(Number.class)
+				.withDescription("Number of simulated ESP8266s, on consecutive ports from the wifi port, for fleet uploads. Default is 1").create());
+		options.addOption(OptionBuilder.withLongOpt(serialBridgePort).hasArg().withType(Number.class)
+				.withDescription("Port of the simulated NordicSerial2SPI, to connect a virtual serial port to with socat. Not started if not specified").create());
+		options.addOption(OptionBuilder.withLongOpt(binaryReplies)
+				.withDescription("The simulated NordicSerial2SPI sends binary replies, for the nordic uploader's --binary-replies").create());
+		options.addOption(OptionBuilder.withLongOpt(xbeePort).hasArg().withType(Number.class)
+				.withDescription("Port of the simulated XBee, for the xbee uploader's serial server options. Not started if not specified").create());
+		options.addOption(OptionBuilder.withLongOpt(radioType).hasArg()
+				.withDescription("Series of the simulated XBee: SERIES1 or SERIES2. Default is SERIES2").create());
+		options.addOption(OptionBuilder.withLongOpt(latencyMs).hasArg().withType(Number.class)
+				.withDescription("One way latency of packets and replies in ms. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(jitterMs).hasArg().withType(Number.class)
+				.withDescription("Up to this many ms is added to the latency, at random. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(lossPercent).hasArg().withType(Number.class)
+				.withDescription("Chance of a packet or reply being lost, in percent. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(duplicatePercent).hasArg().withType(Number.class)
+				.withDescription("Chance of a packet arriving twice, in percent. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(reorderPercent).hasArg().withType(Number.class)
+				.withDescription("Chance of a packet being overtaken by the next, in percent. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(eepromWriteUs).hasArg().withType(Number.class)
+				.withDescription("How long the arduino takes to write a page to eeprom in microseconds. A 24LC256 takes up to 5000. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(seed).hasArg().withType(Number.class)
+				.withDescription("Seed of the random link conditions. Default is 0").create());
+		options.addOption(OptionBuilder.withLongOpt(statsIntervalSecs).hasArg().withType(Number.class)
+				.withDescription("How often to print what each device received, in seconds. 0 for never. Default is 10").create());
+
+		return options;
+	}
+
+	/**
+	 * Starts the servers of the command line
+	 */
+	public void start(CommandLine commandLine) throws IOException {
+		LinkConditions link = new LinkConditions(Long.parseLong(commandLine.getOptionValue(seed, "0")));
+		link.setLatencyMillis(Integer.parseInt(commandLine.getOptionValue(latencyMs, "0")));
+		link.setJitterMillis(Integer.parseInt(commandLine.getOptionValue(jitterMs, "0")));
+		link.setLossPercent(Double.parseDouble(commandLine.getOptionValue(lossPercent, "0")));
+		link.setDuplicatePercent(Double.parseDouble(commandLine.getOptionValue(duplicatePercent, "0")));
+		link.setReorderPercent(Double.parseDouble(commandLine.getOptionValue(reorderPercent, "0")));
+
+		int eepromWriteMicros = Integer.parseInt(commandLine.getOptionValue(eepromWriteUs, "0"));
+
+		System.out.println("Link conditions: " + link);
+
+		if (commandLine.hasOption(wifiPort)) {
+			int port = Integer.parseInt(commandLine.getOptionValue(wifiPort));
+			int count = Integer.parseInt(commandLine.getOptionValue(wifiDevices, "1"));
+
+			for (int i = 0; i < count; i++) {
+				SimulatedDevice device = newDevice("esp8266-" + (port + i), link, eepromWriteMicros);
+				start(new WifiDeviceServer(port + i, device));
+			}
+		}
+
+		if (commandLine.hasOption(serialBridgePort)) {
+			SimulatedDevice device = newDevice("nordic", link, eepromWriteMicros);
+			start(new SerialBridgeServer(Integer.parseInt(commandLine.getOptionValue(serialBridgePort)), device, commandLine.hasOption(binaryReplies)));
+		}
+
+		if (commandLine.hasOption(xbeePort)) {
+			Series series = Series.valueOf(commandLine.getOptionValue(radioType, Series.SERIES2.name()).toUpperCase());
+			xbeeServer = new XBeeDeviceServer(Integer.parseInt(commandLine.getOptionValue(xbeePort)), series, link, eepromWriteMicros);
+			start(xbeeServer);
+		}
+
+		if (servers.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to simulate, specify at least one of --" + wifiPort + ", --" + serialBridgePort + " or --" + xbeePort);
+		}
+	}
+
+	private SimulatedDevice newDevice(String name, LinkConditions link, int eepromWriteMicros) {
+		VirtualArduino arduino = new VirtualArduino();
+		arduino.setEepromWriteMicros(eepromWriteMicros);
+		SimulatedDevice device = new SimulatedDevice(name, arduino, link);
+		devices.add(device);
+		return device;
+	}
+
+	private void start(DeviceServer server) throws IOException {
+		server.start();
+		servers.add(server);
+	}
+
+	/**
+	 * Every device so far, including those the xbee created for the addresses sent to
+	 */
+	public List<SimulatedDevice> getDevices() {
+		List<SimulatedDevice> all = Lists.newArrayList(devices);
+
+		if (xbeeServer != null) {
+			all.addAll(xbeeServer.getDevices());
+		}
+
+		return all;
+	}
+
+	public void printStats() {
+		for (SimulatedDevice device : getDevices()) {
+			System.out.println(device);
+		}
+	}
+
+	public void close() throws IOException {
+		for (DeviceServer server : servers) {
+			server.close();
+		}
+
+		for (SimulatedDevice device : devices) {
+			device.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		CommandLine commandLine;
+
+		try {
+			commandLine = new PosixParser().parse(getOptions(), args);
+		} catch (ParseException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("device-simulator", getOptions());
+			return;
+		}
+
+		final DeviceSimulator simulator = new DeviceSimulator();
+
+		try {
+			simulator.start(commandLine);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			new HelpFormatter().printHelp("device-simulator", getOptions());
+			simulator.close();
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				simulator.printStats();
+			}
+		}));
+
+		int statsInterval = Integer.parseInt(commandLine.getOptionValue(statsIntervalSecs, "10"));
+
+		while (true) {
+			Thread.sleep(statsInterval > 0 ? statsInterval * 1000L : Long.MAX_VALUE);
+			simulator.printStats();
+		}
+	}
+}
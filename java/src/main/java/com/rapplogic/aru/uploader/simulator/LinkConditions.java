@@ -0,0 +1,195 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.util.Random;
+
+/**
+ * How a simulated link treats packets and replies: bandwidth, latency, loss, burst loss, duplication and reordering. Decisions
+ * come from a seeded random so a run can be repeated. A burst is a state of the link, so devices should only share conditions
+ * if they share a channel
+ *
+ * @author andrew
+ *
+ */
+public class LinkConditions {
+
+	private int bandwidthBps;
+	private int latencyMillis;
+	private int jitterMillis;
+	private double lossPercent;
+	private double burstPercent;
+	private int burstLength = 1;
+	private boolean inBurst;
+	private double duplicatePercent;
+	private double reorderPercent;
+	private final Random random;
+
+	public LinkConditions(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * A perfect link, no latency
+	 */
+	public LinkConditions() {
+		this(0);
+	}
+
+	/**
+	 * How long a packet or reply takes to arrive
+	 */
+	public synchronized int nextDelayMillis() {
+		return latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+	}
+
+	/**
+	 * Within a burst everything is lost. A burst ends after burst length packets on average
+	 */
+	public synchronized boolean nextLost() {
+		if (inBurst) {
+			inBurst = burstLength > 1 && random.nextInt(burstLength) != 0;
+			return true;
+		} else if (roll(burstPercent)) {
+			inBurst = burstLength > 1;
+			return true;
+		}
+
+		return roll(lossPercent);
+	}
+
+	/**
+	 * How long it takes to put a packet of this length on the link, or 0 if bandwidth is unlimited
+	 */
+	public synchronized long getTransmitNanos(int length) {
+		return bandwidthBps > 0 ? length * 8L * 1000000000L / bandwidthBps : 0;
+	}
+
+	public synchronized boolean nextDuplicated() {
+		return roll(duplicatePercent);
+	}
+
+	/**
+	 * Whether a packet is held back long enough for the packets after it to overtake it
+	 */
+	public synchronized boolean nextReordered() {
+		return roll(reorderPercent);
+	}
+
+	private boolean roll(double percent) {
+		return percent > 0 && random.nextDouble() * 100 < percent;
+	}
+
+	/**
+	 * Bits per second the link carries in each direction, 0 for unlimited
+	 */
+	public synchronized int getBandwidthBps() {
+		return bandwidthBps;
+	}
+
+	public synchronized void setBandwidthBps(int bandwidthBps) {
+		this.bandwidthBps = bandwidthBps;
+	}
+
+	public synchronized int getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public synchronized void setLatencyMillis(int latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * Up to this much is added to the latency, at random
+	 */
+	public synchronized int getJitterMillis() {
+		return jitterMillis;
+	}
+
+	public synchronized void setJitterMillis(int jitterMillis) {
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * Chance of a packet, or a reply, being lost
+	 */
+	public synchronized double getLossPercent() {
+		return lossPercent;
+	}
+
+	public synchronized void setLossPercent(double lossPercent) {
+		this.lossPercent = check(lossPercent);
+	}
+
+	/**
+	 * Chance of a burst of losses starting
+	 */
+	public synchronized double getBurstPercent() {
+		return burstPercent;
+	}
+
+	public synchronized void setBurstPercent(double burstPercent) {
+		this.burstPercent = check(burstPercent);
+	}
+
+	/**
+	 * Mean packets and replies lost in a burst. Default is 1
+	 */
+	public synchronized int getBurstLength() {
+		return burstLength;
+	}
+
+	public synchronized void setBurstLength(int burstLength) {
+		if (burstLength < 1) {
+			throw new IllegalArgumentException("Burst length must be at least 1");
+		}
+
+		this.burstLength = burstLength;
+	}
+
+	public synchronized double getDuplicatePercent() {
+		return duplicatePercent;
+	}
+
+	public synchronized void setDuplicatePercent(double duplicatePercent) {
+		this.duplicatePercent = check(duplicatePercent);
+	}
+
+	public synchronized double getReorderPercent() {
+		return reorderPercent;
+	}
+
+	public synchronized void setReorderPercent(double reorderPercent) {
+		this.reorderPercent = check(reorderPercent);
+	}
+
+	private double check(double percent) {
+		if (percent < 0 || percent > 100) {
+			throw new IllegalArgumentException("Percent must be between 0 and 100 " + percent);
+		}
+
+		return percent;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return (bandwidthBps > 0 ? bandwidthBps + " bps, " : "") + "latency " + latencyMillis + "ms +" + jitterMillis + "ms, loss " + lossPercent + "%, burst " + burstPercent + "% of " + burstLength + ", duplicate " + duplicatePercent + "%, reorder " + reorderPercent + "%";
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+/**
+ * Finds packets in a byte stream as the sketches do: a packet starts with the magic bytes and its length is in the 4th byte.
+ * Anything between packets is skipped
+ *
+ * @author andrew
+ *
+ */
+class PacketParser {
+
+	private static final int MAGIC_BYTE1 = 0xef;
+	private static final int MAGIC_BYTE2 = 0xac;
+
+	private final byte[] packet = new byte[256];
+	private int position;
+	private int lastByte = -1;
+
+	/**
+	 * @return true when a packet is complete. It is valid until the next call
+	 */
+	boolean update(int b) {
+		if (position == 0) {
+			if (lastByte == MAGIC_BYTE1 && b == MAGIC_BYTE2) {
+				packet[0] = (byte) MAGIC_BYTE1;
+				packet[1] = (byte) MAGIC_BYTE2;
+				position = 2;
+			}
+
+			lastByte = b;
+			return false;
+		}
+
+		packet[position++] = (byte) b;
+
+		if (position < 4) {
+			return false;
+		} else if (getLength() < 6) {
+			// not a packet after all
+			position = 0;
+			lastByte = b;
+		} else if (position == getLength()) {
+			position = 0;
+			lastByte = -1;
+			return true;
+		}
+
+		return false;
+	}
+
+	byte[] getPacket() {
+		return packet;
+	}
+
+	int getLength() {
+		return packet[3] & 0xff;
+	}
+}
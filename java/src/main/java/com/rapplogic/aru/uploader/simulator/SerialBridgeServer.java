@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.rapplogic.aru.core.Cobs;
+
+/**
+ * Stands in for the serial side of NordicSerial2SPI, for NordicSketchUploader. Like the sketch, it sends one packet at a time
+ * over the "radio" and waits for the reply before reading the next, answering OK, RETRY or ERROR as text lines, or as COBS
+ * frames when binary replies are on. A lost packet is a tx failure and a lost reply an ack timeout, both answered with RETRY.
+ * The sketch sends nothing after a START_OVER or TIMEOUT reply from the arduino; this sends ERROR so the upload needn't time out.
+ *
+ * Java can't open a pty, so this listens on a socket. socat makes it a serial port the uploader can open:
+ *
+ * socat pty,link=/tmp/ttyV0,raw,echo=0 tcp:localhost:PORT
+ *
+ * and run the uploader with -Dgnu.io.rxtx.SerialPorts=/tmp/ttyV0 so RXTX lists it
+ *
+ * @author andrew
+ *
+ */
+public class SerialBridgeServer extends DeviceServer {
+
+	// NordicSerial2SPI.ino
+	private static final int FRAME_OK = 1;
+	private static final int FRAME_RETRY = 2;
+	private static final int FRAME_ERROR = 3;
+	private static final int FRAME_DEBUG = 4;
+	private static final int ARDUINO_OK = 1;
+
+	private final SimulatedDevice device;
+	private final boolean binaryReplies;
+	private int ackTimeoutMillis = 3000;
+
+	public SerialBridgeServer(int port, SimulatedDevice device, boolean binaryReplies) {
+		super(port);
+		this.device = device;
+		this.binaryReplies = binaryReplies;
+	}
+
+	@Override
+	protected void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+
+		OutputStream out = socket.getOutputStream();
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		PacketParser parser = new PacketParser();
+		final BlockingQueue<int[]> replies = new LinkedBlockingQueue<int[]>();
+
+		SimulatedDevice.ReplyListener listener = new SimulatedDevice.ReplyListener() {
+			@Override
+			public void reply(int[] reply) {
+				replies.add(reply);
+			}
+		};
+
+		int b;
+
+		while ((b = in.read()) > -1) {
+			if (!parser.update(b)) {
+				continue;
+			}
+
+			// a late reply or the reply to a duplicate is not for this packet
+			replies.clear();
+
+			if (!device.receive(parser.getPacket(), 0, parser.getLength(), listener)) {
+				debug(out, "TX failure");
+				reply(out, FRAME_RETRY, 0);
+				continue;
+			}
+
+			int[] reply;
+
+			try {
+				reply = replies.poll(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (reply == null) {
+				debug(out, "No ack failure");
+				reply(out, FRAME_RETRY, 0);
+			} else if (reply[2] == ARDUINO_OK) {
+				reply(out, FRAME_OK, reply[3] << 8 | reply[4]);
+			} else {
+				debug(out, "Unexpected reply code: " + Integer.toHexString(reply[2]));
+				error(out, "start over");
+			}
+		}
+	}
+
+	private void reply(OutputStream out, int type, int id) throws IOException {
+		if (binaryReplies) {
+			frame(out, new byte[] { (byte) type, (byte) (id >> 8), (byte) id });
+		} else if (type == FRAME_OK) {
+			line(out, "OK," + id);
+		} else if (type == FRAME_RETRY) {
+			line(out, "RETRY");
+		}
+	}
+
+	private void debug(OutputStream out, String text) throws IOException {
+		if (binaryReplies) {
+			byte[] frame = new byte[text.length() + 1];
+			frame[0] = FRAME_DEBUG;
+			System.arraycopy(text.getBytes(Charsets.US_ASCII), 0, frame, 1, text.length());
+			frame(out, frame);
+		} else {
+			line(out, text);
+		}
+	}
+
+	private void error(OutputStream out, String text) throws IOException {
+		if (binaryReplies) {
+			debug(out, text);
+			reply(out, FRAME_ERROR, 0);
+		} else {
+			line(out, "ERROR: " + text);
+		}
+	}
+
+	private void frame(OutputStream out, byte[] frame) throws IOException {
+		byte[] encoded = new byte[Cobs.maxEncodedLength(frame.length)];
+		int length = Cobs.encode(frame, 0, frame.length, encoded, 0);
+		out.write(encoded, 0, length);
+		out.flush();
+	}
+
+	private void line(OutputStream out, String text) throws IOException {
+		out.write((text + "\r\n").getBytes(Charsets.US_ASCII));
+		out.flush();
+	}
+
+	public int getAckTimeoutMillis() {
+		return ackTimeoutMillis;
+	}
+
+	/**
+	 * How long the sketch waits for the arduino to reply before answering RETRY. Default is 3000, as the sketch
+	 */
+	public void setAckTimeoutMillis(int ackTimeoutMillis) {
+		this.ackTimeoutMillis = ackTimeoutMillis;
+	}
+
+	@Override
+	protected String getName() {
+		return "serial-" + device.getName();
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * Settings of a SimulatedTransport
+ *
+ * @author andrew
+ *
+ */
+public class SimulatedConfig extends TransportConfig {
+
+	private final SimulatedDevice device;
+	private boolean linkAcks;
+
+	/**
+	 * @param pageSize program bytes per page packet
+	 * @param maxPacketSize largest packet the link carries, header included
+	 */
+	public SimulatedConfig(int pageSize, int maxPacketSize, SimulatedDevice device) {
+		super(pageSize);
+		this.device = device;
+		setMaxPacketSize(maxPacketSize);
+	}
+
+	public SimulatedDevice getDevice() {
+		return device;
+	}
+
+	/**
+	 * Whether the link tells the sender a packet was lost, as the tx status of an xbee or the RETRY of NordicSerial2SPI do.
+	 * Lost replies are never reported. Default is false, as wifi
+	 */
+	public boolean isLinkAcks() {
+		return linkAcks;
+	}
+
+	public void setLinkAcks(boolean linkAcks) {
+		this.linkAcks = linkAcks;
+	}
+}
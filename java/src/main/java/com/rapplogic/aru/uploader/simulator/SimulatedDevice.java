@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rapplogic.aru.uploader.transport.loopback.VirtualArduino;
+
+/**
+ * A VirtualArduino at the far end of a simulated link. Packets and replies queue for the bandwidth of the link and are delayed,
+ * lost, duplicated and reordered as the link conditions say, and the arduino handles one packet at a time, taking as long as its eeprom writes do. The servers of
+ * this package put it behind the host side of a real link
+ *
+ * @author andrew
+ *
+ */
+public class SimulatedDevice {
+
+	public interface ReplyListener {
+		/**
+		 * Called on a thread of the device
+		 */
+		void reply(int[] reply);
+	}
+
+	private final String name;
+	private final VirtualArduino arduino;
+	private final LinkConditions link;
+	// the arduino, in the order packets arrive
+	private final ScheduledExecutorService device;
+	// replies on their way back
+	private final ScheduledExecutorService replies;
+
+	// when the link is done transmitting what was queued, each way
+	private long sendFreeNanos;
+	private long replyFreeNanos;
+
+	private final AtomicInteger received = new AtomicInteger();
+	private final AtomicInteger lost = new AtomicInteger();
+	private final AtomicInteger duplicated = new AtomicInteger();
+	private final AtomicInteger reordered = new AtomicInteger();
+	private final AtomicInteger repliesLost = new AtomicInteger();
+
+	public SimulatedDevice(String name, VirtualArduino arduino, LinkConditions link) {
+		this.name = name;
+		this.arduino = arduino;
+		this.link = link;
+		this.device = newExecutor("sim-" + name);
+		this.replies = newExecutor("sim-" + name + "-replies");
+	}
+
+	private ScheduledExecutorService newExecutor(final String threadName) {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * A packet from the host. The reply, if the arduino sends one and the link delivers it, goes to the listener
+	 *
+	 * @return false if the link lost the packet
+	 */
+	public boolean receive(byte[] packet, int offset, int length, ReplyListener listener) {
+		received.incrementAndGet();
+
+		// a lost packet took its time on the link too
+		long delayMicros = transmit(length, true);
+
+		if (link.nextLost()) {
+			lost.incrementAndGet();
+			return false;
+		}
+
+		// the caller reuses the packet
+		byte[] copy = Arrays.copyOfRange(packet, offset, offset + length);
+
+		if (link.nextReordered()) {
+			// long enough for the next packet to get there first
+			reordered.incrementAndGet();
+			delayMicros += (link.getLatencyMillis() + link.getJitterMillis() + 5) * 1000L;
+		}
+
+		deliver(copy, delayMicros, listener);
+
+		if (link.nextDuplicated()) {
+			duplicated.incrementAndGet();
+			deliver(copy, transmit(length, true), listener);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Queues length bytes for the link
+	 *
+	 * @return micros until they arrive
+	 */
+	private synchronized long transmit(int length, boolean toDevice) {
+		long now = System.nanoTime();
+		long free = Math.max(now, toDevice ? sendFreeNanos : replyFreeNanos) + link.getTransmitNanos(length);
+
+		if (toDevice) {
+			sendFreeNanos = free;
+		} else {
+			replyFreeNanos = free;
+		}
+
+		return (free - now) / 1000 + link.nextDelayMillis() * 1000L;
+	}
+
+	private void deliver(final byte[] packet, long delayMicros, final ReplyListener listener) {
+		device.schedule(new Runnable() {
+			@Override
+			public void run() {
+				final int[] reply = arduino.process(packet, 0, packet.length);
+
+				if (reply == null) {
+					return;
+				}
+
+				long replyMicros = transmit(reply.length, false);
+
+				if (link.nextLost()) {
+					repliesLost.incrementAndGet();
+					return;
+				}
+
+				replies.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							listener.reply(reply);
+						} catch (Exception e) {
+							System.out.println("Failed to send reply of " + name + ": " + e.getMessage());
+						}
+					}
+				}, replyMicros, TimeUnit.MICROSECONDS);
+			}
+		}, delayMicros, TimeUnit.MICROSECONDS);
+	}
+
+	public void close() {
+		device.shutdownNow();
+		replies.shutdownNow();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public VirtualArduino getArduino() {
+		return arduino;
+	}
+
+	public LinkConditions getLink() {
+		return link;
+	}
+
+	public int getReceived() {
+		return received.get();
+	}
+
+	public int getLost() {
+		return lost.get();
+	}
+
+	public int getDuplicated() {
+		return duplicated.get();
+	}
+
+	public int getReordered() {
+		return reordered.get();
+	}
+
+	public int getRepliesLost() {
+		return repliesLost.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": received " + getReceived() + ", lost " + getLost() + ", duplicated " + getDuplicated() + ", reordered " + getReordered() + ", replies lost " + getRepliesLost() + ", flashes " + arduino.getFlashes();
+	}
+}
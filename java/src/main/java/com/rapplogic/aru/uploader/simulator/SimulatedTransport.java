@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.IOException;
+
+import com.rapplogic.aru.uploader.transport.Transport;
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * In process transport to a SimulatedDevice, so the upload engine can be run over a link of known bandwidth, latency and loss
+ * without sockets or radios
+ *
+ * @author andrew
+ *
+ */
+public class SimulatedTransport implements Transport {
+
+	private final SimulatedConfig config;
+	private volatile boolean open;
+	private SimulatedDevice.ReplyListener listener;
+	private ReplyHandler replyHandler;
+
+	public SimulatedTransport(SimulatedConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public void open(final ReplyHandler replyHandler) throws IOException {
+		this.replyHandler = replyHandler;
+		this.listener = new SimulatedDevice.ReplyListener() {
+			@Override
+			public void reply(int[] reply) {
+				if (open) {
+					replyHandler.handleReply(reply[2], reply[3] << 8 | reply[4], reply);
+				}
+			}
+		};
+
+		open = true;
+	}
+
+	@Override
+	public void send(byte[] packet, int offset, int length) throws IOException {
+		if (!open) {
+			throw new IOException("Simulated transport is closed");
+		}
+
+		if (!config.getDevice().receive(packet, offset, length, listener) && config.isLinkAcks()) {
+			replyHandler.handleDeliveryFailed((packet[offset + 4] & 0xff) << 8 | (packet[offset + 5] & 0xff));
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+
+	@Override
+	public String getName() {
+		return "simulated";
+	}
+
+	@Override
+	public TransportConfig getConfig() {
+		return config;
+	}
+}
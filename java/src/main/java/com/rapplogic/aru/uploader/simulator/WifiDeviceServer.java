@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Stands in for an ESP8266 running ESP8266Uploader, for WifiSketchUploader: packets arrive on a tcp connection and each
+ * reply is sent back followed by CR/LF
+ *
+ * @author andrew
+ *
+ */
+public class WifiDeviceServer extends DeviceServer {
+
+	private static final int REPLY_SIZE = 5;
+
+	private final SimulatedDevice device;
+
+	public WifiDeviceServer(int port, SimulatedDevice device) {
+		super(port);
+		this.device = device;
+	}
+
+	@Override
+	protected void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+
+		final OutputStream out = socket.getOutputStream();
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		PacketParser parser = new PacketParser();
+
+		SimulatedDevice.ReplyListener listener = new SimulatedDevice.ReplyListener() {
+			@Override
+			public void reply(int[] reply) {
+				// the sketch only sends the code and id
+				byte[] b = new byte[REPLY_SIZE + 2];
+
+				for (int i = 0; i < REPLY_SIZE; i++) {
+					b[i] = (byte) reply[i];
+				}
+
+				b[REPLY_SIZE] = 13;
+				b[REPLY_SIZE + 1] = 10;
+
+				try {
+					synchronized (out) {
+						out.write(b);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// host is gone, as the reply of a real device would be lost
+				}
+			}
+		};
+
+		int b;
+
+		while ((b = in.read()) > -1) {
+			if (parser.update(b)) {
+				device.receive(parser.getPacket(), 0, parser.getLength(), listener);
+			}
+		}
+	}
+
+	@Override
+	protected String getName() {
+		return "wifi-" + device.getName();
+	}
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.rapplogic.aru.uploader.transport.loopback.VirtualArduino;
+import com.rapplogic.aru.uploader.xbee.XBeeSketchUploader.Series;
+
+/**
+ * Stands in for the local XBee of XBeeSketchUploader and the arduinos running XBeeUploader at the other end, for its serial
+ * server connection. Speaks the XBee API with escaping (AP=2): tx requests are answered with a tx status, successful unless
+ * the link lost the packet, and the replies of the arduinos come back as rx packets from their addresses. An arduino is
+ * created for each address the first time it is sent to, so fleets work too. Broadcasts go to every arduino seen so far
+ *
+ * @author andrew
+ *
+ */
+public class XBeeDeviceServer extends DeviceServer {
+
+	private static final int START_BYTE = 0x7e;
+	private static final int ESCAPE = 0x7d;
+	private static final int XON = 0x11;
+	private static final int XOFF = 0x13;
+
+	private static final int AT_COMMAND = 0x08;
+	private static final int AT_RESPONSE = 0x88;
+	private static final int TX_REQUEST_64 = 0x00;
+	private static final int TX_STATUS = 0x89;
+	private static final int RX_64 = 0x80;
+	private static final int ZNET_TX_REQUEST = 0x10;
+	private static final int ZNET_TX_STATUS = 0x8b;
+	private static final int ZNET_RX = 0x90;
+
+	private static final long BROADCAST_ADDRESS = 0xffff;
+
+	private final Series series;
+	private final LinkConditions link;
+	private final int eepromWriteMicros;
+	private final Map<Long, SimulatedDevice> devices = Maps.newLinkedHashMap();
+	private volatile OutputStream out;
+
+	/**
+	 * @param eepromWriteMicros of the arduinos created for each address
+	 */
+	public XBeeDeviceServer(int port, Series series, LinkConditions link, int eepromWriteMicros) {
+		super(port);
+		this.series = series;
+		this.link = link;
+		this.eepromWriteMicros = eepromWriteMicros;
+	}
+
+	@Override
+	protected void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		out = socket.getOutputStream();
+
+		try {
+			byte[] frame;
+
+			while ((frame = readFrame(in)) != null) {
+				handleFrame(frame);
+			}
+		} finally {
+			out = null;
+		}
+	}
+
+	private void handleFrame(byte[] frame) throws IOException {
+		int apiId = frame[0] & 0xff;
+
+		if (apiId == AT_COMMAND) {
+			handleAtCommand(frame);
+		} else if (apiId == TX_REQUEST_64 && series == Series.SERIES1) {
+			// frame id, destination, options, data
+			handleTx(frame[1] & 0xff, getAddress(frame, 2), Arrays.copyOfRange(frame, 11, frame.length));
+		} else if (apiId == ZNET_TX_REQUEST && series == Series.SERIES2) {
+			// frame id, destination, 16-bit destination, radius, options, data
+			handleTx(frame[1] & 0xff, getAddress(frame, 2), Arrays.copyOfRange(frame, 14, frame.length));
+		} else {
+			System.out.println("xbee ignoring api id " + Integer.toHexString(apiId));
+		}
+	}
+
+	/**
+	 * xbee-api queries these when it opens the connection
+	 */
+	private void handleAtCommand(byte[] frame) throws IOException {
+		String command = new String(frame, 2, 2, "US-ASCII");
+		int[] value;
+
+		if (command.equals("AP")) {
+			value = new int[] { 2 };
+		} else if (command.equals("HV")) {
+			value = series == Series.SERIES1 ? new int[] { 0x17, 0x4a } : new int[] { 0x19, 0x44 };
+		} else if (command.equals("VR")) {
+			value = series == Series.SERIES1 ? new int[] { 0x10, 0xe6 } : new int[] { 0x21, 0xa7 };
+		} else {
+			value = null;
+		}
+
+		int[] response = new int[5 + (value != null ? value.length : 0)];
+		response[0] = AT_RESPONSE;
+		response[1] = frame[1] & 0xff;
+		response[2] = frame[2] & 0xff;
+		response[3] = frame[3] & 0xff;
+		// invalid command if we don't know it
+		response[4] = value != null ? 0 : 2;
+
+		if (value != null) {
+			System.arraycopy(value, 0, response, 5, value.length);
+		}
+
+		writeFrame(response);
+	}
+
+	private void handleTx(int frameId, long address, byte[] data) throws IOException {
+		boolean delivered = true;
+
+		if (address == BROADCAST_ADDRESS) {
+			// not acked
+			for (Map.Entry<Long, SimulatedDevice> entry : getDeviceMap().entrySet()) {
+				entry.getValue().receive(data, 0, data.length, replyListener(entry.getKey()));
+			}
+		} else {
+			delivered = getDevice(address).receive(data, 0, data.length, replyListener(address));
+		}
+
+		if (frameId == 0) {
+			// no status wanted
+			return;
+		}
+
+		if (series == Series.SERIES1) {
+			// no ack
+			writeFrame(new int[] { TX_STATUS, frameId, delivered ? 0 : 1 });
+		} else {
+			// 16-bit address, retries, delivery status (network ack failure), discovery status
+			writeFrame(new int[] { ZNET_TX_STATUS, frameId, 0xff, 0xfe, delivered ? 0 : 3, delivered ? 0 : 0x21, 0 });
+		}
+	}
+
+	private synchronized SimulatedDevice getDevice(long address) {
+		SimulatedDevice device = devices.get(address);
+
+		if (device == null) {
+			VirtualArduino arduino = new VirtualArduino();
+			arduino.setEepromWriteMicros(eepromWriteMicros);
+			device = new SimulatedDevice(String.format("%016x", address), arduino, link);
+			devices.put(address, device);
+		}
+
+		return device;
+	}
+
+	private synchronized Map<Long, SimulatedDevice> getDeviceMap() {
+		return Maps.newLinkedHashMap(devices);
+	}
+
+	public synchronized List<SimulatedDevice> getDevices() {
+		return Lists.newArrayList(devices.values());
+	}
+
+	private SimulatedDevice.ReplyListener replyListener(final long address) {
+		return new SimulatedDevice.ReplyListener() {
+			@Override
+			public void reply(int[] reply) {
+				try {
+					writeRx(address, reply);
+				} catch (IOException e) {
+					// host is gone, as the reply of a real device would be lost
+				}
+			}
+		};
+	}
+
+	private void writeRx(long source, int[] data) throws IOException {
+		int header = series == Series.SERIES1 ? 11 : 12;
+		int[] frame = new int[header + data.length];
+
+		frame[0] = series == Series.SERIES1 ? RX_64 : ZNET_RX;
+
+		for (int i = 0; i < 8; i++) {
+			frame[1 + i] = (int) (source >> (8 * (7 - i))) & 0xff;
+		}
+
+		if (series == Series.SERIES1) {
+			// rssi, options
+			frame[9] = 0x28;
+			frame[10] = 0;
+		} else {
+			// 16-bit address, options (acknowledged)
+			frame[9] = (int) (source >> 8) & 0xff;
+			frame[10] = (int) source & 0xff;
+			frame[11] = 1;
+		}
+
+		System.arraycopy(data, 0, frame, header, data.length);
+		writeFrame(frame);
+	}
+
+	private long getAddress(byte[] frame, int offset) {
+		long address = 0;
+
+		for (int i = 0; i < 8; i++) {
+			address = address << 8 | (frame[offset + i] & 0xff);
+		}
+
+		return address;
+	}
+
+	/**
+	 * Next frame, api id first, or null when the host disconnects. Frames with a bad checksum are skipped
+	 */
+	private byte[] readFrame(InputStream in) throws IOException {
+		while (true) {
+			int b;
+
+			while ((b = in.read()) != START_BYTE) {
+				if (b == -1) {
+					return null;
+				}
+			}
+
+			int length = readEscaped(in) << 8 | readEscaped(in);
+			byte[] frame = new byte[length];
+			int checksum = 0;
+
+			for (int i = 0; i < length; i++) {
+				frame[i] = (byte) readEscaped(in);
+				checksum += frame[i] & 0xff;
+			}
+
+			checksum += readEscaped(in);
+
+			if ((checksum & 0xff) == 0xff && length > 0) {
+				return frame;
+			}
+
+			System.out.println("xbee dropping frame with bad checksum");
+		}
+	}
+
+	private int readEscaped(InputStream in) throws IOException {
+		int b = in.read();
+
+		if (b == ESCAPE) {
+			b = in.read();
+			b = b == -1 ? b : b ^ 0x20;
+		}
+
+		if (b == -1) {
+			throw new IOException("Disconnected in the middle of a frame");
+		}
+
+		return b;
+	}
+
+	private void writeFrame(int[] frame) throws IOException {
+		OutputStream out = this.out;
+
+		if (out == null) {
+			throw new IOException("Not connected");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length * 2 + 4);
+		int checksum = 0;
+
+		bytes.write(START_BYTE);
+		writeEscaped(bytes, frame.length >> 8);
+		writeEscaped(bytes, frame.length & 0xff);
+
+		for (int b : frame) {
+			writeEscaped(bytes, b);
+			checksum += b;
+		}
+
+		writeEscaped(bytes, 0xff - (checksum & 0xff));
+
+		synchronized (out) {
+			bytes.writeTo(out);
+			out.flush();
+		}
+	}
+
+	private void writeEscaped(ByteArrayOutputStream bytes, int b) {
+		if (b == START_BYTE || b == ESCAPE || b == XON || b == XOFF) {
+			bytes.write(ESCAPE);
+			bytes.write(b ^ 0x20);
+		} else {
+			bytes.write(b);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+
+		for (SimulatedDevice device : getDevices()) {
+			device.close();
+		}
+	}
+
+	@Override
+	protected String getName() {
+		return "xbee";
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport;
+
+import java.io.IOException;
+
+/**
+ * Carries packets to an arduino running the RemoteUploader library and its replies back, for TransportSketchUploader. The
+ * upload engine doesn't need to know anything else about the link.
+ *
+ * Each transport is constructed with its own subclass of TransportConfig
+ *
+ * @author andrew
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Receives replies from the arduino, on a thread of the transport
+	 */
+	public interface ReplyHandler {
+
+		/**
+		 * @param code reply code, e.g. SketchUploader.OK
+		 * @param id id of the packet replied to
+		 * @param reply the whole reply, magic bytes first, with any data after the id (e.g. missing pages)
+		 */
+		void handleReply(int code, int id, int[] reply);
+
+		/**
+		 * The link was lost. The packet awaiting ack is resent once the transport is connected again
+		 */
+		void handleDisconnect();
+
+		/**
+		 * The link knows it failed to deliver the packet with this id, e.g. from a radio's tx status. It is resent without
+		 * waiting out its ack timeout
+		 */
+		void handleDeliveryFailed(int id);
+	}
+
+	/**
+	 * Opens the link. Replies go to the handler until closed
+	 */
+	void open(ReplyHandler replyHandler) throws IOException;
+
+	/**
+	 * Sends a packet. The transport is done with the bytes when this returns, so the caller may reuse them
+	 */
+	void send(byte[] packet, int offset, int length) throws IOException;
+
+	/**
+	 * Whether the link is still usable after being opened
+	 */
+	boolean isConnected();
+
+	void close() throws IOException;
+
+	/**
+	 * e.g. nRF24L01, for messages
+	 */
+	String getName();
+
+	TransportConfig getConfig();
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport;
+
+/**
+ * What the upload engine needs to know about a link. Transports extend it with their own settings, e.g. a port and speed
+ *
+ * @author andrew
+ *
+ */
+public class TransportConfig {
+
+	private final int pageSize;
+	private int maxPacketSize;
+	private String deviceId;
+
+	/**
+	 * @param pageSize program bytes per page packet, so that header and page fit in a packet of the link
+	 */
+	public TransportConfig(int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+
+		this.pageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Largest packet, header included, the link can carry, or 0 if only pages of the page size. Pages are probed up to this
+	 */
+	public int getMaxPacketSize() {
+		return maxPacketSize;
+	}
+
+	public void setMaxPacketSize(int maxPacketSize) {
+		this.maxPacketSize = maxPacketSize;
+	}
+
+	/**
+	 * Identifies the remote device, for remembering what was flashed to it. null if not known
+	 */
+	public String getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(String deviceId) {
+		this.deviceId = deviceId;
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.rapplogic.aru.uploader.SketchUploader;
+
+/**
+ * Runs the upload engine over any Transport. Uploaders are independent, so uploads to many devices can run at once, one
+ * uploader per transport
+ *
+ * @author andrew
+ *
+ */
+public class TransportSketchUploader extends SketchUploader {
+
+	private final Transport transport;
+	// packets are converted into this. only the upload thread sends
+	private byte[] sendBuffer = new byte[128];
+
+	public TransportSketchUploader(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Flashes the sketch to the arduino at the other end of the transport
+	 *
+	 * @return true if the sketch was flashed
+	 */
+	public boolean flash(String file, boolean verbose, int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
+		Map<String,Object> context = Maps.newHashMap();
+		return process(file, transport.getConfig().getPageSize(), ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
+	}
+
+	@Override
+	protected void open(Map<String, Object> context) throws Exception {
+		transport.open(new Transport.ReplyHandler() {
+			@Override
+			public void handleReply(int code, int id, int[] reply) {
+				addReply(code, id, reply);
+			}
+
+			@Override
+			public void handleDisconnect() {
+				// resend the packet awaiting ack without waiting out its timeout
+				addReply(RETRY, 0);
+			}
+
+			@Override
+			public void handleDeliveryFailed(int id) {
+				deliveryFailed(id);
+			}
+		});
+	}
+
+	@Override
+	protected void writeData(int[] data, Map<String, Object> context) throws Exception {
+		if (sendBuffer.length < data.length) {
+			sendBuffer = new byte[data.length];
+		}
+
+		for (int i = 0; i < data.length; i++) {
+			sendBuffer[i] = (byte) data[i];
+		}
+
+		transport.send(sendBuffer, 0, data.length);
+	}
+
+	@Override
+	protected void close() throws Exception {
+		transport.close();
+	}
+
+	@Override
+	protected boolean isConnected() {
+		return transport.isConnected();
+	}
+
+	@Override
+	protected String getName() {
+		return transport.getName();
+	}
+
+	@Override
+	protected String getDeviceId(Map<String, Object> context) {
+		return transport.getConfig().getDeviceId();
+	}
+
+	@Override
+	protected int getMaxPacketSize(Map<String, Object> context) {
+		return transport.getConfig().getMaxPacketSize();
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport.loopback;
+
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * Settings of a LoopbackTransport
+ *
+ * @author andrew
+ *
+ */
+public class LoopbackConfig extends TransportConfig {
+
+	private final VirtualArduino arduino;
+	private int replyDelayMicros;
+
+	/**
+	 * @param pageSize program bytes per page packet
+	 * @param arduino receives the packets. Keeps its eeprom between uploads, like the real thing
+	 */
+	public LoopbackConfig(int pageSize, VirtualArduino arduino) {
+		super(pageSize);
+		this.arduino = arduino;
+		// the arduino buffers at most a page
+		setMaxPacketSize(128 + 6);
+	}
+
+	public LoopbackConfig(int pageSize) {
+		this(pageSize, new VirtualArduino());
+	}
+
+	public VirtualArduino getArduino() {
+		return arduino;
+	}
+
+	/**
+	 * Time from a packet being sent to its reply, e.g. to stand in for a radio. Default is none
+	 */
+	public int getReplyDelayMicros() {
+		return replyDelayMicros;
+	}
+
+	public void setReplyDelayMicros(int replyDelayMicros) {
+		this.replyDelayMicros = replyDelayMicros;
+	}
+}
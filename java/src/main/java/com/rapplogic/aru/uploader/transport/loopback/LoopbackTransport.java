@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport.loopback;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.rapplogic.aru.uploader.transport.Transport;
+import com.rapplogic.aru.uploader.transport.TransportConfig;
+
+/**
+ * In process transport to a VirtualArduino. Packets are handled and replied to on a thread of the transport, in the order sent,
+ * as replies from a real link arrive on its receive thread. No serial ports, radios or sockets, so the upload engine can be
+ * run, benchmarked and run many at once on its own
+ *
+ * @author andrew
+ *
+ */
+public class LoopbackTransport implements Transport {
+
+	private final LoopbackConfig config;
+	private volatile ScheduledExecutorService executor;
+	private ReplyHandler replyHandler;
+
+	public LoopbackTransport(LoopbackConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public void open(ReplyHandler replyHandler) throws IOException {
+		this.replyHandler = replyHandler;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "loopback-arduino");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void send(byte[] packet, int offset, int length) throws IOException {
+		ScheduledExecutorService executor = this.executor;
+
+		if (executor == null || executor.isShutdown()) {
+			throw new IOException("Loopback transport is closed");
+		}
+
+		// the caller reuses the packet
+		final byte[] copy = Arrays.copyOfRange(packet, offset, offset + length);
+		final ReplyHandler replyHandler = this.replyHandler;
+
+		Runnable deliver = new Runnable() {
+			@Override
+			public void run() {
+				int[] reply = config.getArduino().process(copy, 0, copy.length);
+
+				if (reply != null) {
+					replyHandler.handleReply(reply[2], reply[3] << 8 | reply[4], reply);
+				}
+			}
+		};
+
+		if (config.getReplyDelayMicros() > 0) {
+			executor.schedule(deliver, config.getReplyDelayMicros(), TimeUnit.MICROSECONDS);
+		} else {
+			executor.execute(deliver);
+		}
+	}
+
+	@Override
+	public boolean isConnected() {
+		return executor != null && !executor.isShutdown();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return "loopback";
+	}
+
+	@Override
+	public TransportConfig getConfig() {
+		return config;
+	}
+}
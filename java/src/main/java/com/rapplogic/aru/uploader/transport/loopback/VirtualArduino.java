@@ -0,0 +1,421 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.transport.loopback;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.rapplogic.aru.core.PageCompressor;
+
+/**
+ * An arduino running the RemoteUploader library, in memory: packets are handled as RemoteUploader::process does, pages go to
+ * an emulated eeprom after EEPROM_OFFSET_ADDRESS and a flash copies the program out of it. The image tags in eeprom survive between uploads, so delta and
+ * resume uploads work as they do on the device
+ *
+ * @author andrew
+ *
+ */
+public class VirtualArduino {
+
+	// RemoteUploader.h
+	private static final int MAGIC_BYTE1 = 0xef;
+	private static final int MAGIC_BYTE2 = 0xac;
+	private static final int CONTROL_PROG_REQUEST = 0x10;
+	private static final int CONTROL_PROG_DELTA_REQUEST = 0x11;
+	private static final int CONTROL_PROG_WINDOW_REQUEST = 0x12;
+	private static final int CONTROL_PROG_RESUME_REQUEST = 0x13;
+	private static final int CONTROL_PROG_BROADCAST_REQUEST = 0x14;
+	private static final int CONTROL_PROG_DATA = 0x20;
+	private static final int CONTROL_PROG_DATA_COMPRESSED = 0x21;
+	private static final int CONTROL_PROG_DATA_BROADCAST = 0x22;
+	private static final int CONTROL_PROBE = 0x30;
+	private static final int CONTROL_FLASH_START = 0x40;
+	private static final int CONTROL_MISSING_PAGES = 0x50;
+	private static final int CONTROL_PAGE_BITMAP = 0x51;
+
+	private static final int VERSION = 1;
+	private static final int PROG_PAGE_SIZE = 128;
+	private static final int PROG_START_TAG_OFFSET = 11;
+	private static final int PROG_DELTA_BASE_TAG_OFFSET = 15;
+	private static final int PROG_DATA_HEADER_SIZE = 6;
+	private static final int PROG_COMPRESSED_DATA_HEADER_SIZE = 7;
+	private static final int BROADCAST_MAX_PAGES = 512;
+	// 24LC256
+	private static final int EEPROM_SIZE = 0x8000;
+	// the program is written after the image tags
+	private static final int EEPROM_OFFSET_ADDRESS = 16;
+
+	public static final int OK = 1;
+	public static final int START_OVER = 2;
+	public static final int TIMEOUT = 3;
+	public static final int EEPROM_WRITE_ERROR = 6;
+	public static final int ADDRESS_SKIP_ERROR = 0xa;
+	public static final int WRONG_VERSION_ERROR = 0xb;
+	public static final int DECOMPRESS_ERROR = 0xc;
+	public static final int PROBE_ERROR = 0xd;
+
+	private final byte[] eeprom = new byte[EEPROM_SIZE];
+	private final byte[] decoded = new byte[PROG_PAGE_SIZE];
+
+	// kept in eeprom
+	private int imageTag;
+	private int pendingTag;
+
+	private boolean inProgramming;
+	private int programSize;
+	private int bytesPerPacket;
+	private long timeoutMillis;
+	private long lastUpdateMillis;
+	private int maxAddress;
+	private boolean flashed;
+	private boolean tagCleared;
+	private int uploadTag;
+	// of the image in pagesTag. kept by reset, for resume
+	private final BitSet writtenPages = new BitSet();
+	private int pagesTag;
+	private int pagesBytesPerPacket;
+	// pages may arrive in any order, so flash only once every page is written
+	private boolean trackPages;
+	// the unchanged pages are set in writtenPages by CONTROL_PAGE_BITMAP
+	private boolean deltaUpload;
+
+	private byte[] program;
+	private int flashes;
+	private int packets;
+	private int eepromWriteMicros;
+
+	/**
+	 * Handles a packet
+	 *
+	 * @return the reply, or null if there is none: not a programming packet, or a broadcast page
+	 */
+	public synchronized int[] process(byte[] packet, int offset, int length) {
+		byte[] p = Arrays.copyOfRange(packet, offset, offset + length);
+
+		// a packet longer than what was received was cut short
+		if (length < 6 || get(p, 0) != MAGIC_BYTE1 || get(p, 1) != MAGIC_BYTE2 || get(p, 3) > length) {
+			return null;
+		}
+
+		packets++;
+
+		int id = get(p, 4) << 8 | get(p, 5);
+		int code = handle(p);
+
+		if (get(p, 2) == CONTROL_PROG_DATA_BROADCAST) {
+			return null;
+		}
+
+		int[] reply = new int[] { MAGIC_BYTE1, MAGIC_BYTE2, code, (id >> 8) & 0xff, id & 0xff };
+
+		if (code == OK && get(p, 2) == CONTROL_MISSING_PAGES) {
+			return missingPages(reply);
+		}
+
+		return reply;
+	}
+
+	private int handle(byte[] p) {
+		int control = get(p, 2);
+
+		if (control == CONTROL_PROG_REQUEST || control == CONTROL_PROG_DELTA_REQUEST || control == CONTROL_PROG_WINDOW_REQUEST
+				|| control == CONTROL_PROG_RESUME_REQUEST || control == CONTROL_PROG_BROADCAST_REQUEST) {
+			if (get(p, 10) != VERSION) {
+				return WRONG_VERSION_ERROR;
+			}
+
+			reset();
+			inProgramming = true;
+			programSize = get(p, 4) << 8 | get(p, 5);
+			bytesPerPacket = get(p, 8);
+			timeoutMillis = 1000L * get(p, 9);
+			lastUpdateMillis = System.currentTimeMillis();
+
+			// older hosts don't send a tag
+			if (get(p, 3) >= PROG_START_TAG_OFFSET + 4) {
+				uploadTag = getTag(p, PROG_START_TAG_OFFSET);
+			}
+
+			if (control != CONTROL_PROG_RESUME_REQUEST) {
+				writtenPages.clear();
+				pagesTag = uploadTag;
+				pagesBytesPerPacket = bytesPerPacket;
+			}
+
+			if (control == CONTROL_PROG_DELTA_REQUEST) {
+				if (get(p, 3) < PROG_DELTA_BASE_TAG_OFFSET + 4 || imageTag == 0 || imageTag != getTag(p, PROG_DELTA_BASE_TAG_OFFSET)) {
+					reset();
+					return START_OVER;
+				}
+
+				if (bytesPerPacket == 0 || getPageCount() > BROADCAST_MAX_PAGES) {
+					reset();
+					return START_OVER;
+				}
+
+				trackPages = true;
+				deltaUpload = true;
+			} else if (control == CONTROL_PROG_WINDOW_REQUEST || control == CONTROL_PROG_BROADCAST_REQUEST) {
+				if (bytesPerPacket == 0 || getPageCount() > BROADCAST_MAX_PAGES) {
+					reset();
+					return START_OVER;
+				}
+
+				trackPages = true;
+			} else if (control == CONTROL_PROG_RESUME_REQUEST) {
+				if (uploadTag == 0 || pendingTag != uploadTag || pagesTag != uploadTag || pagesBytesPerPacket != bytesPerPacket
+						|| bytesPerPacket == 0 || getPageCount() > BROADCAST_MAX_PAGES) {
+					reset();
+					return START_OVER;
+				}
+
+				trackPages = true;
+				tagCleared = true;
+			}
+
+			return OK;
+		} else if ((control == CONTROL_PROG_DATA || control == CONTROL_PROG_DATA_COMPRESSED || control == CONTROL_PROG_DATA_BROADCAST) && inProgramming) {
+			if (isTimeout()) {
+				reset();
+				return TIMEOUT;
+			}
+
+			int address = get(p, 4) << 8 | get(p, 5);
+
+			if (trackPages) {
+				if (address >= programSize || address % bytesPerPacket != 0) {
+					return ADDRESS_SKIP_ERROR;
+				}
+			} else if (address > maxAddress) {
+				// below is a retry of a page already written
+				return ADDRESS_SKIP_ERROR;
+			}
+
+			byte[] data = p;
+			int dataOffset = PROG_DATA_HEADER_SIZE;
+			int dataLength = get(p, 3) - PROG_DATA_HEADER_SIZE;
+
+			if (control == CONTROL_PROG_DATA_COMPRESSED) {
+				dataLength = get(p, 6);
+
+				if (dataLength > PROG_PAGE_SIZE) {
+					return DECOMPRESS_ERROR;
+				}
+
+				try {
+					PageCompressor.decompress(Arrays.copyOfRange(p, PROG_COMPRESSED_DATA_HEADER_SIZE, get(p, 3)), get(p, 3) - PROG_COMPRESSED_DATA_HEADER_SIZE, ByteBuffer.wrap(eeprom, EEPROM_OFFSET_ADDRESS, EEPROM_SIZE - EEPROM_OFFSET_ADDRESS), address, decoded, dataLength);
+				} catch (RuntimeException e) {
+					return DECOMPRESS_ERROR;
+				}
+
+				data = decoded;
+				dataOffset = 0;
+			}
+
+			if (trackPages && address + dataLength > programSize) {
+				return ADDRESS_SKIP_ERROR;
+			}
+
+			if (EEPROM_OFFSET_ADDRESS + address + dataLength > EEPROM_SIZE) {
+				return EEPROM_WRITE_ERROR;
+			}
+
+			if (!tagCleared) {
+				// eeprom no longer holds a complete image until flashed
+				imageTag = 0;
+				pendingTag = uploadTag;
+				tagCleared = true;
+			}
+
+			System.arraycopy(data, dataOffset, eeprom, EEPROM_OFFSET_ADDRESS + address, dataLength);
+			writeDelay();
+
+			if (bytesPerPacket > 0 && address / bytesPerPacket < BROADCAST_MAX_PAGES) {
+				writtenPages.set(address / bytesPerPacket);
+			}
+
+			maxAddress = Math.max(maxAddress, address + dataLength);
+		} else if (control == CONTROL_FLASH_START && inProgramming) {
+			if (isTimeout()) {
+				reset();
+				return TIMEOUT;
+			} else if (flashed) {
+				// retry
+				return OK;
+			}
+
+			int size = get(p, 4) << 8 | get(p, 5);
+
+			if (trackPages ? !allPagesWritten() : size != maxAddress) {
+				return START_OVER;
+			} else if (size != programSize) {
+				return START_OVER;
+			}
+
+			program = Arrays.copyOfRange(eeprom, EEPROM_OFFSET_ADDRESS, EEPROM_OFFSET_ADDRESS + size);
+			flashed = true;
+			flashes++;
+
+			if (uploadTag != 0) {
+				imageTag = uploadTag;
+			}
+		} else if (control == CONTROL_MISSING_PAGES && inProgramming) {
+			if (bytesPerPacket == 0 || getPageCount() > BROADCAST_MAX_PAGES) {
+				return START_OVER;
+			}
+		} else if (control == CONTROL_PAGE_BITMAP && inProgramming && deltaUpload) {
+			if (isTimeout()) {
+				reset();
+				return TIMEOUT;
+			}
+
+			int offset = get(p, 5);
+			int length = get(p, 3) - PROG_DATA_HEADER_SIZE;
+
+			if (length < 0 || offset + length > BROADCAST_MAX_PAGES / 8) {
+				return START_OVER;
+			}
+
+			for (int i = 0; i < length; i++) {
+				for (int bit = 0; bit < 8; bit++) {
+					if ((get(p, PROG_DATA_HEADER_SIZE + i) & (1 << bit)) != 0) {
+						writtenPages.set((offset + i) * 8 + bit);
+					}
+				}
+			}
+		} else if (control == CONTROL_PROBE) {
+			int probeLength = get(p, 3) - PROG_DATA_HEADER_SIZE;
+			int id = get(p, 4) << 8 | get(p, 5);
+
+			if (probeLength > PROG_PAGE_SIZE) {
+				return PROBE_ERROR;
+			}
+
+			for (int i = 0; i < probeLength; i++) {
+				if (get(p, PROG_DATA_HEADER_SIZE + i) != ((id + i) & 0xff)) {
+					return PROBE_ERROR;
+				}
+			}
+
+			// doesn't affect programming, so no timeout update
+			return OK;
+		} else {
+			// not expecting prog data
+			return START_OVER;
+		}
+
+		lastUpdateMillis = System.currentTimeMillis();
+		return OK;
+	}
+
+	/**
+	 * Reply with a bit set for each page not yet written, least significant first
+	 */
+	private int[] missingPages(int[] reply) {
+		int pages = getPageCount();
+		int[] result = Arrays.copyOf(reply, reply.length + (pages + 7) / 8);
+
+		for (int page = 0; page < pages; page++) {
+			if (!writtenPages.get(page)) {
+				result[reply.length + page / 8] |= 1 << (page % 8);
+			}
+		}
+
+		return result;
+	}
+
+	private int getPageCount() {
+		return (programSize + bytesPerPacket - 1) / bytesPerPacket;
+	}
+
+	private boolean allPagesWritten() {
+		return writtenPages.nextClearBit(0) >= getPageCount();
+	}
+
+	/**
+	 * The arduino can't handle the next packet until the eeprom write completes
+	 */
+	private void writeDelay() {
+		if (eepromWriteMicros == 0) {
+			return;
+		}
+
+		try {
+			Thread.sleep(eepromWriteMicros / 1000, (eepromWriteMicros % 1000) * 1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean isTimeout() {
+		return timeoutMillis > 0 && System.currentTimeMillis() - lastUpdateMillis > timeoutMillis;
+	}
+
+	private void reset() {
+		inProgramming = false;
+		programSize = 0;
+		bytesPerPacket = 0;
+		timeoutMillis = 0;
+		maxAddress = 0;
+		flashed = false;
+		tagCleared = false;
+		uploadTag = 0;
+		trackPages = false;
+		deltaUpload = false;
+	}
+
+	private int get(byte[] p, int i) {
+		return i < p.length ? p[i] & 0xff : 0;
+	}
+
+	private int getTag(byte[] p, int offset) {
+		return get(p, offset) << 24 | get(p, offset + 1) << 16 | get(p, offset + 2) << 8 | get(p, offset + 3);
+	}
+
+	/**
+	 * The program of the last flash, or null if never flashed
+	 */
+	public synchronized byte[] getProgram() {
+		return program;
+	}
+
+	public synchronized int getFlashes() {
+		return flashes;
+	}
+
+	/**
+	 * Programming packets received
+	 */
+	public synchronized int getPackets() {
+		return packets;
+	}
+
+	public synchronized int getEepromWriteMicros() {
+		return eepromWriteMicros;
+	}
+
+	/**
+	 * How long writing a page to eeprom takes. A 24LC256 takes up to 5ms per write. Default is 0
+	 */
+	public synchronized void setEepromWriteMicros(int eepromWriteMicros) {
+		this.eepromWriteMicros = eepromWriteMicros;
+	}
+}
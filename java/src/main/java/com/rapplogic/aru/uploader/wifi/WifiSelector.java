@@ -0,0 +1,451 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.wifi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One thread that does the socket io of many wifi uploads, with non-blocking channels, instead of a socket and reader thread per
+ * ESP8266. Replies (5 bytes + CR/LF) are decoded from pooled buffers, and the packets waiting to be sent on a connection are written
+ * with one gathering write
+ *
+ * This only removes the reader threads. Each running upload still has a thread of its own, blocked waiting for acks, so threads
+ * grow with the uploads in progress, not with the devices connected
+ *
+ * @author andrew
+ *
+ */
+public class WifiSelector {
+
+	final Logger log = Logger.getLogger(WifiSelector.class);
+
+	// magic bytes, code and id
+	private final static int REPLY_SIZE = 5;
+	private final static int FRAME_SIZE = REPLY_SIZE + 2;
+	// fits any packet the wifi sketch accepts, plus CR/LF
+	private final static int WRITE_BUFFER_SIZE = 256;
+	// buffers kept for reuse. more are allocated if needed and dropped when returned
+	private final static int MAX_POOLED = 1024;
+
+	private final static ByteBuffer CRLF = ByteBuffer.wrap(new byte[] { 13, 10 }).asReadOnlyBuffer();
+
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	// registrations, writes and closes are done by the selector thread
+	private final Queue<Connection> pendingConnects = new ConcurrentLinkedQueue<Connection>();
+	private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+	private final Queue<Connection> pendingCloses = new ConcurrentLinkedQueue<Connection>();
+
+	private final BufferPool readBuffers = new BufferPool(FRAME_SIZE * 8);
+	private final BufferPool writeBuffers = new BufferPool(WRITE_BUFFER_SIZE);
+
+	/**
+	 * Receives the replies of a connection, on the selector thread
+	 */
+	public interface ReplyHandler {
+		/**
+		 * The array is reused for the connection's next reply, copy anything that is kept
+		 */
+		void handleReply(int[] reply);
+		
+		/**
+		 * The device closed the connection or it broke
+		 */
+		void handleDisconnect();
+	}
+
+	public WifiSelector() throws IOException {
+		selector = Selector.open();
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					select();
+				} catch (ClosedSelectorException e) {
+					// closed
+				} catch (Exception e) {
+					log.error("Wifi selector failed", e);
+				}
+			}
+		}, "wifi-selector");
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connects to the device. Blocks until connected
+	 */
+	public Connection connect(String host, int port, int connectionTimeoutMillis, ReplyHandler replyHandler) throws IOException, InterruptedException {
+		InetSocketAddress address = new InetSocketAddress(host, port);
+
+		if (address.isUnresolved()) {
+			throw new UnknownHostException(host);
+		}
+
+		SocketChannel channel = SocketChannel.open();
+		Connection connection;
+
+		try {
+			channel.configureBlocking(false);
+			// packets are small and acked one at a time (or a window at a time), don't wait to fill a segment
+			channel.socket().setTcpNoDelay(true);
+
+			connection = new Connection(channel, replyHandler);
+
+			if (channel.connect(address)) {
+				connection.connected.countDown();
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		pendingConnects.add(connection);
+		selector.wakeup();
+
+		if (!connection.connected.await(connectionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+			connection.close();
+			throw new SocketTimeoutException("Connection to " + host + ":" + port + " timed out after " + connectionTimeoutMillis + "ms");
+		}
+
+		if (connection.error != null) {
+			throw connection.error;
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Stops the selector thread and closes every connection, including those still waiting to be registered or closed
+	 */
+	public void close() throws IOException {
+		if (!selector.isOpen()) {
+			return;
+		}
+
+		running = false;
+		selector.wakeup();
+
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// the selector thread is done, so the connections are ours
+		for (SelectionKey key : selector.keys()) {
+			release((Connection) key.attachment());
+		}
+
+		Connection connection;
+
+		while ((connection = pendingConnects.poll()) != null) {
+			failed(connection, new IOException("Wifi selector closed"));
+		}
+
+		while ((connection = pendingCloses.poll()) != null) {
+			release(connection);
+		}
+
+		pendingWrites.clear();
+		selector.close();
+	}
+
+	private void select() throws IOException {
+		while (running) {
+			selector.select();
+
+			Connection connection;
+
+			while ((connection = pendingConnects.poll()) != null) {
+				if (connection.closed) {
+					continue;
+				}
+
+				try {
+					if (connection.connected.getCount() > 0) {
+						connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+					} else {
+						connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+				} catch (IOException e) {
+					failed(connection, e);
+				}
+			}
+
+			while ((connection = pendingWrites.poll()) != null) {
+				if (connection.key != null && connection.key.isValid()) {
+					// the device may have reset the connection since select returned
+					try {
+						write(connection);
+					} catch (IOException e) {
+						failed(connection, e);
+					}
+				}
+			}
+
+			while ((connection = pendingCloses.poll()) != null) {
+				release(connection);
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				connection = (Connection) key.attachment();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isConnectable()) {
+						connection.channel.finishConnect();
+						key.interestOps(SelectionKey.OP_READ);
+						connection.connected.countDown();
+						// packets sent before the connect finished
+						write(connection);
+					}
+
+					if (key.isValid() && key.isReadable()) {
+						read(connection);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						write(connection);
+					}
+				} catch (IOException e) {
+					failed(connection, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ends a connection that broke. A connection still connecting gets the error from connect(), the others a disconnect
+	 */
+	private void failed(Connection connection, IOException e) {
+		log.debug("Wifi connection error", e);
+
+		if (connection.connected.getCount() > 0) {
+			// connect failed, connect() throws it
+			connection.error = e;
+			connection.connected.countDown();
+		}
+
+		release(connection);
+	}
+
+	private void read(Connection connection) throws IOException {
+		if (connection.channel.read(connection.readBuffer) == -1) {
+			release(connection);
+			return;
+		}
+
+		ByteBuffer buffer = connection.readBuffer;
+		buffer.flip();
+
+		int[] reply = connection.reply;
+
+		while (buffer.remaining() >= FRAME_SIZE) {
+			for (int i = 0; i < REPLY_SIZE; i++) {
+				reply[i] = buffer.get() & 0xff;
+			}
+
+			if (buffer.get() != 13 || buffer.get() != 10) {
+				throw new IOException("Expected CR/LF after reply " + reply[2] + " to " + (reply[3] << 8 | reply[4]));
+			}
+
+			connection.replyHandler.handleReply(reply);
+		}
+
+		// part of a reply stays for the next read
+		buffer.compact();
+	}
+
+	/**
+	 * Writes as much of the waiting packets as the socket takes, in one gathering write
+	 */
+	private void write(Connection connection) throws IOException {
+		if (connection.connected.getCount() > 0 || connection.closed) {
+			return;
+		}
+
+		synchronized (connection.writeQueue) {
+			if (!connection.writeQueue.isEmpty()) {
+				ByteBuffer[] buffers = connection.writeQueue.toArray(new ByteBuffer[connection.writeQueue.size()]);
+				connection.channel.write(buffers);
+
+				while (!connection.writeQueue.isEmpty() && !connection.writeQueue.peek().hasRemaining()) {
+					ByteBuffer written = connection.writeQueue.poll();
+
+					// packets too big for a pooled buffer are heap buffers
+					if (written.isDirect() && !written.isReadOnly()) {
+						writeBuffers.release(written);
+					}
+				}
+			}
+
+			// wait for room in the socket buffer if it didn't take everything
+			connection.key.interestOps(connection.writeQueue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	private void release(Connection connection) {
+		boolean lost = !connection.closed;
+		connection.closed = true;
+
+		if (connection.key != null) {
+			connection.key.cancel();
+		}
+
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+
+		synchronized (connection.writeQueue) {
+			if (connection.readBuffer != null) {
+				readBuffers.release(connection.readBuffer);
+				connection.readBuffer = null;
+			}
+
+			connection.writeQueue.clear();
+		}
+
+		if (lost && connection.error == null) {
+			connection.replyHandler.handleDisconnect();
+		}
+	}
+
+	/**
+	 * Direct buffers of one size, shared by all connections. The size is counted since ConcurrentLinkedQueue.size() walks the queue
+	 */
+	private static class BufferPool {
+		private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger size = new AtomicInteger();
+		private final int bufferSize;
+
+		BufferPool(int bufferSize) {
+			this.bufferSize = bufferSize;
+		}
+
+		ByteBuffer get() {
+			ByteBuffer buffer = buffers.poll();
+
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(bufferSize);
+			} else {
+				size.decrementAndGet();
+			}
+
+			buffer.clear();
+			return buffer;
+		}
+
+		void release(ByteBuffer buffer) {
+			// may go a little over the cap when releases race, fine for a cap
+			if (size.get() < MAX_POOLED) {
+				size.incrementAndGet();
+				buffers.add(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Connection to one device
+	 */
+	public class Connection {
+		private final SocketChannel channel;
+		private final ReplyHandler replyHandler;
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+		private ByteBuffer readBuffer = readBuffers.get();
+		// handed to the reply handler, reused for each reply
+		private final int[] reply = new int[REPLY_SIZE];
+		private SelectionKey key;
+		private volatile boolean closed;
+		private volatile IOException error;
+
+		private Connection(SocketChannel channel, ReplyHandler replyHandler) {
+			this.channel = channel;
+			this.replyHandler = replyHandler;
+		}
+
+		/**
+		 * Queues the packet, followed by CR/LF, to be written by the selector thread
+		 */
+		public void send(int[] data) throws IOException {
+			if (closed) {
+				throw new IOException("Connection is closed", error);
+			}
+
+			ByteBuffer packet = data.length <= WRITE_BUFFER_SIZE ? writeBuffers.get() : ByteBuffer.allocate(data.length);
+
+			for (int i = 0; i < data.length; i++) {
+				packet.put((byte) (data[i] & 0xff));
+			}
+
+			packet.flip();
+
+			synchronized (writeQueue) {
+				writeQueue.add(packet);
+				// every transmission must end with CR/LF
+				writeQueue.add(CRLF.duplicate());
+			}
+
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		public void close() {
+			closed = true;
+			pendingCloses.add(this);
+			selector.wakeup();
+		}
+	}
+}
@@ -23,35 +23,70 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.text.ParseException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionBuilder;
+import org.apache.log4j.Logger;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.rapplogic.aru.uploader.CliOptions;
 import com.rapplogic.aru.uploader.SketchUploader;
+import com.rapplogic.aru.uploader.UploadListener.MessageEvent;
 import com.rapplogic.xbee.api.XBeeException;
 
 public class WifiSketchUploader extends SketchUploader {
 	
+	final Logger log = Logger.getLogger(WifiSketchUploader.class);
+	
 	// this is up for debate. esp seems to drop more packets around low forties. and fails outright around 46
 	public final int WIFI_PAGE_SIZE = 32;
+	// packet buffer of the ESP8266Uploader sketch. with --probe-page-size pages grow up to this if they get through
+	public final int WIFI_MAX_PACKET_SIZE = 64;
 	private Socket socket = null;
 	private volatile boolean connected;
+	// when set, connects through the selector instead of a socket and reader thread of its own
+	private WifiSelector selector;
+	private WifiSelector.Connection connection;
+	
+	// a dropped connection is reopened this many times, waiting twice as long after each failed attempt up to the max delay
+	private int maxReconnectAttempts = 10;
+	private final int RECONNECT_MIN_DELAY_MS = 100;
+	private final int RECONNECT_MAX_DELAY_MS = 5000;
+	// why the reader lost the connection, reported by the upload thread when it reconnects
+	private volatile Exception readerError;
+	// id of the last packet the arduino acked, so we know where the upload continues after a reconnect
+	private volatile int lastAckedId = -1;
 	
 	public final static String host = "host";
 	public final static String port = "port";
 	public final static String connectionTimeoutSecs = "socket-connection-timeout-s";
 	public final static String readTimeoutSecs = "socket-read-timeout-s";	
+	public final static String fleetConcurrency = "fleet-concurrency";
+	public final static String reconnectAttempts = "reconnect-attempts";
 	
 	public WifiSketchUploader() {
 		super();
 	}
 
-	public void flash(String file, String host, int port, int connectionTimeoutSecs, int readTimeoutSecs, final boolean verbose, int ackTimeoutMillis, int arduinoTimeoutSecs, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
+	/**
+	 * Flashes the sketch to the wifi device
+	 * 
+	 * @return true if the sketch was flashed
+	 */
+	public boolean flash(String file, String host, int port, int connectionTimeoutSecs, int readTimeoutSecs, final boolean verbose, int ackTimeoutMillis, int arduinoTimeoutSecs, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
 		Map<String,Object> context = Maps.newHashMap();
 		
 		context.put("host", host);
@@ -62,7 +97,11 @@ public class WifiSketchUploader extends SketchUploader {
 		// determine max data we can send with each programming packet
 		// NOTE remember to size the array on the Arduino accordingly to accomadate this size
 		int pageSize = WIFI_PAGE_SIZE - getProgramPageHeader(0, 0).length;
-		super.process(file, pageSize, ackTimeoutMillis, arduinoTimeoutSecs, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
+		
+		lastAckedId = -1;
+		readerError = null;
+		
+		return super.process(file, pageSize, ackTimeoutMillis, arduinoTimeoutSecs, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
 	}
 
 //	private int[] toIntArray(List<Integer> list) {
@@ -86,6 +125,57 @@ public class WifiSketchUploader extends SketchUploader {
 	
 	private Thread t;
 	
+	/**
+	 * Flashes the sketch to each host:port in the list, with up to maxConcurrent uploads at a time. The socket io of all of them is
+	 * done by one selector thread
+	 * 
+	 * @return the devices that were not flashed
+	 */
+	public List<String> flashFleet(final String file, List<String> devices, int maxConcurrent, final int connectionTimeoutSecs, final boolean verbose, final int ackTimeoutMillis, final int arduinoTimeoutSecs, final int retriesPerPacket, final int delayBetweenRetriesMillis) throws IOException, InterruptedException {
+		WifiSelector selector = new WifiSelector();
+		ExecutorService executor = Executors.newFixedThreadPool(maxConcurrent);
+		List<Future<Boolean>> results = Lists.newArrayList();
+		List<String> failed = Lists.newArrayList();
+		long start = System.currentTimeMillis();
+		
+		try {
+			for (String device : devices) {
+				final String host = device.substring(0, device.lastIndexOf(':'));
+				final int port = Integer.parseInt(device.substring(device.lastIndexOf(':') + 1));
+				final WifiSketchUploader upload = new WifiSketchUploader();
+				copySettings(upload);
+				upload.setSelector(selector);
+				
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						// no read timeout, acks have their own
+						return upload.flash(file, host, port, connectionTimeoutSecs, 0, verbose, ackTimeoutMillis, arduinoTimeoutSecs, retriesPerPacket, delayBetweenRetriesMillis);
+					}
+				}));
+			}
+			
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					if (!results.get(i).get()) {
+						failed.add(devices.get(i));
+					}
+				} catch (ExecutionException e) {
+					log.error("Upload to " + devices.get(i) + " failed", e.getCause());
+					failed.add(devices.get(i));
+				}
+			}
+		} finally {
+			// interrupts uploads still running
+			executor.shutdownNow();
+			selector.close();
+		}
+		
+		fireMessage(MessageEvent.Level.INFO, "Flashed " + (devices.size() - failed.size()) + " of " + devices.size() + " wifi devices in " + (System.currentTimeMillis() - start) / 1000 + "s" + (failed.isEmpty() ? "" : ", failed: " + Joiner.on(", ").join(failed)));
+		
+		return failed;
+	}
+	
 	@Override
 	protected void open(final Map<String, Object> context) throws Exception {
 		
@@ -94,26 +184,44 @@ public class WifiSketchUploader extends SketchUploader {
 		Integer connectionTimeoutSecs = (Integer) context.get("connectionTimeoutSecs");
 		Integer readTimeoutSecs = (Integer) context.get("readTimeoutSecs");		
 		
+		if (selector != null) {
+			connection = selector.connect(host, port, connectionTimeoutSecs * 1000, new WifiSelector.ReplyHandler() {
+				@Override
+				public void handleReply(int[] reply) {
+					WifiSketchUploader.this.handleReply(reply);
+				}
+
+				@Override
+				public void handleDisconnect() {
+					connectionLost();
+				}
+			});
+			
+			return;
+		}
+		
 		// open socket
-		socket = new Socket();
-		socket.connect(new InetSocketAddress(host, port), connectionTimeoutSecs*1000);
-		socket.setSoTimeout(readTimeoutSecs*1000);
+		final Socket readerSocket = new Socket();
+		readerSocket.connect(new InetSocketAddress(host, port), connectionTimeoutSecs*1000);
+		readerSocket.setSoTimeout(readTimeoutSecs*1000);
 		
+		socket = readerSocket;
 		connected = true;
 		
 		final int[] reply = new int[5];
 		final AtomicInteger replyIndex = new AtomicInteger(0);
 
-		// TODO unlike other wireless protocols, wifi is stateful so we need to handle situations where we lose the socket and reconnect
+		// unlike other wireless protocols, wifi is stateful. if the socket is lost writeData reconnects
 		
 		t = new Thread(new Runnable() {			
 			@Override
 			public void run() {
 				int ch = 0;
+				Exception error = null;
 				
 				// reply always terminated with 13,10
 				try {
-					while ((ch = socket.getInputStream().read()) > -1) {
+					while ((ch = read(readerSocket)) > -1) {
 						if (replyIndex.get() < reply.length) {
 							reply[replyIndex.getAndIncrement()] = ch;							
 						} else if (replyIndex.get() == 5 && ch == 13) {
@@ -133,15 +241,18 @@ public class WifiSketchUploader extends SketchUploader {
 					if (!connected && e instanceof SocketException) {
 						// expected.. ignore
 					} else {
-						System.out.println("IO error in socket reader");
-						e.printStackTrace();		
+						error = e;
 					}
 				} catch (Exception e) {
-					System.out.println("Unexpected error in socket reader");
-					e.printStackTrace();
+					error = e;
 				}
 				
-				connected = false;
+				// a reader of a socket we already replaced must leave the new one alone
+				if (socket == readerSocket && connected) {
+					connected = false;
+					readerError = error;
+					connectionLost();
+				}
 			}
 		});
 		
@@ -149,18 +260,127 @@ public class WifiSketchUploader extends SketchUploader {
 		t.start();
 	}
 	
+	@Override
 	protected boolean isConnected() {
-		return connected;
+		return connection != null ? connection.isOpen() : connected;
+	}
+	
+	/**
+	 * Next byte from the socket. A socket kept open between uploads is idle for longer than the read timeout, which doesn't end it
+	 */
+	private int read(Socket socket) throws IOException {
+		while (true) {
+			try {
+				return socket.getInputStream().read();
+			} catch (SocketTimeoutException e) {
+				if (!isKeepOpen() || !connected) {
+					throw e;
+				}
+			}
+		}
 	}
 	
 	private void handleReply(int[] reply) {
 		//System.out.println("Received reply " + intArrayToString(reply));
 		// { MAGIC_BYTE1, MAGIC_BYTE2, 0, 0, 0};
-		addReply(reply);
+		// reply array is reused for the next reply
+		if (reply[2] == OK) {
+			lastAckedId = getPacketId(reply);
+		}
+		
+		addReply(reply[2], getPacketId(reply));
+	}
+	
+	/**
+	 * Called by the reader when the device closes the connection or it breaks
+	 */
+	private void connectionLost() {
+		// the packet waiting for an ack is resent now, on a new connection, instead of after the ack timeout
+		addReply(RETRY, 0);
 	}
 	
 	@Override
 	protected void writeData(int[] data, Map<String,Object> context) throws Exception {
+		for (int attempt = 0;; attempt++) {
+			if (!isConnected()) {
+				reconnect(context);
+			}
+			
+			try {
+				write(data);
+				return;
+			} catch (IOException e) {
+				// the reader hasn't noticed it's gone yet
+				if (attempt > 0) {
+					throw e;
+				}
+				
+				if (isVerbose()) {
+					fireMessage(MessageEvent.Level.DEBUG, "Write to wifi device failed (" + e.getMessage() + ")");
+				}
+				
+				close();
+			}
+		}
+	}
+	
+	/**
+	 * Opens a new connection to the device, with bounded exponential backoff between attempts. The arduino stays in programming mode
+	 * (until the arduino timeout), so the upload continues with the packet after the last one acked
+	 */
+	private void reconnect(Map<String,Object> context) throws Exception {
+		if (maxReconnectAttempts == 0) {
+			throw new IOException("Lost connection to " + context.get("host") + ":" + context.get("port"));
+		}
+		
+		Exception cause = readerError;
+		readerError = null;
+		
+		if (cause != null && !(cause instanceof IOException)) {
+			fireMessage(MessageEvent.Level.ERROR, "Unexpected error in socket reader", cause);
+		} else {
+			fireMessage(MessageEvent.Level.INFO, "Lost connection to " + context.get("host") + ":" + context.get("port") + (cause != null ? " (" + cause.getMessage() + ")" : "") + ", reconnecting");
+		}
+		
+		long start = System.nanoTime();
+		long delay = RECONNECT_MIN_DELAY_MS;
+		
+		for (int attempt = 1;; attempt++) {
+			try {
+				close();
+			} catch (Exception e) {
+				// closing anyway
+			}
+			
+			try {
+				open(context);
+				break;
+			} catch (IOException e) {
+				if (attempt == maxReconnectAttempts) {
+					throw new IOException("Unable to reconnect to " + context.get("host") + ":" + context.get("port") + " after " + attempt + " attempts", e);
+				}
+				
+				if (isVerbose()) {
+					fireMessage(MessageEvent.Level.DEBUG, "Reconnect attempt " + attempt + " failed (" + e.getMessage() + "), retrying in " + delay + "ms");
+				}
+				
+				Thread.sleep(delay);
+				delay = Math.min(delay * 2, RECONNECT_MAX_DELAY_MS);
+			}
+		}
+		
+		long latency = System.nanoTime() - start;
+		getMetrics().reconnected(latency);
+		
+		fireMessage(MessageEvent.Level.INFO, "Reconnected to " + context.get("host") + ":" + context.get("port") + " in " + latency / 1000000 + "ms, continuing " + (lastAckedId == -1 ? "from the start" : "after the last acked packet, id " + lastAckedId));
+	}
+	
+	private void write(int[] data) throws IOException {
+		if (connection != null) {
+			connection.send(data);
+			return;
+		}
+		
 		// ugh, convert to byte[] required or esp will receive multiple IPD commands
 		byte[] b = new byte[data.length + 2];
 		
@@ -177,9 +397,17 @@ public class WifiSketchUploader extends SketchUploader {
 
 	@Override
 	protected void close() throws Exception {
+		if (connection != null) {
+			connection.close();
+			connection = null;
+			return;
+		}
+		
 		connected = false;
 		// close socket
-		socket.close();
+		if (socket != null) {
+			socket.close();
+		}
 	}
 
 	@Override
@@ -187,7 +415,39 @@ public class WifiSketchUploader extends SketchUploader {
 		return "wifi";
 	}
 	
-	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException {
+	@Override
+	protected String getDeviceId(Map<String, Object> context) {
+		return "wifi-" + context.get("host") + ":" + context.get("port");
+	}
+	
+	@Override
+	protected int getMaxPacketSize(Map<String, Object> context) {
+		return WIFI_MAX_PACKET_SIZE;
+	}
+	
+	public int getMaxReconnectAttempts() {
+		return maxReconnectAttempts;
+	}
+
+	/**
+	 * How many times a lost connection is reopened before the packet fails. 0 fails on the first loss
+	 */
+	public void setMaxReconnectAttempts(int maxReconnectAttempts) {
+		this.maxReconnectAttempts = maxReconnectAttempts;
+	}
+	
+	public WifiSelector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Shares the selector's thread with other uploads instead of a reader thread per upload. Set to null to use a socket of its own
+	 */
+	public void setSelector(WifiSelector selector) {
+		this.selector = selector;
+	}
+	
+	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException, InterruptedException {
 		CliOptions cliOptions = getCliOptions();
 	
 		cliOptions.addOption(
@@ -195,7 +455,7 @@ public class WifiSketchUploader extends SketchUploader {
 				.withLongOpt(host)
 				.hasArg()
 				.isRequired(true)
-				.withDescription("Host ip address of wifi device. Required")
+				.withDescription("Host ip address of wifi device, or a comma separated list of host or host:port to flash many devices. Required")
 				.create("x")); // single arg is optional
 
 		cliOptions.addOption(
@@ -229,12 +489,60 @@ public class WifiSketchUploader extends SketchUploader {
 				.withDescription("Connection read seconds")
 				.create("v"));
 		
+		cliOptions.getDefaults().put(reconnectAttempts, Integer.toString(maxReconnectAttempts));
+		
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(reconnectAttempts)
+				.hasArg()
+				.isRequired(false)
+				.withType(Number.class)
+				.withDescription("Times a lost connection is reopened, with backoff, before giving up. The upload continues where it left off if the Arduino hasn't timed out. Default is " + cliOptions.getDefaults().get(reconnectAttempts))
+				.create());
+		
+		cliOptions.getDefaults().put(fleetConcurrency, "32");
+		
+		cliOptions.addOption(
+				OptionBuilder
+				.withLongOpt(fleetConcurrency)
+				.hasArg()
+				.isRequired(false)
+				.withType(Number.class)
+				.withDescription("Most devices of a list to upload to at once. Default is " + cliOptions.getDefaults().get(fleetConcurrency))
+				.create());
+		
 		cliOptions.build();
 		
 		CommandLine commandLine = cliOptions.parse(args);
 
-		if (commandLine != null) {						
-			new WifiSketchUploader().flash(
+		if (commandLine != null) {
+			WifiSketchUploader wifiSketchUploader = new WifiSketchUploader();
+			wifiSketchUploader.configure(cliOptions);
+			wifiSketchUploader.setMaxReconnectAttempts(cliOptions.getIntegerOption(reconnectAttempts));
+			
+			List<String> hosts = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(commandLine.getOptionValue(host)));
+			
+			if (hosts.size() > 1) {
+				List<String> devices = Lists.newArrayList();
+				
+				for (String device : hosts) {
+					devices.add(device.contains(":") ? device : device + ":" + cliOptions.getIntegerOption(port));
+				}
+				
+				wifiSketchUploader.flashFleet(
+						commandLine.getOptionValue(CliOptions.sketch),
+						devices,
+						cliOptions.getIntegerOption(fleetConcurrency),
+						cliOptions.getIntegerOption(connectionTimeoutSecs),
+						commandLine.hasOption(CliOptions.verboseArg),
+						cliOptions.getIntegerOption(CliOptions.ackTimeoutMillisArg),
+						cliOptions.getIntegerOption(CliOptions.arduinoTimeoutArg),
+						cliOptions.getIntegerOption(CliOptions.retriesPerPacketArg),
+						cliOptions.getIntegerOption(CliOptions.delayBetweenRetriesMillisArg));
+				return;
+			}
+			
+			wifiSketchUploader.flash(
 					commandLine.getOptionValue(CliOptions.sketch), 
 					commandLine.getOptionValue(host), 
 					cliOptions.getIntegerOption(port), 
@@ -266,7 +574,7 @@ Successfully flashed remote Arduino in 7s, with 0 retries
 	 * @throws ParseException
 	 * @throws org.apache.commons.cli.ParseException
 	 */
-	public static void main(String[] args) throws NumberFormatException, IOException, ParseException, org.apache.commons.cli.ParseException {		
+	public static void main(String[] args) throws NumberFormatException, IOException, ParseException, org.apache.commons.cli.ParseException, InterruptedException {		
 		initLog4j();		
 		WifiSketchUploader wifiSketchUploader = new WifiSketchUploader();
 		wifiSketchUploader.runFromCmdLine(args);
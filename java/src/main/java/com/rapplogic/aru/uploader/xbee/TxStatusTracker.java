@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader.xbee;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tx requests awaiting a tx status from the local xbee, by frame id. A failed status, or none within the timeout, is handed to
+ * the upload that sent the packet so it can resend it right away. The uploads of a fleet share one, as they share the radio
+ *
+ * @author andrew
+ *
+ */
+class TxStatusTracker {
+
+	interface Listener {
+		/**
+		 * @param packetId id of the packet that was not delivered
+		 */
+		void txFailed(int packetId, String reason);
+	}
+
+	// frame id 0 asks for no tx status
+	private static final int MAX_FRAME_ID = 0xff;
+
+	private final AtomicReferenceArray<Tx> pending = new AtomicReferenceArray<Tx>(MAX_FRAME_ID + 1);
+	private final AtomicInteger frameId = new AtomicInteger();
+	private ScheduledExecutorService timer;
+
+	private static class Tx {
+		private final int packetId;
+		private final Listener listener;
+
+		Tx(int packetId, Listener listener) {
+			this.packetId = packetId;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Next frame id, 1 to 255
+	 */
+	int nextFrameId() {
+		// wraps at 255 rather than at int overflow, which a long running daemon reaches
+		while (true) {
+			int last = frameId.get();
+			int next = last % MAX_FRAME_ID + 1;
+
+			if (frameId.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Call before sending the request, so its status can't arrive first. A frame id still pending from 255 requests ago is
+	 * replaced, its status would be ambiguous
+	 */
+	void sent(final int frameId, int packetId, Listener listener, final int timeoutMillis) {
+		final Tx tx = new Tx(packetId, listener);
+		pending.set(frameId, tx);
+
+		getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.compareAndSet(frameId, tx, null)) {
+					tx.listener.txFailed(tx.packetId, "no tx status after " + timeoutMillis + "ms");
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called with each tx status from the radio. Ignored if it timed out already
+	 */
+	void status(int frameId, boolean success, String status) {
+		Tx tx = pending.getAndSet(frameId & MAX_FRAME_ID, null);
+
+		if (tx != null && !success) {
+			tx.listener.txFailed(tx.packetId, "tx status " + status);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getTimer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "xbee-tx-status");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Forgets pending requests and stops the timer. It starts again with the next request
+	 */
+	synchronized void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+
+		for (int i = 0; i < pending.length(); i++) {
+			pending.set(i, null);
+		}
+	}
+}
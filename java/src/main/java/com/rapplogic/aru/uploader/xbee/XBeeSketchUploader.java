@@ -21,23 +21,37 @@ package com.rapplogic.aru.uploader.xbee;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.rapplogic.xbee.XBeeConnection;
 import com.rapplogic.xbee.socket.SocketXBeeConnection;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.OptionBuilder;
+import org.apache.log4j.Logger;
 
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+import com.rapplogic.aru.uploader.AckRouter.PendingAck;
 import com.rapplogic.aru.uploader.CliOptions;
 import com.rapplogic.aru.uploader.SketchUploader;
+import com.rapplogic.aru.uploader.UploadListener.MessageEvent;
 import com.rapplogic.xbee.api.ApiId;
 import com.rapplogic.xbee.api.PacketListener;
 import com.rapplogic.xbee.api.XBee;
 import com.rapplogic.xbee.api.XBeeAddress64;
 import com.rapplogic.xbee.api.XBeeException;
 import com.rapplogic.xbee.api.XBeeResponse;
-import com.rapplogic.xbee.api.XBeeTimeoutException;
+import com.rapplogic.xbee.api.XBeeRequest;
 import com.rapplogic.xbee.api.wpan.RxResponse;
 import com.rapplogic.xbee.api.wpan.RxResponse64;
 import com.rapplogic.xbee.api.wpan.TxRequest64;
@@ -58,25 +72,50 @@ import com.rapplogic.xbee.api.zigbee.ZNetTxStatusResponse;
  */
 public class XBeeSketchUploader extends SketchUploader {
 
-	// TODO make this run as a server where it's connected to the radios. control via curl api
+	final Logger log = Logger.getLogger(XBeeSketchUploader.class);
+
 	// TODO xbee just woke, send programming!
 	//final int WAKE = 4;
 	// block size for eeprom writes
-	// TODO make this configurable. series 1 radios can support a larger payload
+	// series 1 radios can support a larger payload, found with --probe-page-size
 	public final int XBEE_PAGE_SIZE = 64;
+	// max rf payload of each series (series 2 without encryption)
+	public final int XBEE_SERIES1_MAX_PACKET_SIZE = 100;
+	public final int XBEE_SERIES2_MAX_PACKET_SIZE = 84;
 	private int xbeeTxAckTimeoutMs = 500;
-
-	private final XBee xbee = new XBee();
+	// fleet pages are broadcast once, then each radio is sent the pages it missed
+	private boolean broadcast;
+	// between broadcast pages. zigbee networks limit how many broadcasts are in flight
+	private int broadcastDelayMs = 100;
+
+	private final XBee xbee;
+	// true for an upload of a fleet, where the fleet's xbee is already open and routes replies to us
+	private final boolean sharedXBee;
+	// requests sent without waiting for their tx status
+	private final TxStatusTracker txStatus;
 	
 	public enum Series { SERIES1, SERIES2 };
 	
 	public XBeeSketchUploader() {
+		this(new XBee(), false, new TxStatusTracker());
+	}
+	
+	private XBeeSketchUploader(XBee xbee, boolean sharedXBee, TxStatusTracker txStatus) {
 		super();
+		this.xbee = xbee;
+		this.sharedXBee = sharedXBee;
+		this.txStatus = txStatus;
 	}
 
-	public void flash(String file, String radioType, XBeeConnectionType xBeeConnectionType, String xbeeAddress, final boolean verbose, int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
+	/**
+	 * Flashes the sketch to the radio
+	 * 
+	 * @return true if the sketch was flashed
+	 */
+	public boolean flash(String file, String radioType, XBeeConnectionType xBeeConnectionType, String xbeeAddress, final boolean verbose, int ackTimeoutMillis, int arduinoTimeoutSec, int retriesPerPacket, int delayBetweenRetriesMillis) throws IOException {
 		Map<String,Object> context = Maps.newHashMap();
 		context.put("connectionType", xBeeConnectionType);
+		context.put("series", Series.valueOf(radioType.toUpperCase()));
 
 		XBeeAddress64 xBeeAddress64 = null;
 		
@@ -87,104 +126,327 @@ public class XBeeSketchUploader extends SketchUploader {
 		}
 		
 		context.put("xbeeAddress", xBeeAddress64);
+		context.put("deviceId", "xbee-" + xbeeAddress.toUpperCase());
 		
-		super.process(file, XBEE_PAGE_SIZE, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
+		return super.process(file, XBEE_PAGE_SIZE, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis, verbose, context);
 	}
 
 	@Override
 	protected void open(final Map<String, Object> context) throws Exception {
-
-		if (context.get("connectionType") instanceof LocalConnection) {
-			LocalConnection localConnection = (LocalConnection) context.get("connectionType");
+		if (sharedXBee) {
+			// opened by the fleet
+			return;
+		}
+		
+		openXBee((XBeeConnectionType) context.get("connectionType"));
+		
+		xbee.addPacketListener(new PacketListener() {
+			@Override
+			public void processResponse(XBeeResponse response) {
+				handleResponse(response);
+			}
+		});
+	}
+	
+	private void openXBee(XBeeConnectionType connectionType) throws XBeeException, IOException {
+		if (connectionType instanceof LocalConnection) {
+			LocalConnection localConnection = (LocalConnection) connectionType;
 			xbee.open((String) localConnection.getSerialPort(), localConnection.getBaudRate());
 		} else {
-			SerialServerConnection ser = (SerialServerConnection) context.get("connectionType");
+			SerialServerConnection ser = (SerialServerConnection) connectionType;
 			xbee.initProviderConnection((XBeeConnection)new SocketXBeeConnection(ser.getHost(), ser.getPort()));
 		}
+	}
+	
+	/**
+	 * Passes acks from the arduino on to the upload. A fleet calls this with the packets from this upload's radio
+	 */
+	private void handleResponse(XBeeResponse response) {
+		if (response.getApiId() == ApiId.ZNET_RX_RESPONSE || response.getApiId() == ApiId.RX_64_RESPONSE) {	
+			if (isVerbose()) {
+				System.out.println("Received rx packet from arduino " + response);							
+			}
 
-		final boolean verbose = (Boolean) context.get("verbose");
+			if (response.getApiId() == ApiId.ZNET_RX_RESPONSE) {
+				ZNetRxResponse zb = (ZNetRxResponse) response;
+				
+				if (zb.getData()[0] == MAGIC_BYTE1 && zb.getData()[1] == MAGIC_BYTE2) {
+					addReply(zb.getData()[2], getPacketId(zb.getData()), zb.getData());
+				} else {
+					System.out.println("Ignoring non-programming packet " + zb);
+				}						
+			} else {
+				RxResponse rx64 = (RxResponse64) response;
+				
+				if (rx64.getData()[0] == MAGIC_BYTE1 && rx64.getData()[1] == MAGIC_BYTE2) {
+					addReply(rx64.getData()[2], getPacketId(rx64.getData()), rx64.getData());
+				} else {
+					System.out.println("Ignoring non-programming packet " + rx64);
+				}							
+			}
+		} else if (response.getApiId() == ApiId.ZNET_TX_STATUS_RESPONSE) {
+			ZNetTxStatusResponse zNetTxStatusResponse = (ZNetTxStatusResponse) response;
+			// to the upload that sent it, which resends if it failed. the ack will never come
+			txStatus.status(zNetTxStatusResponse.getFrameId(), zNetTxStatusResponse.isSuccess(), response.toString());
+		} else if (response.getApiId() == ApiId.TX_STATUS_RESPONSE) {
+			TxStatusResponse txStatusResponse = (TxStatusResponse) response;
+			txStatus.status(txStatusResponse.getFrameId(), txStatusResponse.isSuccess(), response.toString());
+		}
+	}
+	
+	/**
+	 * Address of the radio an rx packet is from, or null if the response is not an rx packet
+	 */
+	private XBeeAddress64 getSourceAddress(XBeeResponse response) {
+		if (response.getApiId() == ApiId.ZNET_RX_RESPONSE) {
+			return ((ZNetRxResponse) response).getRemoteAddress64();
+		} else if (response.getApiId() == ApiId.RX_64_RESPONSE) {
+			return (XBeeAddress64) ((RxResponse64) response).getSourceAddress();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Flashes the sketch to each radio in the list through the local xbee, with up to maxConcurrent uploads at a time. Packets from
+	 * the radios are routed to their upload by source address. Each upload has its own acks, timeouts and window, so while one waits
+	 * on its arduino the others keep the local radio busy. With broadcast the pages are sent once to every radio first, and each upload
+	 * only sends the pages its radio missed
+	 * 
+	 * @return addresses of the radios that were not flashed
+	 */
+	public List<String> flashFleet(final String file, final String radioType, final XBeeConnectionType xBeeConnectionType, List<String> xbeeAddresses, int maxConcurrent, final boolean verbose, final int ackTimeoutMillis, final int arduinoTimeoutSec, final int retriesPerPacket, final int delayBetweenRetriesMillis) throws XBeeException, IOException, InterruptedException {
+		final Map<XBeeAddress64, XBeeSketchUploader> uploads = Maps.newHashMap();
+		
+		for (String xbeeAddress : xbeeAddresses) {
+			XBeeAddress64 xBeeAddress64 = null;
+			
+			try {
+				xBeeAddress64 = new XBeeAddress64(xbeeAddress);
+			} catch (Exception e) {
+				throw new RuntimeException("Invalid xbee 64-bit address " + xbeeAddress);
+			}
+			
+			if (uploads.containsKey(xBeeAddress64)) {
+				throw new IllegalArgumentException("Address " + xbeeAddress + " is in the fleet more than once");
+			}
+			
+			XBeeSketchUploader upload = new XBeeSketchUploader(xbee, true, txStatus);
+			upload.xbeeTxAckTimeoutMs = xbeeTxAckTimeoutMs;
+			copySettings(upload);
+			uploads.put(xBeeAddress64, upload);
+		}
+		
+		openXBee(xBeeConnectionType);
 		
 		xbee.addPacketListener(new PacketListener() {
 			@Override
 			public void processResponse(XBeeResponse response) {
-				if (response.getApiId() == ApiId.ZNET_RX_RESPONSE || response.getApiId() == ApiId.RX_64_RESPONSE) {	
-					if (verbose) {
-						System.out.println("Received rx packet from arduino " + response);							
-					}
-
-					if (response.getApiId() == ApiId.ZNET_RX_RESPONSE) {
-						ZNetRxResponse zb = (ZNetRxResponse) response;
-						
-						if (zb.getData()[0] == MAGIC_BYTE1 && zb.getData()[1] == MAGIC_BYTE2) {
-							addReply(zb.getData());
-						} else {
-							System.out.println("Ignoring non-programming packet " + zb);
-						}						
-					} else {
-						RxResponse rx64 = (RxResponse64) response;
-						
-						if (rx64.getData()[0] == MAGIC_BYTE1 && rx64.getData()[1] == MAGIC_BYTE2) {
-							addReply(rx64.getData());
-						} else {
-							System.out.println("Ignoring non-programming packet " + rx64);
-						}							
-					}
-				} else if (response.getApiId() == ApiId.ZNET_TX_STATUS_RESPONSE) {
-					ZNetTxStatusResponse zNetTxStatusResponse = (ZNetTxStatusResponse) response;
-					
-					if (zNetTxStatusResponse.isSuccess()) {
-						// yay					
-					} else {
-						// interrupt thread in case it's waiting for ack, which will never come
-						System.out.println("Failed to deliver packet. Interrupting main thread. Response: " + response);
-						interrupt();
+				XBeeAddress64 source = getSourceAddress(response);
+				
+				if (source == null) {
+					// tx status
+					handleResponse(response);
+				} else if (uploads.containsKey(source)) {
+					uploads.get(source).handleResponse(response);
+				} else if (log.isDebugEnabled()) {
+					log.debug("Ignoring packet from radio not in fleet " + response);
+				}
+			}
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(maxConcurrent);
+		List<Future<Boolean>> results = Lists.newArrayList();
+		List<String> failed = Lists.newArrayList();
+		long start = System.currentTimeMillis();
+		
+		try {
+			if (broadcast) {
+				broadcast(file, Series.valueOf(radioType.toUpperCase()), uploads, ackTimeoutMillis, arduinoTimeoutSec);
+			}
+			
+			for (final String xbeeAddress : xbeeAddresses) {
+				final XBeeSketchUploader upload = uploads.get(new XBeeAddress64(xbeeAddress));
+				
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						return upload.flash(file, radioType, xBeeConnectionType, xbeeAddress, verbose, ackTimeoutMillis, arduinoTimeoutSec, retriesPerPacket, delayBetweenRetriesMillis);
 					}
-				} else if (response.getApiId() == ApiId.TX_STATUS_RESPONSE) {
-					TxStatusResponse txStatusResponse = (TxStatusResponse) response;
-					
-					if (txStatusResponse.isSuccess()) {
-						// yay					
-					} else {
-						// interrupt thread in case it's waiting for ack, which will never come
-						System.out.println("Failed to deliver packet. Interrupting main thread. Response: " + response);
-						interrupt();
+				}));
+			}
+			
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					if (!results.get(i).get()) {
+						failed.add(xbeeAddresses.get(i));
 					}
+				} catch (ExecutionException e) {
+					log.error("Upload to " + xbeeAddresses.get(i) + " failed", e.getCause());
+					failed.add(xbeeAddresses.get(i));
 				}
 			}
-		});
+		} finally {
+			// interrupts uploads still running
+			executor.shutdownNow();
+			xbee.close();
+			txStatus.close();
+		}
+		
+		fireMessage(MessageEvent.Level.INFO, "Flashed " + (xbeeAddresses.size() - failed.size()) + " of " + xbeeAddresses.size() + " radios in " + (System.currentTimeMillis() - start) / 1000 + "s" + (failed.isEmpty() ? "" : ", failed: " + Joiner.on(", ").join(failed)));
+		
+		return failed;
+	}
+
+	/**
+	 * Broadcasts the start packet and pages of the sketch to the fleet. Pages aren't acked, so each upload is then told to ask
+	 * its arduino which pages it missed. An arduino that didn't ack the start is sent it again by its upload
+	 */
+	private void broadcast(String file, Series series, Map<XBeeAddress64, XBeeSketchUploader> uploads, int ackTimeoutMillis, int arduinoTimeoutSec) throws IOException, InterruptedException {
+		Sketch sketch = getSketchCache() != null ? getSketchCache().get(file, XBEE_PAGE_SIZE) : parseSketchFromIntelHex(file, XBEE_PAGE_SIZE);
+		
+		if (sketch.getPages().size() > MAX_BROADCAST_PAGES) {
+			fireMessage(MessageEvent.Level.INFO, "Sketch has more than " + MAX_BROADCAST_PAGES + " pages, too many to broadcast. Sending to each radio");
+			return;
+		}
+		
+		Map<String,Object> context = Maps.newHashMap();
+		context.put("series", series);
+		context.put("xbeeAddress", XBeeAddress64.BROADCAST);
+		
+		Map<XBeeSketchUploader, PendingAck> startAcks = Maps.newHashMap();
+		
+		for (XBeeSketchUploader upload : uploads.values()) {
+			startAcks.put(upload, upload.registerAck(sketch.getSize()));
+		}
+		
+		int[] startHeader = getBroadcastStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), arduinoTimeoutSec, VERSION, getImageTag(sketch.getMd5()));
+		
+		fireMessage(MessageEvent.Level.INFO, "Broadcasting sketch to " + uploads.size() + " radios, size " + sketch.getSize() + " bytes, md5 " + sketch.getMd5() + ", number of packets " + sketch.getPages().size() + ", and " + sketch.getBytesPerPage() + " bytes per packet, header " + toHex(startHeader));
+		
+		try {
+			writeData(startHeader, context);
+			
+			// arduinos ignore pages until they've started
+			long deadline = System.currentTimeMillis() + ackTimeoutMillis;
+			
+			while (System.currentTimeMillis() < deadline && !allDone(startAcks.values())) {
+				Thread.sleep(10);
+			}
+			
+			for (Page page : sketch.getPages()) {
+				writeData(combine(getBroadcastPageHeader(page.getRealAddress16(), page.getLength()), page), context);
+				Thread.sleep(broadcastDelayMs);
+			}
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			// the uploads send whatever didn't get through
+			log.error("Broadcast failed", e);
+		}
+		
+		int started = 0;
+		
+		for (XBeeSketchUploader upload : uploads.values()) {
+			boolean startAcked = startAcks.get(upload).isDone();
+			// pages have to be the size that was broadcast
+			upload.setProbePageSize(false);
+			upload.setBroadcastStarted(startAcked);
+			
+			if (startAcked) {
+				started++;
+			}
+		}
+		
+		fireMessage(MessageEvent.Level.INFO, "Broadcast " + sketch.getPages().size() + " pages, " + started + " of " + uploads.size() + " radios acked the start");
+	}
+	
+	private boolean allDone(Iterable<PendingAck> acks) {
+		for (PendingAck ack : acks) {
+			if (!ack.isDone()) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	public boolean isBroadcast() {
+		return broadcast;
+	}
+
+	public void setBroadcast(boolean broadcast) {
+		this.broadcast = broadcast;
+	}
+
+	public int getBroadcastDelayMs() {
+		return broadcastDelayMs;
+	}
+
+	public void setBroadcastDelayMs(int broadcastDelayMs) {
+		this.broadcastDelayMs = broadcastDelayMs;
 	}
 
 	int counter = 1;
 	
+	/**
+	 * Sends without waiting for the tx status. The status is matched to the packet by frame id, and if it failed or doesn't come
+	 * the packet is resent without waiting out the ack timeout
+	 */
 	@Override
 	protected void writeData(int[] data, Map<String,Object> context) throws Exception {
 		Series series = (Series) context.get("series");
 		XBeeAddress64 address = (XBeeAddress64) context.get("xbeeAddress");
-
-		try {
-			// TODO make configurable timeout
-			if (series == Series.SERIES1) {
-				xbee.sendSynchronous(new TxRequest64(address, data), xbeeTxAckTimeoutMs);
-			} else {
-				//xbee.sendAsynchronous(new ZNetTxRequest(address, data));
-				xbee.sendSynchronous(new ZNetTxRequest(address, data), xbeeTxAckTimeoutMs);
-			}
-		} catch (XBeeTimeoutException e) {
-			// TODO interrupt ack thread
-			// the ack will timeout so no need to do anything with this error
-			System.out.println("No tx ack from receiving XBee after " + xbeeTxAckTimeoutMs + "ms");
+		XBeeRequest request = series == Series.SERIES1 ? new TxRequest64(address, data) : new ZNetTxRequest(address, data);
+		
+		// fleet uploads share the xbee. sendAsynchronous isn't synchronized and writes the frame a byte at a time
+		synchronized (xbee) {
+			int frameId = txStatus.nextFrameId();
+			request.setFrameId(frameId);
+			txStatus.sent(frameId, data[4] << 8 | data[5], txListener, xbeeTxAckTimeoutMs);
+			
+			xbee.sendAsynchronous(request);
 		}
 	}
+	
+	private final TxStatusTracker.Listener txListener = new TxStatusTracker.Listener() {
+		@Override
+		public void txFailed(int packetId, String reason) {
+			if (isVerbose()) {
+				fireMessage(MessageEvent.Level.DEBUG, "Failed to deliver packet " + packetId + ", " + reason + ". Resending");
+			}
+			
+			deliveryFailed(packetId);
+		}
+	};
 
 	@Override
 	protected void close() throws Exception {
-		xbee.close();
+		if (!sharedXBee) {
+			xbee.close();
+			txStatus.close();
+		}
+	}
+
+	@Override
+	protected boolean isConnected() {
+		return sharedXBee || xbee.isConnected();
 	}
 
 	@Override
 	protected String getName() {
 		return "xbee";
 	}
+	
+	@Override
+	protected String getDeviceId(Map<String, Object> context) {
+		return (String) context.get("deviceId");
+	}
+	
+	@Override
+	protected int getMaxPacketSize(Map<String, Object> context) {
+		return context.get("series") == Series.SERIES1 ? XBEE_SERIES1_MAX_PACKET_SIZE : XBEE_SERIES2_MAX_PACKET_SIZE;
+	}
 
 	public final static String radioType = "radio-type";
 	public final static String serialPort = "serial-port";
@@ -193,8 +455,11 @@ public class XBeeSketchUploader extends SketchUploader {
 	public final static String serialServerPort = "serial-server-port";
 	public final String xbeeAddress = "remote-xbee-address";
 	public final String xbeeTxAckTimeout = "xbee-tx-ack-timeout";
+	public final String fleetConcurrency = "fleet-concurrency";
+	public final String broadcastArg = "broadcast";
+	public final String broadcastDelay = "broadcast-delay-ms";
 	
-	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException {
+	private void runFromCmdLine(String[] args) throws org.apache.commons.cli.ParseException, IOException, XBeeException, InterruptedException {
 		CliOptions cliOptions = getCliOptions();
 
 		cliOptions.addOption(
@@ -210,7 +475,7 @@ public class XBeeSketchUploader extends SketchUploader {
 				.withLongOpt(xbeeAddress)
 				.hasArg()
 				.isRequired(true)
-				.withDescription("Address (64-bit) of remote XBee radio (e.g. 0013A21240AB9856)")
+				.withDescription("Address (64-bit) of remote XBee radio (e.g. 0013A21240AB9856), or a comma separated list to flash a fleet of radios")
 				.create("x"));
 
 		cliOptions.addOption(
@@ -253,9 +518,38 @@ public class XBeeSketchUploader extends SketchUploader {
 						.hasArg()
 						.isRequired(false)
 						.withType(Number.class)
-						.withDescription("How long to wait to receive and an ACK from the receiving XBee in ms. Although flashing can succeed if these timeous occur, it's best to wait for an ACK before sending the next comand. Bump this up when using a serial server. Default is " + xbeeTxAckTimeoutMs + " ms")
+						.withDescription("How long to wait for the tx status from our XBee in ms. Packets are sent without waiting for it, but if it reports a failure or doesn't arrive in time the packet is resent. Bump this up when using a serial server. Default is " + xbeeTxAckTimeoutMs + " ms")
 						.create("l"));
 
+		cliOptions.getDefaults().put(fleetConcurrency, "8");
+		
+		cliOptions.addOption(
+				OptionBuilder
+						.withLongOpt(fleetConcurrency)
+						.hasArg()
+						.isRequired(false)
+						.withType(Number.class)
+						.withDescription("Most radios of a fleet to upload to at once. Default is 8")
+						.create());
+
+		cliOptions.addOption(
+				OptionBuilder
+						.withLongOpt(broadcastArg)
+						.isRequired(false)
+						.withDescription("Broadcast the pages to a fleet once, then send each radio the pages it missed. Requires the latest arduino library on every radio")
+						.create());
+
+		cliOptions.getDefaults().put(broadcastDelay, Integer.toString(broadcastDelayMs));
+		
+		cliOptions.addOption(
+				OptionBuilder
+						.withLongOpt(broadcastDelay)
+						.hasArg()
+						.isRequired(false)
+						.withType(Number.class)
+						.withDescription("Delay between broadcast pages in ms. Series 2 (ZigBee) networks limit broadcasts, raise this if radios miss many pages. Default is " + broadcastDelayMs)
+						.create());
+
 		cliOptions.build();
 		
 		CommandLine commandLine = cliOptions.parse(args);
@@ -288,6 +582,27 @@ public class XBeeSketchUploader extends SketchUploader {
 				}
 			}
 
+			configure(cliOptions);
+			setBroadcast(commandLine.hasOption(broadcastArg));
+			setBroadcastDelayMs(cliOptions.getIntegerOption(broadcastDelay));
+			
+			List<String> xbeeAddresses = Lists.newArrayList(Splitter.on(',').trimResults().omitEmptyStrings().split(commandLine.getOptionValue(xbeeAddress)));
+			
+			if (xbeeAddresses.size() > 1) {
+				flashFleet(
+						commandLine.getOptionValue(CliOptions.sketch),
+						commandLine.getOptionValue(radioType),
+						xBeeConnectionType,
+						xbeeAddresses,
+						cliOptions.getIntegerOption(fleetConcurrency),
+						commandLine.hasOption(CliOptions.verboseArg),
+						cliOptions.getIntegerOption(CliOptions.ackTimeoutMillisArg),
+						cliOptions.getIntegerOption(CliOptions.arduinoTimeoutArg),
+						cliOptions.getIntegerOption(CliOptions.retriesPerPacketArg),
+						cliOptions.getIntegerOption(CliOptions.delayBetweenRetriesMillisArg));
+				return;
+			}
+			
 			// cmd line
 			flash(
 					commandLine.getOptionValue(CliOptions.sketch),
@@ -333,18 +648,18 @@ ceylon:arduino-remote-uploader-1.0-SNAPSHOT andrew$
 	 * @throws ParseException
 	 * @throws org.apache.commons.cli.ParseException
 	 */
-	public static void main(String[] args) throws NumberFormatException, IOException, XBeeException, ParseException, org.apache.commons.cli.ParseException {		
+	public static void main(String[] args) throws NumberFormatException, IOException, XBeeException, ParseException, org.apache.commons.cli.ParseException, InterruptedException {		
 		initLog4j();		
 		XBeeSketchUploader xBeeSketchUploader = new XBeeSketchUploader();
 		xBeeSketchUploader.runFromCmdLine(args);
 		//new XBeeSketchUploader().processXBee("/Users/andrew/Documents/dev/arduino-remote-uploader/resources/BlinkSlow.cpp.hex", "/dev/tty.usbserial-A6005uRz", Integer.parseInt("9600"), "0013A200408B98FF", false, 5, 0, 500, 0);
 	}
 
-	static class XBeeConnectionType {
+	public static class XBeeConnectionType {
 
 	}
 
-	static class SerialServerConnection extends XBeeConnectionType {
+	public static class SerialServerConnection extends XBeeConnectionType {
 		private String host;
 		private int port;
 
@@ -362,7 +677,7 @@ ceylon:arduino-remote-uploader-1.0-SNAPSHOT andrew$
 		}
 	}
 
-	static class LocalConnection extends XBeeConnectionType {
+	public static class LocalConnection extends XBeeConnectionType {
 		private String serialPort;
 		private int baudRate;
 
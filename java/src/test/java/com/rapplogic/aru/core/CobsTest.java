@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author andrew
+ *
+ */
+public class CobsTest {
+
+	@Test
+	public void encodesZeroRuns() {
+		assertArrayEquals(bytes(0x01, 0x00), encode());
+		assertArrayEquals(bytes(0x01, 0x01, 0x00), encode(0x00));
+		assertArrayEquals(bytes(0x01, 0x01, 0x01, 0x00), encode(0x00, 0x00));
+		assertArrayEquals(bytes(0x03, 0x11, 0x22, 0x02, 0x33, 0x00), encode(0x11, 0x22, 0x00, 0x33));
+		assertArrayEquals(bytes(0x05, 0x11, 0x22, 0x33, 0x44, 0x00), encode(0x11, 0x22, 0x33, 0x44));
+		assertArrayEquals(bytes(0x02, 0x11, 0x01, 0x01, 0x01, 0x00), encode(0x11, 0x00, 0x00, 0x00));
+	}
+
+	@Test
+	public void encodes254ByteBlocks() {
+		byte[] frame = new byte[254];
+
+		for (int i = 0; i < frame.length; i++) {
+			frame[i] = (byte) (i + 1);
+		}
+
+		byte[] encoded = encode(frame);
+
+		// a full block, then an empty block since there is no zero after it
+		assertEquals(257, encoded.length);
+		assertEquals(0xff, encoded[0] & 0xff);
+		assertArrayEquals(frame, Arrays.copyOfRange(encoded, 1, 255));
+		assertEquals(0x01, encoded[255]);
+		assertEquals(0x00, encoded[256]);
+		assertArrayEquals(frame, decodeOne(encoded, 300));
+
+		// one more byte starts a second block
+		byte[] longer = Arrays.copyOf(frame, 255);
+		longer[254] = (byte) 0xff;
+		encoded = encode(longer);
+
+		assertEquals(0xff, encoded[0] & 0xff);
+		assertEquals(0x02, encoded[255]);
+		assertEquals(0xff, encoded[256] & 0xff);
+		assertEquals(0x00, encoded[257]);
+		assertArrayEquals(longer, decodeOne(encoded, 300));
+
+		// a zero right after a full block
+		byte[] zero = Arrays.copyOf(frame, 256);
+		zero[255] = 0x11;
+		assertArrayEquals(zero, decodeOne(encode(zero), 300));
+	}
+
+	@Test
+	public void roundTrips() {
+		Random random = new Random(3);
+
+		for (int length = 0; length < 800; length++) {
+			byte[] frame = new byte[length];
+
+			for (int i = 0; i < length; i++) {
+				// mostly zero runs and long stretches without a zero
+				frame[i] = (byte) (random.nextInt(4) == 0 ? 0 : length % 3 == 0 ? random.nextInt(255) + 1 : random.nextInt(256));
+			}
+
+			byte[] encoded = encode(frame);
+
+			assertTrue(encoded.length <= Cobs.maxEncodedLength(length));
+			assertEquals(0, encoded[encoded.length - 1]);
+
+			for (int i = 0; i < encoded.length - 1; i++) {
+				assertTrue("zero in encoded frame of " + length, encoded[i] != 0);
+			}
+
+			assertArrayEquals("length " + length, frame, decodeOne(encoded, 1024));
+		}
+	}
+
+	@Test
+	public void encodesAtOffsets() {
+		byte[] frame = bytes(0x99, 0x11, 0x00, 0x22, 0x99);
+		byte[] out = new byte[10];
+		Arrays.fill(out, (byte) 0x77);
+
+		int length = Cobs.encode(frame, 1, 3, out, 2);
+
+		assertEquals(5, length);
+		assertArrayEquals(bytes(0x77, 0x77, 0x02, 0x11, 0x02, 0x22, 0x00, 0x77, 0x77, 0x77), out);
+	}
+
+	@Test
+	public void framesSplitAcrossReads() {
+		Random random = new Random(5);
+		List<byte[]> frames = new ArrayList<byte[]>();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 50; i++) {
+			byte[] frame = new byte[random.nextInt(300)];
+			random.nextBytes(frame);
+			frames.add(frame);
+
+			byte[] encoded = encode(frame);
+			stream.write(encoded, 0, encoded.length);
+		}
+
+		byte[] bytes = stream.toByteArray();
+		Cobs.Decoder decoder = new Cobs.Decoder(300);
+		byte[] read = new byte[7];
+		int next = 0;
+
+		// deliver the stream in small reads that cut through code bytes and data alike
+		for (int position = 0; position < bytes.length; position+= read.length) {
+			int length = Math.min(read.length, bytes.length - position);
+			System.arraycopy(bytes, position, read, 0, length);
+
+			for (int i = 0; i < length; i++) {
+				if (decoder.update(read[i])) {
+					assertArrayEquals("frame " + next, frames.get(next), Arrays.copyOf(decoder.getFrame(), decoder.getLength()));
+					next++;
+				}
+			}
+		}
+
+		assertEquals(frames.size(), next);
+		assertEquals(0, decoder.getDropped());
+	}
+
+	@Test
+	public void dropsOversizeFrame() {
+		Cobs.Decoder decoder = new Cobs.Decoder(16);
+		byte[] small = bytes(0x01, 0x00, 0x02);
+
+		assertFalse(feed(decoder, encode(new byte[17])));
+		assertEquals(1, decoder.getDropped());
+
+		// exactly full fits
+		assertTrue(feed(decoder, encode(new byte[16])));
+		assertEquals(16, decoder.getLength());
+
+		// and the decoder recovers for the next frame
+		assertTrue(feed(decoder, encode(small)));
+		assertArrayEquals(small, Arrays.copyOf(decoder.getFrame(), decoder.getLength()));
+		assertEquals(1, decoder.getDropped());
+	}
+
+	@Test
+	public void dropsTruncatedFrame() {
+		Cobs.Decoder decoder = new Cobs.Decoder(64);
+		byte[] encoded = encode(0x11, 0x22, 0x33, 0x00, 0x44);
+
+		// lost bytes: the delimiter arrives while a block is still expecting data
+		byte[] cut = Arrays.copyOf(encoded, encoded.length - 3);
+		cut[cut.length - 1] = 0;
+
+		assertFalse(feed(decoder, cut));
+		assertEquals(1, decoder.getDropped());
+
+		assertTrue(feed(decoder, encoded));
+		assertArrayEquals(bytes(0x11, 0x22, 0x33, 0x00, 0x44), Arrays.copyOf(decoder.getFrame(), decoder.getLength()));
+	}
+
+	@Test
+	public void ignoresIdleDelimiters() {
+		Cobs.Decoder decoder = new Cobs.Decoder(64);
+
+		assertFalse(decoder.update(0));
+		assertFalse(decoder.update(0));
+		assertTrue(feed(decoder, encode(0x01)));
+		assertFalse(decoder.update(0));
+
+		assertEquals(0, decoder.getDropped());
+	}
+
+	@Test
+	public void frameIsClearedByNextByte() {
+		Cobs.Decoder decoder = new Cobs.Decoder(64);
+
+		assertTrue(feed(decoder, encode(0x11, 0x22)));
+		assertEquals(2, decoder.getLength());
+
+		decoder.update(0x02);
+		assertEquals(0, decoder.getLength());
+	}
+
+	/**
+	 * Feeds the bytes, returning whether the last completed a frame
+	 */
+	private boolean feed(Cobs.Decoder decoder, byte[] bytes) {
+		boolean complete = false;
+
+		for (byte b : bytes) {
+			complete = decoder.update(b);
+		}
+
+		return complete;
+	}
+
+	private byte[] decodeOne(byte[] encoded, int maxFrameLength) {
+		Cobs.Decoder decoder = new Cobs.Decoder(maxFrameLength);
+
+		assertTrue(feed(decoder, encoded));
+
+		return Arrays.copyOf(decoder.getFrame(), decoder.getLength());
+	}
+
+	private byte[] encode(int... frame) {
+		return encode(bytes(frame));
+	}
+
+	private byte[] encode(byte[] frame) {
+		byte[] out = new byte[Cobs.maxEncodedLength(frame.length)];
+		int length = Cobs.encode(frame, 0, frame.length, out, 0);
+		return Arrays.copyOf(out, length);
+	}
+
+	private byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+
+		return bytes;
+	}
+}
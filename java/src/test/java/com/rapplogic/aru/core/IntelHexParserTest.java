@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * @author andrew
+ *
+ */
+public class IntelHexParserTest {
+
+	private static final int MAX_PROGRAM_SIZE = 0x20000;
+
+	// blink sketches differ only in the delay constant at the end of the program
+	private static final int BLINK_SIZE = 1102;
+
+	@Test
+	public void parsesSampleSketches() throws Exception {
+		byte[] slow = new IntelHexParser(MAX_PROGRAM_SIZE).parse(resource("BlinkSlow-atmega-328-16Mhz.cpp.hex"));
+		byte[] fast = new IntelHexParser(MAX_PROGRAM_SIZE).parse(resource("BlinkFast-atmega-328-16Mhz.cpp.hex"));
+
+		assertEquals(BLINK_SIZE, slow.length);
+		assertEquals(BLINK_SIZE, fast.length);
+
+		// interrupt vector table: jmp 0xc2
+		assertArrayEquals(new byte[] { 0x0c, (byte) 0x94, 0x61, 0x00 }, copy(slow, 0, 4));
+		// 1000ms vs 50ms
+		assertArrayEquals(new byte[] { 0x0d, 0x00, (byte) 0xe8, 0x03 }, copy(slow, BLINK_SIZE - 4, 4));
+		assertArrayEquals(new byte[] { 0x0d, 0x00, 0x32, 0x00 }, copy(fast, BLINK_SIZE - 4, 4));
+
+		assertArrayEquals(copy(slow, 0, BLINK_SIZE - 4), copy(fast, 0, BLINK_SIZE - 4));
+	}
+
+	@Test
+	public void parsesGeneratedImageWithLinearAddressRecords() throws Exception {
+		// 128KB of 16 byte records, as avr-objcopy writes them. needs a type 04 record at 64KB
+		byte[] expected = new byte[0x20000];
+		new Random(7).nextBytes(expected);
+
+		StringBuilder hex = new StringBuilder();
+
+		for (int position = 0; position < expected.length; position+= 16) {
+			if (position > 0 && (position & 0xffff) == 0) {
+				hex.append(record(IntelHexParser.EXTENDED_LINEAR_ADDRESS_RECORD, 0, (position >> 24) & 0xff, (position >> 16) & 0xff)).append("\r\n");
+			}
+
+			int[] data = new int[16];
+
+			for (int i = 0; i < data.length; i++) {
+				data[i] = expected[position + i] & 0xff;
+			}
+
+			hex.append(record(IntelHexParser.DATA_RECORD, position & 0xffff, data)).append("\r\n");
+		}
+
+		hex.append(record(IntelHexParser.EOF_RECORD, 0)).append("\r\n");
+
+		assertArrayEquals(expected, new IntelHexParser(MAX_PROGRAM_SIZE).parse(stream(hex.toString()), 0));
+	}
+
+	@Test
+	public void extendedLinearAddress() throws Exception {
+		byte[] program = parse(
+				record(IntelHexParser.EXTENDED_LINEAR_ADDRESS_RECORD, 0, 0x00, 0x01),
+				record(IntelHexParser.DATA_RECORD, 0x0000, 0x11, 0x22),
+				record(IntelHexParser.DATA_RECORD, 0x0002, 0x33),
+				record(IntelHexParser.EOF_RECORD, 0));
+
+		assertEquals(0x10003, program.length);
+		assertArrayEquals(new byte[] { 0x11, 0x22, 0x33 }, copy(program, 0x10000, 3));
+		assertEquals(0, program[0]);
+	}
+
+	@Test
+	public void extendedSegmentAddress() throws Exception {
+		// segment is shifted 4 bits: 0x0010 -> 0x100
+		byte[] program = parse(
+				record(IntelHexParser.EXTENDED_SEGMENT_ADDRESS_RECORD, 0, 0x00, 0x10),
+				record(IntelHexParser.DATA_RECORD, 0x0000, 0xaa, 0xbb),
+				record(IntelHexParser.EOF_RECORD, 0));
+
+		assertEquals(0x102, program.length);
+		assertArrayEquals(new byte[] { (byte) 0xaa, (byte) 0xbb }, copy(program, 0x100, 2));
+	}
+
+	@Test
+	public void addressRecordContinuesProgram() throws Exception {
+		// data runs up to 64KB then continues after the type 04 record, as avr-objcopy writes it
+		byte[] program = parse(
+				record(IntelHexParser.DATA_RECORD, 0xfffe, 0x01, 0x02),
+				record(IntelHexParser.EXTENDED_LINEAR_ADDRESS_RECORD, 0, 0x00, 0x01),
+				record(IntelHexParser.DATA_RECORD, 0x0000, 0x03, 0x04),
+				record(IntelHexParser.EOF_RECORD, 0));
+
+		assertEquals(0x10002, program.length);
+		assertArrayEquals(new byte[] { 0x01, 0x02, 0x03, 0x04 }, copy(program, 0xfffe, 4));
+	}
+
+	@Test
+	public void ignoresRecordsAfterEof() throws Exception {
+		byte[] program = parse(
+				record(IntelHexParser.DATA_RECORD, 0, 0x01),
+				record(IntelHexParser.EOF_RECORD, 0),
+				"garbage");
+
+		assertArrayEquals(new byte[] { 0x01 }, program);
+	}
+
+	@Test
+	public void acceptsLowerCaseAndBareNewlines() throws Exception {
+		byte[] program = new IntelHexParser(MAX_PROGRAM_SIZE).parse(stream(":0200000001ab52\n:00000001ff\n"), 0);
+		assertArrayEquals(new byte[] { 0x01, (byte) 0xab }, program);
+	}
+
+	@Test
+	public void rejectsBadChecksum() throws Exception {
+		String good = record(IntelHexParser.DATA_RECORD, 0, 0x01, 0x02);
+		// bump the checksum byte
+		String bad = good.substring(0, good.length() - 2) + String.format("%02X", (Integer.parseInt(good.substring(good.length() - 2), 16) + 1) & 0xff);
+
+		assertRejected("Checksum mismatch at line 1", bad, record(IntelHexParser.EOF_RECORD, 0));
+	}
+
+	@Test
+	public void rejectsBadChecksumInSampleSketch() throws Exception {
+		String hex = Files.toString(resource("BlinkSlow-atmega-328-16Mhz.cpp.hex"), Charsets.UTF_8);
+		// flip a data digit on the third line, leaving the checksum alone
+		int start = nthLine(hex, 2) + 9;
+		String corrupt = hex.substring(0, start) + (hex.charAt(start) == '0' ? '1' : '0') + hex.substring(start + 1);
+
+		assertRejected("Checksum mismatch at line 3", corrupt);
+	}
+
+	@Test
+	public void rejectsMissingStartCode() throws Exception {
+		assertRejected("Expected start of record at line 2", record(IntelHexParser.DATA_RECORD, 0, 0x01), "0000000001FF");
+	}
+
+	@Test
+	public void rejectsInvalidHexDigit() throws Exception {
+		assertRejected("Invalid hex digit at line 1", ":02000000G1020B");
+	}
+
+	@Test
+	public void rejectsLineLongerThanLength() throws Exception {
+		assertRejected("does not match expected length", record(IntelHexParser.DATA_RECORD, 0, 0x01) + "00");
+	}
+
+	@Test
+	public void rejectsTruncatedLine() throws Exception {
+		String line = record(IntelHexParser.DATA_RECORD, 0, 0x01, 0x02, 0x03);
+
+		try {
+			// no line ending, the stream just stops
+			new IntelHexParser(MAX_PROGRAM_SIZE).parse(stream(line.substring(0, line.length() - 3)), 0);
+			fail("expected truncated line to be rejected");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Unexpected end of file at line 1"));
+		}
+	}
+
+	@Test
+	public void rejectsAddressRecordOfWrongLength() throws Exception {
+		assertRejected("Expected length 2 for address record", record(IntelHexParser.EXTENDED_LINEAR_ADDRESS_RECORD, 0, 0x00, 0x01, 0x02));
+	}
+
+	@Test
+	public void rejectsGapInProgram() throws Exception {
+		assertRejected("Expected address of 2 but was 4",
+				record(IntelHexParser.DATA_RECORD, 0, 0x01, 0x02),
+				record(IntelHexParser.DATA_RECORD, 4, 0x03));
+	}
+
+	@Test
+	public void rejectsProgramTooLarge() throws Exception {
+		try {
+			new IntelHexParser(16).parse(stream(record(IntelHexParser.DATA_RECORD, 0x000c, 0x01, 0x02, 0x03, 0x04, 0x05) + "\r\n"), 16);
+			fail("expected too large");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Program is too large"));
+		}
+	}
+
+	private void assertRejected(String message, String... lines) throws IOException {
+		try {
+			parse(lines);
+			fail("expected rejection with " + message);
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private byte[] parse(String... lines) throws IOException {
+		StringBuilder hex = new StringBuilder();
+
+		for (String line : lines) {
+			hex.append(line).append("\r\n");
+		}
+
+		return new IntelHexParser(MAX_PROGRAM_SIZE).parse(stream(hex.toString()), 0);
+	}
+
+	private String record(int type, int address, int... data) {
+		StringBuilder record = new StringBuilder(":");
+		int checksum = data.length + (address >> 8) + (address & 0xff) + type;
+
+		record.append(String.format("%02X%04X%02X", data.length, address, type));
+
+		for (int b : data) {
+			record.append(String.format("%02X", b));
+			checksum+= b;
+		}
+
+		return record.append(String.format("%02X", (0x100 - (checksum & 0xff)) & 0xff)).toString();
+	}
+
+	private int nthLine(String text, int n) {
+		int position = 0;
+
+		for (int i = 0; i < n; i++) {
+			position = text.indexOf('\n', position) + 1;
+		}
+
+		return position;
+	}
+
+	private ByteArrayInputStream stream(String hex) {
+		return new ByteArrayInputStream(hex.getBytes(Charsets.UTF_8));
+	}
+
+	private byte[] copy(byte[] program, int offset, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(program, offset, copy, 0, length);
+		return copy;
+	}
+
+	private File resource(String name) throws Exception {
+		return new File(getClass().getResource("/" + name).toURI());
+	}
+}
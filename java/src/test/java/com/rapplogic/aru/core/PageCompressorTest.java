@@ -0,0 +1,225 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author andrew
+ *
+ */
+public class PageCompressorTest {
+
+	private static final String[] SKETCHES = new String[] { "BlinkSlow-atmega-328-16Mhz.cpp.hex", "BlinkFast-atmega-328-16Mhz.cpp.hex" };
+	// wifi/nordic, xbee and the arduino's page buffer
+	private static final int[] PAGE_SIZES = new int[] { 26, 64, 128 };
+
+	@Test
+	public void roundTripsSamplePages() throws Exception {
+		for (String name : SKETCHES) {
+			byte[] program = parse(name);
+
+			for (int pageSize : PAGE_SIZES) {
+				PageCompressor compressor = new PageCompressor(ByteBuffer.wrap(program));
+				int compressedPages = 0;
+				int dictionaryPages = 0;
+
+				for (int offset = 0; offset < program.length; offset+= pageSize) {
+					int length = Math.min(pageSize, program.length - offset);
+					byte[] compressed = new byte[length];
+					int compressedLength = compressor.compress(offset, length, offset, compressed);
+
+					if (compressedLength < 0) {
+						continue;
+					}
+
+					assertTrue(compressedLength < length);
+					compressedPages++;
+
+					// everything before the page is in eeprom
+					assertArrayEquals(name + " page at " + offset, Arrays.copyOfRange(program, offset, offset + length),
+							decompress(compressed, compressedLength, eeprom(program, offset, offset), offset, length));
+
+					if (!Arrays.equals(Arrays.copyOfRange(program, offset, offset + length), decompressOrNull(compressed, compressedLength, eeprom(program, 0, offset), offset, length))) {
+						dictionaryPages++;
+					}
+				}
+
+				assertTrue(name + " " + pageSize + " byte pages should compress", compressedPages > 0);
+				// without the earlier pages these decode to something else, so the matches reached into the dictionary
+				assertTrue(name + " " + pageSize + " byte pages should refer to eeprom", dictionaryPages > 0);
+			}
+		}
+	}
+
+	@Test
+	public void dictionaryEndBeforeOffset() throws Exception {
+		byte[] program = parse(SKETCHES[0]);
+		PageCompressor compressor = new PageCompressor(ByteBuffer.wrap(program));
+		int pageSize = 64;
+		int compressedPages = 0;
+
+		// only the first 4 pages made it to eeprom, the pages in between are missing
+		int dictionaryEnd = 4 * pageSize;
+
+		for (int offset = 8 * pageSize; offset < program.length; offset+= pageSize) {
+			int length = Math.min(pageSize, program.length - offset);
+			byte[] compressed = new byte[length];
+			int compressedLength = compressor.compress(offset, length, dictionaryEnd, compressed);
+
+			if (compressedLength < 0) {
+				continue;
+			}
+
+			compressedPages++;
+
+			// garbage between the dictionary and the page must not be referred to
+			assertArrayEquals("page at " + offset, Arrays.copyOfRange(program, offset, offset + length),
+					decompress(compressed, compressedLength, eeprom(program, dictionaryEnd, offset), offset, length));
+		}
+
+		assertTrue(compressedPages > 0);
+	}
+
+	@Test
+	public void noDictionary() throws Exception {
+		byte[] program = parse(SKETCHES[0]);
+		PageCompressor compressor = new PageCompressor(ByteBuffer.wrap(program));
+		int pageSize = 128;
+		int compressedPages = 0;
+
+		for (int offset = pageSize; offset < program.length; offset+= pageSize) {
+			int length = Math.min(pageSize, program.length - offset);
+			byte[] compressed = new byte[length];
+			int compressedLength = compressor.compress(offset, length, 0, compressed);
+
+			if (compressedLength < 0) {
+				continue;
+			}
+
+			compressedPages++;
+
+			// nothing before the page may be read
+			assertArrayEquals("page at " + offset, Arrays.copyOfRange(program, offset, offset + length),
+					decompress(compressed, compressedLength, eeprom(program, 0, offset), offset, length));
+		}
+
+		assertTrue(compressedPages > 0);
+	}
+
+	@Test
+	public void notSmaller() {
+		byte[] random = new byte[256];
+		new Random(1).nextBytes(random);
+		PageCompressor compressor = new PageCompressor(ByteBuffer.wrap(random));
+
+		assertEquals(-1, compressor.compress(0, 128, 0, new byte[128]));
+		assertEquals(-1, compressor.compress(128, 128, 128, new byte[128]));
+		// a flag byte and a literal is never smaller than one byte
+		assertEquals(-1, compressor.compress(0, 1, 0, new byte[1]));
+	}
+
+	@Test
+	public void overlappingRun() {
+		byte[] ff = new byte[128];
+		Arrays.fill(ff, (byte) 0xff);
+		PageCompressor compressor = new PageCompressor(ByteBuffer.wrap(ff));
+		byte[] compressed = new byte[128];
+
+		int compressedLength = compressor.compress(0, 128, 0, compressed);
+
+		// a literal then distance 1 matches of 18
+		assertTrue(compressedLength > 0 && compressedLength < 20);
+		assertArrayEquals(ff, decompress(compressed, compressedLength, ByteBuffer.allocate(0), 0, 128));
+	}
+
+	@Test
+	public void rejectsTruncatedPage() {
+		byte[] ff = new byte[128];
+		Arrays.fill(ff, (byte) 0xff);
+		byte[] compressed = new byte[128];
+		int compressedLength = new PageCompressor(ByteBuffer.wrap(ff)).compress(0, 128, 0, compressed);
+
+		assertFalse(Arrays.equals(ff, decompressOrNull(compressed, compressedLength - 1, ByteBuffer.allocate(0), 0, 128)));
+
+		try {
+			PageCompressor.decompress(compressed, compressedLength + 1, ByteBuffer.allocate(0), 0, new byte[128], 128);
+			fail("expected left over bytes");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("left over"));
+		}
+	}
+
+	@Test
+	public void rejectsMatchBeforeProgram() {
+		// flag with a match of distance 1 at the start of the program
+		byte[] compressed = new byte[] { 0x01, 0x00, 0x00 };
+
+		try {
+			PageCompressor.decompress(compressed, compressed.length, ByteBuffer.allocate(0), 0, new byte[3], 3);
+			fail("expected invalid match");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid match"));
+		}
+	}
+
+	/**
+	 * The program as the arduino's eeprom holds it: bytes from the dictionary end up to the page are scrambled
+	 */
+	private ByteBuffer eeprom(byte[] program, int dictionaryEnd, int offset) {
+		byte[] eeprom = Arrays.copyOf(program, program.length);
+		Random random = new Random(offset);
+
+		for (int i = dictionaryEnd; i < eeprom.length; i++) {
+			eeprom[i] = (byte) random.nextInt(256);
+		}
+
+		return ByteBuffer.wrap(eeprom);
+	}
+
+	private byte[] decompress(byte[] compressed, int compressedLength, ByteBuffer eeprom, int offset, int length) {
+		byte[] decoded = new byte[length];
+		PageCompressor.decompress(compressed, compressedLength, eeprom, offset, decoded, length);
+		return decoded;
+	}
+
+	private byte[] decompressOrNull(byte[] compressed, int compressedLength, ByteBuffer eeprom, int offset, int length) {
+		try {
+			return decompress(compressed, compressedLength, eeprom, offset, length);
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private byte[] parse(String name) throws Exception {
+		return new SketchCore().parseIntelHex(new File(getClass().getResource("/" + name).toURI()).getAbsolutePath());
+	}
+}
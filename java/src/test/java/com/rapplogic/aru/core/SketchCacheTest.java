@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+/**
+ * @author andrew
+ *
+ */
+public class SketchCacheTest {
+
+	private File directory;
+	private String hex;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDir();
+		hex = new File(getClass().getResource("/BlinkSlow-atmega-328-16Mhz.cpp.hex").toURI()).getAbsolutePath();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+
+		directory.delete();
+	}
+
+	@Test
+	public void hitRebuildsSketchFromEntry() throws Exception {
+		SketchCache cache = new SketchCache(directory, 1024 * 1024);
+		Sketch parsed = new SketchCore().parseSketchFromIntelHex(hex, 64);
+
+		assertSameSketch(parsed, cache.get(hex, 64));
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+
+		assertSameSketch(parsed, cache.get(hex, 64));
+		assertEquals(1, cache.getHits());
+
+		// another process sharing the directory
+		SketchCache other = new SketchCache(directory, 1024 * 1024);
+		assertSameSketch(parsed, other.get(hex, 64));
+		assertEquals(1, other.getHits());
+	}
+
+	@Test
+	public void entryPerPageSize() throws Exception {
+		SketchCache cache = new SketchCache(directory, 1024 * 1024);
+
+		assertSameSketch(new SketchCore().parseSketchFromIntelHex(hex, 26), cache.get(hex, 26));
+		assertSameSketch(new SketchCore().parseSketchFromIntelHex(hex, 64), cache.get(hex, 64));
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, directory.listFiles().length);
+	}
+
+	@Test
+	public void replacesCorruptEntry() throws Exception {
+		SketchCache cache = new SketchCache(directory, 1024 * 1024);
+		cache.get(hex, 64);
+
+		File entry = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+
+		try {
+			// cut off the end of the program
+			raf.setLength(raf.length() - 10);
+		} finally {
+			raf.close();
+		}
+
+		assertSameSketch(new SketchCore().parseSketchFromIntelHex(hex, 64), cache.get(hex, 64));
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+
+		cache.get(hex, 64);
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void replacesEntryWithCorruptProgram() throws Exception {
+		// last byte of the program
+		assertReplacedAfterCorrupting(-1);
+	}
+
+	@Test
+	public void replacesEntryWithCorruptPageCrc() throws Exception {
+		// first page crc, after the header and md5
+		assertReplacedAfterCorrupting(36);
+	}
+
+	@Test
+	public void evictsOverMaxSize() throws Exception {
+		// room for one entry
+		SketchCache cache = new SketchCache(directory, 1500);
+
+		cache.get(hex, 26);
+		assertTrue(directory.listFiles()[0].setLastModified(System.currentTimeMillis() - 60000));
+		cache.get(hex, 64);
+
+		assertEquals(1, directory.listFiles().length);
+		assertTrue(directory.listFiles()[0].getName().endsWith("-64.sketch"));
+	}
+
+	/**
+	 * Flips a byte of the cached entry, at position or from the end if negative, and checks the entry is parsed again
+	 */
+	private void assertReplacedAfterCorrupting(long position) throws Exception {
+		SketchCache cache = new SketchCache(directory, 1024 * 1024);
+		cache.get(hex, 64);
+
+		File entry = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+
+		try {
+			raf.seek(position >= 0 ? position : raf.length() + position);
+			int b = raf.read();
+			raf.seek(raf.getFilePointer() - 1);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		assertSameSketch(new SketchCore().parseSketchFromIntelHex(hex, 64), cache.get(hex, 64));
+		assertEquals(2, cache.getMisses());
+		assertEquals(0, cache.getHits());
+
+		cache.get(hex, 64);
+		assertEquals(1, cache.getHits());
+	}
+
+	private void assertSameSketch(Sketch expected, Sketch actual) throws IOException {
+		assertEquals(expected.getSize(), actual.getSize());
+		assertEquals(expected.getBytesPerPage(), actual.getBytesPerPage());
+		assertEquals(expected.getMd5(), actual.getMd5());
+		assertEquals(expected.getProgram(), actual.getProgram());
+		assertEquals(expected.getPages().size(), actual.getPages().size());
+
+		for (int i = 0; i < expected.getPages().size(); i++) {
+			Page page = expected.getPages().get(i);
+			Page other = actual.getPages().get(i);
+
+			assertTrue("page " + i, page.isSameAs(other));
+			assertEquals(page.getOrdinal(), other.getOrdinal());
+			assertEquals(page.getData(), other.getData());
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.rapplogic.aru.uploader.AckRouter.PendingAck;
+
+/**
+ * @author andrew
+ *
+ */
+public class AckRouterTest {
+
+	// reply codes of SketchUploader
+	private static final int START_OVER = 2;
+	private static final int TIMEOUT = 3;
+	private static final int RETRY = 0xff;
+
+	private final AckRouter router = new AckRouter(RETRY);
+
+	@Test
+	public void acksPendingPacket() {
+		PendingAck ack = router.register(0x100);
+
+		assertFalse(ack.isDone());
+		assertTrue(router.ack(0x100));
+		assertTrue(ack.isDone());
+		assertEquals(0, router.getDroppedAcks());
+	}
+
+	@Test
+	public void dropsLateAck() {
+		PendingAck ack = router.register(0x100);
+		assertTrue(router.ack(0x100));
+
+		// second ack of a resent packet, after the first completed it
+		assertFalse(router.ack(0x100));
+		assertTrue(ack.isDone());
+		assertEquals(1, router.getDroppedAcks());
+
+		// never sent
+		assertFalse(router.ack(0x200));
+		assertEquals(2, router.getDroppedAcks());
+	}
+
+	@Test
+	public void resendSharesPendingAck() {
+		PendingAck first = router.register(0x100);
+		// resent before the first send was acked: an ack for either will do
+		PendingAck second = router.register(0x100);
+
+		assertSame(first, second);
+		assertTrue(router.ack(0x100));
+		assertTrue(second.isDone());
+
+		// acked, so the next send of the id waits for a new ack
+		PendingAck third = router.register(0x100);
+		assertNotSame(first, third);
+		assertFalse(third.isDone());
+	}
+
+	@Test
+	public void idsAreSixteenBits() {
+		PendingAck ack = router.register(0x10080);
+
+		assertTrue(router.ack(0x80));
+		assertTrue(ack.isDone());
+		assertEquals(0x10080, ack.getId());
+	}
+
+	@Test
+	public void startOverIsNotHiddenByRetry() {
+		router.error(START_OVER);
+		router.error(RETRY);
+
+		assertEquals(START_OVER, router.takeError());
+		assertEquals(0, router.takeError());
+
+		router.error(RETRY);
+		router.error(START_OVER);
+		router.error(RETRY);
+
+		assertEquals(START_OVER, router.takeError());
+	}
+
+	@Test
+	public void firstUnrecoverableErrorWins() {
+		router.error(TIMEOUT);
+		router.error(START_OVER);
+
+		assertEquals(TIMEOUT, router.takeError());
+	}
+
+	@Test
+	public void errorSurvivesAck() {
+		PendingAck ack = router.register(0x100);
+
+		router.error(START_OVER);
+		assertTrue(router.ack(0x100));
+
+		// the sender still sees the error even though its packet was acked
+		assertTrue(ack.isDone());
+		assertEquals(START_OVER, router.takeError());
+	}
+
+	@Test
+	public void failedDeliveryOfPendingPacket() {
+		router.register(0x100);
+		router.register(0x200);
+
+		assertTrue(router.failed(0x200));
+		assertEquals(RETRY, router.takeError());
+		assertEquals(Integer.valueOf(0x200), router.takeFailed());
+		assertNull(router.takeFailed());
+
+		// acked already, the status is late
+		assertTrue(router.ack(0x100));
+		assertFalse(router.failed(0x100));
+		assertNull(router.takeFailed());
+		assertEquals(0, router.takeError());
+	}
+
+	@Test
+	public void clearFailedKeepsPendingAcks() {
+		PendingAck ack = router.register(0x100);
+
+		router.failed(0x100);
+		router.failed(0x100);
+		router.clearFailed();
+
+		assertNull(router.takeFailed());
+		assertTrue(router.ack(0x100));
+		assertTrue(ack.isDone());
+	}
+
+	@Test
+	public void clearBetweenUploads() {
+		PendingAck ack = router.register(0x100);
+		router.register(0x200);
+		router.failed(0x200);
+		router.error(START_OVER);
+
+		router.clear();
+
+		assertEquals(0, router.takeError());
+		assertNull(router.takeFailed());
+
+		// the next upload sends the same id. the late ack from the last upload must not complete it
+		PendingAck next = router.register(0x100);
+		assertNotSame(ack, next);
+		assertTrue(router.ack(0x100));
+		assertTrue(next.isDone());
+		assertFalse(ack.isDone());
+
+		assertFalse(router.ack(0x200));
+	}
+
+	@Test
+	public void awaitWakesOnAck() throws Exception {
+		final PendingAck ack = router.register(0x100);
+
+		Thread receiver = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				router.ack(0x100);
+			}
+		};
+
+		long start = System.currentTimeMillis();
+		receiver.start();
+
+		while (!ack.isDone() && System.currentTimeMillis() - start < 5000) {
+			router.await(5000);
+		}
+
+		assertTrue(ack.isDone());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		receiver.join();
+	}
+
+	@Test(expected = InterruptedException.class)
+	public void awaitThrowsWhenInterrupted() throws Exception {
+		router.register(0x100);
+		Thread.currentThread().interrupt();
+		router.await(5000);
+	}
+}
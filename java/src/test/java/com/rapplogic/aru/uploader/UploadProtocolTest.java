@@ -0,0 +1,277 @@
+/**
+ * Copyright (c) 2015 Andrew Rapp. All rights reserved.
+ *
+ * This file is part of arduino-remote-uploader
+ *
+ * arduino-remote-uploader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * arduino-remote-uploader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with arduino-remote-uploader.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.rapplogic.aru.uploader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.rapplogic.aru.core.Page;
+import com.rapplogic.aru.core.Sketch;
+import com.rapplogic.aru.core.SketchCore;
+import com.rapplogic.aru.uploader.simulator.LinkConditions;
+import com.rapplogic.aru.uploader.simulator.SimulatedConfig;
+import com.rapplogic.aru.uploader.simulator.SimulatedDevice;
+import com.rapplogic.aru.uploader.simulator.SimulatedTransport;
+import com.rapplogic.aru.uploader.transport.TransportSketchUploader;
+import com.rapplogic.aru.uploader.transport.loopback.VirtualArduino;
+
+/**
+ * Uploads over a lossy simulated link to a virtual arduino, once for each kind of start packet
+ * 
+ * @author andrew
+ *
+ */
+public class UploadProtocolTest {
+
+	private static final String DEVICE_ID = "sim";
+	private static final int PAGE_SIZE = 26;
+	private static final int ACK_TIMEOUT_MILLIS = 50;
+	private static final int ARDUINO_TIMEOUT_SEC = 60;
+	private static final int RETRIES = 10;
+	
+	private File directory;
+	private String slow;
+	private String fast;
+	private final List<SimulatedDevice> devices = Lists.newArrayList();
+	
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDir();
+		slow = new File(getClass().getResource("/BlinkSlow-atmega-328-16Mhz.cpp.hex").toURI()).getAbsolutePath();
+		fast = new File(getClass().getResource("/BlinkFast-atmega-328-16Mhz.cpp.hex").toURI()).getAbsolutePath();
+	}
+	
+	@After
+	public void tearDown() {
+		for (SimulatedDevice device : devices) {
+			device.close();
+		}
+		
+		delete(directory);
+	}
+	
+	@Test
+	public void plainUpload() throws Exception {
+		SimulatedDevice device = newDevice(1);
+		RecordingListener listener = new RecordingListener(newUploader(device));
+		
+		assertTrue(listener.uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(slow, device);
+		assertTrue(listener.hasMessage("bytes per packet, header"));
+		assertEquals(1, device.getArduino().getFlashes());
+	}
+	
+	@Test
+	public void windowedUpload() throws Exception {
+		SimulatedDevice device = newDevice(2);
+		RecordingListener listener = new RecordingListener(newUploader(device));
+		listener.uploader.setWindowSize(4);
+		
+		assertTrue(listener.uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(slow, device);
+		assertTrue(listener.hasMessage("window of 4 packets"));
+	}
+	
+	@Test
+	public void resumesInterruptedUpload() throws Exception {
+		SimulatedDevice device = newDevice(3);
+		interruptUpload(device);
+		
+		RecordingListener listener = new RecordingListener(newUploader(device));
+		assertTrue(listener.uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(slow, device);
+		assertTrue(listener.hasMessage("Resuming upload"));
+		assertFalse(listener.hasMessage("Arduino refused resume"));
+	}
+	
+	@Test
+	public void startsOverWhenResumeRefused() throws Exception {
+		interruptUpload(newDevice(4));
+		
+		// e.g. the arduino was power cycled, so it no longer has the pages that were journaled
+		SimulatedDevice replaced = newDevice(5);
+		RecordingListener listener = new RecordingListener(newUploader(replaced));
+		
+		assertTrue(listener.uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(slow, replaced);
+		assertTrue(listener.hasMessage("Resuming upload"));
+		assertTrue(listener.hasMessage("Arduino refused resume"));
+	}
+	
+	@Test
+	public void deltaUpload() throws Exception {
+		SimulatedDevice device = newDevice(6);
+		assertTrue(newUploader(device).flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		
+		RecordingListener listener = new RecordingListener(newUploader(device));
+		assertTrue(listener.uploader.flash(fast, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(fast, device);
+		assertTrue(listener.hasMessage("changed pages of sketch"));
+		assertFalse(listener.hasMessage("Arduino refused delta upload"));
+	}
+	
+	@Test
+	public void sendsAllPagesWhenDeltaRefused() throws Exception {
+		assertTrue(newUploader(newDevice(7)).flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		
+		// flash history says slow is on the device, but the arduino doesn't have it in eeprom
+		SimulatedDevice replaced = newDevice(8);
+		RecordingListener listener = new RecordingListener(newUploader(replaced));
+		
+		assertTrue(listener.uploader.flash(fast, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(fast, replaced);
+		assertTrue(listener.hasMessage("changed pages of sketch"));
+		assertTrue(listener.hasMessage("Arduino refused delta upload"));
+	}
+	
+	@Test
+	public void sendsPagesMissedByBroadcast() throws Exception {
+		SimulatedDevice device = newDevice(9);
+		TransportSketchUploader uploader = newUploader(device);
+		Sketch sketch = new SketchCore().parseSketchFromIntelHex(slow, PAGE_SIZE);
+		
+		// what an xbee fleet broadcast does, with every third page lost
+		process(device, uploader.getBroadcastStartHeader(sketch.getSize(), sketch.getPages().size(), sketch.getBytesPerPage(), ARDUINO_TIMEOUT_SEC, uploader.VERSION, uploader.getImageTag(sketch.getMd5())));
+		int missed = 0;
+		
+		for (Page page : sketch.getPages()) {
+			if (page.getOrdinal() % 3 == 0) {
+				missed++;
+			} else {
+				process(device, uploader.combine(uploader.getBroadcastPageHeader(page.getRealAddress16(), page.getLength()), page));
+			}
+		}
+		
+		RecordingListener listener = new RecordingListener(uploader);
+		uploader.setBroadcastStarted(true);
+		
+		assertTrue(uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, RETRIES, 0));
+		assertFlashed(slow, device);
+		assertTrue(listener.hasMessage("Arduino is missing " + missed + " of " + sketch.getPages().size() + " broadcast pages"));
+	}
+	
+	/**
+	 * Loses the link partway through an upload of slow, leaving it in the journal
+	 */
+	private void interruptUpload(final SimulatedDevice device) throws Exception {
+		RecordingListener listener = new RecordingListener(newUploader(device)) {
+			@Override
+			public void pageAcked(PageEvent event) {
+				super.pageAcked(event);
+				
+				if (event.getPage().getOrdinal() == 10) {
+					device.getLink().setLossPercent(100);
+				}
+			}
+		};
+		
+		assertFalse(listener.uploader.flash(slow, false, ACK_TIMEOUT_MILLIS, ARDUINO_TIMEOUT_SEC, 2, 0));
+		assertEquals(0, device.getArduino().getFlashes());
+		device.getLink().setLossPercent(10);
+	}
+	
+	private SimulatedDevice newDevice(long seed) {
+		LinkConditions link = new LinkConditions(seed);
+		link.setLatencyMillis(1);
+		link.setLossPercent(10);
+		
+		SimulatedDevice device = new SimulatedDevice(DEVICE_ID, new VirtualArduino(), link);
+		devices.add(device);
+		return device;
+	}
+	
+	private TransportSketchUploader newUploader(SimulatedDevice device) {
+		SimulatedConfig config = new SimulatedConfig(PAGE_SIZE, 0, device);
+		config.setDeviceId(DEVICE_ID);
+		
+		TransportSketchUploader uploader = new TransportSketchUploader(new SimulatedTransport(config));
+		uploader.setUploadJournal(new UploadJournal(new File(directory, "journal")));
+		uploader.setFlashHistory(new FlashHistory(new File(directory, "history")));
+		return uploader;
+	}
+	
+	private void process(SimulatedDevice device, int[] packet) {
+		byte[] bytes = new byte[packet.length];
+		
+		for (int i = 0; i < packet.length; i++) {
+			bytes[i] = (byte) packet[i];
+		}
+		
+		device.getArduino().process(bytes, 0, bytes.length);
+	}
+	
+	private void assertFlashed(String hex, SimulatedDevice device) throws Exception {
+		assertArrayEquals(new SketchCore().parseIntelHex(hex), device.getArduino().getProgram());
+	}
+	
+	private void delete(File file) {
+		if (file.isDirectory()) {
+			for (File child : file.listFiles()) {
+				delete(child);
+			}
+		}
+		
+		file.delete();
+	}
+	
+	private static class RecordingListener extends ConsoleUploadListener {
+		
+		private final TransportSketchUploader uploader;
+		private final List<String> messages = Lists.newArrayList();
+		
+		RecordingListener(TransportSketchUploader uploader) {
+			super(uploader);
+			this.uploader = uploader;
+			uploader.setUploadListener(this);
+		}
+		
+		@Override
+		public void message(MessageEvent event) {
+			super.message(event);
+			
+			synchronized (messages) {
+				messages.add(event.getMessage());
+			}
+		}
+		
+		boolean hasMessage(String text) {
+			synchronized (messages) {
+				for (String message : messages) {
+					if (message.contains(text)) {
+						return true;
+					}
+				}
+			}
+			
+			return false;
+		}
+	}
+}